@@ -26,6 +26,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -39,6 +42,8 @@ import org.apache.uima.cas.CAS;
 import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
@@ -73,6 +78,11 @@ public class AnnotationServiceImpl
     @SpringBean(name = "documentRepository")
     private RepositoryService projectRepository;
 
+    private final AtomicLong schemaVersion = new AtomicLong();
+    private final Map<Long, Long> schemaVersions = new ConcurrentHashMap<>();
+
+    private final TagCache tagCache = new TagCache();
+
     public AnnotationServiceImpl()
     {
 
@@ -84,6 +94,7 @@ public class AnnotationServiceImpl
         throws IOException
     {
         entityManager.persist(aTag);
+        tagsChanged(aTag.getTagSet());
 
         createLog(aTag.getTagSet().getProject(), aUser.getUsername()).info(
                 " Added tag [" + aTag.getName() + "] with ID [" + aTag.getId() + "] to TagSet ["
@@ -102,6 +113,7 @@ public class AnnotationServiceImpl
         }
         else {
             entityManager.merge(aTagSet);
+            tagsChanged(aTagSet);
         }
         createLog(aTagSet.getProject(), aUser.getUsername()).info(
                 " Added tagset [" + aTagSet.getName() + "] with ID [" + aTagSet.getId() + "]");
@@ -119,6 +131,7 @@ public class AnnotationServiceImpl
         else {
             entityManager.merge(aLayer);
         }
+        schemaChanged(aLayer.getProject());
         createLog(aLayer.getProject(), aUser.getUsername()).info(
                 " Added layer [" + aLayer.getName() + "] with ID [" + aLayer.getId() + "]");
         createLog(aLayer.getProject(), aUser.getUsername()).removeAllAppenders();
@@ -134,6 +147,7 @@ public class AnnotationServiceImpl
         else {
             entityManager.merge(aFeature);
         }
+        schemaChanged(aFeature.getProject());
     }
 
     @Override
@@ -708,6 +722,21 @@ public class AnnotationServiceImpl
         return tags;
     }
 
+    @Override
+    @Transactional
+    public List<Tag> listCachedTags(final TagSet aTagSet)
+    {
+        return tagCache.getTags(aTagSet.getId(), () -> listTags(aTagSet));
+    }
+
+    @Override
+    @Transactional
+    public List<Tag> listCachedTags(final TagSet aTagSet, String aPrefix, int aFirst, int aCount)
+    {
+        return tagCache.getTags(aTagSet.getId(), aPrefix, aFirst, aCount,
+                () -> listTags(aTagSet));
+    }
+
     @Override
     @Transactional
     public List<TagSet> listTagSets()
@@ -730,6 +759,9 @@ public class AnnotationServiceImpl
     public void removeTag(Tag aTag)
     {
         entityManager.remove(aTag);
+        if (aTag.getTagSet() != null) {
+            tagsChanged(aTag.getTagSet());
+        }
     }
 
     @Override
@@ -740,6 +772,7 @@ public class AnnotationServiceImpl
             entityManager.remove(tag);
         }
         entityManager.remove(aTagSet);
+        tagsChanged(aTagSet);
     }
 
     @Override
@@ -747,7 +780,7 @@ public class AnnotationServiceImpl
     public void removeAnnotationFeature(AnnotationFeature aFeature)
     {
         entityManager.remove(aFeature);
-
+        schemaChanged(aFeature.getProject());
     }
 
     @Override
@@ -755,7 +788,55 @@ public class AnnotationServiceImpl
     public void removeAnnotationLayer(AnnotationLayer aLayer)
     {
         entityManager.remove(aLayer);
+        schemaChanged(aLayer.getProject());
+    }
+
+    @Override
+    public long getSchemaVersion(Project aProject)
+    {
+        Long version = schemaVersions.get(aProject.getId());
+        return version != null ? version : 0;
+    }
+
+    /**
+     * Assign a new schema version to the project. This is done immediately and again when the
+     * transaction completes. Otherwise, data derived from the old schema by a concurrent reader
+     * before the commit would be associated with the new version.
+     */
+    private void schemaChanged(final Project aProject)
+    {
+        schemaVersions.put(aProject.getId(), schemaVersion.incrementAndGet());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager
+                    .registerSynchronization(new TransactionSynchronizationAdapter()
+                    {
+                        @Override
+                        public void afterCompletion(int aStatus)
+                        {
+                            schemaVersions.put(aProject.getId(), schemaVersion.incrementAndGet());
+                        }
+                    });
+        }
+    }
 
+    /**
+     * Drop the cached tags of the tagset. This is done immediately and again when the transaction
+     * completes, for the same reason as in {@link #schemaChanged(Project)}.
+     */
+    private void tagsChanged(final TagSet aTagSet)
+    {
+        tagCache.invalidate(aTagSet.getId());
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager
+                    .registerSynchronization(new TransactionSynchronizationAdapter()
+                    {
+                        @Override
+                        public void afterCompletion(int aStatus)
+                        {
+                            tagCache.invalidate(aTagSet.getId());
+                        }
+                    });
+        }
     }
 
     private static final String PROJECT = "/project/";
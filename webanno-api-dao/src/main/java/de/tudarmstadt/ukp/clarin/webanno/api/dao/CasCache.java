@@ -0,0 +1,360 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASSerializer;
+
+/**
+ * Memory-bounded cache of deserialized CASes keyed by source document ID and user name.
+ * <p>
+ * The cache does not hold on to live CAS instances because these are modified by the callers.
+ * Instead, it keeps a {@link CASCompleteSerializer} snapshot of each CAS from which a private
+ * copy is handed out on every hit. This avoids the file access, the Java deserialization and the
+ * repairs on a hit while every caller still gets a CAS it may freely change.
+ * <p>
+ * Entries remember the modification time and size of the file they were taken from. If the file
+ * changes behind the back of the cache, the entry is dropped on the next access. When the
+ * estimated size of all entries exceeds the memory budget, the least recently used entries are
+ * evicted.
+ */
+public class CasCache
+{
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final long maxSize;
+
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param aMaxSize
+     *            the memory budget in bytes. If this is zero or negative, nothing is cached.
+     */
+    public CasCache(long aMaxSize)
+    {
+        maxSize = aMaxSize;
+    }
+
+    /**
+     * Get a private copy of the cached CAS.
+     *
+     * @param aDocumentId
+     *            the ID of the source document.
+     * @param aUsername
+     *            the user owning the CAS.
+     * @param aFile
+     *            the file from which the CAS would otherwise be loaded.
+     * @return a copy of the cached CAS or {@code null} if the CAS is not cached or if the cached
+     *         copy is outdated.
+     */
+    public CASCompleteSerializer get(long aDocumentId, String aUsername, File aFile)
+    {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        Entry entry;
+        synchronized (entries) {
+            Key key = new Key(aDocumentId, aUsername);
+            entry = entries.get(key);
+            if (entry != null && !entry.isCurrent(aFile)) {
+                remove(key);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        // The snapshot is immutable, so we can copy it outside the synchronized block
+        return copy(entry.serializer);
+    }
+
+    /**
+     * Get an object identifying the cached version of the CAS. A new version is identified by a
+     * new object, so it can be used to share data derived from the copies of the version, see
+     * {@link de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData}.
+     *
+     * @return the version or {@code null} if the CAS is not cached.
+     */
+    public Object getVersion(long aDocumentId, String aUsername)
+    {
+        synchronized (entries) {
+            return entries.get(new Key(aDocumentId, aUsername));
+        }
+    }
+
+    /**
+     * Add a CAS to the cache, replacing any previously cached version.
+     *
+     * @param aDocumentId
+     *            the ID of the source document.
+     * @param aUsername
+     *            the user owning the CAS.
+     * @param aFile
+     *            the file the CAS has been loaded from or has just been written to.
+     * @param aSerializer
+     *            a snapshot of the CAS. The caller must not use it anymore afterwards.
+     */
+    public void put(long aDocumentId, String aUsername, File aFile,
+            CASCompleteSerializer aSerializer)
+    {
+        if (maxSize <= 0) {
+            return;
+        }
+
+        Key key = new Key(aDocumentId, aUsername);
+        Entry entry = new Entry(aSerializer, aFile);
+
+        synchronized (entries) {
+            remove(key);
+
+            if (entry.size > maxSize) {
+                log.debug("Not caching CAS " + key + " because its size [" + entry.size
+                        + "] exceeds the memory budget [" + maxSize + "]");
+                return;
+            }
+
+            entries.put(key, entry);
+            size += entry.size;
+
+            Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+            while (size > maxSize && i.hasNext()) {
+                Map.Entry<Key, Entry> eldest = i.next();
+                i.remove();
+                size -= eldest.getValue().size;
+                evictions.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Evicted CAS " + eldest.getKey() + " from cache - " + this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the CAS of the given user from the cache.
+     */
+    public void invalidate(long aDocumentId, String aUsername)
+    {
+        synchronized (entries) {
+            remove(new Key(aDocumentId, aUsername));
+        }
+    }
+
+    /**
+     * Remove the CASes of all users for the given document from the cache.
+     */
+    public void invalidate(long aDocumentId)
+    {
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, Entry>> i = entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Key, Entry> e = i.next();
+                if (e.getKey().documentId == aDocumentId) {
+                    i.remove();
+                    size -= e.getValue().size;
+                }
+            }
+        }
+    }
+
+    public void clear()
+    {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private void remove(Key aKey)
+    {
+        Entry old = entries.remove(aKey);
+        if (old != null) {
+            size -= old.size;
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return maxSize > 0;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return the estimated memory used by the cached CASes in bytes.
+     */
+    public long getSize()
+    {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    public int getEntryCount()
+    {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[entries: " + getEntryCount() + ", size: " + getSize() + "/" + maxSize
+                + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + "]";
+    }
+
+    /**
+     * Creates a deep copy of the CAS data in the given serializer. The type system and index
+     * definitions are only read during deserialization and can be shared.
+     */
+    static CASCompleteSerializer copy(CASCompleteSerializer aSerializer)
+    {
+        CASSerializer original = aSerializer.getCASSerializer();
+        CASSerializer copy = new CASSerializer();
+        copy.heapArray = original.heapArray != null ? original.heapArray.clone() : null;
+        copy.heapMetaData = original.heapMetaData != null ? original.heapMetaData.clone() : null;
+        copy.stringTable = original.stringTable != null ? original.stringTable.clone() : null;
+        copy.fsIndex = original.fsIndex != null ? original.fsIndex.clone() : null;
+        copy.byteHeapArray = original.byteHeapArray != null ? original.byteHeapArray.clone()
+                : null;
+        copy.shortHeapArray = original.shortHeapArray != null ? original.shortHeapArray.clone()
+                : null;
+        copy.longHeapArray = original.longHeapArray != null ? original.longHeapArray.clone()
+                : null;
+
+        CASCompleteSerializer result = new CASCompleteSerializer();
+        result.setCasMgrSerializer(aSerializer.getCASMgrSerializer());
+        result.setCasSerializer(copy);
+        return result;
+    }
+
+    /**
+     * Estimates the heap memory occupied by the CAS data. The type system is not accounted for
+     * since it is small compared to the data of any real document.
+     */
+    static long estimateSize(CASCompleteSerializer aSerializer)
+    {
+        CASSerializer ser = aSerializer.getCASSerializer();
+        long size = 0;
+        size += ser.heapArray != null ? 4L * ser.heapArray.length : 0;
+        size += ser.heapMetaData != null ? 4L * ser.heapMetaData.length : 0;
+        size += ser.fsIndex != null ? 4L * ser.fsIndex.length : 0;
+        size += ser.byteHeapArray != null ? ser.byteHeapArray.length : 0;
+        size += ser.shortHeapArray != null ? 2L * ser.shortHeapArray.length : 0;
+        size += ser.longHeapArray != null ? 8L * ser.longHeapArray.length : 0;
+        if (ser.stringTable != null) {
+            for (String s : ser.stringTable) {
+                // Reference plus string object overhead plus characters
+                size += 8 + (s != null ? 40 + 2L * s.length() : 0);
+            }
+        }
+        return size;
+    }
+
+    private static final class Key
+    {
+        private final long documentId;
+        private final String username;
+
+        public Key(long aDocumentId, String aUsername)
+        {
+            documentId = aDocumentId;
+            username = aUsername;
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (!(aOther instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) aOther;
+            return documentId == other.documentId && Objects.equals(username, other.username);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Long.hashCode(documentId) + Objects.hashCode(username);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[" + documentId + "/" + username + "]";
+        }
+    }
+
+    private static final class Entry
+    {
+        private final CASCompleteSerializer serializer;
+        private final long size;
+        private final long lastModified;
+        private final long length;
+
+        public Entry(CASCompleteSerializer aSerializer, File aFile)
+        {
+            serializer = aSerializer;
+            size = estimateSize(aSerializer);
+            lastModified = aFile.lastModified();
+            length = aFile.length();
+        }
+
+        public boolean isCurrent(File aFile)
+        {
+            return aFile.lastModified() == lastModified && aFile.length() == length;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.Serialization;
+
+/**
+ * Append-only journal of the changes made to a stored CAS since it was last written completely.
+ * <p>
+ * The journal lives next to the CAS file and consists of a header identifying the CAS file it
+ * applies to, followed by delta records in the UIMA compressed binary format. A delta records
+ * the feature structures added since the CAS was loaded, the modified features of existing ones
+ * and the changes to the indexes. To read the CAS, the deltas are applied in order on top of the
+ * CAS file.
+ * <p>
+ * A CAS can only have a single change marker. The delta written for a loaded CAS therefore
+ * always covers all changes since it was loaded. If the same CAS is saved again, its previous
+ * delta is replaced. The replacement is written to a new journal file which then takes the place
+ * of the old one, so the previous delta stays readable until the new one is on disk.
+ * <p>
+ * The header also holds a generation which is incremented on every write. A CAS whose delta is
+ * based on another generation than the current one has been loaded before somebody else saved
+ * the same CAS and cannot be appended anymore. Each record carries a checksum, so a record that
+ * has only been partially written is detected and ignored.
+ */
+public class CasJournal
+{
+    public static final String SUFFIX = ".journal";
+
+    private static final byte[] MAGIC = { 'W', 'A', 'C', 'J' };
+    private static final int VERSION = 2;
+    private static final int GENERATION_OFFSET = MAGIC.length + 4 + 8 + 8;
+    private static final int HEADER_LENGTH = GENERATION_OFFSET + 8;
+    private static final int RECORD_HEADER_LENGTH = 4 + 8;
+
+    private static final Log LOG = LogFactory.getLog(CasJournal.class);
+
+    private final int maxRecords;
+
+    private final Map<CAS, State> states = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param aMaxRecords
+     *            the number of records after which the journal should be compacted into the CAS
+     *            file. If this is zero or negative, no new journal records are written.
+     */
+    public CasJournal(int aMaxRecords)
+    {
+        maxRecords = aMaxRecords;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxRecords > 0;
+    }
+
+    public static File getJournalFile(File aCasFile)
+    {
+        return new File(aCasFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Apply the journal of a CAS file to a CAS that has just been read from that file. If there is
+     * no journal or if it belongs to a previous version of the CAS file, nothing is done.
+     *
+     * @return the number of records applied.
+     */
+    public int replay(CAS aCas, File aCasFile)
+        throws IOException
+    {
+        File journalFile = getJournalFile(aCasFile);
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int records = 0;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile)))) {
+            if (readHeader(is, aCasFile) < 0) {
+                LOG.warn("Ignoring journal [" + journalFile + "] which does not match the CAS");
+                return 0;
+            }
+
+            byte[] record;
+            while ((record = readRecord(is, journalFile)) != null) {
+                Serialization.deserializeCAS(aCas, new ByteArrayInputStream(record));
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Start recording the changes to a CAS which has just been read from the given file or which
+     * has just been completely written to it. This must be called before the CAS is modified.
+     */
+    public void track(CAS aCas, File aCasFile)
+        throws IOException
+    {
+        if (!isEnabled()) {
+            return;
+        }
+
+        CASImpl cas = ((CASImpl) aCas).getBaseCAS();
+        if (cas.getCurrentMark() != null) {
+            // Only one marker per CAS is supported
+            return;
+        }
+
+        State state = new State();
+        state.marker = cas.createMarker();
+        state.typeSystem = cas.getTypeSystem();
+        state.casFileModified = aCasFile.lastModified();
+        state.casFileLength = aCasFile.length();
+        state.generation = -1;
+
+        File journalFile = getJournalFile(aCasFile);
+        if (journalFile.exists()) {
+            try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journalFile)))) {
+                state.generation = readHeader(is, aCasFile);
+                if (state.generation >= 0) {
+                    state.baseOffset = HEADER_LENGTH;
+                    byte[] record;
+                    while ((record = readRecord(is, journalFile)) != null) {
+                        state.baseOffset += RECORD_HEADER_LENGTH + record.length;
+                        state.baseRecords++;
+                    }
+                }
+            }
+        }
+
+        states.put(cas, state);
+    }
+
+    /**
+     * Append the changes made to the CAS since it was tracked to the journal of the given CAS file.
+     * When this returns, the changes have been forced to disk. The caller must ensure that nobody
+     * else accesses the files at the same time.
+     *
+     * @return {@code false} if the changes could not be appended and the CAS needs to be written
+     *         completely instead. This is the case if the CAS is not tracked, if the stored CAS
+     *         has changed since the CAS was tracked or if the journal should be compacted.
+     */
+    public boolean append(CAS aCas, File aCasFile)
+        throws IOException
+    {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        CASImpl cas = ((CASImpl) aCas).getBaseCAS();
+        State state = states.get(cas);
+        if (state == null || !state.isCurrent(cas, aCasFile)) {
+            return false;
+        }
+
+        if (state.baseRecords + 1 > maxRecords) {
+            return false;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Serialization.serializeWithCompression(cas, buffer, state.marker);
+        byte[] record = buffer.toByteArray();
+        long newLength = Math.max(state.baseOffset, HEADER_LENGTH) + RECORD_HEADER_LENGTH
+                + record.length;
+
+        // Once the journal gets larger than the CAS file, it is cheaper to write the whole CAS
+        if (newLength > aCasFile.length()) {
+            return false;
+        }
+
+        File journalFile = getJournalFile(aCasFile);
+        long generation = state.generation + 1;
+        if (state.baseOffset == 0 || state.appended) {
+            // Starting a new journal or replacing the delta previously written for the same CAS.
+            // Truncating the journal in place would lose the previous delta if we crashed before
+            // the new one is complete, so the new journal is written to a file of its own.
+            rewrite(journalFile, state, aCasFile, generation, record);
+        }
+        else {
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                // Anything after the last complete record is left over from an interrupted write
+                raf.setLength(state.baseOffset);
+                raf.seek(state.baseOffset);
+                raf.write(encodeRecord(record));
+                raf.getFD().sync();
+
+                // Only the new generation makes other CASes loaded from the journal stale
+                raf.seek(GENERATION_OFFSET);
+                raf.writeLong(generation);
+                raf.getFD().sync();
+            }
+        }
+
+        state.generation = generation;
+        state.appended = true;
+        return true;
+    }
+
+    /**
+     * Writes a new journal consisting of the records before the delta of the given CAS and the new
+     * delta, then atomically replaces the current journal with it.
+     */
+    private static void rewrite(File aJournalFile, State aState, File aCasFile, long aGeneration,
+            byte[] aRecord)
+        throws IOException
+    {
+        File tempFile = new File(aJournalFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                DataOutputStream os = new DataOutputStream(fos);
+                os.write(MAGIC);
+                os.writeInt(VERSION);
+                os.writeLong(aState.casFileModified);
+                os.writeLong(aState.casFileLength);
+                os.writeLong(aGeneration);
+                if (aState.baseOffset > HEADER_LENGTH) {
+                    try (RandomAccessFile raf = new RandomAccessFile(aJournalFile, "r")) {
+                        byte[] records = new byte[(int) (aState.baseOffset - HEADER_LENGTH)];
+                        raf.seek(HEADER_LENGTH);
+                        raf.readFully(records);
+                        os.write(records);
+                    }
+                }
+                os.write(encodeRecord(aRecord));
+                os.flush();
+                fos.getFD().sync();
+            }
+
+            Files.move(tempFile.toPath(), aJournalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(aJournalFile.getParentFile());
+        }
+        finally {
+            FileUtils.deleteQuietly(tempFile);
+        }
+    }
+
+    /**
+     * Forces a rename within the given directory to disk. Not all platforms support this, in
+     * which case the rename becomes durable whenever the file system gets to it.
+     */
+    private static void syncDirectory(File aDirectory)
+    {
+        try (FileChannel channel = FileChannel.open(aDirectory.toPath(),
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Directories cannot be opened on all platforms
+        }
+    }
+
+    /**
+     * @return the number of records in the journal of the given CAS file.
+     */
+    public static int getRecordCount(File aCasFile)
+        throws IOException
+    {
+        File journalFile = getJournalFile(aCasFile);
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int records = 0;
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile)))) {
+            if (readHeader(is, aCasFile) >= 0) {
+                while (readRecord(is, journalFile) != null) {
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the generation of the journal of the given CAS file or {@code -1} if there is no
+     *         journal or if it does not belong to the CAS file.
+     */
+    private static long readGeneration(File aCasFile)
+        throws IOException
+    {
+        File journalFile = getJournalFile(aCasFile);
+        if (!journalFile.exists()) {
+            return -1;
+        }
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile)))) {
+            return readHeader(is, aCasFile);
+        }
+    }
+
+    /**
+     * @return the generation of the journal or {@code -1} if the header does not belong to the
+     *         given CAS file.
+     */
+    private static long readHeader(DataInputStream aIs, File aCasFile)
+        throws IOException
+    {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            aIs.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic) || aIs.readInt() != VERSION
+                    || aIs.readLong() != aCasFile.lastModified()
+                    || aIs.readLong() != aCasFile.length()) {
+                return -1;
+            }
+            return aIs.readLong();
+        }
+        catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] encodeRecord(byte[] aRecord)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(aRecord);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                RECORD_HEADER_LENGTH + aRecord.length);
+        DataOutputStream os = new DataOutputStream(buffer);
+        os.writeInt(aRecord.length);
+        os.writeLong(crc.getValue());
+        os.write(aRecord);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * @return the next record or {@code null} if there are no more complete records. An
+     *         incomplete or damaged record at the end stems from an interrupted write. It is
+     *         ignored, along with anything following it.
+     */
+    private static byte[] readRecord(DataInputStream aIs, File aJournalFile)
+        throws IOException
+    {
+        int length;
+        try {
+            length = aIs.readInt();
+        }
+        catch (EOFException e) {
+            return null;
+        }
+
+        try {
+            long checksum = aIs.readLong();
+            if (length < 0 || length > aJournalFile.length()) {
+                LOG.warn("Ignoring damaged record at the end of journal [" + aJournalFile + "]");
+                return null;
+            }
+            byte[] record = new byte[length];
+            aIs.readFully(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if (crc.getValue() != checksum) {
+                LOG.warn("Ignoring damaged record at the end of journal [" + aJournalFile + "]");
+                return null;
+            }
+            return record;
+        }
+        catch (EOFException e) {
+            LOG.warn("Ignoring incomplete record at the end of journal [" + aJournalFile + "]");
+            return null;
+        }
+    }
+
+    private static final class State
+    {
+        private Marker marker;
+        private TypeSystem typeSystem;
+        private long casFileModified;
+        private long casFileLength;
+        private long generation;
+        private long baseOffset;
+        private int baseRecords;
+        private boolean appended;
+
+        public boolean isCurrent(CASImpl aCas, File aCasFile)
+            throws IOException
+        {
+            // Upgrading the CAS replaces the type system, which also invalidates the marker
+            if (aCas.getTypeSystem() != typeSystem || aCas.getCurrentMark() != marker
+                    || !marker.isValid()) {
+                return false;
+            }
+
+            return aCasFile.lastModified() == casFileModified
+                    && aCasFile.length() == casFileLength
+                    && readGeneration(aCasFile) == generation;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.uima.cas.CAS;
+
+/**
+ * Format in which the CASes are stored in the repository. Implementations must not change the
+ * addresses of the feature structures when a CAS is written and read again because these are
+ * used as IDs by the editor.
+ */
+public interface CasStorageFormat
+{
+    /**
+     * Number of bytes at the start of a file required by {@link #accepts(byte[])}.
+     */
+    int HEADER_LENGTH = 4;
+
+    /**
+     * @return the name of the format as used in the settings.
+     */
+    String getId();
+
+    /**
+     * Checks whether a file was written in this format.
+     *
+     * @param aHeader
+     *            the first {@link #HEADER_LENGTH} bytes of the file.
+     * @return if the file can be read by this format.
+     */
+    boolean accepts(byte[] aHeader);
+
+    /**
+     * Write the CAS to the given file.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aFile
+     *            the target file.
+     * @param aTypeSystemFolder
+     *            the folder in which the format may store information shared by all the CASes of
+     *            a project, such as the type system.
+     * @throws IOException
+     *             if the CAS cannot be written.
+     */
+    void write(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException;
+
+    /**
+     * Read the given file into the CAS. The CAS is completely replaced including its type system.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aFile
+     *            the source file.
+     * @param aTypeSystemFolder
+     *            the folder in which the format may store information shared by all the CASes of
+     *            a project, such as the type system.
+     * @throws IOException
+     *             if the CAS cannot be read.
+     */
+    void read(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException;
+}
@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks guarding the serialized CASes in the repository. The lock for a CAS
+ * is selected by the ID of the source document and the name of the user owning the CAS. Thus,
+ * any number of readers can access the same CAS at the same time and writes to different CASes
+ * are usually not blocked by each other. Two CASes may share a stripe, which only costs
+ * concurrency, never correctness.
+ */
+public class CasStorageLocks
+{
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ReadWriteLock[] locks;
+
+    public CasStorageLocks()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    public CasStorageLocks(int aStripes)
+    {
+        if (aStripes < 1) {
+            throw new IllegalArgumentException("Number of stripes must be positive but was ["
+                    + aStripes + "]");
+        }
+
+        locks = new ReadWriteLock[aStripes];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Get the lock guarding the CAS of the given user for the given source document.
+     *
+     * @param aDocumentId
+     *            the ID of the source document.
+     * @param aUsername
+     *            the user owning the CAS or one of the pseudo-users such as the CURATION_USER.
+     * @return the lock.
+     */
+    public ReadWriteLock get(long aDocumentId, String aUsername)
+    {
+        int hash = 31 * Long.hashCode(aDocumentId) + aUsername.hashCode();
+        // Spread the bits a bit, user names and document IDs tend to be very similar
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return locks[(hash & Integer.MAX_VALUE) % locks.length];
+    }
+
+    public int getStripes()
+    {
+        return locks.length;
+    }
+}
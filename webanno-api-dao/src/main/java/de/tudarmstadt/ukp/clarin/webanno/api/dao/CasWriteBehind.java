@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Keeps track of CASes which have been saved by the user but not yet written completely to the
+ * repository.
+ * <p>
+ * Successive saves of the same CAS only replace the pending snapshot, so they are coalesced into a
+ * single write. The write is triggered on a background thread at the latest after the configured
+ * delay has passed since the first unwritten save. The actual writing is delegated to a
+ * {@link Flusher}. The snapshots are only kept in memory, so the caller must make each save
+ * durable before submitting it, e.g. by recording it in the {@link CasJournal}.
+ */
+public class CasWriteBehind
+{
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final long delay;
+    private final Flusher flusher;
+
+    private final Map<Key, Pending> pending = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * @param aDelay
+     *            the maximum time in milliseconds a save may remain pending. If this is zero or
+     *            negative, write-behind is disabled.
+     * @param aFlusher
+     *            the callback which writes the pending CASes.
+     */
+    public CasWriteBehind(long aDelay, Flusher aFlusher)
+    {
+        delay = aDelay;
+        flusher = aFlusher;
+
+        if (delay > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "CAS write-behind");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return executor != null;
+    }
+
+    /**
+     * Register a new snapshot of a CAS. If there is already a pending snapshot for the same CAS, it
+     * is replaced and no additional write is scheduled.
+     */
+    public void submit(SourceDocument aDocument, String aUsername,
+            CASCompleteSerializer aSerializer)
+    {
+        Key key = new Key(aDocument.getId(), aUsername);
+        submitted.incrementAndGet();
+        synchronized (pending) {
+            Pending p = pending.get(key);
+            if (p != null) {
+                p.serializer = aSerializer;
+                return;
+            }
+
+            pending.put(key, new Pending(aDocument, aSerializer));
+        }
+
+        executor.schedule(() -> flush(aDocument, aUsername), delay, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isPending(long aDocumentId, String aUsername)
+    {
+        synchronized (pending) {
+            return pending.containsKey(new Key(aDocumentId, aUsername));
+        }
+    }
+
+    /**
+     * Remove the pending snapshot of a CAS. This is called by the {@link Flusher} when it writes
+     * the CAS and when the CAS is written completely by other means.
+     *
+     * @return the snapshot or {@code null} if no save is pending for the CAS.
+     */
+    public CASCompleteSerializer remove(long aDocumentId, String aUsername)
+    {
+        Pending p;
+        synchronized (pending) {
+            p = pending.remove(new Key(aDocumentId, aUsername));
+        }
+        if (p != null) {
+            flushed.incrementAndGet();
+        }
+        return p != null ? p.serializer : null;
+    }
+
+    /**
+     * Drop the pending snapshots of all users for the given document, e.g. because the document
+     * is deleted.
+     */
+    public void discard(long aDocumentId)
+    {
+        synchronized (pending) {
+            pending.keySet().removeIf(k -> k.documentId == aDocumentId);
+        }
+    }
+
+    /**
+     * Write the pending CAS of the given user for the given document immediately.
+     */
+    public void flush(SourceDocument aDocument, String aUsername)
+    {
+        try {
+            flusher.flush(aDocument, aUsername);
+        }
+        catch (Exception e) {
+            log.error("Unable to write CAS of user [" + aUsername + "] for document ["
+                    + aDocument.getName() + "] with ID [" + aDocument.getId() + "]", e);
+        }
+    }
+
+    /**
+     * Write all pending CASes of the given user immediately, e.g. when the user logs out.
+     *
+     * @param aUsername
+     *            the user or {@code null} to write the pending CASes of all users.
+     */
+    public void flush(String aUsername)
+    {
+        List<Map.Entry<Key, Pending>> toFlush = new ArrayList<>();
+        synchronized (pending) {
+            for (Map.Entry<Key, Pending> e : pending.entrySet()) {
+                if (aUsername == null || aUsername.equals(e.getKey().username)) {
+                    toFlush.add(e);
+                }
+            }
+        }
+
+        for (Map.Entry<Key, Pending> e : toFlush) {
+            flush(e.getValue().document, e.getKey().username);
+        }
+    }
+
+    /**
+     * Stop the background thread and write all pending CASes.
+     */
+    public void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush((String) null);
+    }
+
+    public int getPendingCount()
+    {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[pending: " + getPendingCount() + ", submitted: " + submitted + ", flushed: "
+                + flushed + "]";
+    }
+
+    /**
+     * Writes a pending CAS to its final location. Implementations obtain the snapshot to write
+     * using {@link CasWriteBehind#remove}.
+     */
+    public interface Flusher
+    {
+        void flush(SourceDocument aDocument, String aUsername)
+            throws Exception;
+    }
+
+    private static final class Pending
+    {
+        private final SourceDocument document;
+        private volatile CASCompleteSerializer serializer;
+
+        public Pending(SourceDocument aDocument, CASCompleteSerializer aSerializer)
+        {
+            document = aDocument;
+            serializer = aSerializer;
+        }
+    }
+
+    private static final class Key
+    {
+        private final long documentId;
+        private final String username;
+
+        public Key(long aDocumentId, String aUsername)
+        {
+            documentId = aDocumentId;
+            username = aUsername;
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (!(aOther instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) aOther;
+            return documentId == other.documentId && Objects.equals(username, other.username);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Long.hashCode(documentId) + Objects.hashCode(username);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.apache.uima.cas.impl.Serialization.createCASMgr;
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCAS;
+import static org.apache.uima.cas.impl.Serialization.serializeCASMgr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.CASMgrSerializer;
+import org.apache.uima.cas.impl.Serialization;
+
+/**
+ * Stores the CAS data in the UIMA compressed binary format. The type system and index
+ * definitions are stored only once per project in the type system folder, in a file named after
+ * their fingerprint. Each CAS file only refers to the fingerprint.
+ * <p>
+ * The compressed form 4 is used instead of form 6 because form 6 drops unreachable feature
+ * structures and renumbers the rest, whereas the editor relies on stable addresses.
+ */
+public class CompressedCasStorageFormat
+    implements CasStorageFormat
+{
+    public static final String ID = "compressed";
+
+    private static final byte[] MAGIC = { 'W', 'A', 'C', 'F' };
+    private static final int VERSION = 1;
+
+    private static final String TYPE_SYSTEM_SUFFIX = ".ts";
+    private static final int MAX_CACHED_TYPE_SYSTEMS = 32;
+
+    private final Map<TypeSystem, String> fingerprints = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private final Map<File, CASCompleteSerializer> typeSystems = Collections
+            .synchronizedMap(new LinkedHashMap<File, CASCompleteSerializer>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = -2424474497563526836L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<File, CASCompleteSerializer> aEldest)
+                {
+                    return size() > MAX_CACHED_TYPE_SYSTEMS;
+                }
+            });
+
+    @Override
+    public String getId()
+    {
+        return ID;
+    }
+
+    @Override
+    public boolean accepts(byte[] aHeader)
+    {
+        if (aHeader.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (aHeader[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void write(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException
+    {
+        String fingerprint = getFingerprint((CASImpl) aCas);
+
+        File typeSystemFile = new File(aTypeSystemFolder, fingerprint + TYPE_SYSTEM_SUFFIX);
+        if (!typeSystemFile.exists()) {
+            writeTypeSystem((CASImpl) aCas, typeSystemFile);
+        }
+
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(aFile)))) {
+            os.write(MAGIC);
+            os.writeInt(VERSION);
+            os.writeUTF(fingerprint);
+            Serialization.serializeWithCompression(aCas, os);
+        }
+    }
+
+    @Override
+    public void read(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException
+    {
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(aFile)))) {
+            byte[] header = new byte[MAGIC.length];
+            is.readFully(header);
+            if (!accepts(header)) {
+                throw new IOException("File [" + aFile + "] is not a compressed CAS");
+            }
+
+            int version = is.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compressed CAS version [" + version
+                        + "] in file [" + aFile + "]");
+            }
+
+            String fingerprint = is.readUTF();
+            File typeSystemFile = new File(aTypeSystemFolder, fingerprint + TYPE_SYSTEM_SUFFIX);
+
+            // Set up the type system and indexes, then load the data
+            deserializeCASComplete(CasCache.copy(readTypeSystem(typeSystemFile)), (CASImpl) aCas);
+            Serialization.deserializeCAS(aCas, is);
+        }
+    }
+
+    private String getFingerprint(CASImpl aCas)
+        throws IOException
+    {
+        String fingerprint = fingerprints.get(aCas.getTypeSystem());
+        if (fingerprint == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try (ObjectOutputStream os = new ObjectOutputStream(buffer)) {
+                    os.writeObject(serializeCASMgr(aCas));
+                }
+                fingerprint = String.format("%040x", new BigInteger(1,
+                        digest.digest(buffer.toByteArray())));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            fingerprints.put(aCas.getTypeSystem(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Stores the type system and index definitions along with the data of an empty CAS, so they
+     * can later be restored using {@link Serialization#deserializeCASComplete}.
+     */
+    private void writeTypeSystem(CASImpl aCas, File aFile)
+        throws IOException
+    {
+        CASMgrSerializer casMgrSerializer = serializeCASMgr(aCas);
+
+        CASCompleteSerializer serializer = new CASCompleteSerializer();
+        serializer.setCasMgrSerializer(casMgrSerializer);
+        serializer.setCasSerializer(serializeCAS(createCASMgr(casMgrSerializer).getCAS()));
+
+        // Multiple threads may try to create the same type system file - write to a temporary
+        // file first, so nobody ever sees a partially written file.
+        FileUtils.forceMkdir(aFile.getParentFile());
+        File tempFile = File.createTempFile(aFile.getName(), ".tmp", aFile.getParentFile());
+        try {
+            try (ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile)))) {
+                os.writeObject(serializer);
+            }
+
+            if (!tempFile.renameTo(aFile) && !aFile.exists()) {
+                throw new IOException("Cannot rename file [" + tempFile + "] to [" + aFile
+                        + "]");
+            }
+        }
+        finally {
+            if (tempFile.exists()) {
+                FileUtils.deleteQuietly(tempFile);
+            }
+        }
+
+        typeSystems.put(aFile, serializer);
+    }
+
+    private CASCompleteSerializer readTypeSystem(File aFile)
+        throws IOException
+    {
+        CASCompleteSerializer serializer = typeSystems.get(aFile);
+        if (serializer == null) {
+            if (!aFile.exists()) {
+                throw new IOException("Type system [" + aFile + "] not found");
+            }
+
+            try (ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(aFile)))) {
+                serializer = (CASCompleteSerializer) is.readObject();
+            }
+            catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            typeSystems.put(aFile, serializer);
+        }
+        return serializer;
+    }
+}
@@ -23,6 +23,7 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.INITIAL_CAS_PSEUDO_USER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.RELATION_TYPE;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static java.util.Comparator.comparingLong;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.apache.commons.io.IOUtils.copyLarge;
 import static org.apache.commons.lang.StringUtils.isBlank;
@@ -43,9 +44,10 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -59,6 +61,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -70,7 +74,6 @@ import javax.persistence.PersistenceContext;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.LineIterator;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.Appender;
@@ -93,11 +96,10 @@ import org.apache.uima.cas.impl.CASImpl;
 import org.apache.uima.cas.impl.Serialization;
 import org.apache.uima.collection.CollectionReader;
 import org.apache.uima.fit.factory.CollectionReaderFactory;
-import org.apache.uima.fit.factory.JCasFactory;
-import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
 import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.fit.util.JCasUtil;
 import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.resource.metadata.TypeDescription;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
 import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
@@ -106,6 +108,7 @@ import org.hibernate.Session;
 import org.hibernate.jdbc.Work;
 import org.springframework.beans.BeanWrapper;
 import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataRetrievalFailureException;
@@ -115,6 +118,7 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.transaction.annotation.Transactional;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
 import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
@@ -148,7 +152,7 @@ import de.tudarmstadt.ukp.dkpro.core.tokit.BreakIteratorSegmenter;
  *
  */
 public class RepositoryServiceDbData
-    implements RepositoryService, InitializingBean
+    implements RepositoryService, InitializingBean, DisposableBean
 {
     private final Log log = LogFactory.getLog(getClass());
 
@@ -196,6 +200,18 @@ public class RepositoryServiceDbData
     @Value(value = "${webanno.repository}")
     private File dir;
 
+    @Value(value = "${cache.cas.size}")
+    private long casCacheSize;
+
+    @Value(value = "${storage.cas.format}")
+    private String casStorageFormatId;
+
+    @Value(value = "${storage.cas.writebehind.delay}")
+    private long casWriteBehindDelay;
+
+    @Value(value = "${storage.cas.journal.size}")
+    private int casJournalSize;
+
     @Resource(name = "formats")
     private Properties readWriteFileFormats;
 
@@ -209,6 +225,7 @@ public class RepositoryServiceDbData
     private static final String ANNOTATION = "/annotation";
     private static final String SETTINGS = "/settings/";
     private static final String META_INF = "/META-INF/";
+    private static final String TYPESYSTEM = "/typesystem/";
 
     private static final String TEMPLATE = "/crowdtemplates/";
 
@@ -216,13 +233,31 @@ public class RepositoryServiceDbData
 
     private static final String CONSTRAINTS = "/constraints/";
 
+    private static final int WRITE_BEHIND_JOURNAL_SIZE = 100;
+
     @PersistenceContext
     private EntityManager entityManager;
 
     // The annotation preference properties File name
     String annotationPreferencePropertiesFileName;
 
-    private final Object lock = new Object();
+    private final CasStorageLocks casLocks = new CasStorageLocks();
+
+    private CasCache casCache = new CasCache(0);
+
+    private CasWriteBehind casWriteBehind = new CasWriteBehind(0, this::flushPendingCas);
+
+    private CasJournal casJournal = new CasJournal(0);
+
+    private final TypeSystemCache typeSystemCache = new TypeSystemCache();
+
+    private final AtomicLong casUpgrades = new AtomicLong();
+
+    // The first format is the default. It is readable by older versions as well.
+    private final List<CasStorageFormat> casStorageFormats = Arrays.asList(
+            new SerializedCasStorageFormat(), new CompressedCasStorageFormat());
+
+    private CasStorageFormat casStorageFormat = casStorageFormats.get(0);
 
     public RepositoryServiceDbData()
     {
@@ -234,6 +269,48 @@ public class RepositoryServiceDbData
         throws Exception
     {
         log.info("Repository: " + dir);
+
+        casCache = new CasCache(casCacheSize * 1024 * 1024);
+        log.info("CAS cache size: " + casCacheSize + " MB");
+
+        if (!isBlank(casStorageFormatId)) {
+            casStorageFormat = null;
+            for (CasStorageFormat format : casStorageFormats) {
+                if (format.getId().equals(casStorageFormatId.trim())) {
+                    casStorageFormat = format;
+                }
+            }
+            if (casStorageFormat == null) {
+                throw new IllegalStateException("Unknown CAS storage format ["
+                        + casStorageFormatId + "]");
+            }
+        }
+        log.info("CAS storage format: " + casStorageFormat.getId());
+
+        casWriteBehind = new CasWriteBehind(casWriteBehindDelay, this::flushPendingCas);
+        log.info("CAS write-behind delay: "
+                + (casWriteBehind.isEnabled() ? casWriteBehindDelay + " ms" : "disabled"));
+
+        // Write-behind records the saves in the journal until it writes the CAS completely
+        int journalSize = casJournalSize;
+        if (casWriteBehind.isEnabled() && journalSize <= 0) {
+            journalSize = WRITE_BEHIND_JOURNAL_SIZE;
+        }
+        casJournal = new CasJournal(journalSize);
+        log.info("CAS journal size: "
+                + (casJournal.isEnabled() ? journalSize + " records" : "disabled"));
+    }
+
+    @Override
+    public void destroy()
+    {
+        casWriteBehind.shutdown();
+    }
+
+    @Override
+    public void flushPendingCasWrites(String aUsername)
+    {
+        casWriteBehind.flush(aUsername);
     }
 
     @Override
@@ -276,6 +353,17 @@ public class RepositoryServiceDbData
         return new File(aTo.getPath());
     }
 
+    /**
+     * Forces the contents of a file to disk.
+     */
+    private static void syncFile(File aFile)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
     /**
      * Get the folder where the annotations are stored. Creates the folder if necessary.
      *
@@ -575,29 +663,38 @@ public class RepositoryServiceDbData
         throws UIMAException, IOException, ClassNotFoundException
     {
         File annotationFolder = getAnnotationFolder(aDocument);
-        String serializedCasFileName;
+        String serializedCasUser;
         // for Correction, it will export the corrected document (of the logged in user)
         // (CORRECTION_USER.ser is the automated result displayed for the user to correct it, not
         // the final result) for automation, it will export either the corrected document
         // (Annotated) or the automated document
         if (aMode.equals(Mode.ANNOTATION) || aMode.equals(Mode.AUTOMATION)
                 || aMode.equals(Mode.CORRECTION)) {
-            serializedCasFileName = aUser + ".ser";
+            serializedCasUser = aUser;
         }
         // The merge result will be exported
         else {
-            serializedCasFileName = WebAnnoConst.CURATION_USER + ".ser";
+            serializedCasUser = WebAnnoConst.CURATION_USER;
         }
+        String serializedCasFileName = serializedCasUser + ".ser";
 
         // Read file
-        File serializedCasFile = new File(annotationFolder, serializedCasFileName);
-        if (!serializedCasFile.exists()) {
-            throw new FileNotFoundException("CAS file [" + serializedCasFileName
-                    + "] not found in [" + annotationFolder + "]");
-        }
-
+        casWriteBehind.flush(aDocument, serializedCasUser);
         CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
-        readSerializedCas(cas.getJCas(), serializedCasFile);
+        Lock readLock = casLocks.get(aDocument.getId(), serializedCasUser).readLock();
+        readLock.lock();
+        try {
+            File serializedCasFile = new File(annotationFolder, serializedCasFileName);
+            if (!serializedCasFile.exists()) {
+                throw new FileNotFoundException("CAS file [" + serializedCasFileName
+                        + "] not found in [" + annotationFolder + "]");
+            }
+
+            readSerializedCas(cas.getJCas(), serializedCasFile, aDocument.getProject());
+        }
+        finally {
+            readLock.unlock();
+        }
 
         // Update type system the CAS
         upgradeCas(cas, aDocument, aUser);
@@ -715,6 +812,12 @@ public class RepositoryServiceDbData
         return new File(dir.getAbsolutePath() + PROJECT + aProject.getId() + META_INF);
     }
 
+    @Override
+    public File getTypeSystemFolder(Project aProject)
+    {
+        return new File(dir.getAbsolutePath() + PROJECT + aProject.getId() + TYPESYSTEM);
+    }
+
     @Override
     @Transactional(noRollbackFor = NoResultException.class)
     public AnnotationDocument createOrGetAnnotationDocument(SourceDocument aDocument, User aUser)
@@ -770,7 +873,7 @@ public class RepositoryServiceDbData
                             getReadableFormats().get(aDocument.getFormat()), aDocument);
 
                     try {
-                        casDoctor.repair(jcas.getCas());
+                        casDoctor.repair(aDocument.getProject(), jcas.getCas());
                     }
                     catch (Exception e) {
                         throw new DataRetrievalFailureException("Error repairing CAS of user ["
@@ -781,7 +884,7 @@ public class RepositoryServiceDbData
                     }
                     
                     try {
-                        casDoctor.analyze(jcas.getCas());
+                        casDoctor.analyze(aDocument.getProject(), jcas.getCas());
                     }
                     catch (Exception e) {
                         throw new DataRetrievalFailureException("Error analyzing CAS of user ["
@@ -791,7 +894,8 @@ public class RepositoryServiceDbData
                                 + aDocument.getProject().getId() + ")", e);
                     }
                     
-                    writeSerializedCas(jcas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER));
+                    writeSerializedCas(jcas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER),
+                            aDocument.getProject());
                 }
 
                 // Ok, so at this point, we either have the lazily converted CAS already loaded
@@ -799,10 +903,11 @@ public class RepositoryServiceDbData
                 if (jcas == null) {
                     jcas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null)
                             .getJCas();
-                    readSerializedCas(jcas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER));
+                    readSerializedCas(jcas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER),
+                            aDocument.getProject());
                     
                     try {
-                        casDoctor.repair(jcas.getCas());
+                        casDoctor.repair(aDocument.getProject(), jcas.getCas());
                     }
                     catch (Exception e) {
                         throw new DataRetrievalFailureException("Error repairing CAS of user ["
@@ -1239,6 +1344,7 @@ public class RepositoryServiceDbData
         for (TagSet tagSet : annotationService.listTagSets(aProject)) {
             annotationService.removeTagSet(tagSet);
         }
+        typeSystemCache.invalidate(aProject.getId());
 
         // remove the project directory from the file system
         String path = dir.getAbsolutePath() + PROJECT + aProject.getId();
@@ -1290,10 +1396,22 @@ public class RepositoryServiceDbData
     public void removeCurationDocumentContent(SourceDocument aSourceDocument, String aUsername)
         throws IOException
     {
+        Lock writeLock = casLocks.get(aSourceDocument.getId(), WebAnnoConst.CURATION_USER)
+                .writeLock();
+        writeLock.lock();
+        try {
+            casWriteBehind.remove(aSourceDocument.getId(), WebAnnoConst.CURATION_USER);
+        }
+        finally {
+            writeLock.unlock();
+        }
+        casCache.invalidate(aSourceDocument.getId(), WebAnnoConst.CURATION_USER);
         if (new File(getAnnotationFolder(aSourceDocument), WebAnnoConst.CURATION_USER + ".ser")
                 .exists()) {
             FileUtils.forceDelete(new File(getAnnotationFolder(aSourceDocument),
                     WebAnnoConst.CURATION_USER + ".ser"));
+            FileUtils.deleteQuietly(CasJournal.getJournalFile(new File(
+                    getAnnotationFolder(aSourceDocument), WebAnnoConst.CURATION_USER + ".ser")));
 
             createLog(aSourceDocument.getProject()).info(
                     " Removed Curated document from  project [" + aSourceDocument.getProject()
@@ -1338,6 +1456,8 @@ public class RepositoryServiceDbData
         String path = dir.getAbsolutePath() + PROJECT + aDocument.getProject().getId() + DOCUMENT
                 + aDocument.getId();
         // remove from file both source and related annotation file
+        casWriteBehind.discard(aDocument.getId());
+        casCache.invalidate(aDocument.getId());
         if (new File(path).exists()) {
             FileUtils.forceDelete(new File(path));
         }
@@ -1454,7 +1574,8 @@ public class RepositoryServiceDbData
 
         // Copy the initial conversion of the file into the repository
         if (cas != null) {
-            writeSerializedCas(cas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER));
+            writeSerializedCas(cas, getCasFile(aDocument, INITIAL_CAS_PSEUDO_USER),
+                    aDocument.getProject());
         }
 
         createLog(aDocument.getProject()).info(
@@ -1654,7 +1775,7 @@ public class RepositoryServiceDbData
         // DebugUtils.smallStack();
 
         try {
-            casDoctor.analyze(aJcas.getCas());
+            casDoctor.analyze(aDocument.getProject(), aJcas.getCas());
         }
         catch (Exception e) {
             throw new DataRetrievalFailureException("Error analyzing CAS of user ["
@@ -1663,147 +1784,307 @@ public class RepositoryServiceDbData
                     + aDocument.getProject().getName() + "] ("
                     + aDocument.getProject().getId() + ")", e);
         }
-        
-        synchronized (lock) {
-            File annotationFolder = getAnnotationFolder(aDocument);
-            FileUtils.forceMkdir(annotationFolder);
 
-            final String username = aUserName;
+        DocumentMetaData md;
+        try {
+            md = DocumentMetaData.get(aJcas);
+        }
+        catch (IllegalArgumentException e) {
+            md = DocumentMetaData.create(aJcas);
+        }
+        md.setDocumentId(aUserName);
 
-            File currentVersion = new File(annotationFolder, username + ".ser");
-            File oldVersion = new File(annotationFolder, username + ".ser.old");
+        Lock writeLock = casLocks.get(aDocument.getId(), aUserName).writeLock();
+        writeLock.lock();
+        try {
+            File annotationFolder = getAnnotationFolder(aDocument);
+            FileUtils.forceMkdir(annotationFolder);
 
-            // Save current version
-            try {
-                // Make a backup of the current version of the file before overwriting
-                if (currentVersion.exists()) {
-                    renameFile(currentVersion, oldVersion);
-                }
+            File currentVersion = new File(annotationFolder, aUserName + ".ser");
 
-                // Now write the new version to "<username>.ser" or CURATION_USER.ser
-                DocumentMetaData md;
-                try {
-                    md = DocumentMetaData.get(aJcas);
+            // If the CAS was read from the current version, only append the changes
+            if (casJournal.append(aJcas.getCas(), currentVersion)) {
+                File journalFile = CasJournal.getJournalFile(currentVersion);
+                CASCompleteSerializer snapshot = casCache.isEnabled()
+                        || casWriteBehind.isEnabled() ? serializeCASComplete(aJcas.getCasImpl())
+                        : null;
+                if (casCache.isEnabled()) {
+                    casCache.put(aDocument.getId(), aUserName, journalFile, snapshot);
                 }
-                catch (IllegalArgumentException e) {
-                    md = DocumentMetaData.create(aJcas);
+                CasDerivedData.link(aJcas.getCas(),
+                        casCache.getVersion(aDocument.getId(), aUserName));
+
+                // The journal has already forced the save to disk. Writing the CAS completely,
+                // managing the history and logging is done later in the background, once for
+                // all saves made until then.
+                if (casWriteBehind.isEnabled()) {
+                    casWriteBehind.submit(aDocument, aUserName, snapshot);
+                    return;
                 }
-                md.setDocumentId(aUserName);
-
-                File targetPath = getAnnotationFolder(aDocument);
-                writeSerializedCas(aJcas, new File(targetPath, aUserName + ".ser"));
 
                 createLog(aDocument.getProject()).info(
-                        "Updated annotation document [" + aDocument.getName() + "] " + "with ID ["
-                                + aDocument.getId() + "] in project ID ["
+                        "Updated annotation document [" + aDocument.getName() + "] "
+                                + "with ID [" + aDocument.getId() + "] in project ID ["
                                 + aDocument.getProject().getId() + "]");
                 createLog(aDocument.getProject()).removeAllAppenders();
 
-                // If the saving was successful, we delete the old version
-                if (oldVersion.exists()) {
-                    FileUtils.forceDelete(oldVersion);
-                }
+                manageHistory(aDocument, aUserName, annotationFolder, currentVersion);
+                return;
             }
-            catch (IOException e) {
-                // If we could not save the new version, restore the old one.
-                FileUtils.forceDelete(currentVersion);
-                // If this is the first version, there is no old version, so do not restore anything
-                if (oldVersion.exists()) {
-                    renameFile(oldVersion, currentVersion);
-                }
-                // Now abort anyway
-                throw e;
+
+            // The complete write includes everything a pending save would write
+            casWriteBehind.remove(aDocument.getId(), aUserName);
+
+            File newVersion = new File(annotationFolder, aUserName + ".ser.new");
+            try {
+                writeSerializedCas(aJcas, newVersion, aDocument.getProject());
+                commitCas(aDocument, aUserName, newVersion, casCache.isEnabled()
+                        ? serializeCASComplete(aJcas.getCasImpl()) : null);
+                CasDerivedData.link(aJcas.getCas(),
+                        casCache.getVersion(aDocument.getId(), aUserName));
+            }
+            finally {
+                FileUtils.deleteQuietly(newVersion);
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a CAS saved in write-behind mode completely, replacing the CAS file and its journal.
+     * This is called from the write-behind thread, on logout and on shutdown. Until then, the
+     * saves are only recorded in the journal, so a pending save which is lost when the
+     * application stops is recovered from the journal on the next read.
+     */
+    private void flushPendingCas(SourceDocument aDocument, String aUserName)
+        throws IOException
+    {
+        Lock writeLock = casLocks.get(aDocument.getId(), aUserName).writeLock();
+        writeLock.lock();
+        File newVersion = new File(getAnnotationFolder(aDocument), aUserName + ".ser.new");
+        try {
+            CASCompleteSerializer serializer = casWriteBehind.remove(aDocument.getId(),
+                    aUserName);
+            if (serializer == null) {
+                return;
+            }
+
+            CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+            deserializeCASComplete(serializer, (CASImpl) cas);
+            writeSerializedCas(cas.getJCas(), newVersion, aDocument.getProject());
+            commitCas(aDocument, aUserName, newVersion, casCache.isEnabled() ? serializer
+                    : null);
+        }
+        catch (UIMAException e) {
+            throw new IOException(e);
+        }
+        finally {
+            FileUtils.deleteQuietly(newVersion);
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the current version of a CAS with a completely written new version, then updates
+     * the cache, the history and the project log. The caller must hold the write lock.
+     *
+     * @param aNewVersion
+     *            the file containing the new version.
+     * @param aSerializer
+     *            a snapshot of the new version to put into the cache or {@code null}.
+     */
+    private void commitCas(SourceDocument aDocument, String aUserName, File aNewVersion,
+            CASCompleteSerializer aSerializer)
+        throws IOException
+    {
+        File annotationFolder = getAnnotationFolder(aDocument);
+        File currentVersion = new File(annotationFolder, aUserName + ".ser");
+        File oldVersion = new File(annotationFolder, aUserName + ".ser.old");
+
+        // The journal may be the only durable record of saves made in write-behind mode, so the
+        // new version must be on disk before the journal is dropped
+        if (CasJournal.getJournalFile(currentVersion).exists()) {
+            syncFile(aNewVersion);
+        }
+
+        try {
+            // Make a backup of the current version of the file before overwriting
+            if (currentVersion.exists()) {
+                renameFile(currentVersion, oldVersion);
+            }
+
+            // Now move the new version to "<username>.ser" or CURATION_USER.ser. The journal
+            // belongs to the old version, so it is not needed anymore.
+            renameFile(aNewVersion, currentVersion);
+            FileUtils.deleteQuietly(CasJournal.getJournalFile(currentVersion));
+            if (aSerializer != null) {
+                casCache.put(aDocument.getId(), aUserName, currentVersion, aSerializer);
             }
+            else {
+                casCache.invalidate(aDocument.getId(), aUserName);
+            }
+
+            createLog(aDocument.getProject()).info(
+                    "Updated annotation document [" + aDocument.getName() + "] " + "with ID ["
+                            + aDocument.getId() + "] in project ID ["
+                            + aDocument.getProject().getId() + "]");
+            createLog(aDocument.getProject()).removeAllAppenders();
+
+            // If the saving was successful, we delete the old version
+            if (oldVersion.exists()) {
+                FileUtils.forceDelete(oldVersion);
+            }
+        }
+        catch (IOException e) {
+            casCache.invalidate(aDocument.getId(), aUserName);
+            // If we could not save the new version, restore the old one. If this is the first
+            // version, there is no old version, so do not restore anything
+            if (oldVersion.exists()) {
+                FileUtils.deleteQuietly(currentVersion);
+                renameFile(oldVersion, currentVersion);
+            }
+            // Now abort anyway
+            throw e;
+        }
 
-            // Manage history
-            if (backupInterval > 0) {
-                // Determine the reference point in time based on the current version
-                long now = currentVersion.lastModified();
+        manageHistory(aDocument, aUserName, annotationFolder, currentVersion);
+    }
 
-                // Get all history files for the current user
-                File[] history = annotationFolder.listFiles(new FileFilter()
+    private void manageHistory(SourceDocument aDocument, final String aUsername,
+            File aAnnotationFolder, File aCurrentVersion)
+        throws IOException
+    {
+        if (backupInterval > 0) {
+            // Determine the reference point in time based on the current version
+            File journalFile = CasJournal.getJournalFile(aCurrentVersion);
+            long now = journalFile.exists() ? journalFile.lastModified() : aCurrentVersion
+                    .lastModified();
+
+            // Get all history files for the current user
+            File[] history = aAnnotationFolder.listFiles(new FileFilter()
+            {
+                private final Matcher matcher = Pattern.compile(
+                        Pattern.quote(aUsername) + "\\.ser\\.[0-9]+\\.bak").matcher("");
+
+                @Override
+                public boolean accept(File aFile)
                 {
-                    private final Matcher matcher = Pattern.compile(
-                            Pattern.quote(username) + "\\.ser\\.[0-9]+\\.bak").matcher("");
-
-                    @Override
-                    public boolean accept(File aFile)
-                    {
-                        // Check if the filename matches the pattern given above.
-                        return matcher.reset(aFile.getName()).matches();
-                    }
-                });
-
-                // Sort the files (oldest one first)
-                Arrays.sort(history, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
-
-                // Check if we need to make a new history file
-                boolean historyFileCreated = false;
-                File historyFile = new File(annotationFolder, username + ".ser." + now + ".bak");
-                if (history.length == 0) {
-                    // If there is no history yet but we should keep history, then we create a
-                    // history file in any case.
-                    FileUtils.copyFile(currentVersion, historyFile);
+                    // Check if the filename matches the pattern given above.
+                    return matcher.reset(aFile.getName()).matches();
+                }
+            });
+
+            // Sort the files (oldest one first). History files may be hard links to the current
+            // version, so we go by the time in their names instead of their modification time.
+            Arrays.sort(history, comparingLong(RepositoryServiceDbData::getHistoryTime));
+
+            // Check if we need to make a new history file
+            boolean historyFileCreated = false;
+            File historyFile = new File(aAnnotationFolder, aUsername + ".ser." + now + ".bak");
+            if (history.length == 0) {
+                // If there is no history yet but we should keep history, then we create a
+                // history file in any case.
+                createHistoryFile(aCurrentVersion, historyFile);
+                historyFileCreated = true;
+            }
+            else {
+                // Check if the newest history file is significantly older than the current one
+                File latestHistory = history[history.length - 1];
+                if (getHistoryTime(latestHistory) + backupInterval < now) {
+                    createHistoryFile(aCurrentVersion, historyFile);
                     historyFileCreated = true;
                 }
-                else {
-                    // Check if the newest history file is significantly older than the current one
-                    File latestHistory = history[history.length - 1];
-                    if (latestHistory.lastModified() + backupInterval < now) {
-                        FileUtils.copyFile(currentVersion, historyFile);
-                        historyFileCreated = true;
+            }
+
+            // Prune history based on number of backup
+            if (historyFileCreated) {
+                // The new version is not in the history, so we keep that in any case. That
+                // means we need to keep one less.
+                int toKeep = Math.max(backupKeepNumber - 1, 0);
+                if ((backupKeepNumber > 0) && (toKeep < history.length)) {
+                    // Copy the oldest files to a new array
+                    File[] toRemove = new File[history.length - toKeep];
+                    System.arraycopy(history, 0, toRemove, 0, toRemove.length);
+
+                    // Restrict the history to what is left
+                    File[] newHistory = new File[toKeep];
+                    if (toKeep > 0) {
+                        System.arraycopy(history, toRemove.length, newHistory, 0,
+                                newHistory.length);
+                    }
+                    history = newHistory;
+
+                    // Remove these old files
+                    for (File file : toRemove) {
+                        deleteHistoryFile(file);
+                        createLog(aDocument.getProject()).info(
+                                "Removed surplus history file [" + file.getName() + "] "
+                                        + "for document with ID [" + aDocument.getId()
+                                        + "] in project ID [" + aDocument.getProject().getId()
+                                        + "]");
+                        createLog(aDocument.getProject()).removeAllAppenders();
                     }
                 }
 
-                // Prune history based on number of backup
-                if (historyFileCreated) {
-                    // The new version is not in the history, so we keep that in any case. That
-                    // means we need to keep one less.
-                    int toKeep = Math.max(backupKeepNumber - 1, 0);
-                    if ((backupKeepNumber > 0) && (toKeep < history.length)) {
-                        // Copy the oldest files to a new array
-                        File[] toRemove = new File[history.length - toKeep];
-                        System.arraycopy(history, 0, toRemove, 0, toRemove.length);
-
-                        // Restrict the history to what is left
-                        File[] newHistory = new File[toKeep];
-                        if (toKeep > 0) {
-                            System.arraycopy(history, toRemove.length, newHistory, 0,
-                                    newHistory.length);
-                        }
-                        history = newHistory;
-
-                        // Remove these old files
-                        for (File file : toRemove) {
-                            FileUtils.forceDelete(file);
+                // Prune history based on time
+                if (backupKeepTime > 0) {
+                    for (File file : history) {
+                        if ((getHistoryTime(file) + backupKeepTime) < now) {
+                            deleteHistoryFile(file);
                             createLog(aDocument.getProject()).info(
-                                    "Removed surplus history file [" + file.getName() + "] "
-                                            + "for document with ID [" + aDocument.getId()
-                                            + "] in project ID [" + aDocument.getProject().getId()
-                                            + "]");
+                                    "Removed outdated history file [" + file.getName() + "] "
+                                            + " for document with ID [" + aDocument.getId()
+                                            + "] in project ID ["
+                                            + aDocument.getProject().getId() + "]");
                             createLog(aDocument.getProject()).removeAllAppenders();
                         }
                     }
-
-                    // Prune history based on time
-                    if (backupKeepTime > 0) {
-                        for (File file : history) {
-                            if ((file.lastModified() + backupKeepTime) < now) {
-                                FileUtils.forceDelete(file);
-                                createLog(aDocument.getProject()).info(
-                                        "Removed outdated history file [" + file.getName() + "] "
-                                                + " for document with ID [" + aDocument.getId()
-                                                + "] in project ID ["
-                                                + aDocument.getProject().getId() + "]");
-                                createLog(aDocument.getProject()).removeAllAppenders();
-                            }
-                        }
-                    }
                 }
             }
         }
     }
 
+    /**
+     * Adds the current version of a CAS to the history. Stored CAS files are never changed in
+     * place, so instead of copying the file, a hard link is created if the file system supports
+     * it. If the CAS has a journal, the journal is copied along. It is small since it is
+     * compacted regularly.
+     */
+    private static void createHistoryFile(File aCurrentVersion, File aHistoryFile)
+        throws IOException
+    {
+        try {
+            Files.createLink(aHistoryFile.toPath(), aCurrentVersion.toPath());
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            FileUtils.copyFile(aCurrentVersion, aHistoryFile);
+        }
+
+        File journalFile = CasJournal.getJournalFile(aCurrentVersion);
+        if (journalFile.exists()) {
+            FileUtils.copyFile(journalFile, CasJournal.getJournalFile(aHistoryFile));
+        }
+    }
+
+    private static void deleteHistoryFile(File aHistoryFile)
+        throws IOException
+    {
+        FileUtils.forceDelete(aHistoryFile);
+        FileUtils.deleteQuietly(CasJournal.getJournalFile(aHistoryFile));
+    }
+
+    /**
+     * @return the time encoded in the name of a history file ({@code <user>.ser.<time>.bak}).
+     */
+    private static long getHistoryTime(File aHistoryFile)
+    {
+        String name = aHistoryFile.getName();
+        String time = name.substring(0, name.length() - ".bak".length());
+        return Long.parseLong(time.substring(time.lastIndexOf('.') + 1));
+    }
+
     /**
      * For a given {@link SourceDocument}, return the {@link AnnotationDocument} for the user or for
      * the CURATION_USER
@@ -1824,41 +2105,211 @@ public class RepositoryServiceDbData
 
         // DebugUtils.smallStack();
 
-        synchronized (lock) {
+        JCas jcas;
+        CasStorageFormat format;
+        String casState;
+        Lock readLock = casLocks.get(aDocument.getId(), aUsername).readLock();
+        readLock.lock();
+        try {
             File annotationFolder = getAnnotationFolder(aDocument);
 
             String file = aUsername + ".ser";
 
-            try {
-                File serializedCasFile = new File(annotationFolder, file);
-                if (!serializedCasFile.exists()) {
-                    throw new FileNotFoundException("Annotation document of user [" + aUsername
-                            + "] for source document [" + aDocument.getName() + "] ("
-                            + aDocument.getId() + ") not found in project["
-                            + aDocument.getProject().getName() + "] ("
-                            + aDocument.getProject().getId() + ")");
-                }
+            File serializedCasFile = new File(annotationFolder, file);
+            if (!serializedCasFile.exists()) {
+                throw new FileNotFoundException("Annotation document of user [" + aUsername
+                        + "] for source document [" + aDocument.getName() + "] ("
+                        + aDocument.getId() + ") not found in project["
+                        + aDocument.getProject().getName() + "] ("
+                        + aDocument.getProject().getId() + ")");
+            }
 
-                CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
-                readSerializedCas(cas.getJCas(), serializedCasFile);
+            CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+            jcas = cas.getJCas();
 
-                try {
-                    casDoctor.repair(cas);
-                }
-                catch (Exception e) {
-                    throw new DataRetrievalFailureException("Error repairing CAS of user ["
-                            + aUsername + "] for source document [" + aDocument.getName() + "] ("
-                            + aDocument.getId() + ") in project["
-                            + aDocument.getProject().getName() + "] ("
-                            + aDocument.getProject().getId() + ")", e);
+            // The cache holds the CAS as it is stored, i.e. including the journal but not yet
+            // repaired
+            File stateFile = getCasStateFile(serializedCasFile);
+            CASCompleteSerializer cached = casCache.get(aDocument.getId(), aUsername, stateFile);
+            if (log.isDebugEnabled()) {
+                log.debug("CAS cache " + (cached != null ? "hit" : "miss") + " - " + casCache);
+            }
+            casState = getCasState(serializedCasFile);
+            if (cached != null) {
+                deserializeCASComplete(cached, (CASImpl) cas);
+                format = casStorageFormat;
+            }
+            else {
+                format = readSerializedCas(jcas, serializedCasFile, aDocument.getProject());
+                if (format == casStorageFormat && casCache.isEnabled()) {
+                    casCache.put(aDocument.getId(), aUsername, stateFile,
+                            serializeCASComplete((CASImpl) cas));
                 }
+            }
+
+            // Record the changes from here on, so saving the CAS only needs to append them to
+            // the journal. Changes made by the repairs are included.
+            casJournal.track(cas, serializedCasFile);
 
-                return cas.getJCas();
+            // The stored CAS has been checked when it was saved, so the next check only needs to
+            // look at what changes from here on. This reuses the marker of the journal, if any.
+            casDoctor.markBaseline(aDocument.getProject(), cas);
+
+            try {
+                casDoctor.repair(aDocument.getProject(), cas);
             }
-            catch (UIMAException e) {
-                throw new DataRetrievalFailureException("Unable to parse annotation", e);
+            catch (Exception e) {
+                throw new DataRetrievalFailureException("Error repairing CAS of user ["
+                        + aUsername + "] for source document [" + aDocument.getName() + "] ("
+                        + aDocument.getId() + ") in project["
+                        + aDocument.getProject().getName() + "] ("
+                        + aDocument.getProject().getId() + ")", e);
+            }
+
+            // Data derived from the CAS, e.g. indexes, can be shared with the other CASes
+            // created from the cached version as long as they are not changed
+            CasDerivedData.link(cas, casCache.getVersion(aDocument.getId(), aUsername));
+        }
+        catch (UIMAException e) {
+            throw new DataRetrievalFailureException("Unable to parse annotation", e);
+        }
+        finally {
+            readLock.unlock();
+        }
+
+        // CASes stored in another format are migrated to the configured format on first read
+        if (format != casStorageFormat) {
+            migrateCas(aDocument, aUsername, jcas, casState, format);
+        }
+
+        return jcas;
+    }
+
+    /**
+     * Rewrites a CAS that has been read from a file in another format than the configured storage
+     * format. Nothing is done if the file has been changed since the CAS was read from it. Failing
+     * to migrate is not fatal since the old file remains readable.
+     */
+    private void migrateCas(SourceDocument aDocument, String aUsername, JCas aJCas,
+            String aCasState, CasStorageFormat aOldFormat)
+    {
+        Lock writeLock = casLocks.get(aDocument.getId(), aUsername).writeLock();
+        writeLock.lock();
+        try {
+            File currentVersion = new File(getAnnotationFolder(aDocument), aUsername + ".ser");
+            if (!getCasState(currentVersion).equals(aCasState)) {
+                return;
+            }
+
+            replaceCasFile(aDocument, aUsername, aJCas);
+
+            createLog(aDocument.getProject()).info(
+                    "Migrated CAS of user [" + aUsername + "] for document ["
+                            + aDocument.getName() + "] with ID [" + aDocument.getId()
+                            + "] in project ID [" + aDocument.getProject().getId()
+                            + "] from format [" + aOldFormat.getId() + "] to ["
+                            + casStorageFormat.getId() + "]");
+            createLog(aDocument.getProject()).removeAllAppenders();
+        }
+        catch (IOException e) {
+            log.error("Unable to migrate CAS of user [" + aUsername + "] for document ["
+                    + aDocument.getName() + "] with ID [" + aDocument.getId() + "] to format ["
+                    + casStorageFormat.getId() + "]", e);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void flushCas(SourceDocument aDocument, String aUsername)
+        throws IOException
+    {
+        casWriteBehind.flush(aDocument, aUsername);
+
+        Lock writeLock = casLocks.get(aDocument.getId(), aUsername).writeLock();
+        writeLock.lock();
+        try {
+            File currentVersion = new File(getAnnotationFolder(aDocument), aUsername + ".ser");
+            if (!CasJournal.getJournalFile(currentVersion).exists()) {
+                return;
+            }
+
+            JCas jcas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null)
+                    .getJCas();
+            readSerializedCas(jcas, currentVersion, aDocument.getProject());
+            replaceCasFile(aDocument, aUsername, jcas);
+        }
+        catch (UIMAException e) {
+            throw new IOException(e);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the stored CAS including its journal with a completely written new version. In
+     * contrast to a regular save, the history and the project log are not touched because the
+     * contents of the CAS do not change. The caller must hold the write lock.
+     */
+    private void replaceCasFile(SourceDocument aDocument, String aUsername, JCas aJCas)
+        throws IOException
+    {
+        File annotationFolder = getAnnotationFolder(aDocument);
+        File currentVersion = new File(annotationFolder, aUsername + ".ser");
+        File newVersion = new File(annotationFolder, aUsername + ".ser.new");
+        File oldVersion = new File(annotationFolder, aUsername + ".ser.old");
+
+        // The CAS is written completely, including any pending save
+        casWriteBehind.remove(aDocument.getId(), aUsername);
+
+        try {
+            writeSerializedCas(aJCas, newVersion, aDocument.getProject());
+            renameFile(currentVersion, oldVersion);
+            try {
+                renameFile(newVersion, currentVersion);
             }
+            catch (IOException e) {
+                renameFile(oldVersion, currentVersion);
+                throw e;
+            }
+            // The journal belongs to the old version. If we crash before removing it, it is
+            // ignored because it does not match the new version.
+            FileUtils.deleteQuietly(CasJournal.getJournalFile(currentVersion));
+            FileUtils.forceDelete(oldVersion);
+        }
+        finally {
+            FileUtils.deleteQuietly(newVersion);
         }
+
+        if (casCache.isEnabled()) {
+            casCache.put(aDocument.getId(), aUsername, currentVersion,
+                    serializeCASComplete(aJCas.getCasImpl()));
+        }
+        CasDerivedData.link(aJCas.getCas(), casCache.getVersion(aDocument.getId(), aUsername));
+    }
+
+    /**
+     * @return the file whose modification identifies the current version of the stored CAS, i.e.
+     *         the journal if there is one and otherwise the CAS file itself.
+     */
+    private static File getCasStateFile(File aCasFile)
+    {
+        File journalFile = CasJournal.getJournalFile(aCasFile);
+        return journalFile.exists() ? journalFile : aCasFile;
+    }
+
+    private static String getCasState(File aCasFile)
+    {
+        File journalFile = CasJournal.getJournalFile(aCasFile);
+        return aCasFile.lastModified() + ":" + aCasFile.length() + ":"
+                + (journalFile.exists() ? journalFile.length() : -1);
+    }
+
+    public CasCache getCasCache()
+    {
+        return casCache;
     }
 
     @Override
@@ -1906,21 +2357,24 @@ public class RepositoryServiceDbData
             AnnotationDocument annotationDocument = getAnnotationDocument(aDocument, user);
             try {
                 CAS cas = readAnnotationCas(annotationDocument).getCas();
-                upgradeCas(cas, annotationDocument);
-                writeAnnotationCas(cas.getJCas(), annotationDocument.getDocument(), user);
+                if (upgradeCas(cas, annotationDocument)) {
+                    writeAnnotationCas(cas.getJCas(), annotationDocument.getDocument(), user);
+                }
 
                 if (aMode.equals(Mode.ANNOTATION)) {
                     // In this case we only need to upgrade to annotation document
                 }
                 else if (aMode.equals(Mode.AUTOMATION) || aMode.equals(Mode.CORRECTION)) {
                     CAS corrCas = readCorrectionCas(aDocument).getCas();
-                    upgradeCas(corrCas, annotationDocument);
-                    writeCorrectionCas(corrCas.getJCas(), aDocument, user);
+                    if (upgradeCas(corrCas, annotationDocument)) {
+                        writeCorrectionCas(corrCas.getJCas(), aDocument, user);
+                    }
                 }
                 else {
                     CAS curCas = readCurationCas(aDocument).getCas();
-                    upgradeCas(curCas, annotationDocument);
-                    writeCurationCas(curCas.getJCas(), aDocument, user);
+                    if (upgradeCas(curCas, annotationDocument)) {
+                        writeCurationCas(curCas.getJCas(), aDocument, user);
+                    }
                 }
 
             }
@@ -1938,32 +2392,41 @@ public class RepositoryServiceDbData
     }
 
     @Override
-    public void upgradeCas(CAS aCas, AnnotationDocument aAnnotationDocument)
+    public boolean upgradeCas(CAS aCas, AnnotationDocument aAnnotationDocument)
         throws UIMAException, IOException
     {
-        upgradeCas(aCas, aAnnotationDocument.getDocument(), aAnnotationDocument.getUser());
+        return upgradeCas(aCas, aAnnotationDocument.getDocument(), aAnnotationDocument.getUser());
     }
     
     @Override
-    public void upgradeCorrectionCas(CAS aCas, SourceDocument aDocument)
+    public boolean upgradeCorrectionCas(CAS aCas, SourceDocument aDocument)
         throws UIMAException, IOException
     {
-        upgradeCas(aCas, aDocument, CORRECTION_USER);
+        return upgradeCas(aCas, aDocument, CORRECTION_USER);
     }
-       
 
-    private void upgradeCas(CAS aCas, SourceDocument aSourceDocument, String aUser)
+    @Override
+    public long getCasUpgradeCount()
+    {
+        return casUpgrades.get();
+    }
+
+    private boolean upgradeCas(CAS aCas, SourceDocument aSourceDocument, String aUser)
         throws UIMAException, IOException
     {
-        TypeSystemDescription builtInTypes = TypeSystemDescriptionFactory
-                .createTypeSystemDescription();
-        List<TypeSystemDescription> projectTypes = getProjectTypes(aSourceDocument.getProject());
-        projectTypes.add(builtInTypes);
-        TypeSystemDescription allTypes = CasCreationUtils.mergeTypeSystems(projectTypes);
+        Project project = aSourceDocument.getProject();
+
+        // Skip the upgrade if the CAS already uses the current type system of the project
+        String fingerprint = typeSystemCache.getFingerprint(project.getId(),
+                annotationService.getSchemaVersion(project), () -> getProjectTypes(project));
+        if (fingerprint.equals(TypeSystemCache.fingerprint(aCas.getTypeSystem()))) {
+            log.debug("CAS of user [" + aUser + "] for document [" + aSourceDocument.getName()
+                    + "] in project ID [" + project.getId() + "] is already up-to-date");
+            return false;
+        }
 
         // Prepare template for new CAS
-        CAS newCas = JCasFactory.createJCas(allTypes).getCas();
-        CASCompleteSerializer serializer = Serialization.serializeCASComplete((CASImpl) newCas);
+        CASCompleteSerializer serializer = getProjectTypeSystem(project);
 
         // Save old type system
         TypeSystem oldTypeSystem = aCas.getTypeSystem();
@@ -1986,6 +2449,9 @@ public class RepositoryServiceDbData
                 "Upgraded CAS of user [" + aUser + "] for document [" + aSourceDocument.getName()
                         + "] " + " in project ID [" + aSourceDocument.getProject().getId() + "]");
         createLog(aSourceDocument.getProject()).removeAllAppenders();
+
+        casUpgrades.incrementAndGet();
+        return true;
     }
 
     @Override
@@ -2041,12 +2507,8 @@ public class RepositoryServiceDbData
         throws UIMAException, IOException
     {
         // Prepare a CAS with the project type system
-        TypeSystemDescription builtInTypes = TypeSystemDescriptionFactory
-                .createTypeSystemDescription();
-        List<TypeSystemDescription> projectTypes = getProjectTypes(aDocument.getProject());
-        projectTypes.add(builtInTypes);
-        TypeSystemDescription allTypes = CasCreationUtils.mergeTypeSystems(projectTypes);
-        CAS cas = JCasFactory.createJCas(allTypes).getCas();
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        deserializeCASComplete(getProjectTypeSystem(aDocument.getProject()), (CASImpl) cas);
 
         // Convert the source document to CAS
         CollectionReader reader = CollectionReaderFactory.createReader(aReader,
@@ -2072,7 +2534,7 @@ public class RepositoryServiceDbData
         }
 
         try {
-            casDoctor.repair(cas);
+            casDoctor.repair(aDocument.getProject(), cas);
         }
         catch (Exception e) {
             throw new DataRetrievalFailureException(
@@ -2126,6 +2588,17 @@ public class RepositoryServiceDbData
         return crowdsourceEnabled;
     }
 
+    /**
+     * Get an empty CAS with the type system of the given project. The type system is only merged
+     * again when the layers or features of the project have changed.
+     */
+    private CASCompleteSerializer getProjectTypeSystem(final Project aProject)
+        throws ResourceInitializationException
+    {
+        return typeSystemCache.getSerializer(aProject.getId(),
+                annotationService.getSchemaVersion(aProject), () -> getProjectTypes(aProject));
+    }
+
     private List<TypeSystemDescription> getProjectTypes(Project aProject)
     {
         // Create a new type system from scratch
@@ -2318,33 +2791,49 @@ public class RepositoryServiceDbData
         return finishedAnnotationDocumentExist;
     }
 
-    private static void writeSerializedCas(JCas aJCas, File aFile)
+    private void writeSerializedCas(JCas aJCas, File aFile, Project aProject)
         throws IOException
     {
         FileUtils.forceMkdir(aFile.getParentFile());
-
-        try (ObjectOutputStream os = new ObjectOutputStream(new FileOutputStream(aFile))) {
-            CASCompleteSerializer serializer = serializeCASComplete(aJCas.getCasImpl());
-            os.writeObject(serializer);
-        }
+        casStorageFormat.write(aJCas.getCas(), aFile, getTypeSystemFolder(aProject));
     }
 
-    private static void readSerializedCas(JCas aJCas, File aFile)
+    /**
+     * Reads a CAS file in any of the supported storage formats and applies its journal.
+     *
+     * @return the format the file was stored in.
+     */
+    private CasStorageFormat readSerializedCas(JCas aJCas, File aFile, Project aProject)
         throws IOException
     {
-        try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(aFile))) {
-            CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
-            deserializeCASComplete(serializer, aJCas.getCasImpl());
-            // Initialize the JCas sub-system which is the most often used API in DKPro Core
-            // components
-            aJCas.getCas().getJCas();
-        }
-        catch (CASException e) {
-            throw new IOException(e);
+        byte[] header = new byte[CasStorageFormat.HEADER_LENGTH];
+        int length = 0;
+        try (InputStream is = new FileInputStream(aFile)) {
+            int read;
+            while (length < header.length
+                    && (read = is.read(header, length, header.length - length)) != -1) {
+                length += read;
+            }
         }
-        catch (ClassNotFoundException e) {
-            throw new IOException(e);
+        header = Arrays.copyOf(header, length);
+
+        for (CasStorageFormat format : casStorageFormats) {
+            if (format.accepts(header)) {
+                format.read(aJCas.getCas(), aFile, getTypeSystemFolder(aProject));
+                casJournal.replay(aJCas.getCas(), aFile);
+                try {
+                    // Initialize the JCas sub-system which is the most often used API in DKPro
+                    // Core components
+                    aJCas.getCas().getJCas();
+                }
+                catch (CASException e) {
+                    throw new IOException(e);
+                }
+                return format;
+            }
         }
+
+        throw new IOException("Unknown format of CAS file [" + aFile + "]");
     }
 
     @Override
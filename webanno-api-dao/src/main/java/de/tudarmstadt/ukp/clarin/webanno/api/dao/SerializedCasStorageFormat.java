@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+
+/**
+ * The original storage format: a Java-serialized {@link CASCompleteSerializer}. Every file
+ * carries its own type system and index definitions.
+ */
+public class SerializedCasStorageFormat
+    implements CasStorageFormat
+{
+    public static final String ID = "serialized";
+
+    @Override
+    public String getId()
+    {
+        return ID;
+    }
+
+    @Override
+    public boolean accepts(byte[] aHeader)
+    {
+        // Java serialization stream magic number
+        return aHeader.length >= 2 && aHeader[0] == (byte) 0xAC && aHeader[1] == (byte) 0xED;
+    }
+
+    @Override
+    public void write(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException
+    {
+        try (ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(aFile)))) {
+            os.writeObject(serializeCASComplete((CASImpl) aCas));
+        }
+    }
+
+    @Override
+    public void read(CAS aCas, File aFile, File aTypeSystemFolder)
+        throws IOException
+    {
+        try (ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(aFile)))) {
+            CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
+            deserializeCASComplete(serializer, (CASImpl) aCas);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Tag;
+
+/**
+ * Cache of the tags of each tagset.
+ * <p>
+ * Entries are keyed by tagset ID and hold copies of the tags which are not attached to any
+ * entity manager. The entries are shared and immutable. An entry is dropped when the tagset is
+ * {@link #invalidate(long) invalidated}. An entry which was loaded while the tagset was
+ * invalidated is not stored, so a concurrent reader cannot put back the tags from before the
+ * change.
+ */
+public class TagCache
+{
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Long, Long> generations = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get the tags of a tagset. The list and the tags are shared and must not be modified.
+     *
+     * @param aTagSetId
+     *            the ID of the tagset.
+     * @param aTags
+     *            supplies the tags of the tagset if they are not cached.
+     * @return the tags in the order supplied.
+     */
+    public List<Tag> getTags(long aTagSetId, Supplier<List<Tag>> aTags)
+    {
+        return get(aTagSetId, aTags).tags;
+    }
+
+    /**
+     * Get a page of the tags of a tagset whose names start with the given prefix, ignoring case.
+     *
+     * @param aTagSetId
+     *            the ID of the tagset.
+     * @param aPrefix
+     *            the prefix. If it is {@code null} or empty, all tags match.
+     * @param aFirst
+     *            the number of matching tags to skip.
+     * @param aCount
+     *            the maximum number of tags to return.
+     * @param aTags
+     *            supplies the tags of the tagset if they are not cached.
+     * @return the matching tags in the order supplied.
+     * @see #getTags(long, Supplier)
+     */
+    public List<Tag> getTags(long aTagSetId, String aPrefix, int aFirst, int aCount,
+            Supplier<List<Tag>> aTags)
+    {
+        Entry entry = get(aTagSetId, aTags);
+        String prefix = aPrefix != null ? aPrefix.toLowerCase(Locale.ROOT) : "";
+
+        List<Tag> page = new ArrayList<>();
+        int skip = aFirst;
+        for (int i = 0; i < entry.keys.length && page.size() < aCount; i++) {
+            if (entry.keys[i].startsWith(prefix)) {
+                if (skip > 0) {
+                    skip--;
+                }
+                else {
+                    page.add(entry.tags.get(i));
+                }
+            }
+        }
+        return page;
+    }
+
+    public synchronized void invalidate(long aTagSetId)
+    {
+        entries.remove(aTagSetId);
+        generations.put(aTagSetId, getGeneration(aTagSetId) + 1);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[entries: " + entries.size() + ", hits: " + hits + ", misses: " + misses + "]";
+    }
+
+    private Entry get(long aTagSetId, Supplier<List<Tag>> aTags)
+    {
+        Entry entry = entries.get(aTagSetId);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        long generation;
+        synchronized (this) {
+            generation = getGeneration(aTagSetId);
+        }
+
+        // Concurrent misses may load the same entry twice, but they do not block each other
+        List<Tag> tags = new ArrayList<>();
+        for (Tag tag : aTags.get()) {
+            Tag copy = new Tag();
+            copy.setId(tag.getId());
+            copy.setName(tag.getName());
+            copy.setDescription(tag.getDescription());
+            copy.setTagSet(tag.getTagSet());
+            tags.add(copy);
+        }
+        entry = new Entry(tags);
+
+        synchronized (this) {
+            if (getGeneration(aTagSetId) == generation) {
+                entries.put(aTagSetId, entry);
+            }
+        }
+        return entry;
+    }
+
+    private long getGeneration(long aTagSetId)
+    {
+        Long generation = generations.get(aTagSetId);
+        return generation != null ? generation : 0;
+    }
+
+    private static class Entry
+    {
+        final List<Tag> tags;
+        // Lower-cased tag names for prefix matching
+        final String[] keys;
+
+        Entry(List<Tag> aTags)
+        {
+            tags = Collections.unmodifiableList(aTags);
+            keys = new String[aTags.size()];
+            for (int i = 0; i < keys.length; i++) {
+                String name = aTags.get(i).getName();
+                keys[i] = name != null ? name.toLowerCase(Locale.ROOT) : "";
+            }
+        }
+    }
+}
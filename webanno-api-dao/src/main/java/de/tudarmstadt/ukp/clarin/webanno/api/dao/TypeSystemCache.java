@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.Serialization;
+import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
+import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+
+/**
+ * Cache of the type system of each project, i.e. the built-in types merged with the types
+ * generated from the layers and features of the project.
+ * <p>
+ * Entries are keyed by project ID and remember the schema version they were built for. An entry
+ * is rebuilt when it is requested with a different version. Besides the merged description, each
+ * entry holds a {@link CASCompleteSerializer} of an empty CAS using the committed type system.
+ * New CASes are initialized from it, which avoids merging and committing the type system again.
+ * Finally, each entry holds a {@link #fingerprint(TypeSystem) fingerprint} of the committed type
+ * system which allows to check cheaply if a CAS already uses the type system of the project.
+ */
+public class TypeSystemCache
+{
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile TypeSystemDescription builtInTypes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get the merged type system description of a project. The description is shared and must
+     * not be modified.
+     *
+     * @param aProjectId
+     *            the ID of the project.
+     * @param aSchemaVersion
+     *            the current schema version of the project.
+     * @param aProjectTypes
+     *            supplies the types generated from the layers and features of the project if
+     *            the type system needs to be built.
+     * @return the type system description.
+     */
+    public TypeSystemDescription getTypeSystemDescription(long aProjectId, long aSchemaVersion,
+            Supplier<List<TypeSystemDescription>> aProjectTypes)
+        throws ResourceInitializationException
+    {
+        return get(aProjectId, aSchemaVersion, aProjectTypes).description;
+    }
+
+    /**
+     * Get a snapshot of an empty CAS using the type system of a project. Every call returns a
+     * private copy which may be passed to
+     * {@link Serialization#deserializeCASComplete(CASCompleteSerializer, CASImpl)}.
+     *
+     * @see #getTypeSystemDescription(long, long, Supplier)
+     */
+    public CASCompleteSerializer getSerializer(long aProjectId, long aSchemaVersion,
+            Supplier<List<TypeSystemDescription>> aProjectTypes)
+        throws ResourceInitializationException
+    {
+        return CasCache.copy(get(aProjectId, aSchemaVersion, aProjectTypes).serializer);
+    }
+
+    /**
+     * Get the fingerprint of the type system of a project.
+     *
+     * @see #getTypeSystemDescription(long, long, Supplier)
+     * @see #fingerprint(TypeSystem)
+     */
+    public String getFingerprint(long aProjectId, long aSchemaVersion,
+            Supplier<List<TypeSystemDescription>> aProjectTypes)
+        throws ResourceInitializationException
+    {
+        return get(aProjectId, aSchemaVersion, aProjectTypes).fingerprint;
+    }
+
+    /**
+     * Create a new empty CAS using the type system of a project.
+     *
+     * @see #getTypeSystemDescription(long, long, Supplier)
+     */
+    public CAS createCas(long aProjectId, long aSchemaVersion,
+            Supplier<List<TypeSystemDescription>> aProjectTypes)
+        throws ResourceInitializationException
+    {
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        deserializeCASComplete(getSerializer(aProjectId, aSchemaVersion, aProjectTypes),
+                (CASImpl) cas);
+        return cas;
+    }
+
+    public void invalidate(long aProjectId)
+    {
+        entries.remove(aProjectId);
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[entries: " + entries.size() + ", hits: " + hits + ", misses: " + misses + "]";
+    }
+
+    private Entry get(long aProjectId, long aSchemaVersion,
+            Supplier<List<TypeSystemDescription>> aProjectTypes)
+        throws ResourceInitializationException
+    {
+        Entry entry = entries.get(aProjectId);
+        if (entry != null && entry.schemaVersion == aSchemaVersion) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        misses.incrementAndGet();
+        // Concurrent misses may build the same entry twice, but they do not block each other
+        List<TypeSystemDescription> types = new ArrayList<>(aProjectTypes.get());
+        types.add(getBuiltInTypes());
+        TypeSystemDescription description = CasCreationUtils.mergeTypeSystems(types);
+        CAS template = CasCreationUtils.createCas(description, null, null);
+        entry = new Entry(aSchemaVersion, description,
+                Serialization.serializeCASComplete((CASImpl) template),
+                fingerprint(template.getTypeSystem()));
+        entries.put(aProjectId, entry);
+        return entry;
+    }
+
+    /**
+     * Compute a fingerprint of the given type system. It covers the names of all types, their
+     * supertypes and their features including the feature ranges. Type systems defining the same
+     * types have the same fingerprint independent of the order in which the types were defined.
+     *
+     * @param aTypeSystem
+     *            the type system.
+     * @return the fingerprint.
+     */
+    public static String fingerprint(TypeSystem aTypeSystem)
+    {
+        List<String> types = new ArrayList<>();
+        Iterator<Type> i = aTypeSystem.getTypeIterator();
+        while (i.hasNext()) {
+            Type type = i.next();
+            Type parent = aTypeSystem.getParent(type);
+
+            List<String> features = new ArrayList<>();
+            for (Feature feature : type.getFeatures()) {
+                features.add(feature.getShortName() + ":" + feature.getRange().getName()
+                        + (feature.isMultipleReferencesAllowed() ? "*" : ""));
+            }
+            Collections.sort(features);
+
+            types.add(type.getName() + "<" + (parent != null ? parent.getName() : "") + "|"
+                    + StringUtils.join(features, ","));
+        }
+        Collections.sort(types);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String type : types) {
+                digest.update(type.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The built-in types are found by scanning the classpath which is done only once.
+     */
+    private TypeSystemDescription getBuiltInTypes()
+        throws ResourceInitializationException
+    {
+        TypeSystemDescription types = builtInTypes;
+        if (types == null) {
+            types = TypeSystemDescriptionFactory.createTypeSystemDescription();
+            builtInTypes = types;
+        }
+        return types;
+    }
+
+    private static final class Entry
+    {
+        private final long schemaVersion;
+        private final TypeSystemDescription description;
+        private final CASCompleteSerializer serializer;
+        private final String fingerprint;
+
+        public Entry(long aSchemaVersion, TypeSystemDescription aDescription,
+                CASCompleteSerializer aSerializer, String aFingerprint)
+        {
+            schemaVersion = aSchemaVersion;
+            description = aDescription;
+            serializer = aSerializer;
+            fingerprint = aFingerprint;
+        }
+    }
+}
@@ -18,18 +18,25 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.diag;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.impl.CASImpl;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.checks.Check;
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.repairs.Repair;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 
 public class CasDoctor
     implements InitializingBean
@@ -45,8 +52,22 @@ public class CasDoctor
     @Value(value = "${debug.casDoctor.repairs}")
     private String activeRepairs;
 
-    private List<Class<? extends Check>> checkClasses = new ArrayList<>();
-    private List<Class<? extends Repair>> repairClasses = new ArrayList<>();
+    @Value(value = "${debug.casDoctor.strictness}")
+    private Strictness strictness = Strictness.FULL;
+
+    /**
+     * Comma-separated list of {@code <projectId>:<strictness>} pairs overriding the strictness for
+     * individual projects.
+     */
+    @Value(value = "${debug.casDoctor.projectStrictness}")
+    private String projectStrictness;
+
+    private List<Check> checks = new ArrayList<>();
+    private List<Repair> repairs = new ArrayList<>();
+    private Map<Long, Strictness> strictnessByProject = new HashMap<>();
+
+    // Markers of the CASes as they were read from the repository
+    private final Map<CAS, Marker> baselines = Collections.synchronizedMap(new WeakHashMap<>());
 
     public CasDoctor()
     {
@@ -99,32 +120,87 @@ public class CasDoctor
         return fatalChecks;
     }
 
+    public void setStrictness(Strictness aStrictness)
+    {
+        strictness = aStrictness;
+    }
+
+    public Strictness getStrictness()
+    {
+        return strictness;
+    }
+
+    public void setStrictness(Project aProject, Strictness aStrictness)
+    {
+        strictnessByProject.put(aProject.getId(), aStrictness);
+    }
+
+    /**
+     * @return the strictness of the checks for the given project, falling back to the default
+     *         strictness if none is configured for the project.
+     */
+    public Strictness getStrictness(Project aProject)
+    {
+        Strictness s = aProject != null ? strictnessByProject.get(aProject.getId()) : null;
+        return s != null ? s : strictness;
+    }
+
+    /**
+     * Remember the state of a CAS which has just been read from the repository. CASes are checked
+     * before they are stored, so when checking only the changes, the CAS is assumed to be fine at
+     * this point. This must be called before the CAS is modified, including by the repairs. The
+     * current marker of the CAS is used if it already has one, otherwise a marker is created.
+     */
+    public void markBaseline(Project aProject, CAS aCas)
+    {
+        if (getStrictness(aProject) != Strictness.CHANGES) {
+            return;
+        }
+
+        CASImpl cas = ((CASImpl) aCas).getBaseCAS();
+        Marker marker = cas.getCurrentMark();
+        if (marker == null) {
+            marker = cas.createMarker();
+        }
+        baselines.put(cas, marker);
+    }
+
     public void repair(CAS aCas)
+    {
+        repair(null, aCas);
+    }
+
+    public void repair(Project aProject, CAS aCas)
     {
         List<LogMessage> messages = new ArrayList<>();
-        repair(aCas, messages);
+        repair(aProject, aCas, messages);
         if (log.isWarnEnabled() && !messages.isEmpty()) {
             messages.forEach(s -> log.warn(s));
         }
     }
-    
+
     public void repair(CAS aCas, List<LogMessage> aMessages)
+    {
+        repair(null, aCas, aMessages);
+    }
+
+    public void repair(Project aProject, CAS aCas, List<LogMessage> aMessages)
     {
         boolean exception = false;
-        for (Class<? extends Repair> repairClass : repairClasses) {
+        for (Repair repair : repairs) {
             try {
-                Repair repair = repairClass.newInstance();
                 repair.repair(aCas, aMessages);
             }
             catch (Exception e) {
                 aMessages.add(new LogMessage(this, LogLevel.ERROR, "Cannot perform repair [%s]: %s",
-                        repairClass.getSimpleName(), ExceptionUtils.getRootCauseMessage(e)));
+                        repair.getClass().getSimpleName(), ExceptionUtils.getRootCauseMessage(e)));
                 log.error(e);
                 exception = true;
             }
         }
         
-        if (!repairClasses.isEmpty() && (exception || !analyze(aCas, aMessages, false))) {
+        if (!repairs.isEmpty()
+                && (exception || !analyze(aCas, aMessages, false, getStrictness(aProject)))) {
             aMessages.forEach(s -> log.error(s));
             throw new IllegalStateException("Repair attempt failed - ask system administrator "
                     + "for details.");
@@ -132,9 +208,14 @@ public class CasDoctor
     }
     
     public boolean analyze(CAS aCas)
+    {
+        return analyze(null, aCas);
+    }
+
+    public boolean analyze(Project aProject, CAS aCas)
     {
         List<LogMessage> messages = new ArrayList<>();
-        boolean result = analyze(aCas, messages);
+        boolean result = analyze(aProject, aCas, messages);
         if (log.isDebugEnabled()) {
             messages.forEach(s -> log.debug(s));
         }
@@ -143,21 +224,40 @@ public class CasDoctor
 
     public boolean analyze(CAS aCas, List<LogMessage> aMessages)
     {
-        return analyze(aCas, aMessages, isFatalChecks());
+        return analyze(null, aCas, aMessages);
+    }
+
+    public boolean analyze(Project aProject, CAS aCas, List<LogMessage> aMessages)
+    {
+        return analyze(aCas, aMessages, isFatalChecks(), getStrictness(aProject));
     }
 
-    private boolean analyze(CAS aCas, List<LogMessage> aMessages, boolean aFatalChecks)
+    private boolean analyze(CAS aCas, List<LogMessage> aMessages, boolean aFatalChecks,
+            Strictness aStrictness)
     {
+        // Only the changes since the baseline can be checked, and only as long as the marker of
+        // the baseline is still in place
+        Marker baseline = null;
+        if (aStrictness == Strictness.CHANGES) {
+            CASImpl cas = ((CASImpl) aCas).getBaseCAS();
+            baseline = baselines.get(cas);
+            if (baseline != null && (!baseline.isValid() || cas.getCurrentMark() != baseline)) {
+                baseline = null;
+            }
+        }
+
         boolean ok = true;
-        for (Class<? extends Check> checkClass : checkClasses) {
-            try {
-                Check check = checkClass.newInstance();
+        for (Check check : checks) {
+            switch (aStrictness) {
+            case FULL:
                 ok &= check.check(aCas, aMessages);
-            }
-            catch (InstantiationException | IllegalAccessException e) {
-                aMessages.add(new LogMessage(this, LogLevel.ERROR, "Cannot instantiate [%s]: %s",
-                        checkClass.getSimpleName(), ExceptionUtils.getRootCauseMessage(e)));
-                log.error(e);
+                break;
+            case CHANGES:
+                ok &= baseline != null ? check.checkChanges(aCas, baseline, aMessages)
+                        : check.check(aCas, aMessages);
+                break;
+            case OFF:
+                break;
             }
         }
 
@@ -179,17 +279,27 @@ public class CasDoctor
         activeRepairs = aActiveRepairs;
     }
 
-    @SuppressWarnings("unchecked")
+    public void setProjectStrictness(String aProjectStrictness)
+    {
+        projectStrictness = aProjectStrictness;
+    }
+
+    /**
+     * The checks and repairs are instantiated only once here instead of on every read and write.
+     */
     @Override
     public void afterPropertiesSet()
     {
+        checks.clear();
+        repairs.clear();
+
         if (StringUtils.isNotBlank(activeChecks)) {
             for (String check : activeChecks.split(",")) {
                 try {
-                    checkClasses.add((Class<? extends Check>) Class.forName(Check.class
-                            .getPackage().getName() + "." + check.trim()));
+                    checks.add(Class.forName(Check.class.getPackage().getName() + "."
+                            + check.trim()).asSubclass(Check.class).newInstance());
                 }
-                catch (ClassNotFoundException e) {
+                catch (ReflectiveOperationException e) {
                     throw new IllegalStateException(e);
                 }
             }
@@ -198,14 +308,50 @@ public class CasDoctor
         if (StringUtils.isNotBlank(activeRepairs)) {
             for (String check : activeRepairs.split(",")) {
                 try {
-                    repairClasses.add((Class<? extends Repair>) Class.forName(Repair.class
-                            .getPackage().getName() + "." + check.trim()));
+                    repairs.add(Class.forName(Repair.class.getPackage().getName() + "."
+                            + check.trim()).asSubclass(Repair.class).newInstance());
                 }
-                catch (ClassNotFoundException e) {
+                catch (ReflectiveOperationException e) {
                     throw new IllegalStateException(e);
                 }
             }
         }
+
+        if (StringUtils.isNotBlank(projectStrictness)) {
+            for (String entry : projectStrictness.split(",")) {
+                String[] parts = entry.split(":");
+                if (parts.length != 2) {
+                    throw new IllegalStateException("Invalid project strictness [" + entry
+                            + "] - expected [<projectId>:<strictness>]");
+                }
+                strictnessByProject.put(Long.valueOf(parts[0].trim()),
+                        Strictness.valueOf(parts[1].trim().toUpperCase()));
+            }
+        }
+    }
+
+    /**
+     * How thoroughly the checks are run.
+     */
+    public static enum Strictness
+    {
+        /**
+         * Do not run any checks.
+         */
+        OFF,
+
+        /**
+         * Only check what has changed since the CAS was read from the repository, as far as the
+         * checks support this. CASes which have not been read from the repository are checked
+         * completely. This relies on the stored CASes having passed the checks when they were
+         * saved.
+         */
+        CHANGES,
+
+        /**
+         * Check the whole CAS every time.
+         */
+        FULL
     }
 
     public static enum LogLevel
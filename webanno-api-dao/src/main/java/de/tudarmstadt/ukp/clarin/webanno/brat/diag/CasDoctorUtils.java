@@ -17,20 +17,33 @@
  ******************************************************************************/
 package de.tudarmstadt.ukp.clarin.webanno.brat.diag;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.IntPredicate;
 
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.FSIterator;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
 import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASImpl;
 import org.apache.uima.cas.impl.LowLevelCAS;
+import org.apache.uima.internal.util.IntVector;
 
 public class CasDoctorUtils
 {
+    private static final Method GET_MODIFIED_FS_LIST = getModifiedFSListMethod();
+
     public static Set<FeatureStructure> collectIndexed(CAS aCas)
     {
         LowLevelCAS llcas = aCas.getLowLevelCAS();
@@ -93,44 +106,168 @@ public class CasDoctorUtils
 
     public static Set<FeatureStructure> getNonIndexedFSes(CAS aCas)
     {
-        TypeSystem ts = aCas.getTypeSystem();
+        LowLevelCAS llcas = aCas.getLowLevelCAS();
+        Set<FeatureStructure> fses = new TreeSet<>((fs1, fs2) -> llcas.ll_getFSRef(fs1)
+                - llcas.ll_getFSRef(fs2));
+        fses.addAll(getNonIndexedFSesWithOwner(aCas).keySet());
+        return fses;
+    }
 
-        Set<FeatureStructure> allIndexedFS = collectIndexed(aCas);
-        Set<FeatureStructure> allReachableFS = collectReachable(aCas);
+    public static Map<FeatureStructure, FeatureStructure> getNonIndexedFSesWithOwner(CAS aCas)
+    {
+        BitSet indexed = getIndexedAddresses(aCas);
+        return getNonIndexedFSesWithOwner(aCas, indexed, indexed, new BitSet());
+    }
 
-        // Remove all that are indexed
-        allReachableFS.removeAll(allIndexedFS);
+    /**
+     * Collect the addresses of all indexed feature structures. Unlike {@link #collectIndexed},
+     * this does not need to sort the feature structures.
+     */
+    public static BitSet getIndexedAddresses(CAS aCas)
+    {
+        LowLevelCAS llcas = aCas.getLowLevelCAS();
+        BitSet addresses = new BitSet();
 
-        // Remove all that are not annotations
-        allReachableFS.removeIf(fs -> !ts.subsumes(aCas.getAnnotationType(), fs.getType()));
+        FSIterator<FeatureStructure> i = aCas.getIndexRepository().getAllIndexedFS(
+                aCas.getTypeSystem().getTopType());
 
-        // All that is left are non-index annotations
-        return allReachableFS;
+        i.forEachRemaining(fs -> addresses.set(llcas.ll_getFSRef(fs)));
+
+        return addresses;
     }
 
-    public static Map<FeatureStructure, FeatureStructure> getNonIndexedFSesWithOwner(CAS aCas)
+    /**
+     * Find the annotations which are not indexed but reachable from the given roots. Only
+     * non-indexed feature structures are followed, indexed ones which are not among the roots
+     * are assumed to have been checked already.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aRoots
+     *            the addresses of the indexed feature structures to start from.
+     * @param aIndexed
+     *            the addresses of all indexed feature structures.
+     * @param aReferenced
+     *            receives the addresses of all annotations referenced on the way.
+     * @return the non-indexed annotations and for each the last indexed feature structure through
+     *         which it is reachable.
+     */
+    public static Map<FeatureStructure, FeatureStructure> getNonIndexedFSesWithOwner(CAS aCas,
+            BitSet aRoots, BitSet aIndexed, BitSet aReferenced)
+    {
+        return getNonIndexedFSesWithOwner(aCas, aRoots, aIndexed::get, aReferenced);
+    }
+
+    /**
+     * Find the annotations which are not indexed but reachable from the given roots. This variant
+     * does not require the addresses of all indexed feature structures to be collected up front.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aRoots
+     *            the addresses of the indexed feature structures to start from.
+     * @param aIndexed
+     *            tells whether the feature structure at an address is indexed.
+     * @param aReferenced
+     *            receives the addresses of all annotations referenced on the way.
+     * @return the non-indexed annotations and for each the last indexed feature structure through
+     *         which it is reachable.
+     * @see #getNonIndexedFSesWithOwner(CAS, BitSet, BitSet, BitSet)
+     */
+    public static Map<FeatureStructure, FeatureStructure> getNonIndexedFSesWithOwner(CAS aCas,
+            BitSet aRoots, IntPredicate aIndexed, BitSet aReferenced)
     {
         TypeSystem ts = aCas.getTypeSystem();
-        
         LowLevelCAS llcas = aCas.getLowLevelCAS();
 
-        Set<FeatureStructure> allIndexedFS = collectIndexed(aCas);
-        Map<FeatureStructure, FeatureStructure> allReachableFS = new TreeMap<>(
+        Map<FeatureStructure, FeatureStructure> nonIndexed = new TreeMap<>(
                 (fs1, fs2) -> llcas.ll_getFSRef(fs1) - llcas.ll_getFSRef(fs2));
-        
-        FSIterator<FeatureStructure> i = aCas.getIndexRepository().getAllIndexedFS(
-                aCas.getTypeSystem().getTopType());
+        Map<Type, List<Feature>> refFeatures = new HashMap<>();
+        BitSet visited = new BitSet();
+        Deque<FeatureStructure[]> todo = new ArrayDeque<>();
 
-        i.forEachRemaining(fs -> collect(allReachableFS, allIndexedFS, fs, fs));
+        for (int root = aRoots.nextSetBit(0); root >= 0; root = aRoots.nextSetBit(root + 1)) {
+            FeatureStructure rootFS = llcas.ll_getFSForRef(root);
+            todo.push(new FeatureStructure[] { rootFS, rootFS });
 
-        // Remove all that are not annotations
-        allReachableFS.entrySet().removeIf(
-                e -> !ts.subsumes(aCas.getAnnotationType(), e.getKey().getType()));
-        
-        // Remove all that are indexed
-        allReachableFS.entrySet().removeIf(e -> e.getKey() == e.getValue());
+            while (!todo.isEmpty()) {
+                FeatureStructure[] entry = todo.pop();
+                FeatureStructure owner = entry[1];
 
-        // All that is left are non-index annotations
-        return allReachableFS;
+                for (Feature f : refFeatures.computeIfAbsent(entry[0].getType(),
+                        CasDoctorUtils::getReferenceFeatures)) {
+                    FeatureStructure value = entry[0].getFeatureValue(f);
+                    if (value == null) {
+                        continue;
+                    }
+
+                    int address = llcas.ll_getFSRef(value);
+                    boolean annotation = ts.subsumes(aCas.getAnnotationType(), value.getType());
+                    if (annotation) {
+                        aReferenced.set(address);
+                    }
+
+                    if (aIndexed.test(address) || visited.get(address)) {
+                        continue;
+                    }
+
+                    visited.set(address);
+                    if (annotation) {
+                        nonIndexed.put(value, owner);
+                    }
+                    todo.push(new FeatureStructure[] { value, owner });
+                }
+            }
+        }
+
+        return nonIndexed;
+    }
+
+    /**
+     * Get the feature structures whose features have been changed since the current marker of the
+     * CAS was created. Feature structures created after the marker are not included. UIMA does not
+     * expose this list, so it is obtained reflectively.
+     *
+     * @return the addresses of the modified feature structures or {@code null} if they cannot be
+     *         determined.
+     */
+    public static int[] getModifiedFSes(CAS aCas)
+    {
+        if (GET_MODIFIED_FS_LIST == null) {
+            return null;
+        }
+
+        try {
+            IntVector modified = (IntVector) GET_MODIFIED_FS_LIST.invoke(((CASImpl) aCas)
+                    .getBaseCAS());
+            return modified != null ? modified.toArray() : new int[0];
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Method getModifiedFSListMethod()
+    {
+        try {
+            Method method = CASImpl.class.getDeclaredMethod("getModifiedFSList");
+            method.setAccessible(true);
+            return method;
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static List<Feature> getReferenceFeatures(Type aType)
+    {
+        List<Feature> features = new ArrayList<>();
+        for (Feature f : aType.getFeatures()) {
+            if (!f.getRange().isPrimitive()
+                    && !CAS.FEATURE_BASE_NAME_SOFA.equals(f.getShortName())) {
+                features.add(f);
+            }
+        }
+        return features;
     }
 }
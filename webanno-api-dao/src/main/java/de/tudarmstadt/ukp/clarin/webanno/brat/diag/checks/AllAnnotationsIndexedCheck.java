@@ -17,14 +17,22 @@
  ******************************************************************************/
 package de.tudarmstadt.ukp.clarin.webanno.brat.diag.checks;
 
+import static de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctorUtils.getIndexedAddresses;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctorUtils.getModifiedFSes;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctorUtils.getNonIndexedFSesWithOwner;
 
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.FSIndexRepositoryImpl;
+import org.apache.uima.cas.impl.LowLevelCAS;
+import org.apache.uima.cas.impl.MarkerImpl;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor.LogLevel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor.LogMessage;
@@ -52,24 +60,77 @@ public class AllAnnotationsIndexedCheck
 //        return nonIndexed.isEmpty();
 //    }
     
-        @Override
-        public boolean check(CAS aCas, List<LogMessage> aMessages)
-        {
-            Map<FeatureStructure, FeatureStructure> nonIndexed = getNonIndexedFSesWithOwner(aCas);
+    @Override
+    public boolean check(CAS aCas, List<LogMessage> aMessages)
+    {
+        BitSet indexed = getIndexedAddresses(aCas);
+        Map<FeatureStructure, FeatureStructure> nonIndexed = getNonIndexedFSesWithOwner(aCas,
+                indexed, indexed, new BitSet());
 
-            if (!nonIndexed.isEmpty()) {
-                aMessages.add(new LogMessage(this, LogLevel.ERROR, "Unindexed annotations: %d",
-                        nonIndexed.size()));
+        return report(nonIndexed, aMessages);
+    }
 
-                for (Entry<FeatureStructure, FeatureStructure> e : nonIndexed.entrySet()) {
-                aMessages.add(new LogMessage(this, LogLevel.ERROR, "Non-index annotation [%s] reachable through [%s]", e
-                        .getKey(), e.getValue()));
-                }
+    /**
+     * Only follows the references of the feature structures which have been added to the indexes,
+     * re-indexed or modified since the baseline. Non-indexed annotations can only become
+     * reachable through these. If an annotation which existed at the baseline has been removed
+     * from the indexes, it may still be referenced by a feature structure which has not changed.
+     * This can only be found by checking the whole CAS.
+     */
+    @Override
+    public boolean checkChanges(CAS aCas, Marker aBaseline, List<LogMessage> aMessages)
+    {
+        int[] modified = getModifiedFSes(aCas);
+        if (modified == null || !(aBaseline instanceof MarkerImpl)) {
+            return check(aCas, aMessages);
+        }
+
+        TypeSystem ts = aCas.getTypeSystem();
+        LowLevelCAS llcas = aCas.getLowLevelCAS();
+        FSIndexRepositoryImpl repo = (FSIndexRepositoryImpl) aCas.getIndexRepository();
+        int firstNew = ((MarkerImpl) aBaseline).getNextFSId();
+
+        for (int address : repo.getDeletedFSs()) {
+            if (address < firstNew && !repo.isInSetOrSortedIndexInThisView(address)
+                    && ts.subsumes(aCas.getAnnotationType(), llcas.ll_getFSForRef(address)
+                            .getType())) {
+                return check(aCas, aMessages);
+            }
+        }
+
+        BitSet roots = new BitSet();
+        for (int address : repo.getAddedFSs()) {
+            roots.set(address);
+        }
+        for (int address : repo.getReindexedFSs()) {
+            roots.set(address);
+        }
+        for (int address : modified) {
+            if (repo.isInSetOrSortedIndexInThisView(address)) {
+                roots.set(address);
             }
-            // else {
-            // aMessages.add(String.format("[%s] OK", getClass().getSimpleName()));
-            // }
+        }
+
+        Map<FeatureStructure, FeatureStructure> nonIndexed = getNonIndexedFSesWithOwner(aCas,
+                roots, repo::isInSetOrSortedIndexInThisView, new BitSet());
+
+        return report(nonIndexed, aMessages);
+    }
 
-            return nonIndexed.isEmpty();
+    private boolean report(Map<FeatureStructure, FeatureStructure> aNonIndexed,
+            List<LogMessage> aMessages)
+    {
+        if (!aNonIndexed.isEmpty()) {
+            aMessages.add(new LogMessage(this, LogLevel.ERROR, "Unindexed annotations: %d",
+                    aNonIndexed.size()));
+
+            for (Entry<FeatureStructure, FeatureStructure> e : aNonIndexed.entrySet()) {
+                aMessages.add(new LogMessage(this, LogLevel.ERROR,
+                        "Non-index annotation [%s] reachable through [%s]", e.getKey(),
+                        e.getValue()));
+            }
         }
+
+        return aNonIndexed.isEmpty();
+    }
 }
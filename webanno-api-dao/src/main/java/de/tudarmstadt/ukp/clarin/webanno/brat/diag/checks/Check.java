@@ -20,10 +20,24 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.diag.checks;
 import java.util.List;
 
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor.LogMessage;
 
 public interface Check
 {
     boolean check(CAS aCas, List<LogMessage> aMessages);
+
+    /**
+     * Check only what has changed since the given marker was created. The CAS is assumed to have
+     * passed the check at that point. Checks which cannot tell what has changed check the whole
+     * CAS.
+     *
+     * @param aBaseline
+     *            the current marker of the CAS.
+     */
+    default boolean checkChanges(CAS aCas, Marker aBaseline, List<LogMessage> aMessages)
+    {
+        return check(aCas, aMessages);
+    }
 }
@@ -41,6 +41,11 @@ public class RemoveDanglingRelationsRepair
     {
         Set<FeatureStructure> nonIndexed = getNonIndexedFSes(aCas);
         
+        // Without non-indexed annotations, no relation can be dangling
+        if (nonIndexed.isEmpty()) {
+            return;
+        }
+        
         Set<FeatureStructure> toDelete = new LinkedHashSet<>();
         
         for (AnnotationFS fs : aCas.getAnnotationIndex()) {
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class CasCacheTest
+{
+    private File file;
+
+    @Before
+    public void setup()
+        throws Exception
+    {
+        file = new File(folder.getRoot(), "user.ser");
+        FileUtils.write(file, "dummy");
+    }
+
+    @Test
+    public void testHitReturnsPrivateCopy()
+        throws Exception
+    {
+        CasCache cache = new CasCache(Long.MAX_VALUE);
+        cache.put(1, "user", file, serializeCASComplete((CASImpl) createCas(3)));
+
+        // Changing the CAS we got from the cache must not affect the cached version
+        CAS first = load(cache.get(1, "user", file));
+        assertEquals(3, JCasUtil.select(first.getJCas(), Token.class).size());
+        new Token(first.getJCas(), 0, 1).addToIndexes();
+
+        CAS second = load(cache.get(1, "user", file));
+        assertEquals(3, JCasUtil.select(second.getJCas(), Token.class).size());
+
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testChangedFileInvalidatesEntry()
+        throws Exception
+    {
+        CasCache cache = new CasCache(Long.MAX_VALUE);
+        cache.put(1, "user", file, serializeCASComplete((CASImpl) createCas(3)));
+
+        FileUtils.write(file, "changed dummy");
+
+        assertNull(cache.get(1, "user", file));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testEvictionByMemoryBudget()
+        throws Exception
+    {
+        CASCompleteSerializer ser = serializeCASComplete((CASImpl) createCas(100));
+        long entrySize = CasCache.estimateSize(ser);
+
+        // Budget for two entries
+        CasCache cache = new CasCache(entrySize * 2);
+        cache.put(1, "user", file, ser);
+        cache.put(2, "user", file, serializeCASComplete((CASImpl) createCas(100)));
+
+        // Access the first document so the second becomes the least recently used one
+        assertNotNull(cache.get(1, "user", file));
+
+        cache.put(3, "user", file, serializeCASComplete((CASImpl) createCas(100)));
+
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get(1, "user", file));
+        assertNull(cache.get(2, "user", file));
+        assertNotNull(cache.get(3, "user", file));
+        assertEquals(entrySize * 2, cache.getSize());
+    }
+
+    @Test
+    public void testVersion()
+        throws Exception
+    {
+        CasCache cache = new CasCache(Long.MAX_VALUE);
+        assertNull(cache.getVersion(1, "user"));
+
+        cache.put(1, "user", file, serializeCASComplete((CASImpl) createCas(3)));
+        Object version = cache.getVersion(1, "user");
+        assertNotNull(version);
+        cache.get(1, "user", file);
+        assertSame(version, cache.getVersion(1, "user"));
+
+        // Every new version has a new identity
+        cache.put(1, "user", file, serializeCASComplete((CASImpl) createCas(4)));
+        assertNotSame(version, cache.getVersion(1, "user"));
+
+        cache.invalidate(1, "user");
+        assertNull(cache.getVersion(1, "user"));
+    }
+
+    @Test
+    public void testInvalidateDocument()
+        throws Exception
+    {
+        CasCache cache = new CasCache(Long.MAX_VALUE);
+        cache.put(1, "user1", file, serializeCASComplete((CASImpl) createCas(3)));
+        cache.put(1, "user2", file, serializeCASComplete((CASImpl) createCas(3)));
+        cache.put(2, "user1", file, serializeCASComplete((CASImpl) createCas(3)));
+
+        cache.invalidate(1);
+
+        assertEquals(1, cache.getEntryCount());
+        assertNotNull(cache.get(2, "user1", file));
+    }
+
+    @Test
+    public void testDisabled()
+        throws Exception
+    {
+        CasCache cache = new CasCache(0);
+        cache.put(1, "user", file, serializeCASComplete((CASImpl) createCas(3)));
+
+        assertNull(cache.get(1, "user", file));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    private static CAS createCas(int aTokens)
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < aTokens; i++) {
+            text.append("a ");
+        }
+        jcas.setDocumentText(text.toString());
+        for (int i = 0; i < aTokens; i++) {
+            new Token(jcas, i * 2, i * 2 + 1).addToIndexes();
+        }
+        return jcas.getCas();
+    }
+
+    private static CAS load(CASCompleteSerializer aSerializer)
+        throws Exception
+    {
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        deserializeCASComplete(aSerializer, (CASImpl) cas);
+        return cas;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class CasJournalTest
+{
+    private CasStorageFormat format;
+    private File typeSystemFolder;
+    private File casFile;
+
+    @Before
+    public void setup()
+        throws Exception
+    {
+        format = new CompressedCasStorageFormat();
+        typeSystemFolder = folder.newFolder("typesystem");
+        casFile = new File(folder.getRoot(), "user.ser");
+        format.write(createCas(1000).getCas(), casFile, typeSystemFolder);
+    }
+
+    @Test
+    public void testChangesReplayed()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(10);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+
+        List<Token> tokens = new ArrayList<>(JCasUtil.select(cas.getJCas(), Token.class));
+        tokens.get(0).removeFromIndexes();
+        tokens.get(1).setEnd(4);
+        new Token(cas.getJCas(), 0, 1).addToIndexes();
+        List<String> expected = getTokens(cas);
+
+        assertTrue(journal.append(cas, casFile));
+        assertEquals(1, CasJournal.getRecordCount(casFile));
+        assertTrue(CasJournal.getJournalFile(casFile).length() < casFile.length());
+
+        assertEquals(expected, getTokens(read(journal)));
+    }
+
+    @Test
+    public void testSecondSaveReplacesDelta()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(10);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+        new Token(cas.getJCas(), 0, 1).addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+        new Token(cas.getJCas(), 0, 2).addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+        assertEquals(1, CasJournal.getRecordCount(casFile));
+
+        // A CAS loaded from the journal appends its own record
+        CAS cas2 = read(journal);
+        journal.track(cas2, casFile);
+        new Token(cas2.getJCas(), 0, 3).addToIndexes();
+        assertTrue(journal.append(cas2, casFile));
+        assertEquals(2, CasJournal.getRecordCount(casFile));
+
+        // The first CAS is outdated now
+        assertFalse(journal.append(cas, casFile));
+
+        assertEquals(getTokens(cas2), getTokens(read(journal)));
+        assertEquals(1003, getTokens(cas2).size());
+    }
+
+    @Test
+    public void testStaleJournalIgnored()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(10);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+        new Token(cas.getJCas(), 0, 1).addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+
+        // Writing the CAS file completely makes the journal obsolete
+        format.write(createCas(10).getCas(), casFile, typeSystemFolder);
+        assertEquals(0, CasJournal.getRecordCount(casFile));
+        assertEquals(10, getTokens(read(journal)).size());
+    }
+
+    @Test
+    public void testStaleCasDetectedAfterReplacedDelta()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(10);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+        Token token = new Token(cas.getJCas(), 0, 1);
+        token.addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+
+        // Loaded while the journal contains the first delta of the other CAS
+        CAS stale = read(journal);
+        journal.track(stale, casFile);
+
+        // Replacing a delta may keep the length of the journal, so that must not be relied on
+        token.setEnd(2);
+        assertTrue(journal.append(cas, casFile));
+
+        new Token(stale.getJCas(), 0, 3).addToIndexes();
+        assertFalse(journal.append(stale, casFile));
+        assertEquals(getTokens(cas), getTokens(read(journal)));
+    }
+
+    @Test
+    public void testIncompleteRecordIgnored()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(10);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+        new Token(cas.getJCas(), 0, 1).addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+        List<String> expected = getTokens(cas);
+
+        // A write interrupted by a crash leaves a partial record at the end
+        File journalFile = CasJournal.getJournalFile(casFile);
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.seek(raf.length());
+            raf.writeInt(1000);
+            raf.writeLong(0);
+            raf.write(new byte[10]);
+        }
+        assertEquals(1, CasJournal.getRecordCount(casFile));
+        assertEquals(expected, getTokens(read(journal)));
+
+        // The next save replaces the partial record
+        CAS cas2 = read(journal);
+        journal.track(cas2, casFile);
+        new Token(cas2.getJCas(), 0, 2).addToIndexes();
+        assertTrue(journal.append(cas2, casFile));
+        assertEquals(2, CasJournal.getRecordCount(casFile));
+        assertEquals(getTokens(cas2), getTokens(read(journal)));
+    }
+
+    @Test
+    public void testLimitRequiresFullWrite()
+        throws Exception
+    {
+        CasJournal journal = new CasJournal(1);
+
+        CAS cas = read(journal);
+        journal.track(cas, casFile);
+        new Token(cas.getJCas(), 0, 1).addToIndexes();
+        assertTrue(journal.append(cas, casFile));
+
+        CAS cas2 = read(journal);
+        journal.track(cas2, casFile);
+        new Token(cas2.getJCas(), 0, 2).addToIndexes();
+        assertFalse(journal.append(cas2, casFile));
+
+        // Disabled journal never appends
+        CasJournal disabled = new CasJournal(0);
+        CAS cas3 = read(disabled);
+        disabled.track(cas3, casFile);
+        assertFalse(disabled.append(cas3, casFile));
+    }
+
+    private CAS read(CasJournal aJournal)
+        throws Exception
+    {
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        format.read(cas, casFile, typeSystemFolder);
+        aJournal.replay(cas, casFile);
+        return cas;
+    }
+
+    private static List<String> getTokens(CAS aCas)
+        throws Exception
+    {
+        List<String> tokens = new ArrayList<>();
+        for (Token t : JCasUtil.select(aCas.getJCas(), Token.class)) {
+            tokens.add(t.getBegin() + "-" + t.getEnd());
+        }
+        return tokens;
+    }
+
+    /**
+     * Creates a CAS with tokens of varying length. Uniform tokens would compress so well that the
+     * journal would quickly exceed the size of the CAS file.
+     */
+    private static JCas createCas(int aTokens)
+        throws Exception
+    {
+        Random random = new Random(0);
+        JCas jcas = JCasFactory.createJCas();
+        StringBuilder text = new StringBuilder();
+        List<int[]> offsets = new ArrayList<>();
+        for (int i = 0; i < aTokens; i++) {
+            int begin = text.length();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            offsets.add(new int[] { begin, text.length() });
+            text.append(' ');
+        }
+        jcas.setDocumentText(text.toString());
+        for (int[] o : offsets) {
+            new Token(jcas, o[0], o[1]).addToIndexes();
+        }
+        return jcas;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
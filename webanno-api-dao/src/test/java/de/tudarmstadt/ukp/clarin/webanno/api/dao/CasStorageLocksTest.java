@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.junit.Test;
+
+public class CasStorageLocksTest
+{
+    @Test
+    public void testSameCasSameLock()
+    {
+        CasStorageLocks locks = new CasStorageLocks();
+
+        assertSame(locks.get(1, "user"), locks.get(1, "user"));
+    }
+
+    @Test
+    public void testConcurrentReadsOfSameCas()
+        throws Exception
+    {
+        CasStorageLocks locks = new CasStorageLocks();
+
+        Lock readLock = locks.get(1, "user").readLock();
+        readLock.lock();
+        try {
+            // Another reader must not be blocked by us
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                Future<Boolean> otherReader = executor.submit(() -> {
+                    Lock lock = locks.get(1, "user").readLock();
+                    boolean acquired = lock.tryLock(1, TimeUnit.SECONDS);
+                    if (acquired) {
+                        lock.unlock();
+                    }
+                    return acquired;
+                });
+                assertTrue(otherReader.get());
+
+                // ... but a writer must be
+                Future<Boolean> writer = executor.submit(() -> {
+                    Lock lock = locks.get(1, "user").writeLock();
+                    boolean acquired = lock.tryLock(100, TimeUnit.MILLISECONDS);
+                    if (acquired) {
+                        lock.unlock();
+                    }
+                    return acquired;
+                });
+                assertFalse(writer.get());
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+    }
+
+    @Test
+    public void testWritersOfDifferentCasesDoNotBlockEachOther()
+        throws Exception
+    {
+        CasStorageLocks locks = new CasStorageLocks();
+
+        // Pick annotators whose CASes are guarded by different stripes
+        int annotators = 8;
+        List<ReadWriteLock> selected = new ArrayList<>();
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; selected.size() < annotators; i++) {
+            ReadWriteLock lock = locks.get(1, "annotator" + i);
+            if (!selected.contains(lock)) {
+                selected.add(lock);
+                usernames.add("annotator" + i);
+            }
+        }
+
+        // Every annotator holds its write lock until all annotators hold theirs. With a single
+        // global lock, the barrier would never be reached.
+        CyclicBarrier allHolding = new CyclicBarrier(annotators);
+        ExecutorService executor = Executors.newFixedThreadPool(annotators);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (String username : usernames) {
+                results.add(executor.submit(() -> {
+                    Lock lock = locks.get(1, username).writeLock();
+                    lock.lock();
+                    try {
+                        allHolding.await(10, TimeUnit.SECONDS);
+                        return true;
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class CasWriteBehindTest
+{
+    private final List<String> written = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testSavesAreCoalesced()
+        throws Exception
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        CASCompleteSerializer[] flushedSnapshot = new CASCompleteSerializer[1];
+        CasWriteBehind[] writeBehind = new CasWriteBehind[1];
+        writeBehind[0] = new CasWriteBehind(500, (doc, user) -> {
+            written.add(user);
+            flushedSnapshot[0] = writeBehind[0].remove(doc.getId(), user);
+            done.countDown();
+        });
+
+        SourceDocument doc = createDocument(1);
+        CASCompleteSerializer first = createSnapshot("a");
+        CASCompleteSerializer second = createSnapshot("a");
+        CASCompleteSerializer last = createSnapshot("a");
+        writeBehind[0].submit(doc, "user", first);
+        writeBehind[0].submit(doc, "user", second);
+        writeBehind[0].submit(doc, "user", last);
+
+        assertTrue(writeBehind[0].isPending(1, "user"));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, written.size());
+        assertSame(last, flushedSnapshot[0]);
+        assertFalse(writeBehind[0].isPending(1, "user"));
+
+        writeBehind[0].shutdown();
+        assertEquals(1, written.size());
+    }
+
+    @Test
+    public void testFlushUser()
+        throws Exception
+    {
+        CasWriteBehind[] writeBehind = new CasWriteBehind[1];
+        writeBehind[0] = new CasWriteBehind(TimeUnit.HOURS.toMillis(1), (doc, user) -> {
+            if (writeBehind[0].remove(doc.getId(), user) != null) {
+                written.add(doc.getId() + ":" + user);
+            }
+        });
+
+        writeBehind[0].submit(createDocument(1), "user1", createSnapshot("a"));
+        writeBehind[0].submit(createDocument(2), "user1", createSnapshot("a"));
+        writeBehind[0].submit(createDocument(1), "user2", createSnapshot("a"));
+
+        writeBehind[0].flush("user1");
+        assertEquals(2, written.size());
+        assertTrue(written.contains("1:user1"));
+        assertTrue(written.contains("2:user1"));
+        assertEquals(1, writeBehind[0].getPendingCount());
+
+        // Everything left is written on shutdown
+        writeBehind[0].shutdown();
+        assertEquals(3, written.size());
+        assertTrue(written.contains("1:user2"));
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        CasWriteBehind writeBehind = new CasWriteBehind(0, (doc, user) -> written.add(user));
+
+        assertFalse(writeBehind.isEnabled());
+        writeBehind.shutdown();
+        assertTrue(written.isEmpty());
+    }
+
+    @Test
+    public void testPendingSavesRecoveredAfterCrash()
+        throws Exception
+    {
+        CasStorageFormat format = new CompressedCasStorageFormat();
+        File typeSystemFolder = folder.newFolder("typesystem");
+        File casFile = new File(folder.getRoot(), "user.ser");
+        format.write(createCas(100).getCas(), casFile, typeSystemFolder);
+
+        CasJournal journal = new CasJournal(10);
+        CasWriteBehind writeBehind = new CasWriteBehind(TimeUnit.HOURS.toMillis(1),
+                (doc, user) -> written.add(user));
+        SourceDocument doc = createDocument(1);
+
+        // Each save is recorded in the journal before it is submitted, like the repository does
+        CAS cas = read(format, typeSystemFolder, casFile, journal);
+        journal.track(cas, casFile);
+        JCasUtil.select(cas.getJCas(), Token.class).iterator().next().removeFromIndexes();
+        assertTrue(journal.append(cas, casFile));
+        writeBehind.submit(doc, "user", serializeCASComplete((CASImpl) cas));
+
+        // A CAS read while the save is pending includes it and can be journaled again
+        CAS cas2 = read(format, typeSystemFolder, casFile, journal);
+        assertEquals(getTokens(cas), getTokens(cas2));
+        journal.track(cas2, casFile);
+        new Token(cas2.getJCas(), 0, 1).addToIndexes();
+        assertTrue(journal.append(cas2, casFile));
+        writeBehind.submit(doc, "user", serializeCASComplete((CASImpl) cas2));
+        assertEquals(1, writeBehind.getPendingCount());
+
+        // The application stops before the pending save is written. After a restart, reading the
+        // CAS recovers both saves from the journal.
+        assertTrue(written.isEmpty());
+        CAS recovered = read(format, typeSystemFolder, casFile, new CasJournal(10));
+        assertEquals(getTokens(cas2), getTokens(recovered));
+        assertEquals(100, getTokens(recovered).size());
+    }
+
+    private static CAS read(CasStorageFormat aFormat, File aTypeSystemFolder, File aCasFile,
+            CasJournal aJournal)
+        throws Exception
+    {
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        aFormat.read(cas, aCasFile, aTypeSystemFolder);
+        aJournal.replay(cas, aCasFile);
+        return cas;
+    }
+
+    private static List<String> getTokens(CAS aCas)
+        throws Exception
+    {
+        List<String> tokens = new ArrayList<>();
+        for (Token t : JCasUtil.select(aCas.getJCas(), Token.class)) {
+            tokens.add(t.getBegin() + "-" + t.getEnd());
+        }
+        return tokens;
+    }
+
+    private static JCas createCas(int aTokens)
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < aTokens; i++) {
+            text.append("token").append(i).append(' ');
+        }
+        jcas.setDocumentText(text.toString());
+        int begin = 0;
+        for (int i = 0; i < aTokens; i++) {
+            int end = text.indexOf(" ", begin);
+            new Token(jcas, begin, end).addToIndexes();
+            begin = end + 1;
+        }
+        return jcas;
+    }
+
+    private static SourceDocument createDocument(long aId)
+    {
+        SourceDocument doc = new SourceDocument();
+        doc.setId(aId);
+        doc.setName("doc" + aId);
+        return doc;
+    }
+
+    private static CASCompleteSerializer createSnapshot(String aText)
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(aText);
+        return serializeCASComplete(jcas.getCasImpl());
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
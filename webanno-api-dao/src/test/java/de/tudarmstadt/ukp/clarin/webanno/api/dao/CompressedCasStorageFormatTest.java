@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.JCasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class CompressedCasStorageFormatTest
+{
+    private File typeSystemFolder;
+
+    @Before
+    public void setup()
+        throws Exception
+    {
+        typeSystemFolder = folder.newFolder("typesystem");
+    }
+
+    @Test
+    public void testRoundTripPreservesAddresses()
+        throws Exception
+    {
+        CompressedCasStorageFormat format = new CompressedCasStorageFormat();
+
+        JCas jcas = createCas(100);
+        // Unindexed feature structures must not make the addresses of the others shift
+        new Token(jcas, 0, 1);
+        List<Integer> addresses = getTokenAddresses(jcas);
+
+        File file = folder.newFile("user.ser");
+        format.write(jcas.getCas(), file, typeSystemFolder);
+        assertTrue(format.accepts(readHeader(file)));
+
+        CAS cas = read(format, file);
+        assertEquals(addresses, getTokenAddresses(cas.getJCas()));
+        assertEquals(jcas.getDocumentText(), cas.getDocumentText());
+    }
+
+    @Test
+    public void testTypeSystemStoredOnce()
+        throws Exception
+    {
+        CompressedCasStorageFormat format = new CompressedCasStorageFormat();
+
+        format.write(createCas(10).getCas(), folder.newFile("user1.ser"), typeSystemFolder);
+        format.write(createCas(20).getCas(), folder.newFile("user2.ser"), typeSystemFolder);
+
+        assertEquals(1, typeSystemFolder.listFiles().length);
+
+        // A fresh instance has no cached type systems and must get them from the folder
+        CAS cas = read(new CompressedCasStorageFormat(), new File(folder.getRoot(), "user2.ser"));
+        assertEquals(20, JCasUtil.select(cas.getJCas(), Token.class).size());
+    }
+
+    @Test
+    public void testLegacyFormatRecognized()
+        throws Exception
+    {
+        SerializedCasStorageFormat legacy = new SerializedCasStorageFormat();
+        CompressedCasStorageFormat compressed = new CompressedCasStorageFormat();
+
+        File file = folder.newFile("user.ser");
+        legacy.write(createCas(10).getCas(), file, typeSystemFolder);
+
+        assertTrue(legacy.accepts(readHeader(file)));
+        assertFalse(compressed.accepts(readHeader(file)));
+        assertEquals(10, JCasUtil.select(read(legacy, file).getJCas(), Token.class).size());
+    }
+
+    @Test
+    public void testCompressedIsSmaller()
+        throws Exception
+    {
+        JCas jcas = createCas(10000);
+
+        long[] sizes = new long[2];
+        CasStorageFormat[] formats = { new SerializedCasStorageFormat(),
+                new CompressedCasStorageFormat() };
+        for (int i = 0; i < formats.length; i++) {
+            File file = new File(folder.getRoot(), formats[i].getId() + ".ser");
+            formats[i].write(jcas.getCas(), file, typeSystemFolder);
+            sizes[i] = file.length();
+
+            CAS cas = read(formats[i], file);
+            assertEquals(10000, JCasUtil.select(cas.getJCas(), Token.class).size());
+        }
+
+        assertTrue(sizes[1] < sizes[0]);
+    }
+
+    private static JCas createCas(int aTokens)
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < aTokens; i++) {
+            text.append("token ");
+        }
+        jcas.setDocumentText(text.toString());
+        for (int i = 0; i < aTokens; i++) {
+            new Token(jcas, i * 6, i * 6 + 5).addToIndexes();
+            if (i % 10 == 0) {
+                new Sentence(jcas, i * 6, Math.min(i + 10, aTokens) * 6 - 1).addToIndexes();
+            }
+        }
+        return jcas;
+    }
+
+    private static CAS read(CasStorageFormat aFormat, File aFile)
+        throws Exception
+    {
+        CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        aFormat.read(cas, aFile, new File(aFile.getParentFile(), "typesystem"));
+        return cas;
+    }
+
+    private static List<Integer> getTokenAddresses(JCas aJCas)
+    {
+        List<Integer> addresses = new ArrayList<>();
+        for (Token t : JCasUtil.select(aJCas, Token.class)) {
+            addresses.add(aJCas.getLowLevelCas().ll_getFSRef(t));
+        }
+        return addresses;
+    }
+
+    private static byte[] readHeader(File aFile)
+        throws IOException
+    {
+        byte[] header = new byte[CasStorageFormat.HEADER_LENGTH];
+        try (InputStream is = new FileInputStream(aFile)) {
+            assertEquals(header.length, is.read(header));
+        }
+        return header;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
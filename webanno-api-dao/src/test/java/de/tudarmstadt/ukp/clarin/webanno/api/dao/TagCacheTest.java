@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Tag;
+import de.tudarmstadt.ukp.clarin.webanno.model.TagSet;
+
+public class TagCacheTest
+{
+    @Test
+    public void testCachedUntilInvalidated()
+    {
+        TagCache cache = new TagCache();
+        AtomicInteger loads = new AtomicInteger();
+        List<Tag> tags = createTags("ADJ", "ADV", "NN", "NNP");
+        Supplier<List<Tag>> supplier = () -> {
+            loads.incrementAndGet();
+            return tags;
+        };
+
+        List<Tag> cached = cache.getTags(1, supplier);
+        assertEquals(tags, cached);
+        assertSame(cached, cache.getTags(1, supplier));
+        assertEquals(1, loads.get());
+
+        // The cached tags are copies which cannot be modified through the list
+        assertNotSame(tags.get(0), cached.get(0));
+        assertEquals(tags.get(0).getId(), cached.get(0).getId());
+        try {
+            cached.add(new Tag());
+            fail("Cached tags must not be modifiable");
+        }
+        catch (UnsupportedOperationException e) {
+            // Expected
+        }
+
+        // Changes to the tagset invalidate the entry
+        tags.add(createTag("VB"));
+        cache.invalidate(1);
+        assertEquals(tags, cache.getTags(1, supplier));
+        assertEquals(2, loads.get());
+
+        // Other tagsets have their own entries
+        cache.getTags(2, supplier);
+        assertEquals(3, loads.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testPrefixPaging()
+    {
+        TagCache cache = new TagCache();
+        Supplier<List<Tag>> supplier = () -> createTags("ADJ", "ADV", "APPR", "ART", "NN",
+                "NNP");
+
+        assertEquals(asList("ADJ", "ADV"), names(cache.getTags(1, "ad", 0, 10, supplier)));
+        assertEquals(asList("ADV", "APPR"), names(cache.getTags(1, "A", 1, 2, supplier)));
+        assertEquals(asList("NNP"), names(cache.getTags(1, "nnp", 0, 10, supplier)));
+        assertEquals(asList(), names(cache.getTags(1, "X", 0, 10, supplier)));
+        assertEquals(6, cache.getTags(1, null, 0, 10, supplier).size());
+        assertEquals(asList("ADJ", "ADV", "APPR"), names(cache.getTags(1, "", 0, 3, supplier)));
+    }
+
+    @Test
+    public void testInvalidatedWhileLoading()
+    {
+        TagCache cache = new TagCache();
+        AtomicInteger loads = new AtomicInteger();
+
+        // A tag is added while the tags are loaded, so the loaded tags may be stale
+        cache.getTags(1, () -> {
+            loads.incrementAndGet();
+            cache.invalidate(1);
+            return createTags("NN");
+        });
+        assertFalse(cache.getTags(1, () -> {
+            loads.incrementAndGet();
+            return createTags("NN", "VB");
+        }).isEmpty());
+        assertEquals(2, loads.get());
+    }
+
+    private static List<Tag> createTags(String... aNames)
+    {
+        List<Tag> tags = new ArrayList<>();
+        for (String name : aNames) {
+            tags.add(createTag(name));
+        }
+        return tags;
+    }
+
+    private static Tag createTag(String aName)
+    {
+        TagSet tagSet = new TagSet();
+        tagSet.setName("tagset");
+        Tag tag = new Tag();
+        tag.setId(aName.hashCode());
+        tag.setName(aName);
+        tag.setTagSet(tagSet);
+        return tag;
+    }
+
+    private static List<String> names(List<Tag> aTags)
+    {
+        List<String> names = new ArrayList<>();
+        for (Tag tag : aTags) {
+            names.add(tag.getName());
+        }
+        return names;
+    }
+}
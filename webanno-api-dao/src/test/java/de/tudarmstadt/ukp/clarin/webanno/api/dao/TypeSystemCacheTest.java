@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.factory.TypeSystemDescriptionFactory;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.resource.metadata.impl.TypeSystemDescription_impl;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Rule;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class TypeSystemCacheTest
+{
+    @Test
+    public void testRebuiltOnSchemaChange()
+        throws Exception
+    {
+        TypeSystemCache cache = new TypeSystemCache();
+        AtomicInteger builds = new AtomicInteger();
+        Supplier<List<TypeSystemDescription>> projectTypes = () -> {
+            builds.incrementAndGet();
+            return asList(createCustomType("webanno.custom.Span" + builds.get()));
+        };
+
+        TypeSystemDescription tsd = cache.getTypeSystemDescription(1, 0, projectTypes);
+        assertSame(tsd, cache.getTypeSystemDescription(1, 0, projectTypes));
+        assertEquals(1, builds.get());
+
+        CAS cas = cache.createCas(1, 0, projectTypes);
+        assertNotNull(cas.getTypeSystem().getType("webanno.custom.Span1"));
+        assertNotNull(cas.getTypeSystem().getType(Token.class.getName()));
+
+        // CASes created from the cache are independent of each other
+        cas.setDocumentText("changed");
+        assertNull(cache.createCas(1, 0, projectTypes).getDocumentText());
+        assertEquals(1, builds.get());
+
+        // A new schema version rebuilds the type system
+        cas = cache.createCas(1, 1, projectTypes);
+        assertEquals(2, builds.get());
+        assertNull(cas.getTypeSystem().getType("webanno.custom.Span1"));
+        assertNotNull(cas.getTypeSystem().getType("webanno.custom.Span2"));
+
+        // Other projects have their own entries
+        cache.createCas(2, 1, projectTypes);
+        assertEquals(3, builds.get());
+        assertEquals(3, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testFingerprint()
+        throws Exception
+    {
+        TypeSystemCache cache = new TypeSystemCache();
+        Supplier<List<TypeSystemDescription>> projectTypes = () -> asList(
+                createCustomType("webanno.custom.Span"));
+
+        // A CAS created with the same types has the same fingerprint as the project
+        String fingerprint = cache.getFingerprint(1, 0, projectTypes);
+        List<TypeSystemDescription> types = new ArrayList<>(projectTypes.get());
+        types.add(TypeSystemDescriptionFactory.createTypeSystemDescription());
+        CAS cas = CasCreationUtils.createCas(CasCreationUtils.mergeTypeSystems(types), null, null);
+        assertEquals(fingerprint, TypeSystemCache.fingerprint(cas.getTypeSystem()));
+
+        // Adding a feature changes the fingerprint
+        TypeSystemDescription tsd = createCustomType("webanno.custom.Span");
+        tsd.getType("webanno.custom.Span").addFeature("other", "", CAS.TYPE_NAME_INTEGER);
+        assertFalse(fingerprint.equals(cache.getFingerprint(1, 1, () -> asList(tsd))));
+
+        // Adding a type changes the fingerprint
+        assertFalse(fingerprint.equals(cache.getFingerprint(1, 2,
+                () -> asList(createCustomType("webanno.custom.Span"),
+                        createCustomType("webanno.custom.Other")))));
+    }
+
+    /**
+     * Compares creating a CAS from the cache with merging the type system for every CAS as it
+     * was done before.
+     */
+    @Test
+    public void testSameTypesAsMerged()
+        throws Exception
+    {
+        Supplier<List<TypeSystemDescription>> projectTypes = () -> asList(
+                createCustomType("webanno.custom.Span"));
+
+        List<TypeSystemDescription> types = new ArrayList<>(projectTypes.get());
+        types.add(TypeSystemDescriptionFactory.createTypeSystemDescription());
+        CAS merged = JCasFactory.createJCas(CasCreationUtils.mergeTypeSystems(types)).getCas();
+
+        TypeSystemCache cache = new TypeSystemCache();
+        for (int i = 0; i < 2; i++) {
+            CAS cached = cache.createCas(1, 0, projectTypes);
+            assertEquals(getTypeNames(merged), getTypeNames(cached));
+        }
+    }
+
+    private static Set<String> getTypeNames(CAS aCas)
+    {
+        Set<String> names = new HashSet<>();
+        Iterator<Type> i = aCas.getTypeSystem().getTypeIterator();
+        while (i.hasNext()) {
+            names.add(i.next().getName());
+        }
+        return names;
+    }
+
+    private static TypeSystemDescription createCustomType(String aName)
+    {
+        TypeSystemDescription tsd = new TypeSystemDescription_impl();
+        tsd.addType(aName, "", CAS.TYPE_NAME_ANNOTATION).addFeature("value", "",
+                CAS.TYPE_NAME_STRING);
+        return tsd;
+    }
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
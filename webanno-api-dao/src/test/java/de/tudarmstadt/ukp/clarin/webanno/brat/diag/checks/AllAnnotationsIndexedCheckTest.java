@@ -17,6 +17,7 @@
  ******************************************************************************/
 package de.tudarmstadt.ukp.clarin.webanno.brat.diag.checks;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -25,7 +26,9 @@ import java.util.List;
 
 import org.apache.uima.UIMAFramework;
 import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.Type;
+import org.apache.uima.cas.impl.CASImpl;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.resource.metadata.TypeDescription;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
@@ -35,6 +38,8 @@ import org.junit.Test;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor;
 import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor.LogMessage;
+import de.tudarmstadt.ukp.clarin.webanno.brat.diag.CasDoctor.Strictness;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
 
 public class AllAnnotationsIndexedCheckTest
@@ -71,8 +76,6 @@ public class AllAnnotationsIndexedCheckTest
         CasDoctor cd = new CasDoctor(AllAnnotationsIndexedCheck.class);
         boolean result = cd.analyze(cas, messages);
         
-        messages.forEach(s -> System.out.println(s));
-        
         assertFalse(result);
     }
 
@@ -109,11 +112,148 @@ public class AllAnnotationsIndexedCheckTest
         CasDoctor cd = new CasDoctor(AllAnnotationsIndexedCheck.class);
         boolean result = cd.analyze(cas, messages);
         
-        messages.forEach(s -> System.out.println(s));
-        
         assertTrue(result);
     }
 
+    @Test
+    public void testChanges()
+        throws Exception
+    {
+        TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory()
+                .createTypeSystemDescription();
+        
+        String refTypeName = "RefType";
+        
+        TypeDescription refTypeDesc = tsd.addType(refTypeName, null, CAS.TYPE_NAME_ANNOTATION);
+        refTypeDesc.addFeature("ref", null, CAS.TYPE_NAME_ANNOTATION);
+        
+        CAS cas = CasCreationUtils.createCas(tsd, null, null);
+        
+        Type refType = cas.getTypeSystem().getType(refTypeName);
+        Feature ref = refType.getFeatureByBaseName("ref");
+        
+        AnnotationFS anno1 = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        cas.addFsToIndexes(anno1);
+
+        AnnotationFS anno2 = cas.createAnnotation(refType, 0, 1);
+        anno2.setFeatureValue(ref, anno1);
+        cas.addFsToIndexes(anno2);
+        
+        // A non-indexed annotation which is not reachable, e.g. one that has been deleted
+        AnnotationFS garbage = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        
+        // As if the CAS had just been read from the repository
+        CasDoctor cd = new CasDoctor(AllAnnotationsIndexedCheck.class);
+        cd.setStrictness(Strictness.CHANGES);
+        cd.markBaseline(null, cas);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+
+        // An added annotation referencing a non-indexed annotation
+        AnnotationFS anno3 = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        AnnotationFS anno4 = cas.createAnnotation(refType, 0, 1);
+        anno4.setFeatureValue(ref, anno3);
+        cas.addFsToIndexes(anno4);
+        List<LogMessage> messages = new ArrayList<>();
+        assertFalse(cd.analyze(cas, messages));
+        assertEquals(2, messages.size());
+
+        cas.addFsToIndexes(anno3);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+
+        // An existing annotation changed to reference a non-indexed annotation
+        anno2.setFeatureValue(ref, garbage);
+        assertFalse(cd.analyze(cas, new ArrayList<>()));
+        anno2.setFeatureValue(ref, anno1);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+
+        // Removing an annotation which has been added since the baseline is fine
+        AnnotationFS anno5 = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        cas.addFsToIndexes(anno5);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+        cas.removeFsFromIndexes(anno5);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+
+        // Removing an annotation which is still referenced is not
+        cas.removeFsFromIndexes(anno1);
+        assertFalse(cd.analyze(cas, new ArrayList<>()));
+
+        // Removing the referencing annotation fixes it again
+        cas.removeFsFromIndexes(anno2);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+        
+        // No checks at all
+        cas.removeFsFromIndexes(anno3);
+        cd.setStrictness(Strictness.OFF);
+        assertTrue(cd.analyze(cas, new ArrayList<>()));
+        cd.setStrictness(Strictness.FULL);
+        assertFalse(cd.analyze(cas, new ArrayList<>()));
+    }
+
+    @Test
+    public void testChangesWithoutBaseline()
+        throws Exception
+    {
+        TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory()
+                .createTypeSystemDescription();
+        
+        String refTypeName = "RefType";
+        
+        TypeDescription refTypeDesc = tsd.addType(refTypeName, null, CAS.TYPE_NAME_ANNOTATION);
+        refTypeDesc.addFeature("ref", null, CAS.TYPE_NAME_ANNOTATION);
+        
+        CAS cas = CasCreationUtils.createCas(tsd, null, null);
+        
+        Type refType = cas.getTypeSystem().getType(refTypeName);
+        
+        // The CAS has not been read from the repository, so it must be checked completely
+        AnnotationFS anno1 = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        AnnotationFS anno2 = cas.createAnnotation(refType, 0, 1);
+        anno2.setFeatureValue(refType.getFeatureByBaseName("ref"), anno1);
+        cas.addFsToIndexes(anno2);
+        
+        CasDoctor cd = new CasDoctor(AllAnnotationsIndexedCheck.class);
+        cd.setStrictness(Strictness.CHANGES);
+        ((CASImpl) cas).createMarker();
+        assertFalse(cd.analyze(cas, new ArrayList<>()));
+    }
+
+    @Test
+    public void testProjectStrictness()
+        throws Exception
+    {
+        TypeSystemDescription tsd = UIMAFramework.getResourceSpecifierFactory()
+                .createTypeSystemDescription();
+        
+        String refTypeName = "RefType";
+        
+        TypeDescription refTypeDesc = tsd.addType(refTypeName, null, CAS.TYPE_NAME_ANNOTATION);
+        refTypeDesc.addFeature("ref", null, CAS.TYPE_NAME_ANNOTATION);
+        
+        CAS cas = CasCreationUtils.createCas(tsd, null, null);
+        
+        Type refType = cas.getTypeSystem().getType(refTypeName);
+        
+        // An indexed annotation that references a non-indexed annotation
+        AnnotationFS anno1 = cas.createAnnotation(cas.getAnnotationType(), 0, 1);
+        AnnotationFS anno2 = cas.createAnnotation(refType, 0, 1);
+        anno2.setFeatureValue(refType.getFeatureByBaseName("ref"), anno1);
+        cas.addFsToIndexes(anno2);
+        
+        Project project1 = new Project();
+        project1.setId(1);
+        Project project2 = new Project();
+        project2.setId(2);
+        
+        CasDoctor cd = new CasDoctor(AllAnnotationsIndexedCheck.class);
+        cd.setProjectStrictness("1:off");
+        cd.afterPropertiesSet();
+        
+        assertEquals(Strictness.OFF, cd.getStrictness(project1));
+        assertEquals(Strictness.FULL, cd.getStrictness(project2));
+        assertTrue(cd.analyze(project1, cas, new ArrayList<>()));
+        assertFalse(cd.analyze(project2, cas, new ArrayList<>()));
+    }
+
     @Rule
     public DkproTestContext testContext = new DkproTestContext();
 }
@@ -330,6 +330,35 @@ public interface AnnotationService
      */
     List<Tag> listTags(TagSet tag);
 
+    /**
+     * list all {@link Tag} in a {@link TagSet} from a cache. The cache is updated when tags are
+     * created or removed through this service. Unlike {@link #listTags(TagSet)}, the tags are not
+     * attached to the persistence context. The list and the tags are shared and must not be
+     * modified.
+     *
+     * @param tagSet
+     *            the tagset.
+     * @return the tags.
+     */
+    List<Tag> listCachedTags(TagSet tagSet);
+
+    /**
+     * list a page of the {@link Tag}s in a {@link TagSet} whose names start with the given
+     * prefix, ignoring case. The tags are taken from the same cache as
+     * {@link #listCachedTags(TagSet)}.
+     *
+     * @param tagSet
+     *            the tagset.
+     * @param prefix
+     *            the prefix. If it is {@code null} or empty, all tags match.
+     * @param first
+     *            the number of matching tags to skip.
+     * @param count
+     *            the maximum number of tags to return.
+     * @return the tags.
+     */
+    List<Tag> listCachedTags(TagSet tagSet, String prefix, int first, int count);
+
     /**
      * list all {@link TagSet} in the system
      *
@@ -374,4 +403,15 @@ public interface AnnotationService
      * @param type the type.
      */
     void removeAnnotationLayer(AnnotationLayer type);
+
+    /**
+     * Get the version of the layer and feature definitions of the given project. The version
+     * changes whenever a layer or feature of the project is created, updated or removed. It can
+     * be used to cache data derived from the layers and features, e.g. the type system. The
+     * version is not persisted and only meaningful within the running application.
+     *
+     * @param project the project.
+     * @return the schema version.
+     */
+    long getSchemaVersion(Project project);
 }
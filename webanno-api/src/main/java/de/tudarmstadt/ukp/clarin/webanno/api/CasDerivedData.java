@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.api;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Marker;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.impl.FSIndexRepositoryImpl;
+
+/**
+ * Data derived from the contents of a CAS, e.g. an index, which is kept as long as the CAS is
+ * alive and shared with the other CASes created from the same stored version of the CAS.
+ * <p>
+ * Each request works on a CAS of its own, so data only kept per CAS would be computed again on
+ * every request. Therefore, the repository links every CAS it hands out to the version it has
+ * been created from and links a CAS to the new version when it has been saved (see
+ * {@link #link}). A value computed for a CAS which has not been changed since it was linked is
+ * published for the version. A CAS linked to the same version which has not been changed either
+ * starts with a copy of the published value instead of computing it again.
+ * <p>
+ * A CAS counts as changed if feature structures have been created, removed from the indexes or
+ * added back to them since it has been linked. This is detected using the change marker of the
+ * CAS. Changes to the features of existing feature structures are not noticed, so code making
+ * such changes which affect the derived data must call {@link #remove}. Tracking changes makes
+ * modifying the CAS more expensive, so the marker is only created once derived data is kept at
+ * all. A CAS linked before that does not share any data.
+ * <p>
+ * Published values are never modified. A copy must be independent of the value it has been
+ * copied from, e.g. by copying the data on write.
+ *
+ * @param <T>
+ *            the type of the derived data.
+ */
+public final class CasDerivedData<T>
+{
+    private static final Map<CAS, Link> LINKS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static final List<CasDerivedData<?>> INSTANCES = new CopyOnWriteArrayList<>();
+
+    private final BiPredicate<T, CAS> current;
+    private final BiFunction<T, CAS, T> copy;
+
+    // Values of each CAS by key
+    private final Map<CAS, Map<Object, T>> values = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    // Values of each version by key - the versions are owned by the repository
+    private final Map<Object, Map<Object, T>> published = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param aCurrent
+     *            tests whether a value still matches a CAS, e.g. by comparing the size of the
+     *            heap.
+     * @param aCopy
+     *            creates a copy of a value for use with the given CAS.
+     */
+    public CasDerivedData(BiPredicate<T, CAS> aCurrent, BiFunction<T, CAS, T> aCopy)
+    {
+        current = aCurrent;
+        copy = aCopy;
+        INSTANCES.add(this);
+    }
+
+    /**
+     * Get the value for the given CAS and key. If there is no current value for the CAS, a copy of
+     * the value published for the version of the CAS is used if the CAS has not been changed.
+     *
+     * @return the value or {@code null} if there is no current value.
+     */
+    public T get(CAS aCas, Object aKey)
+    {
+        Map<Object, T> local = values.get(aCas);
+        T value = local != null ? local.get(aKey) : null;
+        if (value != null && current.test(value, aCas)) {
+            return value;
+        }
+
+        Object version = getVersion(aCas);
+        Map<Object, T> shared = version != null ? published.get(version) : null;
+        T sharedValue = shared != null ? shared.get(aKey) : null;
+        if (sharedValue != null) {
+            T adopted = copy.apply(sharedValue, aCas);
+            if (current.test(adopted, aCas)) {
+                values.computeIfAbsent(aCas, k -> new ConcurrentHashMap<>()).put(aKey, adopted);
+                return adopted;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the value kept for the given CAS and key without checking if it is current.
+     *
+     * @return the value or {@code null} if there is none.
+     */
+    public T peek(CAS aCas, Object aKey)
+    {
+        Map<Object, T> local = values.get(aCas);
+        return local != null ? local.get(aKey) : null;
+    }
+
+    /**
+     * Keep a value computed for the given CAS. If the CAS has not been changed since it has been
+     * linked, the value is also published for its version.
+     */
+    public void put(CAS aCas, Object aKey, T aValue)
+    {
+        values.computeIfAbsent(aCas, k -> new ConcurrentHashMap<>()).put(aKey, aValue);
+
+        Object version = getVersion(aCas);
+        if (version != null) {
+            publish(version, aCas, aKey, aValue);
+        }
+    }
+
+    /**
+     * Drop the values kept for the given CAS, e.g. because it has been changed in a way which
+     * cannot be detected. The CAS no longer shares any data with its version until it is linked
+     * again.
+     */
+    public void remove(CAS aCas)
+    {
+        values.remove(aCas);
+        LINKS.remove(aCas);
+    }
+
+    /**
+     * Link a CAS to the stored version it corresponds to. This must be called by the repository
+     * when it hands out a CAS created from a version and after it has saved a CAS as a new
+     * version. The current values kept for the CAS are published for the version.
+     *
+     * @param aCas
+     *            the CAS.
+     * @param aVersion
+     *            an object identifying the version. Values are published as long as this object
+     *            is reachable. If this is {@code null}, the CAS is not linked to any version.
+     */
+    public static void link(CAS aCas, Object aVersion)
+    {
+        if (aVersion == null || INSTANCES.isEmpty()) {
+            // Without any derived data, there is nothing to share
+            LINKS.remove(aCas);
+            return;
+        }
+
+        LINKS.put(aCas, new Link(stamp(aCas), aVersion));
+
+        for (CasDerivedData<?> data : INSTANCES) {
+            data.publishAll(aCas, aVersion);
+        }
+    }
+
+    private void publishAll(CAS aCas, Object aVersion)
+    {
+        Map<Object, T> local = values.get(aCas);
+        if (local == null) {
+            return;
+        }
+
+        for (Map.Entry<Object, T> e : local.entrySet()) {
+            if (current.test(e.getValue(), aCas)) {
+                publish(aVersion, aCas, e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void publish(Object aVersion, CAS aCas, Object aKey, T aValue)
+    {
+        Map<Object, T> shared = published.computeIfAbsent(aVersion,
+                k -> new ConcurrentHashMap<>());
+        if (!shared.containsKey(aKey)) {
+            shared.put(aKey, copy.apply(aValue, aCas));
+        }
+    }
+
+    /**
+     * Record the state of the given CAS, so it can later be checked whether feature structures
+     * have been created, removed from the indexes or added back to them in the meantime. The CAS
+     * is given a change marker if it does not have one yet. This is meant for data which is only
+     * kept per CAS and which does not maintain itself when the CAS is changed.
+     *
+     * @return the state of the CAS.
+     */
+    public static Stamp stamp(CAS aCas)
+    {
+        CASImpl cas = ((CASImpl) aCas).getBaseCAS();
+        Marker marker = cas.getCurrentMark();
+        if (marker == null) {
+            marker = cas.createMarker();
+        }
+        return new Stamp(aCas, marker);
+    }
+
+    /**
+     * @return the version of the CAS if it has not been changed since it has been linked,
+     *         otherwise {@code null}.
+     */
+    private static Object getVersion(CAS aCas)
+    {
+        Link link = LINKS.get(aCas);
+        return link != null && link.stamp.isCurrent(aCas) ? link.version : null;
+    }
+
+    private static final class Link
+    {
+        private final Stamp stamp;
+        private final Object version;
+
+        public Link(Stamp aStamp, Object aVersion)
+        {
+            stamp = aStamp;
+            version = aVersion;
+        }
+    }
+
+    /**
+     * State of a CAS as recorded by {@link CasDerivedData#stamp}. The change tracking of UIMA
+     * records each feature structure only once, so removing a feature structure from the indexes
+     * and adding it back is only noticed the first time this happens to a feature structure which
+     * existed before the marker was created.
+     */
+    public static final class Stamp
+    {
+        // The CAS holds on to its marker, so it must not be held here
+        private final WeakReference<Marker> marker;
+        private final int heapSize;
+        private final int added;
+        private final int deleted;
+        private final int reindexed;
+
+        private Stamp(CAS aCas, Marker aMarker)
+        {
+            marker = new WeakReference<>(aMarker);
+            heapSize = getHeapSize(aCas);
+            added = getIndexRepository(aCas).getAddedFSs().length;
+            deleted = getIndexRepository(aCas).getDeletedFSs().length;
+            reindexed = getIndexRepository(aCas).getReindexedFSs().length;
+        }
+
+        /**
+         * @return whether the given CAS has not been changed since the stamp has been taken.
+         */
+        public boolean isCurrent(CAS aCas)
+        {
+            Marker current = ((CASImpl) aCas).getBaseCAS().getCurrentMark();
+            return current != null && current == marker.get() && current.isValid()
+                    && heapSize == getHeapSize(aCas)
+                    && added == getIndexRepository(aCas).getAddedFSs().length
+                    && deleted == getIndexRepository(aCas).getDeletedFSs().length
+                    && reindexed == getIndexRepository(aCas).getReindexedFSs().length;
+        }
+
+        private static int getHeapSize(CAS aCas)
+        {
+            return ((CASImpl) aCas).getHeap().getNextId();
+        }
+
+        private static FSIndexRepositoryImpl getIndexRepository(CAS aCas)
+        {
+            return (FSIndexRepositoryImpl) aCas.getIndexRepository();
+        }
+    }
+}
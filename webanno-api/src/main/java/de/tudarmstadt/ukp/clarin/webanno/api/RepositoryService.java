@@ -404,6 +404,20 @@ public interface RepositoryService
      */
     File getCasFile(SourceDocument document, String user);
 
+    /**
+     * Make sure the file returned by {@link #getCasFile(SourceDocument, String)} contains all
+     * saved changes of the CAS. Call this before copying the file.
+     *
+     * @param document
+     *            the source document.
+     * @param user
+     *            the username.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void flushCas(SourceDocument document, String user)
+        throws IOException;
+
     /**
      * Get the annotation document.
      *
@@ -665,6 +679,16 @@ public interface RepositoryService
 
     File getMetaInfFolder(Project project);
 
+    /**
+     * Get the folder in which the type systems shared by the serialized CASes of the project are
+     * stored.
+     *
+     * @param project
+     *            the project.
+     * @return the type system folder.
+     */
+    File getTypeSystemFolder(Project project);
+
     /**
      * Save some properties file associated to a project, such as meta-data.properties
      *
@@ -1055,6 +1079,15 @@ public interface RepositoryService
     void writeCas(Mode mode, SourceDocument document, User user, JCas jCas)
         throws IOException;
 
+    /**
+     * Write the CASes of the given user which have been saved but not yet been written to the
+     * repository. This only has an effect if CAS write-behind is enabled.
+     *
+     * @param username
+     *            the username.
+     */
+    void flushPendingCasWrites(String username);
+
     /**
      * Get the name of the database driver in use.
      *
@@ -1070,12 +1103,38 @@ public interface RepositoryService
      */
     int isCrowdSourceEnabled();
 
-    void upgradeCas(CAS aCurCas, AnnotationDocument annotationDocument)
+    /**
+     * Upgrade the CAS to the current type system of the project. Nothing is done if the CAS
+     * already uses the current type system.
+     *
+     * @param aCurCas
+     *            the CAS.
+     * @param annotationDocument
+     *            the annotation document the CAS belongs to.
+     * @return if the CAS was upgraded and needs to be written back.
+     * @throws UIMAException
+     *             if the CAS could not be upgraded.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    boolean upgradeCas(CAS aCurCas, AnnotationDocument annotationDocument)
         throws UIMAException, IOException;
-    
-    void upgradeCorrectionCas(CAS aCurCas, SourceDocument document)
+
+    /**
+     * Upgrade the correction CAS to the current type system of the project.
+     *
+     * @see #upgradeCas(CAS, AnnotationDocument)
+     */
+    boolean upgradeCorrectionCas(CAS aCurCas, SourceDocument document)
             throws UIMAException, IOException;
 
+    /**
+     * @return the number of CASes which were actually upgraded by
+     *         {@link #upgradeCas(CAS, AnnotationDocument)} or
+     *         {@link #upgradeCorrectionCas(CAS, SourceDocument)} since startup.
+     */
+    long getCasUpgradeCount();
+
 
     /**
      * List project accessible by current user
@@ -20,7 +20,6 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -35,11 +34,10 @@ import org.apache.wicket.model.IModel;
 import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.springframework.dao.DataRetrievalFailureException;
 
-import com.fasterxml.jackson.core.JsonGenerator;
-
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ColoringStrategy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RenderContext;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
@@ -137,7 +135,8 @@ public class BratAnnotationDocumentVisualizer
         response.setText(jCas.getDocumentText());
 
         BratAnnotatorModel bratAnnotatorModel = new BratAnnotatorModel();
-        SpanAdapter.renderTokenAndSentence(jCas, response, bratAnnotatorModel);
+        RenderContext context = new RenderContext(jCas, bratAnnotatorModel);
+        SpanAdapter.renderTokenAndSentence(context, response);
 
         Map<String[], Queue<String>> colorQueues = new HashMap<>();
         for (AnnotationLayer layer : bratAnnotatorModel.getAnnotationLayers()) {
@@ -157,16 +156,12 @@ public class BratAnnotationDocumentVisualizer
                     layer, bratAnnotatorModel.getPreferences(), colorQueues);
 
             getAdapter(annotationService, layer)
-                    .render(jCas, features, response, bratAnnotatorModel, coloringStrategy);
+                    .render(context, features, response, coloringStrategy);
         }
 
         // Serialize BRAT object model to JSON
         try {
-            StringWriter out = new StringWriter();
-            JsonGenerator jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper()
-                    .getJsonFactory().createJsonGenerator(out);
-            jsonGenerator.writeObject(response);
-            docData = out.toString();
+            docData = JSONUtil.toJsonString(response);
         }
         catch (IOException e) {
             error(ExceptionUtils.getRootCauseMessage(e));
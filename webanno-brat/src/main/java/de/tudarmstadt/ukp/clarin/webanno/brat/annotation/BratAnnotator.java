@@ -20,8 +20,9 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.util.Map;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,9 +44,9 @@ import org.apache.wicket.model.IModel;
 import org.apache.wicket.request.IRequestParameters;
 import org.apache.wicket.spring.injection.annot.SpringBean;
 
-import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.googlecode.wicket.jquery.ui.resource.JQueryUIResourceReference;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
@@ -113,6 +114,9 @@ public class BratAnnotator
     private String collection = "";
     AnnotationDetailEditorPanel editor;
 
+    // What the client currently shows, so that only changes need to be sent after an edit
+    private RenderedDocument renderedDocument = new RenderedDocument();
+
     /**
      * Data models for {@link BratAnnotator}
      *
@@ -356,10 +360,14 @@ public class BratAnnotator
                     }
                     else if (action.equals(GetDocumentResponse.COMMAND)) {
                         if (getModelObject().getProject() != null) {
-                            result = controller
-                                    .getDocumentResponse(getModelObject(), 0, jCas, true);
+                            GetDocumentResponse response = controller.getDocumentResponse(
+                                    getModelObject(), 0, jCas, true);
+                            renderedDocument.set(
+                                    JSONUtil.getJsonConverter().getObjectMapper(), response);
+                            result = response;
                         }
                         else {
+                            renderedDocument.clear();
                             result = new GetDocumentResponse();
                         }
                     }
@@ -380,12 +388,11 @@ public class BratAnnotator
                     LOG.warn("AJAX-RPC: Action [" + action + "] produced no result!");
                 }
                 else {
-                    String json = toJson(result);
                     // Since we cannot pass the JSON directly to Brat, we attach it to the HTML
                     // element into which BRAT renders the SVG. In our modified ajax.js, we pick it
                     // up from there and then pass it on to BRAT to do the rendering.
-                    aTarget.prependJavaScript("Wicket.$('" + vis.getMarkupId() + "').temp = "
-                            + json + ";");
+                    aTarget.prependJavaScript(toScript("Wicket.$('" + vis.getMarkupId()
+                            + "').temp = ", result, ";"));
                 }
                 aTarget.addChildren(getPage(), FeedbackPanel.class);
                 if (getModelObject().getSelection().getAnnotation().isNotSet()) {
@@ -489,25 +496,57 @@ public class BratAnnotator
         aResponse.render(OnDomReadyHeaderItem.forScript(script.toString()));
     }
 
-    private String bratInitCommand()
+    private CharSequence bratInitCommand()
     {
         GetCollectionInformationResponse response = new GetCollectionInformationResponse();
         response.setEntityTypes(BratAjaxCasController.buildEntityTypes(getModelObject()
                 .getAnnotationLayers(), annotationService));
-        String json = toJson(response);
-        return "Wicket.$('" + vis.getMarkupId() + "').dispatcher.post('collectionLoaded', [" + json
-                + "]);";
+        return dispatcherCommand("collectionLoaded", response);
     }
 
-    public String bratRenderCommand(JCas aJCas)
+    public CharSequence bratRenderCommand(JCas aJCas)
     {
         LOG.info("BEGIN bratRenderCommand");
         GetDocumentResponse response = new GetDocumentResponse();
         BratAjaxCasController.render(response, getModelObject(), aJCas, annotationService);
-        String json = toJson(response);
+        CharSequence command = bratRenderCommand(response);
         LOG.info("END bratRenderCommand");
-        return "Wicket.$('" + vis.getMarkupId() + "').dispatcher.post('renderData', [" + json
-                + "]);";
+        return command;
+    }
+
+    /**
+     * Send only the changes since the last rendering if the display window did not change and
+     * the complete response otherwise.
+     */
+    private CharSequence bratRenderCommand(GetDocumentResponse aResponse)
+    {
+        try {
+            return renderCommand(vis.getMarkupId(), renderedDocument,
+                    JSONUtil.getJsonConverter().getObjectMapper(), aResponse);
+        }
+        catch (IOException e) {
+            renderedDocument.clear();
+            error("Unable to produce JSON response " + ":" + ExceptionUtils.getRootCauseMessage(e));
+            return "";
+        }
+    }
+
+    /**
+     * Build the script rendering the given response. The response or the patch is written
+     * directly into the script without building a JSON tree or string first.
+     */
+    static CharSequence renderCommand(String aMarkupId, RenderedDocument aRenderedDocument,
+            ObjectMapper aMapper, GetDocumentResponse aResponse)
+        throws IOException
+    {
+        Map<String, Object> patch = aRenderedDocument.diff(aMapper, aResponse);
+        String prefix = "Wicket.$('" + aMarkupId + "').dispatcher.post('"
+                + (patch != null ? "renderDataPatch" : "renderData") + "', [";
+        StringBuilderWriter out = new StringBuilderWriter();
+        out.append(prefix);
+        JSONUtil.writeJson(aMapper, patch != null ? patch : aResponse, out);
+        out.append("]);");
+        return out.getBuilder();
     }
 
     /**
@@ -600,10 +639,8 @@ public class BratAnnotator
         }
         BratAjaxCasController.render(response, getModelObject(), aJCas, annotationService);
         
-        String json = toJson(response);
         LOG.info("auto-forward annotation");
-        aTarget.appendJavaScript("Wicket.$('" + vis.getMarkupId()
-                + "').dispatcher.post('renderData', [" + json + "]);");
+        aTarget.appendJavaScript(bratRenderCommand(response));
     }
 
     /**
@@ -647,19 +684,29 @@ public class BratAnnotator
     {
 
     }
-    private String toJson(Object result)
+    private CharSequence dispatcherCommand(String aEvent, Object aData)
+    {
+        return toScript("Wicket.$('" + vis.getMarkupId() + "').dispatcher.post('" + aEvent
+                + "', [", aData, "]);");
+    }
+
+    /**
+     * Build a script containing the JSON representation of the given object. The JSON is written
+     * directly into the script buffer instead of being built as a separate string first.
+     */
+    private CharSequence toScript(String aPrefix, Object aData, String aSuffix)
     {
-        StringWriter out = new StringWriter();
-        JsonGenerator jsonGenerator = null;
+        StringBuilderWriter out = new StringBuilderWriter();
+        out.append(aPrefix);
         try {
-            jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper().getJsonFactory()
-                    .createJsonGenerator(out);
-            jsonGenerator.writeObject(result);
+            JSONUtil.writeJson(aData, out);
         }
         catch (IOException e) {
+            out.getBuilder().setLength(aPrefix.length());
             error("Unable to produce JSON response " + ":" + ExceptionUtils.getRootCauseMessage(e));
         }
-        return out.toString();
+        out.append(aSuffix);
+        return out.getBuilder();
     }
 
     private JCas getCas(BratAnnotatorModel aBratAnnotatorModel)
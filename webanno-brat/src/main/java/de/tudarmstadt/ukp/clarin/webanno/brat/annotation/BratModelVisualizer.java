@@ -18,13 +18,10 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
 
 import java.io.IOException;
-import java.io.StringWriter;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.wicket.model.IModel;
 
-import com.fasterxml.jackson.core.JsonGenerator;
-
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
 import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
 
@@ -87,11 +84,7 @@ public class BratModelVisualizer
 
         // Serialize BRAT object model to JSON
 		try {
-			StringWriter out = new StringWriter();
-            JsonGenerator jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper()
-                    .getJsonFactory().createJsonGenerator(out);
-	        jsonGenerator.writeObject(response);
-			docData = out.toString();
+			docData = JSONUtil.toJsonString(response);
 		}
 		catch (IOException e) {
 			error(ExceptionUtils.getRootCauseMessage(e));
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Relation;
+import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
+
+/**
+ * Remembers the {@link GetDocumentResponse} last sent to the brat client in order to send only
+ * the changes on the next rendering. Entities and relations are identified by their VID. Only
+ * hashes of their JSON representation are kept, not the response itself. The hashes are computed
+ * while writing the JSON, so no JSON tree or string is built for them.
+ * <p>
+ * A patch contains the added and changed entities and relations in full, the VIDs of the removed
+ * ones and all comments. It is applied by the {@code renderDataPatch} event of the visualizer.
+ * A patch is only possible if the text, tokens and sentences did not change, i.e. as long as the
+ * display window stays the same.
+ */
+public class RenderedDocument
+    implements Serializable
+{
+    private static final long serialVersionUID = -4937201868823410362L;
+
+    private static final String ENTITIES = "entities";
+    private static final String RELATIONS = "relations";
+    private static final String COMMENTS = "comments";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Mappers writing everything except for the annotations, derived from the mappers used
+    private static final Map<ObjectMapper, ObjectMapper> BASE_MAPPERS = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private boolean rendered;
+    private long baseHash;
+    private Map<String, Long> entities = new HashMap<>();
+    private Map<String, Long> relations = new HashMap<>();
+
+    /**
+     * Record a complete response sent to the client.
+     *
+     * @param aMapper
+     *            the mapper used to send the response.
+     * @param aDocument
+     *            the response.
+     */
+    public void set(ObjectMapper aMapper, GetDocumentResponse aDocument)
+        throws IOException
+    {
+        set(aMapper, aDocument, hashBase(aMapper, aDocument));
+    }
+
+    private void set(ObjectMapper aMapper, GetDocumentResponse aDocument, long aBaseHash)
+        throws IOException
+    {
+        rendered = false;
+        baseHash = aBaseHash;
+        entities = hashItems(aMapper, aDocument.getEntities());
+        relations = hashItems(aMapper, aDocument.getRelations());
+        rendered = true;
+    }
+
+    /**
+     * Forget the last response, e.g. because the client discarded it.
+     */
+    public void clear()
+    {
+        rendered = false;
+        entities = new HashMap<>();
+        relations = new HashMap<>();
+    }
+
+    /**
+     * Compute the changes between the last response and the given one, then record the given
+     * response as sent to the client.
+     *
+     * @param aMapper
+     *            the mapper used to send the response or the patch.
+     * @param aDocument
+     *            the response.
+     * @return the patch or {@code null} if no patch is possible and the complete response must
+     *         be sent.
+     */
+    public Map<String, Object> diff(ObjectMapper aMapper, GetDocumentResponse aDocument)
+        throws IOException
+    {
+        long newBaseHash = hashBase(aMapper, aDocument);
+        boolean patchable = rendered && baseHash == newBaseHash;
+
+        Map<String, Long> oldEntities = entities;
+        Map<String, Long> oldRelations = relations;
+        set(aMapper, aDocument, newBaseHash);
+
+        if (!patchable) {
+            return null;
+        }
+
+        Map<String, Object> patch = new LinkedHashMap<>();
+        diffItems(patch, ENTITIES, oldEntities, entities, aDocument.getEntities());
+        diffItems(patch, RELATIONS, oldRelations, relations, aDocument.getRelations());
+        patch.put(COMMENTS, aDocument.getComments());
+        return patch;
+    }
+
+    private static void diffItems(Map<String, Object> aPatch, String aField,
+            Map<String, Long> aOld, Map<String, Long> aNew, List<?> aItems)
+    {
+        List<Object> changed = new ArrayList<>();
+        for (Object item : aItems) {
+            String vid = getVid(item);
+            if (!aNew.get(vid).equals(aOld.get(vid))) {
+                changed.add(item);
+            }
+        }
+        aPatch.put(aField, changed);
+
+        List<String> removed = new ArrayList<>();
+        for (String vid : aOld.keySet()) {
+            if (!aNew.containsKey(vid)) {
+                removed.add(vid);
+            }
+        }
+        aPatch.put("removed_" + aField, removed);
+    }
+
+    /**
+     * Hash everything except for the annotations - in particular the text, tokens and sentences.
+     */
+    private static long hashBase(ObjectMapper aMapper, GetDocumentResponse aDocument)
+        throws IOException
+    {
+        ObjectMapper mapper = BASE_MAPPERS.computeIfAbsent(aMapper,
+                key -> key.copy().addMixIn(GetDocumentResponse.class, BaseOnly.class));
+        HashingWriter out = new HashingWriter();
+        mapper.writeValue(out, aDocument);
+        return out.hash;
+    }
+
+    private static Map<String, Long> hashItems(ObjectMapper aMapper, List<?> aItems)
+        throws IOException
+    {
+        Map<String, Long> hashes = new HashMap<>();
+        HashingWriter out = new HashingWriter();
+        try (JsonGenerator jg = aMapper.getFactory().createGenerator(out)) {
+            jg.setRootValueSeparator(null);
+            for (Object item : aItems) {
+                out.hash = FNV_OFFSET;
+                aMapper.writeValue(jg, item);
+                jg.flush();
+                hashes.put(getVid(item), out.hash);
+            }
+        }
+        return hashes;
+    }
+
+    private static String getVid(Object aItem)
+    {
+        if (aItem instanceof Entity) {
+            return ((Entity) aItem).getVid().toString();
+        }
+        else {
+            return ((Relation) aItem).getVid().toString();
+        }
+    }
+
+    @JsonIgnoreProperties({ ENTITIES, RELATIONS, COMMENTS })
+    private abstract static class BaseOnly
+    {
+        // Only carries the annotation
+    }
+
+    /**
+     * Computes a 64 bit FNV-1a hash of the characters written - {@link String#hashCode()} is too
+     * prone to collisions here.
+     */
+    private static final class HashingWriter
+        extends Writer
+    {
+        private long hash = FNV_OFFSET;
+
+        @Override
+        public void write(char[] aBuffer, int aOffset, int aLength)
+        {
+            long h = hash;
+            for (int i = aOffset; i < aOffset + aLength; i++) {
+                h ^= aBuffer[i];
+                h *= FNV_PRIME;
+            }
+            hash = h;
+        }
+
+        @Override
+        public void write(String aString, int aOffset, int aLength)
+        {
+            long h = hash;
+            for (int i = aOffset; i < aOffset + aLength; i++) {
+                h ^= aString.charAt(i);
+                h *= FNV_PRIME;
+            }
+            hash = h;
+        }
+
+        @Override
+        public void write(int aChar)
+        {
+            hash = (hash ^ (char) aChar) * FNV_PRIME;
+        }
+
+        @Override
+        public void flush()
+        {
+            // Nothing to do
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to do
+        }
+    }
+}
@@ -36,6 +36,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -62,6 +63,7 @@ import org.apache.wicket.ajax.form.AjaxFormComponentUpdatingBehavior;
 import org.apache.wicket.ajax.form.AjaxFormValidatingBehavior;
 import org.apache.wicket.ajax.markup.html.form.AjaxButton;
 import org.apache.wicket.behavior.AttributeAppender;
+import org.apache.wicket.behavior.Behavior;
 import org.apache.wicket.extensions.ajax.markup.html.modal.ModalWindow;
 import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
@@ -84,10 +86,12 @@ import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.codehaus.plexus.util.StringUtils;
 
 import com.googlecode.wicket.jquery.core.Options;
+import com.googlecode.wicket.jquery.core.renderer.TextRenderer;
 import com.googlecode.wicket.jquery.core.template.IJQueryTemplate;
 import com.googlecode.wicket.jquery.ui.widget.tooltip.TooltipBehavior;
 import com.googlecode.wicket.kendo.ui.form.NumberTextField;
 import com.googlecode.wicket.kendo.ui.form.TextField;
+import com.googlecode.wicket.kendo.ui.form.autocomplete.AbstractAutoCompleteTextField;
 import com.googlecode.wicket.kendo.ui.form.combobox.ComboBox;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
@@ -99,6 +103,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ArcAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ChainAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RelationIndex;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil;
@@ -133,6 +138,17 @@ public class AnnotationDetailEditorPanel
     private static final long serialVersionUID = 7324241992353693848L;
     private static final Log LOG = LogFactory.getLog(AnnotationDetailEditorPanel.class);
 
+    /**
+     * Tagsets with more tags are not sent to the browser as a whole. Instead, matching tags are
+     * looked up as the user types.
+     */
+    private static final int MAX_COMBOBOX_TAGS = 1000;
+
+    /**
+     * Maximum number of tags offered while typing.
+     */
+    private static final int MAX_COMPLETIONS = 100;
+
     @SpringBean(name = "documentRepository")
     private RepositoryService repository;
 
@@ -639,6 +655,7 @@ public class AnnotationDetailEditorPanel
         if (adapter instanceof SpanAdapter) {
             for (AnnotationFS attachedFs : getAttachedRels(jCas, fs, layer)) {
                 jCas.getCas().removeFsFromIndexes(attachedFs);
+                RelationIndex.removed(jCas, attachedFs);
                 info("The attached annotation for relation type [" + annotationService
                         .getLayer(attachedFs.getType().getName(), bModel.getProject()).getUiName()
                         + "] is deleted");
@@ -1360,9 +1377,9 @@ public class AnnotationDetailEditorPanel
                 else {
 //                    indicator.setRulesExist(false);
                     // Earlier behavior,
-                    tagset = annotationService.listTags(aModel.feature.getTagset());
+                    tagset = annotationService.listCachedTags(aModel.feature.getTagset());
                 }
-                field = new StyledComboBox<Tag>("value", tagset);
+                field = newTagField("value", null, aModel.feature.getTagset(), tagset);
                 
                 field.setOutputMarkupId(true);
 
@@ -1442,7 +1459,7 @@ public class AnnotationDetailEditorPanel
                         + aModel.feature.getName() + "]");
             }
 
-            List<Tag> valuesFromTagset = annotationService.listTags(aModel.feature.getTagset());
+            List<Tag> valuesFromTagset = annotationService.listCachedTags(aModel.feature.getTagset());
 
             try {
                 JCas jCas = getCas(model);
@@ -1604,26 +1621,27 @@ public class AnnotationDetailEditorPanel
                 else {
 //                    indicator.setRulesExist(false); //No constraint rules.
                     // add tagsets only, earlier behavior
-                    tagset = annotationService.listTags(aModel.feature.getTagset());
+                    tagset = annotationService.listCachedTags(aModel.feature.getTagset());
                 }
 
-                newRole = new StyledComboBox<Tag>("newRole", Model.of(""), tagset) {
+                newRole = newTagField("newRole", Model.of(""), aModel.feature.getTagset(), tagset);
+                newRole.add(new Behavior()
+                {
                     private static final long serialVersionUID = 1L;
-                    
+
                     @Override
-                    protected void onConfigure()
+                    public void onConfigure(Component aComponent)
                     {
-                        super.onConfigure();
                         if (bModel.isSlotArmed() && aModel.feature.equals(bModel.getArmedFeature())) {
                             List<LinkWithRoleModel> links = (List<LinkWithRoleModel>) LinkFeatureEditor.this
                                     .getModelObject().value;
-                            setModelObject(links.get(bModel.getArmedSlot()).role);
+                            aComponent.setDefaultModelObject(links.get(bModel.getArmedSlot()).role);
                         }
                         else {
-                            setModelObject("");
+                            aComponent.setDefaultModelObject("");
                         }
                     }
-                };
+                });
                 content.add(newRole);
                 
                 isDrop = true;
@@ -1827,7 +1845,7 @@ public class AnnotationDetailEditorPanel
             String restrictionFeaturePath = aModel.feature.getName() + "."
                     + aModel.feature.getLinkTypeRoleFeatureName();
 
-            List<Tag> valuesFromTagset = annotationService.listTags(aModel.feature.getTagset());
+            List<Tag> valuesFromTagset = annotationService.listCachedTags(aModel.feature.getTagset());
 
             try {
                 JCas jCas = getCas(model);
@@ -2022,8 +2040,9 @@ public class AnnotationDetailEditorPanel
     public void addRemainingTags(List<Tag> tagset, List<Tag> valuesFromTagset)
     {
         // adding the remaining part of tagset.
+        Set<Tag> added = new HashSet<Tag>(tagset);
         for (Tag remainingTag : valuesFromTagset) {
-            if (!tagset.contains(remainingTag)) {
+            if (added.add(remainingTag)) {
                 tagset.add(remainingTag);
             }
         }
@@ -2053,12 +2072,18 @@ public class AnnotationDetailEditorPanel
                 if (value.getValue().equalsIgnoreCase(tag.getName())) {
                     //Matching values found in tagset and shown in dropdown
                     rulesIndicator.rulesApplied();
-                    // HACK BEGIN
-                    tag.setReordered(true);
-                    // HACK END
                     //Avoid duplicate entries
                     if(!returnList.contains(tag)){ 
-                        returnList.add(tag); 
+                        // The tags from the cache are shared, so mark a copy
+                        Tag reordered = new Tag();
+                        reordered.setId(tag.getId());
+                        reordered.setName(tag.getName());
+                        reordered.setDescription(tag.getDescription());
+                        reordered.setTagSet(tag.getTagSet());
+                        // HACK BEGIN
+                        reordered.setReordered(true);
+                        // HACK END
+                        returnList.add(reordered); 
                     }
                 }
             }
@@ -2238,7 +2263,7 @@ public class AnnotationDetailEditorPanel
 		TagSet tagSet = f.getTagset();
 		Map<Character, String> tagNames = new LinkedHashMap<>();
 		Map<String, String> bindTag2Key = new LinkedHashMap<>();
-		for (Tag tag : annotationService.listTags(tagSet)) {
+		for (Tag tag : annotationService.listCachedTags(tagSet)) {
 			if (tagNames.containsKey(tag.getName().toLowerCase().charAt(0))) {
 				String oldBinding = tagNames.get(tag.getName().toLowerCase().charAt(0));
 				String newBinding = oldBinding + tag.getName().toLowerCase().charAt(0);
@@ -2343,6 +2368,7 @@ public class AnnotationDetailEditorPanel
     private  Set<AnnotationFS> getAttachedRels(JCas aJCas, AnnotationFS aFs, AnnotationLayer aLayer) throws UIMAException, ClassNotFoundException, IOException{
         
         Set<AnnotationFS> toBeDeleted = new HashSet<AnnotationFS>();
+        RelationIndex relationIndex = RelationIndex.get(aJCas);
         for (AnnotationLayer relationLayer : annotationService
                 .listAttachedRelationLayers(aLayer)) {
             ArcAdapter relationAdapter = (ArcAdapter) getAdapter(annotationService,
@@ -2365,7 +2391,32 @@ public class AnnotationDetailEditorPanel
                         relationAdapter.getAttachFeatureName());
             }
             
-            for (AnnotationFS relationFS : CasUtil.select(aJCas.getCas(), relationType)) {
+            // Relations point to the span itself or, if there is an attach feature, to the span
+            // it is attached to, which has the same offsets. Only these need to be looked at.
+            Set<Integer> candidates = new LinkedHashSet<>();
+            if (relationSourceAttachFeature == null || relationTargetAttachFeature == null) {
+                addAll(candidates, relationIndex.getAttached(aFs));
+            }
+            if (relationSourceAttachFeature != null) {
+                for (AnnotationFS span : selectAt(aJCas.getCas(), sourceFeature.getRange(),
+                        aFs.getBegin(), aFs.getEnd())) {
+                    addAll(candidates, relationIndex.getAttached(span));
+                }
+            }
+            if (relationTargetAttachFeature != null
+                    && !targetFeature.getRange().equals(sourceFeature.getRange())) {
+                for (AnnotationFS span : selectAt(aJCas.getCas(), targetFeature.getRange(),
+                        aFs.getBegin(), aFs.getEnd())) {
+                    addAll(candidates, relationIndex.getAttached(span));
+                }
+            }
+
+            for (int candidate : candidates) {
+                AnnotationFS relationFS = selectByAddr(aJCas, candidate);
+                if (!aJCas.getTypeSystem().subsumes(relationType, relationFS.getType())) {
+                    continue;
+                }
+
                 // Here we get the annotations that the relation is pointing to in the UI
                 FeatureStructure sourceFS;
                 if (relationSourceAttachFeature != null) {
@@ -2395,6 +2446,13 @@ public class AnnotationDetailEditorPanel
         return toBeDeleted;
         
     }
+
+    private static void addAll(Set<Integer> aSet, int[] aValues)
+    {
+        for (int value : aValues) {
+            aSet.add(value);
+        }
+    }
     
     
     public AnnotationFeatureForm getAnnotationFeatureForm()
@@ -2443,7 +2501,7 @@ public class AnnotationDetailEditorPanel
 		TagSet tagSet = annotationService.listAnnotationFeature(bModel.getSelectedAnnotationLayer()).get(0).getTagset();
 		
 		// there should be at least one tag in the tagset
-		if(annotationService.listTags(tagSet).size()==0){
+		if(annotationService.listCachedTags(tagSet).size()==0){
 			return false;
 		}
 		return true;
@@ -2477,34 +2535,107 @@ public class AnnotationDetailEditorPanel
         @Override
         protected IJQueryTemplate newTemplate()
         {
-            return new IJQueryTemplate()
-            {
-                private static final long serialVersionUID = 1L;
-                /**
-                 * Marks the reordered entries in bold.
-                 * Same as text feature editor.
-                 */
-                @Override
-                public String getText()
-                {
-                    // Some docs on how the templates work in Kendo, in case we need
-                    // more fancy dropdowns
-                    // http://docs.telerik.com/kendo-ui/framework/templates/overview
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("# if (data.reordered == 'true') { #");
-                    sb.append("<div title=\"#: data.description #\"><b>#: data.name #</b></div>\n");
-                    sb.append("# } else { #");
-                    sb.append("<div title=\"#: data.description #\">#: data.name #</div>\n");
-                    sb.append("# } #");
-                    return sb.toString();
-                }
+            return new TagTemplate();
+        }
+    }
 
-                @Override
-                public List<String> getTextProperties()
-                {
-                    return Arrays.asList("name", "description", "reordered");
+    /**
+     * Offers the tags of a tagset matching the input. The tags are looked up on the server as the
+     * user types, so large tagsets are never sent to the browser as a whole. Tags suggested by
+     * constraints are offered first.
+     */
+    class TagAutoCompleteField
+        extends AbstractAutoCompleteTextField<String, Tag>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final TagSet tagSet;
+        private final List<Tag> preferredTags;
+
+        public TagAutoCompleteField(String aId, IModel<String> aModel, TagSet aTagSet,
+                List<Tag> aPreferredTags)
+        {
+            super(aId, aModel, new TextRenderer<Tag>("name"));
+            tagSet = aTagSet;
+            preferredTags = aPreferredTags;
+        }
+
+        @Override
+        protected List<Tag> getChoices(String aInput)
+        {
+            String input = aInput != null ? aInput : "";
+            List<Tag> choices = new ArrayList<Tag>();
+            for (Tag tag : preferredTags) {
+                if (choices.size() < MAX_COMPLETIONS
+                        && tag.getName().regionMatches(true, 0, input, 0, input.length())) {
+                    choices.add(tag);
                 }
-            };
+            }
+            for (Tag tag : annotationService.listCachedTags(tagSet, input, 0, MAX_COMPLETIONS)) {
+                if (choices.size() < MAX_COMPLETIONS && !choices.contains(tag)) {
+                    choices.add(tag);
+                }
+            }
+            return choices;
+        }
+
+        @Override
+        protected IJQueryTemplate newTemplate()
+        {
+            return new TagTemplate();
+        }
+    }
+
+    /**
+     * Create the field for a feature with a tagset.
+     *
+     * @param aTags
+     *            the tags to offer, those suggested by constraints first.
+     */
+    private AbstractTextComponent<String> newTagField(String aId, IModel<String> aModel,
+            TagSet aTagSet, List<Tag> aTags)
+    {
+        if (aTags.size() <= MAX_COMBOBOX_TAGS) {
+            return new StyledComboBox<Tag>(aId, aModel, aTags);
+        }
+
+        List<Tag> preferredTags = new ArrayList<Tag>();
+        for (Tag tag : aTags) {
+            if (tag.getReordered()) {
+                preferredTags.add(tag);
+            }
+        }
+        return new TagAutoCompleteField(aId, aModel, aTagSet, preferredTags);
+    }
+
+    private static class TagTemplate
+        implements IJQueryTemplate
+    {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Marks the reordered entries in bold.
+         * Same as text feature editor.
+         */
+        @Override
+        public String getText()
+        {
+            // Some docs on how the templates work in Kendo, in case we need
+            // more fancy dropdowns
+            // http://docs.telerik.com/kendo-ui/framework/templates/overview
+            StringBuilder sb = new StringBuilder();
+            sb.append("# if (data.reordered == 'true') { #");
+            sb.append("<div title=\"#: data.description #\"><b>#: data.name #</b></div>\n");
+            sb.append("# } else { #");
+            sb.append("<div title=\"#: data.description #\">#: data.name #</div>\n");
+            sb.append("# } #");
+            return sb.toString();
+        }
+
+        @Override
+        public List<String> getTextProperties()
+        {
+            return Arrays.asList("name", "description", "reordered");
         }
     }
 }
\ No newline at end of file
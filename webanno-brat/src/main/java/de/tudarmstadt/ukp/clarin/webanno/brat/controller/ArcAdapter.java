@@ -20,10 +20,8 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFeature;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFeatureFS;
-import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getLastSentenceAddressInDisplayWindow;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.isSameSentence;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectByAddr;
-import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.setFeature;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.setFeatureFS;
 import static java.util.Arrays.asList;
@@ -32,14 +30,11 @@ import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.logging.Log;
@@ -53,7 +48,6 @@ import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.jcas.JCas;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
-import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Argument;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Comment;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Relation;
@@ -148,31 +142,20 @@ public class ArcAdapter
      * Add arc annotations from the CAS, which is controlled by the window size, to the brat
      * response {@link GetDocumentResponse}
      *
-     * @param aJcas
-     *            The JCAS object containing annotations
+     * @param aContext
+     *            The CAS and the display window
      * @param aResponse
      *            A brat response containing annotations in brat protocol
-     * @param aBratAnnotatorModel
-     *            Data model for brat annotations
      * @param aColoringStrategy
      *            the coloring strategy to render this layer
      */
     @Override
-    public void render(final JCas aJcas, List<AnnotationFeature> aFeatures,
-            GetDocumentResponse aResponse, BratAnnotatorModel aBratAnnotatorModel,
-            ColoringStrategy aColoringStrategy)
+    public void render(RenderContext aContext, List<AnnotationFeature> aFeatures,
+            GetDocumentResponse aResponse, ColoringStrategy aColoringStrategy)
     {
-        // The first sentence address in the display window!
-        Sentence firstSentence = selectSentenceAt(aJcas,
-                aBratAnnotatorModel.getSentenceBeginOffset(),
-                aBratAnnotatorModel.getSentenceEndOffset());
-
-        int lastAddressInPage = getLastSentenceAddressInDisplayWindow(aJcas,
-                getAddr(firstSentence), aBratAnnotatorModel.getPreferences().getWindowSize());
-
-        // the last sentence address in the display window
-        Sentence lastSentenceInPage = (Sentence) selectByAddr(aJcas, FeatureStructure.class,
-                lastAddressInPage);
+        final JCas aJcas = aContext.getJCas();
+        Sentence firstSentence = aContext.getFirstSentence();
+        Sentence lastSentenceInPage = aContext.getLastSentence();
 
         Type type = getType(aJcas.getCas(), annotationTypeName);
         Feature dependentFeature = type.getFeatureByBaseName(targetFeatureName);
@@ -184,11 +167,11 @@ public class ArcAdapter
         FeatureStructure dependentFs;
         FeatureStructure governorFs;
 
-        Map<Integer, Set<Integer>> relationLinks = getRelationLinks(aJcas, firstSentence,
-                lastSentenceInPage, type, dependentFeature, governorFeature, arcSpanFeature);
-
-        // if this is a governor for more than one dependent, avoid duplicate yield
-        List<Integer> yieldDeps = new ArrayList<>();
+        // The yields are collected while rendering and only computed afterwards, once per
+        // governor
+        RelationYield relationYield = new RelationYield(aJcas.getDocumentText());
+        List<Integer> yieldGovernors = new ArrayList<>();
+        Set<Integer> seenGovernors = new HashSet<>();
 
         for (AnnotationFS fs : selectCovered(aJcas.getCas(), type, firstSentence.getBegin(),
                 lastSentenceInPage.getEnd())) {
@@ -216,119 +199,18 @@ public class ArcAdapter
             aResponse.addRelation(new Relation(getAddr(fs), bratTypeName, argumentList,
                     bratLabelText, color));
 
-            if (relationLinks.keySet().contains(getAddr(governorFs))
-                    && !yieldDeps.contains(getAddr(governorFs))) {
-                yieldDeps.add(getAddr(governorFs));
-
-                // sort the annotations (begin, end)
-                List<Integer> sortedDepFs = new ArrayList<>(relationLinks.get(getAddr(governorFs)));
-                Collections.sort(sortedDepFs, new Comparator<Integer>()
-                {
-                    @Override
-                    public int compare(Integer arg0, Integer arg1)
-                    {
-                        return selectByAddr(aJcas, arg0).getBegin()
-                                - selectByAddr(aJcas, arg1).getBegin();
-                    }
-                });
-
-                StringBuffer cm = getYieldMessage(aJcas, sortedDepFs);
-                aResponse.addComments(new Comment(getAddr(governorFs), "Yield of relation", cm
-                        .toString()));
-            }
-        }
-    }
-/**
- * The relations yield message
- * @return
- */
-    private StringBuffer getYieldMessage(JCas aJCas, List<Integer> sortedDepFs)
-    {
-        StringBuffer cm = new StringBuffer();
-        int end = -1;
-        for (Integer depFs : sortedDepFs) {
-            if (end == -1) {
-                cm.append(selectByAddr(aJCas, depFs).getCoveredText());
-                end = selectByAddr(aJCas, depFs).getEnd();
-            }
-            // if no space between token and punct
-            else if (end==selectByAddr(aJCas, depFs).getBegin()){
-                cm.append(selectByAddr(aJCas, depFs).getCoveredText());
-                end = selectByAddr(aJCas, depFs).getEnd();
-            }
-            else if (end + 1 != selectByAddr(aJCas, depFs).getBegin()) {
-                cm.append(" ... " + selectByAddr(aJCas, depFs).getCoveredText());
-                end = selectByAddr(aJCas, depFs).getEnd();
-            }
-            else {
-                cm.append(" " + selectByAddr(aJCas, depFs).getCoveredText());
-                end = selectByAddr(aJCas, depFs).getEnd();
-            }
-
-        }
-        return cm;
-    }
+            relationYield.addLink((AnnotationFS) governorFs, (AnnotationFS) dependentFs);
 
-    /**
-     * Get relation links to display in relation yield
-     *
-     * @return
-     */
-    private Map<Integer, Set<Integer>> getRelationLinks(JCas aJcas, Sentence firstSentence,
-            Sentence lastSentenceInPage, Type type, Feature dependentFeature,
-            Feature governorFeature, Feature arcSpanFeature)
-    {
-        FeatureStructure dependentFs;
-        FeatureStructure governorFs;
-        Map<Integer, Set<Integer>> relations = new ConcurrentHashMap<>();
-
-        for (AnnotationFS fs : selectCovered(aJcas.getCas(), type, firstSentence.getBegin(),
-                lastSentenceInPage.getEnd())) {
-            if (attachFeatureName != null) {
-                dependentFs = fs.getFeatureValue(dependentFeature).getFeatureValue(arcSpanFeature);
-                governorFs = fs.getFeatureValue(governorFeature).getFeatureValue(arcSpanFeature);
-            }
-            else {
-                dependentFs = fs.getFeatureValue(dependentFeature);
-                governorFs = fs.getFeatureValue(governorFeature);
-            }
-            if (dependentFs == null || governorFs == null) {
-                log.warn("Relation [" + layer.getName() + "] with id [" + getAddr(fs)
-                        + "] has loose ends - cannot render.");
-                continue;
+            // if this is a governor for more than one dependent, avoid duplicate yield
+            int governorAddr = getAddr(governorFs);
+            if (seenGovernors.add(governorAddr)) {
+                yieldGovernors.add(governorAddr);
             }
-            Set<Integer> links = relations.get(getAddr(governorFs));
-            if (links == null) {
-                links = new ConcurrentSkipListSet<>();
-            }
-
-            links.add(getAddr(dependentFs));
-            relations.put(getAddr(governorFs), links);
-        }
-
-        // Update other subsequent links
-        for (int i = 0; i < relations.keySet().size(); i++) {
-            for (Integer fs : relations.keySet()) {
-                updateLinks(relations, fs);
-            }
-        }
-        // to start displaying the text from the governor, include it
-        for (Integer fs : relations.keySet()) {
-            relations.get(fs).add(fs);
         }
-        return relations;
-    }
 
-    private void updateLinks(Map<Integer, Set<Integer>> aRelLinks, Integer aGov)
-    {
-        for (Integer dep : aRelLinks.get(aGov)) {
-            if (aRelLinks.containsKey(dep) && !aRelLinks.get(aGov).containsAll(aRelLinks.get(dep))) {
-                aRelLinks.get(aGov).addAll(aRelLinks.get(dep));
-                updateLinks(aRelLinks, dep);
-            }
-            else {
-                continue;
-            }
+        for (int governorAddr : yieldGovernors) {
+            aResponse.addComments(new Comment(governorAddr, "Yield of relation", relationYield
+                    .getYield(governorAddr)));
         }
     }
 
@@ -455,14 +337,16 @@ public class ArcAdapter
         // END HACK - ISSUE 953 - Special treatment for ROOT in DKPro Core dependency layer
 
         aJCas.addFsToIndexes(newAnnotation);
+        RelationIndex.added(aJCas, newAnnotation);
         return newAnnotation;
     }
 
     @Override
     public void delete(JCas aJCas, VID aVid)
     {
-        FeatureStructure fs = selectByAddr(aJCas, FeatureStructure.class, aVid.getId());
+        AnnotationFS fs = selectByAddr(aJCas, AnnotationFS.class, aVid.getId());
         aJCas.removeFsFromIndexes(fs);
+        RelationIndex.removed(aJCas, fs);
     }
 
     /**
@@ -206,8 +206,11 @@ public class BratAjaxCasController
     {
         aResponse.setRtlMode(ScriptDirection.RTL.equals(aBModel.getScriptDirection()));
 
+        // The display window is the same for all layers
+        RenderContext context = new RenderContext(aJCas, aBModel);
+
         // Render invisible baseline annotations (sentence, tokens)
-        SpanAdapter.renderTokenAndSentence(aJCas, aResponse, aBModel);
+        SpanAdapter.renderTokenAndSentence(context, aResponse);
 
         // Render visible (custom) layers
         Map<String[], Queue<String>> colorQueues = new HashMap<>();
@@ -233,7 +236,7 @@ public class BratAjaxCasController
             }
             features.removeAll(invisibleFeatures);
             TypeAdapter adapter = getAdapter(aAnnotationService, layer);
-            adapter.render(aJCas, features, aResponse, aBModel, coloringStrategy);
+            adapter.render(context, features, aResponse, coloringStrategy);
         }
     }
 
@@ -270,23 +270,14 @@ public class BratAjaxCasUtil
      */
     public static int getFirstSentenceAddress(JCas aJcas)
     {
-        int firstSentenceAddress = -1;
-
-        for (Sentence selectedSentence : select(aJcas, Sentence.class)) {
-            firstSentenceAddress = getAddr(selectedSentence);
-            break;
-        }
-        return firstSentenceAddress;
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        return sentences.size() > 0 ? sentences.getAddress(0) : -1;
     }
 
     public static int getLastSentenceAddress(JCas aJcas)
     {
-        int lastSentenceAddress = -1;
-
-        for (Sentence selectedSentence : select(aJcas, Sentence.class)) {
-            lastSentenceAddress = getAddr(selectedSentence);
-        }
-        return lastSentenceAddress;
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        return sentences.size() > 0 ? sentences.getAddress(sentences.size() - 1) : -1;
     }
 
     /**
@@ -481,6 +472,17 @@ public class BratAjaxCasUtil
     public static int getNextPageFirstSentenceAddress(JCas aJcas, int aCurrenSentenceBeginAddress,
             int aWindowSize)
     {
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        int position = sentences.indexOfAddress(aCurrenSentenceBeginAddress);
+        if (position >= 0) {
+            // Start of the next page or of the last page if we are already there
+            int next = (position / aWindowSize + 1) * aWindowSize;
+            if (next >= sentences.size()) {
+                next = (sentences.size() - 1) / aWindowSize * aWindowSize;
+            }
+            return sentences.getAddress(next);
+        }
+
         List<Integer> beginningAddresses = getDisplayWindowBeginningSentenceAddresses(aJcas,
                 aWindowSize);
 
@@ -558,7 +560,7 @@ public class BratAjaxCasUtil
      */
     public static int getNumberOfPages(JCas aJcas)
     {
-        return select(aJcas, Sentence.class).size();
+        return SentenceIndex.get(aJcas).size();
     }
 
     /**
@@ -573,13 +575,10 @@ public class BratAjaxCasUtil
     public static List<Integer> getDisplayWindowBeginningSentenceAddresses(JCas aJcas,
             int aWindowSize)
     {
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
         List<Integer> beginningAddresses = new ArrayList<Integer>();
-        int j = 0;
-        for (Sentence sentence : select(aJcas, Sentence.class)) {
-            if (j % aWindowSize == 0) {
-                beginningAddresses.add(getAddr(sentence));
-            }
-            j++;
+        for (int i = 0; i < sentences.size(); i += aWindowSize) {
+            beginningAddresses.add(sentences.getAddress(i));
         }
         return beginningAddresses;
 
@@ -598,15 +597,9 @@ public class BratAjaxCasUtil
      */
     public static int getFirstSentenceNumber(JCas aJcas, int aSentenceAddress)
     {
-        int sentenceNumber = 0;
-        for (Sentence sentence : select(aJcas, Sentence.class)) {
-            if (getAddr(sentence) == aSentenceAddress) {
-                break;
-            }
-            sentenceNumber++;
-        }
-        return sentenceNumber;
-
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        int position = sentences.indexOfAddress(aSentenceAddress);
+        return position >= 0 ? position : sentences.size();
     }
 
     /**
@@ -620,20 +613,14 @@ public class BratAjaxCasUtil
      */
     public static int getSentenceNumber(JCas aJcas, int aBeginOffset)
     {
-        int sentenceNumber = 0;
-        for (Sentence sentence : select(aJcas, Sentence.class)) {
-            if (sentence.getBegin() <= aBeginOffset && aBeginOffset <= sentence.getEnd()) {
-                sentenceNumber++;
-                break;
-            }
-            sentenceNumber++;
-        }
-        return sentenceNumber;
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        int position = sentences.indexOfOffset(aBeginOffset);
+        return position >= 0 ? position + 1 : sentences.size();
     }
 
     public static int getSentenceSize(JCas aJcas)
     {
-        return select(aJcas, Sentence.class).size();
+        return SentenceIndex.get(aJcas).size();
     }
 
     /**
@@ -647,23 +634,15 @@ public class BratAjaxCasUtil
      */
     public static int getSentenceAddress(JCas aJcas, int aSentenceNumber)
     {
-        int i = 1;
-        int address = 0;
-        if (aSentenceNumber < 1) {
+        SentenceIndex sentences = SentenceIndex.get(aJcas);
+        if (aSentenceNumber < 1 || sentences.size() == 0) {
             return 0;
         }
-        for (Sentence sentence : select(aJcas, Sentence.class)) {
-            if (i == aSentenceNumber) {
-                address = getAddr(sentence);
-                break;
-            }
-            address = getAddr(sentence);
-            i++;
-        }
-        if (aSentenceNumber > i) {
+        // One past the last sentence number still yields the last sentence
+        if (aSentenceNumber > sentences.size() + 1) {
             return 0;
         }
-        return address;
+        return sentences.getAddress(Math.min(aSentenceNumber, sentences.size()) - 1);
     }
 
     /**
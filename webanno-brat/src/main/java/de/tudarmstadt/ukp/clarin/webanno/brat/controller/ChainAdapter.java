@@ -40,7 +40,6 @@ import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.jcas.JCas;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
-import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Argument;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
@@ -49,7 +48,6 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.VID;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
-import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 
 /**
@@ -111,27 +109,22 @@ public class ChainAdapter
      * Add annotations from the CAS, which is controlled by the window size, to the brat response
      * {@link GetDocumentResponse}
      *
-     * @param aJcas
-     *            The JCAS object containing annotations
+     * @param aContext
+     *            The CAS and the display window
      * @param aResponse
      *            A brat response containing annotations in brat protocol
-     * @param aBratAnnotatorModel
-     *            Data model for brat annotations
      * @param aColoringStrategy
      *            the coloring strategy to render this layer (ignored)
      */
     @Override
-    public void render(JCas aJcas, List<AnnotationFeature> aFeatures,
-            GetDocumentResponse aResponse, BratAnnotatorModel aBratAnnotatorModel,
-            ColoringStrategy aColoringStrategy)
+    public void render(RenderContext aContext, List<AnnotationFeature> aFeatures,
+            GetDocumentResponse aResponse, ColoringStrategy aColoringStrategy)
     {
+        JCas aJcas = aContext.getJCas();
+
         // Get begin and end offsets of window content
-        int windowBegin = BratAjaxCasUtil.selectByAddr(aJcas,
-                Sentence.class, aBratAnnotatorModel.getSentenceAddress()).getBegin();
-        int windowEnd = BratAjaxCasUtil.selectByAddr(aJcas, Sentence.class,
-                BratAjaxCasUtil.getLastSentenceAddressInDisplayWindow(aJcas,
-                        aBratAnnotatorModel.getSentenceAddress(),
-                        aBratAnnotatorModel.getPreferences().getWindowSize())).getEnd();
+        int windowBegin = aContext.getWindowBegin();
+        int windowEnd = aContext.getWindowEnd();
 
         // Find the features for the arc and span labels - it is possible that we do not find a
         // feature for arc/span labels because they may have been disabled.
@@ -151,84 +144,54 @@ public class ChainAdapter
         Type chainType = getAnnotationType(aJcas.getCas());
         Feature chainFirst = chainType.getFeatureByBaseName(chainFirstFeatureName);
 
-        int colorIndex = 0;
-        // Iterate over the chains
-        for (FeatureStructure chainFs : selectFS(aJcas.getCas(), chainType)) {
-            AnnotationFS linkFs = (AnnotationFS) chainFs.getFeatureValue(chainFirst);
-            AnnotationFS prevLinkFs = null;
+        // Only the links within the window are looked at. The chain ordinal is the position of
+        // the chain in the chain index, so every chain gets a different color and the color of a
+        // chain does not change when switching pages/scrolling.
+        ChainIndex index = ChainIndex.get(aJcas, chainType, chainFirst, linkNextFeatureName);
+        String bratTypeName = TypeUtil.getBratTypeName(this);
 
-            // Every chain is supposed to have a different color
-            String color = ColoringStrategy.PALETTE_NORMAL_FILTERED[colorIndex
-                    % ColoringStrategy.PALETTE_NORMAL_FILTERED.length];
-            // The color index is updated even for chains that have no visible links in the current
-            // window because we would like the chain color to be independent of visibility. In
-            // particular the color of a chain should not change when switching pages/scrolling.
-            colorIndex++;
+        for (int position : index.select(windowBegin, windowEnd)) {
+            AnnotationFS linkFs = BratAjaxCasUtil.selectByAddr(aJcas, AnnotationFS.class,
+                    index.getAddress(position));
 
-            // Iterate over the links of the chain
-            while (linkFs != null) {
-                Feature linkNext = linkFs.getType().getFeatureByBaseName(linkNextFeatureName);
-                AnnotationFS nextLinkFs = (AnnotationFS) linkFs.getFeatureValue(linkNext);
-
-                // Is link after window? If yes, we can skip the rest of the chain
-                if (linkFs.getBegin() >= windowEnd) {
-                    break; // Go to next chain
-                }
+            String color = ColoringStrategy.PALETTE_NORMAL_FILTERED[index.getChain(position)
+                    % ColoringStrategy.PALETTE_NORMAL_FILTERED.length];
 
-                // Is link before window? We only need links that being within the window and that
-                // end within the window
-                if (!(linkFs.getBegin() >= windowBegin) && (linkFs.getEnd() <= windowEnd)) {
-                    // prevLinkFs remains null until we enter the window
-                    linkFs = nextLinkFs;
-                    continue; // Go to next link
-                }
+            // Render span
+            {
+                String bratLabelText = TypeUtil.getBratLabelText(this, linkFs,
+                        (spanLabelFeature != null) ? asList(spanLabelFeature)
+                                : Collections.EMPTY_LIST);
+                Offsets offsets = new Offsets(linkFs.getBegin() - windowBegin,
+                        linkFs.getEnd() - windowBegin);
 
-                String bratTypeName = TypeUtil.getBratTypeName(this);
+                VID vid = new VID(BratAjaxCasUtil.getAddr(linkFs), VID.NONE, VID.NONE, VID.NONE);
+                aResponse.addEntity(new Entity(vid, bratTypeName, offsets, bratLabelText, color));
+            }
 
-                // Render span
-                {
-                    String bratLabelText = TypeUtil.getBratLabelText(this, linkFs,
-                            (spanLabelFeature != null) ? asList(spanLabelFeature)
-                                    : Collections.EMPTY_LIST);
-                    Offsets offsets = new Offsets(linkFs.getBegin() - windowBegin,
-                            linkFs.getEnd() - windowBegin);
+            // Render arc to the next link if that is within the window as well
+            int next = index.getNext(position);
+            if (next != -1 && index.isInWindow(next, windowBegin, windowEnd)) {
+                String bratLabelText = null;
 
-                    VID vid = new VID(BratAjaxCasUtil.getAddr(linkFs), VID.NONE, VID.NONE, VID.NONE);
-                    aResponse.addEntity(new Entity(vid, bratTypeName, offsets, bratLabelText, color));
+                if (linkedListBehavior && arcLabelFeature != null) {
+                    // Render arc label
+                    bratLabelText = TypeUtil.getBratLabelText(this, linkFs,
+                            asList(arcLabelFeature));
                 }
-
-                // Render arc (we do this on prevLinkFs because then we easily know that the current
-                // and last link are within the window ;)
-                if (prevLinkFs != null) {
-                    String bratLabelText = null;
-
-                    if (linkedListBehavior && arcLabelFeature != null) {
-                        // Render arc label
-                        bratLabelText = TypeUtil.getBratLabelText(this, prevLinkFs,
-                                asList(arcLabelFeature));
-                    }
-                    else {
-                        // Render only chain type
-                        bratLabelText = TypeUtil.getBratLabelText(this, prevLinkFs,
-                                Collections.EMPTY_LIST);
-                    }
-
-                    List<Argument> argumentList = asList(
-                            new Argument("Arg1", BratAjaxCasUtil.getAddr(prevLinkFs)),
-                            new Argument("Arg2", BratAjaxCasUtil.getAddr(linkFs)));
-
-                    VID vid = new VID(BratAjaxCasUtil.getAddr(prevLinkFs), 1, VID.NONE, VID.NONE);
-                    aResponse.addRelation(new Relation(vid, bratTypeName, argumentList,
-                            bratLabelText, color));
+                else {
+                    // Render only chain type
+                    bratLabelText = TypeUtil.getBratLabelText(this, linkFs,
+                            Collections.EMPTY_LIST);
                 }
 
-//                if (BratAjaxCasUtil.isSame(linkFs, nextLinkFs)) {
-//                    log.error("Loop in CAS detected, aborting rendering of chains");
-//                    break;
-//                }
+                List<Argument> argumentList = asList(
+                        new Argument("Arg1", BratAjaxCasUtil.getAddr(linkFs)),
+                        new Argument("Arg2", index.getAddress(next)));
 
-                prevLinkFs = linkFs;
-                linkFs = nextLinkFs;
+                VID vid = new VID(BratAjaxCasUtil.getAddr(linkFs), 1, VID.NONE, VID.NONE);
+                aResponse.addRelation(new Relation(vid, bratTypeName, argumentList,
+                        bratLabelText, color));
             }
         }
     }
@@ -255,6 +218,8 @@ public class ChainAdapter
         // The added link is a new chain on its own - add the chain head FS
         newChain(aJCas, newLink);
 
+        ChainIndex.invalidate(aJCas);
+
         return BratAjaxCasUtil.getAddr(newLink);
     }
 
@@ -371,6 +336,8 @@ public class ChainAdapter
             }
         }
 
+        ChainIndex.invalidate(aJCas);
+
         // We do not actually create a new FS for the arc. Features are set on the originFS.
         return BratAjaxCasUtil.getAddr(aOriginFs);
     }
@@ -384,6 +351,7 @@ public class ChainAdapter
         else {
             deleteArc(aJCas, aVid.getId());
         }
+        ChainIndex.invalidate(aJCas);
     }
 
     private void deleteArc(JCas aJCas, int aAddress)
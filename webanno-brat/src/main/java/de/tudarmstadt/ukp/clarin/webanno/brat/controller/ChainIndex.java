@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.LowLevelCAS;
+import org.apache.uima.cas.impl.LowLevelTypeSystem;
+import org.apache.uima.jcas.JCas;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
+
+/**
+ * Positions, addresses and chains of the links of all chains of a chain type, sorted by offset.
+ * This allows to render the links within the display window without walking all chains.
+ * <p>
+ * Each chain has an ordinal, which is its position in the chain index. Each link has an ordinal,
+ * which is its position within the chain. The chain ordinal can be used to pick a color which
+ * does not depend on the display window.
+ * <p>
+ * The index is built on first use and kept as {@link CasDerivedData}, so it is shared with the
+ * following requests as long as the CAS has not been changed. Once built for a CAS, it is only
+ * rebuilt when the number of links changes, so changes to other annotations do not cost a
+ * rebuild. Code which changes the chains in other ways, e.g. by changing the next link of a link
+ * as {@link ChainAdapter} does, must call {@link #invalidate}.
+ */
+public final class ChainIndex
+{
+    private static final CasDerivedData<ChainIndex> INDEXES = new CasDerivedData<>(
+            ChainIndex::isCurrent, ChainIndex::new);
+
+    private final TypeSystem typeSystem;
+    private final String linkTypeName;
+    private final int linkCount;
+
+    private final int[] begins;
+    private final int[] ends;
+    private final int[] addresses;
+    private final int[] chains;
+    private final int[] ordinals;
+
+    // Position of the next link in the chain or -1
+    private final int[] nexts;
+
+    // Largest end offset up to each position - ascending even if links overlap
+    private final int[] maxEnds;
+
+    /**
+     * Get the chain index for the given chain type, building it if necessary.
+     *
+     * @param aJCas
+     *            the CAS.
+     * @param aChainType
+     *            the type of the chain heads.
+     * @param aFirstFeature
+     *            the feature of the chain head pointing to the first link.
+     * @param aNextFeature
+     *            the base name of the link feature pointing to the next link.
+     * @return the index.
+     */
+    public static ChainIndex get(JCas aJCas, Type aChainType, Feature aFirstFeature,
+            String aNextFeature)
+    {
+        CAS cas = aJCas.getCas();
+        ChainIndex index = INDEXES.get(cas, aChainType.getName());
+        if (index == null) {
+            Type linkType = aFirstFeature.getRange();
+            index = new ChainIndex(cas, aChainType, aFirstFeature,
+                    linkType.getFeatureByBaseName(aNextFeature));
+            INDEXES.put(cas, aChainType.getName(), index);
+        }
+        return index;
+    }
+
+    /**
+     * Drop the chain indexes of the given CAS, e.g. after links have been reconnected.
+     */
+    public static void invalidate(JCas aJCas)
+    {
+        INDEXES.remove(aJCas.getCas());
+    }
+
+    private ChainIndex(CAS aCas, Type aChainType, Feature aFirstFeature, Feature aNextFeature)
+    {
+        typeSystem = aCas.getTypeSystem();
+        linkTypeName = aFirstFeature.getRange().getName();
+        linkCount = aCas.getAnnotationIndex(aFirstFeature.getRange()).size();
+
+        LowLevelCAS llcas = aCas.getLowLevelCAS();
+        LowLevelTypeSystem llts = llcas.ll_getTypeSystem();
+        int firstCode = llts.ll_getCodeForFeature(aFirstFeature);
+        int nextCode = llts.ll_getCodeForFeature(aNextFeature);
+        int beginCode = llts.ll_getCodeForFeature(aCas.getBeginFeature());
+        int endCode = llts.ll_getCodeForFeature(aCas.getEndFeature());
+
+        // Walk the chains in index order. Links are visited only once, even if the chains are
+        // broken and contain loops or share links.
+        int[] linkAddresses = new int[linkCount];
+        int[] linkChains = new int[linkCount];
+        int[] linkOrdinals = new int[linkCount];
+        int[] linkNexts = new int[linkCount];
+        BitSet visited = new BitSet();
+        int n = 0;
+        int chain = 0;
+        FSIterator<FeatureStructure> i = aCas.getIndexRepository().getAllIndexedFS(aChainType);
+        while (i.hasNext()) {
+            int link = llcas.ll_getRefValue(llcas.ll_getFSRef(i.next()), firstCode);
+            int ordinal = 0;
+            while (link != LowLevelCAS.NULL_FS_REF && !visited.get(link)) {
+                visited.set(link);
+                if (n == linkAddresses.length) {
+                    // Links which are not in the index may still be part of a chain
+                    int size = Math.max(16, n * 2);
+                    linkAddresses = Arrays.copyOf(linkAddresses, size);
+                    linkChains = Arrays.copyOf(linkChains, size);
+                    linkOrdinals = Arrays.copyOf(linkOrdinals, size);
+                    linkNexts = Arrays.copyOf(linkNexts, size);
+                }
+                int next = llcas.ll_getRefValue(link, nextCode);
+                linkAddresses[n] = link;
+                linkChains[n] = chain;
+                linkOrdinals[n] = ordinal++;
+                linkNexts[n] = next;
+                n++;
+                link = next;
+            }
+            chain++;
+        }
+
+        // Sort by begin and keep the original position to look up the rest
+        long[] packed = new long[n];
+        for (int j = 0; j < n; j++) {
+            packed[j] = ((long) llcas.ll_getIntValue(linkAddresses[j], beginCode) << 32) | j;
+        }
+        Arrays.sort(packed);
+
+        begins = new int[n];
+        ends = new int[n];
+        addresses = new int[n];
+        chains = new int[n];
+        ordinals = new int[n];
+        nexts = new int[n];
+        maxEnds = new int[n];
+        for (int j = 0; j < n; j++) {
+            int k = (int) packed[j];
+            begins[j] = (int) (packed[j] >>> 32);
+            ends[j] = llcas.ll_getIntValue(linkAddresses[k], endCode);
+            addresses[j] = linkAddresses[k];
+            chains[j] = linkChains[k];
+            ordinals[j] = linkOrdinals[k];
+            maxEnds[j] = j > 0 ? Math.max(maxEnds[j - 1], ends[j]) : ends[j];
+        }
+
+        // Resolve the next links to positions
+        long[] byAddress = new long[n];
+        for (int j = 0; j < n; j++) {
+            byAddress[j] = ((long) addresses[j] << 32) | j;
+        }
+        Arrays.sort(byAddress);
+        int[] sortedAddresses = new int[n];
+        for (int j = 0; j < n; j++) {
+            sortedAddresses[j] = (int) (byAddress[j] >>> 32);
+        }
+        for (int j = 0; j < n; j++) {
+            int next = linkNexts[(int) packed[j]];
+            int k = next != LowLevelCAS.NULL_FS_REF ? Arrays.binarySearch(sortedAddresses, next)
+                    : -1;
+            nexts[j] = k >= 0 ? (int) byAddress[k] : -1;
+        }
+    }
+
+    /**
+     * Copy of an index for another CAS with the same contents. The data is never modified, so it
+     * is shared.
+     */
+    private ChainIndex(ChainIndex aOther, CAS aCas)
+    {
+        typeSystem = aCas.getTypeSystem();
+        linkTypeName = aOther.linkTypeName;
+        linkCount = aOther.linkCount;
+        begins = aOther.begins;
+        ends = aOther.ends;
+        addresses = aOther.addresses;
+        chains = aOther.chains;
+        ordinals = aOther.ordinals;
+        nexts = aOther.nexts;
+        maxEnds = aOther.maxEnds;
+    }
+
+    /**
+     * @return whether this index has been copied from the given one or vice versa.
+     */
+    boolean isSharedWith(ChainIndex aOther)
+    {
+        return addresses == aOther.addresses;
+    }
+
+    private boolean isCurrent(CAS aCas)
+    {
+        if (typeSystem != aCas.getTypeSystem()) {
+            return false;
+        }
+        Type linkType = typeSystem.getType(linkTypeName);
+        return linkType != null && linkCount == aCas.getAnnotationIndex(linkType).size();
+    }
+
+    /**
+     * @return the number of links.
+     */
+    public int size()
+    {
+        return addresses.length;
+    }
+
+    public int getBegin(int aPosition)
+    {
+        return begins[aPosition];
+    }
+
+    public int getEnd(int aPosition)
+    {
+        return ends[aPosition];
+    }
+
+    public int getAddress(int aPosition)
+    {
+        return addresses[aPosition];
+    }
+
+    /**
+     * @return the ordinal of the chain the link at the given position belongs to.
+     */
+    public int getChain(int aPosition)
+    {
+        return chains[aPosition];
+    }
+
+    /**
+     * @return the position of the link at the given position within its chain.
+     */
+    public int getOrdinal(int aPosition)
+    {
+        return ordinals[aPosition];
+    }
+
+    /**
+     * @return the position of the next link in the chain or {@code -1} if it is the last link.
+     */
+    public int getNext(int aPosition)
+    {
+        return nexts[aPosition];
+    }
+
+    /**
+     * Determine the links to render in the given window: those which begin within the window
+     * and those which begin before the window but end after it.
+     *
+     * @return the positions of the links in ascending order.
+     */
+    public int[] select(int aWindowBegin, int aWindowEnd)
+    {
+        int first = lowerBound(begins, aWindowBegin);
+        int last = lowerBound(begins, aWindowEnd);
+
+        // Links starting before the window only matter if they extend beyond it
+        int spanning = lowerBound(maxEnds, aWindowEnd + 1);
+        int extra = 0;
+        for (int i = spanning; i < first; i++) {
+            if (ends[i] > aWindowEnd) {
+                extra++;
+            }
+        }
+
+        int[] positions = new int[extra + Math.max(0, last - first)];
+        int n = 0;
+        for (int i = spanning; i < first; i++) {
+            if (ends[i] > aWindowEnd) {
+                positions[n++] = i;
+            }
+        }
+        for (int i = first; i < last; i++) {
+            positions[n++] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * @return whether the link at the given position is rendered in the given window.
+     */
+    public boolean isInWindow(int aPosition, int aWindowBegin, int aWindowEnd)
+    {
+        return begins[aPosition] < aWindowEnd
+                && (begins[aPosition] >= aWindowBegin || ends[aPosition] > aWindowEnd);
+    }
+
+    /**
+     * @return the first position whose value is not less than the given value.
+     */
+    private static int lowerBound(int[] aValues, int aValue)
+    {
+        int low = 0;
+        int high = aValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (aValues[mid] < aValue) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
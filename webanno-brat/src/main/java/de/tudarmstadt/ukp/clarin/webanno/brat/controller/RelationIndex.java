@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.jcas.JCas;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
+import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+
+/**
+ * Addresses of the relations attached to each span in a CAS, i.e. the relations which have the
+ * span as their source or target. This allows to find the relations attached to a span without
+ * iterating over all relations.
+ * <p>
+ * The index is built on first use and kept as {@link CasDerivedData}, so it is shared with the
+ * following requests as long as the CAS has not been changed. Relations added by {@link #added}
+ * and removed by {@link #removed} are applied to the index directly, so after saving the CAS, the
+ * index is passed on to its new version. If the CAS has been changed otherwise, i.e. if feature
+ * structures have been added or the number of relations has changed, the index is rebuilt. The
+ * source and target of a relation are not expected to change while the relation is in the index,
+ * except for being set to the same span. Callers should still check that a relation actually
+ * points to the span.
+ */
+public final class RelationIndex
+{
+    private static final CasDerivedData<RelationIndex> INDEXES = new CasDerivedData<>(
+            RelationIndex::isCurrent, RelationIndex::new);
+
+    private static final String KEY = "relations";
+
+    private static final int[] NONE = new int[0];
+
+    private final TypeSystem typeSystem;
+    private final List<Type> relationTypes = new ArrayList<>();
+
+    private int heapSize;
+    private int relationCount;
+
+    // Addresses of the relations attached to each span address. The map may be shared with
+    // copies of the index and is then copied before it is changed.
+    private Map<Integer, int[]> attached = new HashMap<>();
+    private boolean shared;
+
+    /**
+     * Get the relation index for the given CAS, building it if necessary.
+     */
+    public static RelationIndex get(JCas aJCas)
+    {
+        CAS cas = aJCas.getCas();
+        RelationIndex index = INDEXES.get(cas, KEY);
+        if (index == null) {
+            index = new RelationIndex(cas);
+            INDEXES.put(cas, KEY, index);
+        }
+        return index;
+    }
+
+    /**
+     * Record a relation which has just been created and added to the indexes. If the CAS has been
+     * changed otherwise since the index was last used, the index is dropped instead.
+     */
+    public static void added(JCas aJCas, AnnotationFS aRelation)
+    {
+        CAS cas = aJCas.getCas();
+        RelationIndex index = INDEXES.peek(cas, KEY);
+        if (index == null) {
+            return;
+        }
+
+        // The relation must be the first feature structure created since the index was in sync
+        Type type = index.getRelationType(aRelation.getType());
+        if (type != null && index.typeSystem == cas.getTypeSystem()
+                && index.heapSize == getAddr(aRelation)
+                && index.relationCount + 1 == index.countRelations(cas)) {
+            index.add(type, aRelation);
+            index.heapSize = getHeapSize(cas);
+            index.relationCount++;
+        }
+        else {
+            INDEXES.remove(cas);
+        }
+    }
+
+    /**
+     * Forget a relation which has just been removed from the indexes. If the CAS has been changed
+     * otherwise since the index was last used, the index is dropped instead.
+     */
+    public static void removed(JCas aJCas, AnnotationFS aRelation)
+    {
+        CAS cas = aJCas.getCas();
+        RelationIndex index = INDEXES.peek(cas, KEY);
+        if (index == null) {
+            return;
+        }
+
+        Type type = index.getRelationType(aRelation.getType());
+        if (type != null && index.typeSystem == cas.getTypeSystem()
+                && index.heapSize == getHeapSize(cas)
+                && index.relationCount - 1 == index.countRelations(cas)) {
+            index.remove(type, aRelation);
+            index.relationCount--;
+        }
+        else {
+            INDEXES.remove(cas);
+        }
+    }
+
+    private RelationIndex(CAS aCas)
+    {
+        typeSystem = aCas.getTypeSystem();
+        heapSize = getHeapSize(aCas);
+
+        // Only the topmost relation types, the index of a type includes its subtypes
+        Iterator<Type> i = typeSystem.getTypeIterator();
+        while (i.hasNext()) {
+            Type type = i.next();
+            if (isRelationType(aCas, type)
+                    && !isRelationType(aCas, typeSystem.getParent(type))) {
+                relationTypes.add(type);
+            }
+        }
+
+        for (Type type : relationTypes) {
+            for (AnnotationFS relation : aCas.getAnnotationIndex(type)) {
+                add(type, relation);
+                relationCount++;
+            }
+        }
+    }
+
+    /**
+     * Copy of an index for another CAS with the same contents.
+     */
+    private RelationIndex(RelationIndex aOther, CAS aCas)
+    {
+        typeSystem = aCas.getTypeSystem();
+        for (Type type : aOther.relationTypes) {
+            relationTypes.add(typeSystem.getType(type.getName()));
+        }
+        heapSize = aOther.heapSize;
+        relationCount = aOther.relationCount;
+        attached = aOther.attached;
+        shared = true;
+        aOther.shared = true;
+    }
+
+    /**
+     * @return the addresses of the relations which have the given span as their source or
+     *         target.
+     */
+    public int[] getAttached(FeatureStructure aSpan)
+    {
+        int[] relations = attached.get(getAddr(aSpan));
+        return relations != null ? relations : NONE;
+    }
+
+    /**
+     * @return whether this index has been copied from the given one or vice versa and neither has
+     *         been changed since.
+     */
+    boolean isSharedWith(RelationIndex aOther)
+    {
+        return attached == aOther.attached;
+    }
+
+    private boolean isCurrent(CAS aCas)
+    {
+        return typeSystem == aCas.getTypeSystem() && !relationTypes.contains(null) && heapSize == getHeapSize(aCas)
+                && relationCount == countRelations(aCas);
+    }
+
+    private int countRelations(CAS aCas)
+    {
+        int count = 0;
+        for (Type type : relationTypes) {
+            count += aCas.getAnnotationIndex(type).size();
+        }
+        return count;
+    }
+
+    private Type getRelationType(Type aType)
+    {
+        for (Type type : relationTypes) {
+            if (typeSystem.subsumes(type, aType)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private void add(Type aType, AnnotationFS aRelation)
+    {
+        unshare();
+        int address = getAddr(aRelation);
+        for (FeatureStructure span : getEndpoints(aType, aRelation)) {
+            int[] relations = attached.get(getAddr(span));
+            if (relations == null) {
+                attached.put(getAddr(span), new int[] { address });
+            }
+            else if (!contains(relations, address)) {
+                relations = Arrays.copyOf(relations, relations.length + 1);
+                relations[relations.length - 1] = address;
+                attached.put(getAddr(span), relations);
+            }
+        }
+    }
+
+    private void remove(Type aType, AnnotationFS aRelation)
+    {
+        unshare();
+        int address = getAddr(aRelation);
+        for (FeatureStructure span : getEndpoints(aType, aRelation)) {
+            int[] relations = attached.get(getAddr(span));
+            if (relations == null || !contains(relations, address)) {
+                continue;
+            }
+            if (relations.length == 1) {
+                attached.remove(getAddr(span));
+            }
+            else {
+                int[] remaining = new int[relations.length - 1];
+                int n = 0;
+                for (int relation : relations) {
+                    if (relation != address) {
+                        remaining[n++] = relation;
+                    }
+                }
+                attached.put(getAddr(span), remaining);
+            }
+        }
+    }
+
+    private void unshare()
+    {
+        if (shared) {
+            attached = new HashMap<>(attached);
+            shared = false;
+        }
+    }
+
+    private static List<FeatureStructure> getEndpoints(Type aType, AnnotationFS aRelation)
+    {
+        List<FeatureStructure> endpoints = new ArrayList<>(2);
+        FeatureStructure source = aRelation.getFeatureValue(aType
+                .getFeatureByBaseName(WebAnnoConst.FEAT_REL_SOURCE));
+        FeatureStructure target = aRelation.getFeatureValue(aType
+                .getFeatureByBaseName(WebAnnoConst.FEAT_REL_TARGET));
+        if (source != null) {
+            endpoints.add(source);
+        }
+        if (target != null) {
+            endpoints.add(target);
+        }
+        return endpoints;
+    }
+
+    private static boolean isRelationType(CAS aCas, Type aType)
+    {
+        if (aType == null || !aCas.getTypeSystem().subsumes(aCas.getAnnotationType(), aType)) {
+            return false;
+        }
+        Feature source = aType.getFeatureByBaseName(WebAnnoConst.FEAT_REL_SOURCE);
+        Feature target = aType.getFeatureByBaseName(WebAnnoConst.FEAT_REL_TARGET);
+        return source != null && target != null && !source.getRange().isPrimitive()
+                && !target.getRange().isPrimitive();
+    }
+
+    private static boolean contains(int[] aValues, int aValue)
+    {
+        for (int value : aValues) {
+            if (value == aValue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getHeapSize(CAS aCas)
+    {
+        return ((CASImpl) aCas).getHeap().getNextId();
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.uima.cas.text.AnnotationFS;
+
+/**
+ * The yields of the governors of a set of relations, i.e. the text of all annotations reachable
+ * from a governor via the relations, including the governor itself.
+ * <p>
+ * The relations are kept as adjacency lists over node numbers, with the address and offsets of
+ * each node in primitive arrays. Thus, no feature structures need to be looked up again once the
+ * relations have been added. A yield is only computed when it is requested.
+ */
+public final class RelationYield
+{
+    private final String text;
+
+    private final Map<Integer, Integer> nodes = new HashMap<>();
+    private int[] addresses = new int[16];
+    private int[] begins = new int[16];
+    private int[] ends = new int[16];
+    private int nodeCount;
+
+    private int[] linkGovernors = new int[16];
+    private int[] linkDependents = new int[16];
+    private int linkCount;
+
+    // Dependents of node i are firstDependents[i] until firstDependents[i + 1] in dependents
+    private int[] firstDependents;
+    private int[] dependents;
+
+    private int[] visited;
+    private int visitStamp;
+
+    /**
+     * @param aText
+     *            the document text from which the covered text of the annotations is taken.
+     */
+    public RelationYield(String aText)
+    {
+        text = aText;
+    }
+
+    /**
+     * Add a relation.
+     *
+     * @param aGovernor
+     *            the governor annotation.
+     * @param aDependent
+     *            the dependent annotation.
+     */
+    public void addLink(AnnotationFS aGovernor, AnnotationFS aDependent)
+    {
+        if (linkCount == linkGovernors.length) {
+            linkGovernors = Arrays.copyOf(linkGovernors, linkCount * 2);
+            linkDependents = Arrays.copyOf(linkDependents, linkCount * 2);
+        }
+        linkGovernors[linkCount] = getNode(aGovernor);
+        linkDependents[linkCount] = getNode(aDependent);
+        linkCount++;
+        firstDependents = null;
+    }
+
+    /**
+     * Get the yield of a governor. Adjacent annotations are separated by a space, gaps are marked
+     * with {@code ...}.
+     *
+     * @param aGovernorAddress
+     *            the address of the governor.
+     * @return the yield or {@code null} if the annotation is not part of any relation.
+     */
+    public String getYield(int aGovernorAddress)
+    {
+        Integer governor = nodes.get(aGovernorAddress);
+        if (governor == null) {
+            return null;
+        }
+        if (firstDependents == null) {
+            buildAdjacency();
+        }
+
+        // Collect all reachable nodes, sorted by begin offset and then address. Both are not
+        // negative, so they can be combined into a single sort key.
+        long[] yield = new long[nodeCount];
+        int size = 0;
+        int[] stack = new int[nodeCount];
+        int top = 0;
+        visitStamp++;
+        visited[governor] = visitStamp;
+        stack[top++] = governor;
+        while (top > 0) {
+            int node = stack[--top];
+            yield[size++] = ((long) begins[node] << 32) | addresses[node];
+            for (int i = firstDependents[node]; i < firstDependents[node + 1]; i++) {
+                int dependent = dependents[i];
+                if (visited[dependent] != visitStamp) {
+                    visited[dependent] = visitStamp;
+                    stack[top++] = dependent;
+                }
+            }
+        }
+        Arrays.sort(yield, 0, size);
+
+        StringBuilder sb = new StringBuilder();
+        int end = -1;
+        for (int i = 0; i < size; i++) {
+            int node = nodes.get((int) yield[i]);
+            int begin = begins[node];
+            if (end != -1 && end != begin) {
+                // if no space between token and punct, nothing is inserted
+                sb.append(end + 1 != begin ? " ... " : " ");
+            }
+            sb.append(text, begin, ends[node]);
+            end = ends[node];
+        }
+        return sb.toString();
+    }
+
+    private int getNode(AnnotationFS aFS)
+    {
+        int address = getAddr(aFS);
+        Integer node = nodes.get(address);
+        if (node != null) {
+            return node;
+        }
+
+        if (nodeCount == addresses.length) {
+            addresses = Arrays.copyOf(addresses, nodeCount * 2);
+            begins = Arrays.copyOf(begins, nodeCount * 2);
+            ends = Arrays.copyOf(ends, nodeCount * 2);
+        }
+        addresses[nodeCount] = address;
+        begins[nodeCount] = aFS.getBegin();
+        ends[nodeCount] = aFS.getEnd();
+        nodes.put(address, nodeCount);
+        return nodeCount++;
+    }
+
+    private void buildAdjacency()
+    {
+        firstDependents = new int[nodeCount + 1];
+        for (int i = 0; i < linkCount; i++) {
+            firstDependents[linkGovernors[i] + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            firstDependents[i + 1] += firstDependents[i];
+        }
+        dependents = new int[linkCount];
+        int[] next = Arrays.copyOf(firstDependents, nodeCount);
+        for (int i = 0; i < linkCount; i++) {
+            dependents[next[linkGovernors[i]]++] = linkDependents[i];
+        }
+        visited = new int[nodeCount];
+        visitStamp = 0;
+    }
+}
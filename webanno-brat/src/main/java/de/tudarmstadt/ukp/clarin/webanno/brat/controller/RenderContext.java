@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getLastSentenceAddressInDisplayWindow;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectByAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
+import static org.apache.uima.fit.util.JCasUtil.selectCovered;
+
+import java.util.List;
+
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.jcas.JCas;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+/**
+ * The display window of a single rendering pass. The window is determined once when the context
+ * is created and then shared by all {@link TypeAdapter}s rendering into the same response. The
+ * sentences and tokens in the window are collected on first use.
+ */
+public class RenderContext
+{
+    private final JCas jcas;
+    private final BratAnnotatorModel model;
+
+    private final Sentence firstSentence;
+    private final Sentence lastSentence;
+
+    private List<Sentence> sentences;
+    private List<Token> tokens;
+
+    /**
+     * @param aJCas
+     *            the CAS to render.
+     * @param aBratAnnotatorModel
+     *            the model determining the display window.
+     */
+    public RenderContext(JCas aJCas, BratAnnotatorModel aBratAnnotatorModel)
+    {
+        jcas = aJCas;
+        model = aBratAnnotatorModel;
+
+        // The first sentence address in the display window!
+        firstSentence = selectSentenceAt(aJCas, aBratAnnotatorModel.getSentenceBeginOffset(),
+                aBratAnnotatorModel.getSentenceEndOffset());
+
+        int lastAddressInPage = getLastSentenceAddressInDisplayWindow(aJCas,
+                getAddr(firstSentence), aBratAnnotatorModel.getPreferences().getWindowSize());
+
+        // the last sentence address in the display window
+        lastSentence = (Sentence) selectByAddr(aJCas, FeatureStructure.class, lastAddressInPage);
+    }
+
+    public JCas getJCas()
+    {
+        return jcas;
+    }
+
+    public BratAnnotatorModel getModel()
+    {
+        return model;
+    }
+
+    public Sentence getFirstSentence()
+    {
+        return firstSentence;
+    }
+
+    public Sentence getLastSentence()
+    {
+        return lastSentence;
+    }
+
+    /**
+     * @return the begin offset of the window. Offsets sent to brat are relative to this.
+     */
+    public int getWindowBegin()
+    {
+        return firstSentence.getBegin();
+    }
+
+    public int getWindowEnd()
+    {
+        return lastSentence.getEnd();
+    }
+
+    /**
+     * @return the sentences in the window in index order.
+     */
+    public List<Sentence> getSentences()
+    {
+        if (sentences == null) {
+            sentences = selectCovered(jcas, Sentence.class, getWindowBegin(), getWindowEnd());
+        }
+        return sentences;
+    }
+
+    /**
+     * @return the tokens in the window in index order.
+     */
+    public List<Token> getTokens()
+    {
+        if (tokens == null) {
+            tokens = selectCovered(jcas, Token.class, getWindowBegin(), getWindowEnd());
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.jcas.tcas.Annotation;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+
+/**
+ * Positions and addresses of the sentences in a CAS in index order, allowing to look up
+ * sentences by number, address or offset without iterating over the sentence index.
+ * <p>
+ * The index is built on first use and kept per CAS as long as the CAS is alive. It is rebuilt
+ * when feature structures have been created, removed from the indexes or added back to them since
+ * it was built, as recorded by {@link CasDerivedData#stamp}. As usual in UIMA, the offsets of a
+ * sentence must not be changed while the sentence is in the index.
+ */
+public final class SentenceIndex
+{
+    private static final Map<CAS, SentenceIndex> INDEXES = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private final CasDerivedData.Stamp stamp;
+    private final int sentenceCount;
+
+    private final int[] begins;
+    private final int[] ends;
+    private final int[] addresses;
+
+    // Largest end offset up to each position - ascending even if sentences overlap
+    private final int[] maxEnds;
+
+    // Addresses in ascending order and the positions of the respective sentences
+    private final int[] sortedAddresses;
+    private final int[] sortedPositions;
+
+    /**
+     * Get the sentence index for the given CAS, building it if necessary.
+     */
+    public static SentenceIndex get(JCas aJCas)
+    {
+        CAS cas = aJCas.getCas();
+        SentenceIndex index = INDEXES.get(cas);
+        if (index == null || !index.stamp.isCurrent(cas)) {
+            index = new SentenceIndex(aJCas);
+            INDEXES.put(cas, index);
+        }
+        return index;
+    }
+
+    private SentenceIndex(JCas aJCas)
+    {
+        stamp = CasDerivedData.stamp(aJCas.getCas());
+        sentenceCount = aJCas.getAnnotationIndex(Sentence.type).size();
+
+        begins = new int[sentenceCount];
+        ends = new int[sentenceCount];
+        addresses = new int[sentenceCount];
+        maxEnds = new int[sentenceCount];
+
+        int i = 0;
+        for (Annotation sentence : aJCas.getAnnotationIndex(Sentence.type)) {
+            begins[i] = sentence.getBegin();
+            ends[i] = sentence.getEnd();
+            addresses[i] = getAddr(sentence);
+            maxEnds[i] = i > 0 ? Math.max(maxEnds[i - 1], ends[i]) : ends[i];
+            i++;
+        }
+
+        // Pack address and position into a long so both can be sorted by address in one go
+        long[] packed = new long[sentenceCount];
+        for (i = 0; i < sentenceCount; i++) {
+            packed[i] = ((long) addresses[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        sortedAddresses = new int[sentenceCount];
+        sortedPositions = new int[sentenceCount];
+        for (i = 0; i < sentenceCount; i++) {
+            sortedAddresses[i] = (int) (packed[i] >>> 32);
+            sortedPositions[i] = (int) packed[i];
+        }
+    }
+
+    /**
+     * @return the number of sentences.
+     */
+    public int size()
+    {
+        return sentenceCount;
+    }
+
+    public int getBegin(int aPosition)
+    {
+        return begins[aPosition];
+    }
+
+    public int getEnd(int aPosition)
+    {
+        return ends[aPosition];
+    }
+
+    public int getAddress(int aPosition)
+    {
+        return addresses[aPosition];
+    }
+
+    /**
+     * @return the position of the sentence with the given address or {@code -1} if there is no
+     *         such sentence.
+     */
+    public int indexOfAddress(int aAddress)
+    {
+        int i = Arrays.binarySearch(sortedAddresses, aAddress);
+        return i >= 0 ? sortedPositions[i] : -1;
+    }
+
+    /**
+     * @return the position of the first sentence containing the given offset (begin and end
+     *         inclusive) or {@code -1} if there is no such sentence.
+     */
+    public int indexOfOffset(int aOffset)
+    {
+        // First sentence which does not end before the offset
+        int i = lowerBound(maxEnds, aOffset);
+        // Sentences from here on start after the offset
+        int end = lowerBound(begins, aOffset + 1);
+        for (; i < end; i++) {
+            if (ends[i] >= aOffset) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the first position whose value is not less than the given value.
+     */
+    private static int lowerBound(int[] aValues, int aValue)
+    {
+        int low = 0;
+        int high = aValues.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (aValues[mid] < aValue) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
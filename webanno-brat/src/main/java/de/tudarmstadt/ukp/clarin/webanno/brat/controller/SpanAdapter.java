@@ -20,11 +20,9 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFeature;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFirstSentenceNumber;
-import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getLastSentenceAddressInDisplayWindow;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.isSameSentence;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectByAddr;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectOverlapping;
-import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectSentenceAt;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.setFeature;
 import static java.util.Arrays.asList;
 import static org.apache.uima.fit.util.CasUtil.getType;
@@ -50,7 +48,6 @@ import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.jcas.JCas;
 
-import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDetailEditorPanel.LinkWithRoleModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Argument;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
@@ -169,74 +166,97 @@ public class SpanAdapter
      * Add annotations from the CAS, which is controlled by the window size, to the brat response
      * {@link GetDocumentResponse}
      *
-     * @param aJcas
-     *            The JCAS object containing annotations
+     * @param aContext
+     *            The CAS and the display window
      * @param aResponse
      *            A brat response containing annotations in brat protocol
-     * @param aBratAnnotatorModel
-     *            Data model for brat annotations
      * @param aColoringStrategy
      *            the coloring strategy to render this layer
      */
     @Override
-    public void render(JCas aJcas, List<AnnotationFeature> aFeatures,
-            GetDocumentResponse aResponse, BratAnnotatorModel aBratAnnotatorModel,
-            ColoringStrategy aColoringStrategy)
+    public void render(RenderContext aContext, List<AnnotationFeature> aFeatures,
+            GetDocumentResponse aResponse, ColoringStrategy aColoringStrategy)
     {
-        // The first sentence address in the display window!
-        Sentence firstSentence = selectSentenceAt(aJcas,
-                aBratAnnotatorModel.getSentenceBeginOffset(),
-                aBratAnnotatorModel.getSentenceEndOffset());
-
-        int lastAddressInPage = getLastSentenceAddressInDisplayWindow(aJcas,
-                getAddr(firstSentence), aBratAnnotatorModel.getPreferences().getWindowSize());
-
-        // the last sentence address in the display window
-        Sentence lastSentenceInPage = (Sentence) selectByAddr(aJcas, FeatureStructure.class,
-                lastAddressInPage);
-
+        JCas aJcas = aContext.getJCas();
         Type type = getType(aJcas.getCas(), getAnnotationTypeName());
-        int aFirstSentenceOffset = firstSentence.getBegin();
+        int aFirstSentenceOffset = aContext.getWindowBegin();
+
+        // Everything which only depends on the type is determined once for all annotations
+        String bratTypeName = TypeUtil.getBratTypeName(this);
+        Feature[] labelFeatures = TypeUtil.getLabelFeatures(type, aFeatures);
+        List<Integer> slotIndexes = new ArrayList<Integer>();
+        List<AnnotationFeature> slotFeatures = new ArrayList<AnnotationFeature>();
+        int fi = 0;
+        for (AnnotationFeature feat : listFeatures()) {
+            if (MultiValueMode.ARRAY.equals(feat.getMultiValueMode())
+                    && LinkMode.WITH_ROLE.equals(feat.getLinkMode())) {
+                slotIndexes.add(fi);
+                slotFeatures.add(feat);
+            }
+            fi++;
+        }
 
-        for (AnnotationFS fs : selectCovered(aJcas.getCas(), type, firstSentence.getBegin(),
-                lastSentenceInPage.getEnd())) {
-            String bratTypeName = TypeUtil.getBratTypeName(this);
-            String bratLabelText = TypeUtil.getBratLabelText(this, fs, aFeatures);
+        // The sentences in the window, ordered by offset like the annotations. Since the
+        // annotations are visited in order of their begin offsets, the sentence containing the
+        // begin of the current annotation is found by moving forward from the one of the previous
+        // annotation.
+        List<Sentence> sentences = aContext.getSentences();
+        int[] begins = new int[sentences.size()];
+        int[] ends = new int[sentences.size()];
+        int[] maxEnds = new int[sentences.size()];
+        for (int i = 0; i < sentences.size(); i++) {
+            begins[i] = sentences.get(i).getBegin();
+            ends[i] = sentences.get(i).getEnd();
+            maxEnds[i] = i > 0 ? Math.max(maxEnds[i - 1], ends[i]) : ends[i];
+        }
+        int sweep = 0;
+
+        for (AnnotationFS fs : selectCovered(aJcas.getCas(), type, aContext.getWindowBegin(),
+                aContext.getWindowEnd())) {
+            String bratLabelText = TypeUtil.getBratLabelText(this, fs, labelFeatures);
             String color = aColoringStrategy.getColor(fs, bratLabelText);
 
-            Sentence beginSent = null, endSent = null;
             // check if annotation spans multiple sentence
-            for (Sentence sentence : selectCovered(aJcas, Sentence.class, firstSentence.getBegin(),
-                    lastSentenceInPage.getEnd())) {
-                if (sentence.getBegin() <= fs.getBegin() && fs.getBegin() <= sentence.getEnd()) {
-                    beginSent = sentence;
-                    break;
-                }
+            while (sweep < maxEnds.length && maxEnds[sweep] < fs.getBegin()) {
+                sweep++;
             }
-            for (Sentence sentence : selectCovered(aJcas, Sentence.class, firstSentence.getBegin(),
-                    lastSentenceInPage.getEnd())) {
-                if (sentence.getBegin() <= fs.getEnd() && fs.getEnd() <= sentence.getEnd()) {
-                    endSent = sentence;
-                    break;
+            int beginSent = findSentence(begins, ends, sweep, fs.getBegin());
+            int endSent = beginSent != -1 ? findSentence(begins, ends, beginSent, fs.getEnd())
+                    : -1;
+
+            // Sentences covered by the annotation's begin and end sentences
+            int firstCovered = beginSent;
+            int lastCovered = beginSent;
+            int coveredCount = 0;
+            if (endSent != -1) {
+                while (firstCovered > 0 && begins[firstCovered - 1] >= begins[beginSent]) {
+                    firstCovered--;
+                }
+                for (int i = firstCovered; i < begins.length && begins[i] <= ends[endSent]; i++) {
+                    if (ends[i] <= ends[endSent]) {
+                        lastCovered = i;
+                        coveredCount++;
+                    }
                 }
             }
 
-            List<Sentence> sentences = selectCovered(aJcas, Sentence.class, beginSent.getBegin(),
-                    endSent.getEnd());
-            List<Offsets> offsets = new ArrayList<Offsets>();
-            if (sentences.size() > 1) {
-                for (Sentence sentence : sentences) {
-                    if (sentence.getBegin() <= fs.getBegin() && fs.getBegin() <= sentence.getEnd()) {
-                        offsets.add(new Offsets(fs.getBegin() - aFirstSentenceOffset, sentence
-                                .getEnd() - aFirstSentenceOffset));
+            if (coveredCount > 1) {
+                List<Offsets> offsets = new ArrayList<Offsets>();
+                for (int i = firstCovered; i <= lastCovered; i++) {
+                    if (ends[i] > ends[endSent]) {
+                        continue;
                     }
-                    else if (sentence.getBegin() <= fs.getEnd() && fs.getEnd() <= sentence.getEnd()) {
-                        offsets.add(new Offsets(sentence.getBegin() - aFirstSentenceOffset, fs
-                                .getEnd() - aFirstSentenceOffset));
+                    if (begins[i] <= fs.getBegin() && fs.getBegin() <= ends[i]) {
+                        offsets.add(new Offsets(fs.getBegin() - aFirstSentenceOffset, ends[i]
+                                - aFirstSentenceOffset));
+                    }
+                    else if (begins[i] <= fs.getEnd() && fs.getEnd() <= ends[i]) {
+                        offsets.add(new Offsets(begins[i] - aFirstSentenceOffset, fs.getEnd()
+                                - aFirstSentenceOffset));
                     }
                     else {
-                        offsets.add(new Offsets(sentence.getBegin() - aFirstSentenceOffset,
-                                sentence.getEnd() - aFirstSentenceOffset));
+                        offsets.add(new Offsets(begins[i] - aFirstSentenceOffset, ends[i]
+                                - aFirstSentenceOffset));
                     }
                 }
                 aResponse.addEntity(new Entity(getAddr(fs), bratTypeName, offsets, bratLabelText,
@@ -251,29 +271,39 @@ public class SpanAdapter
             }
 
             // Render slots
-            int fi = 0;
-            for (AnnotationFeature feat : listFeatures()) {
-                if (MultiValueMode.ARRAY.equals(feat.getMultiValueMode())
-                        && LinkMode.WITH_ROLE.equals(feat.getLinkMode())) {
-                    List<LinkWithRoleModel> links = getFeature(fs, feat);
-                    ArrayFS linksFS = (ArrayFS) fs.getFeatureValue(fs.getType()
-                            .getFeatureByBaseName(feat.getName()));
-                    for (int li = 0; li < links.size(); li++) {
-                        LinkWithRoleModel link = links.get(li);
-                        FeatureStructure targetFS = selectByAddr(fs.getCAS(), link.targetAddr);
-                        FeatureStructure linkFS = linksFS.get(li);
-                        // get the color of the link for suggestion annotations
-                        color = aColoringStrategy.getColor(fs + "-" + targetFS + "-" + linkFS,
-                                bratLabelText);
-                        aResponse.addRelation(new Relation(new VID(getAddr(fs), fi, li),
-                                bratTypeName, getArgument(fs, targetFS), link.role, color));
-                    }
+            for (int si = 0; si < slotFeatures.size(); si++) {
+                AnnotationFeature feat = slotFeatures.get(si);
+                List<LinkWithRoleModel> links = getFeature(fs, feat);
+                ArrayFS linksFS = (ArrayFS) fs.getFeatureValue(fs.getType()
+                        .getFeatureByBaseName(feat.getName()));
+                for (int li = 0; li < links.size(); li++) {
+                    LinkWithRoleModel link = links.get(li);
+                    FeatureStructure targetFS = selectByAddr(fs.getCAS(), link.targetAddr);
+                    FeatureStructure linkFS = linksFS.get(li);
+                    // get the color of the link for suggestion annotations
+                    color = aColoringStrategy.getColor(fs + "-" + targetFS + "-" + linkFS,
+                            bratLabelText);
+                    aResponse.addRelation(new Relation(new VID(getAddr(fs), slotIndexes.get(si),
+                            li), bratTypeName, getArgument(fs, targetFS), link.role, color));
                 }
-                fi++;
             }
         }
     }
 
+    /**
+     * @return the position of the first sentence from the given position on which contains the
+     *         given offset (begin and end inclusive) or {@code -1} if there is none.
+     */
+    private static int findSentence(int[] aBegins, int[] aEnds, int aFrom, int aOffset)
+    {
+        for (int i = aFrom; i < aBegins.length && aBegins[i] <= aOffset; i++) {
+            if (aOffset <= aEnds[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Argument lists for the arc annotation
      *
@@ -285,29 +315,18 @@ public class SpanAdapter
                 getAddr(aDependentFs)));
     }
 
-    public static void renderTokenAndSentence(JCas aJcas, GetDocumentResponse aResponse,
-            BratAnnotatorModel aBratAnnotatorModel)
+    public static void renderTokenAndSentence(RenderContext aContext,
+            GetDocumentResponse aResponse)
     {
-        // The first sentence address in the display window!
-        Sentence firstSentence = selectSentenceAt(aJcas,
-                aBratAnnotatorModel.getSentenceBeginOffset(),
-                aBratAnnotatorModel.getSentenceEndOffset());
-
-        int lastAddressInPage = getLastSentenceAddressInDisplayWindow(aJcas,
-                getAddr(firstSentence), aBratAnnotatorModel.getPreferences().getWindowSize());
-
-        // the last sentence address in the display window
-        Sentence lastSentenceInPage = (Sentence) selectByAddr(aJcas, FeatureStructure.class,
-                lastAddressInPage);
+        JCas aJcas = aContext.getJCas();
 
-        int sentenceNumber = getFirstSentenceNumber(aJcas, getAddr(firstSentence));
+        int sentenceNumber = getFirstSentenceNumber(aJcas, getAddr(aContext.getFirstSentence()));
         aResponse.setSentenceNumberOffset(sentenceNumber);
 
-        int aFirstSentenceOffset = firstSentence.getBegin();
+        int aFirstSentenceOffset = aContext.getWindowBegin();
 
         // Render token + texts
-        for (AnnotationFS fs : selectCovered(aJcas, Token.class, firstSentence.getBegin(),
-                lastSentenceInPage.getEnd())) {
+        for (AnnotationFS fs : aContext.getTokens()) {
             // attache type such as POS adds non existing token element for ellipsis annotation
             if (fs.getBegin() == fs.getEnd()) {
                 continue;
@@ -316,11 +335,10 @@ public class SpanAdapter
                     - aFirstSentenceOffset);
         }
         aResponse.setText(aJcas.getDocumentText().substring(aFirstSentenceOffset,
-                lastSentenceInPage.getEnd()));
+                aContext.getWindowEnd()));
 
         // Render Sentence
-        for (AnnotationFS fs : selectCovered(aJcas, Sentence.class, firstSentence.getBegin(),
-                lastSentenceInPage.getEnd())) {
+        for (AnnotationFS fs : aContext.getSentences()) {
             aResponse.addSentence(fs.getBegin() - aFirstSentenceOffset, fs.getEnd()
                     - aFirstSentenceOffset);
         }
@@ -24,7 +24,6 @@ import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Type;
 import org.apache.uima.jcas.JCas;
 
-import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.VID;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
@@ -51,18 +50,16 @@ public interface TypeAdapter
      * Add annotations from the CAS, which is controlled by the window size, to the brat response
      * {@link GetDocumentResponse}
      *
-     * @param aJcas
-     *            The JCAS object containing annotations
+     * @param aContext
+     *            the CAS and the display window, shared by all layers rendered into the response
      * @param features the features.
      * @param aResponse
      *            A brat response containing annotations in brat protocol
-     * @param aBratAnnotatorModel
-     *            Data model for brat annotations
      * @param aColoringStrategy
      *            the  coloring strategy to render this layer
      */
-    void render(JCas aJcas, List<AnnotationFeature> features, GetDocumentResponse aResponse,
-            BratAnnotatorModel aBratAnnotatorModel, ColoringStrategy aColoringStrategy);
+    void render(RenderContext aContext, List<AnnotationFeature> features,
+            GetDocumentResponse aResponse, ColoringStrategy aColoringStrategy);
 
     /**
      * The ID of the type.
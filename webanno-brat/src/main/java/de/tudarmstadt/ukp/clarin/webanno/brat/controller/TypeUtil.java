@@ -17,6 +17,7 @@
  ******************************************************************************/
 package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
@@ -90,16 +91,24 @@ public final class TypeUtil
     public static String getBratLabelText(TypeAdapter aAdapter, AnnotationFS aFs,
             List<AnnotationFeature> aFeatures)
     {
-        StringBuilder bratLabelText = new StringBuilder();
-        for (AnnotationFeature feature : aFeatures) {
-
-            if (!feature.isEnabled() || !feature.isVisible()
-                    || !MultiValueMode.NONE.equals(feature.getMultiValueMode())) {
-                continue;
-            }
-
-            Feature labelFeature = aFs.getType().getFeatureByBaseName(feature.getName());
+        return getBratLabelText(aAdapter, aFs, getLabelFeatures(aFs.getType(), aFeatures));
+    }
 
+    /**
+     * Construct the label text used in the brat user interface from features which have already
+     * been resolved using {@link #getLabelFeatures}. This avoids looking up the features again for
+     * every annotation when rendering many annotations of the same type.
+     *
+     * @param aAdapter the adapter.
+     * @param aFs the annotation.
+     * @param aLabelFeatures the features to show in the label.
+     * @return the label.
+     */
+    public static String getBratLabelText(TypeAdapter aAdapter, AnnotationFS aFs,
+            Feature[] aLabelFeatures)
+    {
+        StringBuilder bratLabelText = new StringBuilder();
+        for (Feature labelFeature : aLabelFeatures) {
             if (bratLabelText.length() > 0) {
                 bratLabelText.append(TypeAdapter.FEATURE_SEPARATOR);
             }
@@ -117,6 +126,27 @@ public final class TypeUtil
         }
     }
 
+    /**
+     * Get the features of the given type which are shown in the label of an annotation.
+     *
+     * @param aType the annotation type.
+     * @param aFeatures the features of the layer.
+     * @return the label features.
+     */
+    public static Feature[] getLabelFeatures(Type aType, List<AnnotationFeature> aFeatures)
+    {
+        List<Feature> labelFeatures = new ArrayList<Feature>();
+        for (AnnotationFeature feature : aFeatures) {
+            if (!feature.isEnabled() || !feature.isVisible()
+                    || !MultiValueMode.NONE.equals(feature.getMultiValueMode())) {
+                continue;
+            }
+
+            labelFeatures.add(aType.getFeatureByBaseName(feature.getName()));
+        }
+        return labelFeatures.toArray(new Feature[labelFeatures.size()]);
+    }
+
     /**
      * @param aBratTypeName the brat type name.
      * @return the layer ID.
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.DocumentStudy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+
+/**
+ * Persistent cache of the {@link DocumentStudy studies} of individual documents.
+ * <p>
+ * Each combination of layer, feature, users and settings has its own folder which contains one
+ * file per document. Next to the study, a file records a stamp describing the annotations the
+ * study was created from, e.g. their timestamps. When a study is requested with a different
+ * stamp, it is created again and the file is replaced. Thus, only documents which have changed
+ * since the last time need to be diffed again.
+ */
+public class AgreementCache
+{
+    private static final String SUFFIX = ".ser";
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final File dir;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param aDir
+     *            the folder in which the studies are stored. It is created if necessary.
+     */
+    public AgreementCache(File aDir)
+    {
+        dir = aDir;
+    }
+
+    /**
+     * Get the study of a document.
+     *
+     * @param aKey
+     *            the key describing layer, feature, users and settings, cf.
+     *            {@link #key(String, String, LinkCompareBehavior, boolean, List, Collection)}.
+     * @param aDocumentId
+     *            the ID of the document.
+     * @param aStamp
+     *            describes the state of the annotations of the document.
+     * @return the study or {@code null} if it is not cached or the cached one is stale.
+     */
+    public DocumentStudy get(String aKey, long aDocumentId, String aStamp)
+    {
+        File file = getFile(aKey, aDocumentId);
+
+        if (file.exists()) {
+            try (ObjectInputStream is = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(file)))) {
+                if (aStamp.equals(is.readUTF())) {
+                    DocumentStudy study = (DocumentStudy) is.readObject();
+                    hits.incrementAndGet();
+                    return study;
+                }
+            }
+            catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // E.g. written by an incompatible version - it is simply replaced
+                log.warn("Unable to read cached agreement study [" + file + "]: "
+                        + e.getMessage());
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store the study of a document, replacing any previously cached one. Only studies which
+     * have been created from the annotations described by the stamp may be stored. A study
+     * based on incomplete data would be returned for the stamp until the annotations change.
+     *
+     * @param aKey
+     *            the key describing layer, feature, users and settings.
+     * @param aDocumentId
+     *            the ID of the document.
+     * @param aStamp
+     *            describes the state of the annotations the study was created from.
+     * @param aStudy
+     *            the study.
+     */
+    public void put(String aKey, long aDocumentId, String aStamp, DocumentStudy aStudy)
+    {
+        File file = getFile(aKey, aDocumentId);
+        try {
+            write(file, aStamp, aStudy);
+        }
+        catch (IOException e) {
+            log.warn("Unable to cache agreement study [" + file + "]: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove all cached studies.
+     */
+    public void clear()
+        throws IOException
+    {
+        if (dir.exists()) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[dir: " + dir + ", hits: " + hits + ", misses: " + misses + "]";
+    }
+
+    private File getFile(String aKey, long aDocumentId)
+    {
+        return new File(new File(dir, aKey), aDocumentId + SUFFIX);
+    }
+
+    /**
+     * The file is written under a temporary name first, so concurrent readers never see a
+     * partially written study.
+     */
+    private void write(File aFile, String aStamp, DocumentStudy aStudy)
+        throws IOException
+    {
+        FileUtils.forceMkdir(aFile.getParentFile());
+        File temp = File.createTempFile(aFile.getName(), ".tmp", aFile.getParentFile());
+        try {
+            try (ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)))) {
+                os.writeUTF(aStamp);
+                os.writeObject(aStudy);
+            }
+            Files.move(temp.toPath(), aFile.toPath(), REPLACE_EXISTING);
+        }
+        finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Compute the key under which the studies for the given layer, feature, users and settings
+     * are stored. The label features of the layer are part of the key, so changing them
+     * invalidates the studies.
+     */
+    public static String key(String aType, String aFeature,
+            LinkCompareBehavior aLinkCompareBehavior, boolean aExcludeIncomplete,
+            List<String> aUsers, Collection<? extends DiffAdapter> aAdapters)
+    {
+        List<String> parts = new ArrayList<>();
+        parts.add(aType);
+        parts.add(aFeature);
+        parts.add(String.valueOf(aLinkCompareBehavior));
+        parts.add(String.valueOf(aExcludeIncomplete));
+        parts.add(String.valueOf(aUsers));
+        for (DiffAdapter adapter : aAdapters) {
+            if (adapter.getType().equals(aType)) {
+                parts.add(String.valueOf(new TreeSet<>(adapter.getLabelFeatures())));
+            }
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.annotation.Resource;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.jcas.JCas;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.DocumentStudy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.User;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+/**
+ * Computes the pairwise agreement on the finished documents of a project in the background.
+ * <p>
+ * Jobs run on a bounded pool of worker threads. While a job is running, submitting the same
+ * computation again returns the running job. The last jobs remain available via
+ * {@link #getJob(String)} after they are done, so their results can be picked up later, e.g. by a
+ * page polling for the progress. The studies of the individual documents are kept in
+ * an {@link AgreementCache}, so a job only needs to diff the documents which have changed since
+ * the agreement was last computed. Jobs report their progress in steps of one document and user
+ * pair and they can be cancelled.
+ */
+public class AgreementJobService
+    implements InitializingBean, DisposableBean
+{
+    private static final String PROJECT = "/project/";
+    private static final String AGREEMENT_CACHE = "/agreement";
+
+    /**
+     * Number of finished jobs which are kept so their results can be picked up.
+     */
+    private static final int MAX_FINISHED_JOBS = 64;
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Resource(name = "annotationService")
+    private AnnotationService annotationService;
+
+    @Resource(name = "documentRepository")
+    private RepositoryService repository;
+
+    @Value(value = "${agreement.workers}")
+    private int workers = 2;
+
+    private ExecutorService executor;
+
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Job> aEldest)
+        {
+            return size() > MAX_FINISHED_JOBS && aEldest.getValue().isDone();
+        }
+    };
+
+    public AgreementJobService()
+    {
+        // Bean operation
+    }
+
+    public AgreementJobService(int aWorkers)
+    {
+        // For testing
+        workers = aWorkers;
+        afterPropertiesSet();
+    }
+
+    @Override
+    public void afterPropertiesSet()
+    {
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, workers), r -> {
+            Thread t = new Thread(r, "Agreement worker " + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submit a job computing the agreement on the given feature. If the same job is already
+     * running, it is returned instead.
+     */
+    public Job submit(Project aProject, AnnotationFeature aFeature,
+            ConcreteAgreementMeasure aMeasure, LinkCompareBehavior aLinkCompareBehavior,
+            boolean aExcludeIncomplete)
+    {
+        String key = aProject.getId() + "|" + aFeature.getId() + "|" + aMeasure + "|"
+                + aLinkCompareBehavior + "|" + aExcludeIncomplete;
+        return submit(key, job -> computeAgreement(job, aProject, aFeature, aMeasure,
+                aLinkCompareBehavior, aExcludeIncomplete));
+    }
+
+    /**
+     * Submit jobs computing the agreement on all features of a project using the default
+     * settings. This fills the {@link AgreementCache}, so the agreement is available quickly
+     * afterwards, e.g. when run overnight.
+     */
+    public List<Job> precompute(Project aProject)
+    {
+        List<Job> precomputed = new ArrayList<>();
+        for (AnnotationFeature feature : annotationService.listAnnotationFeature(aProject)) {
+            String layer = feature.getLayer().getName();
+            if (layer.equals(Token.class.getName())
+                    || layer.equals(WebAnnoConst.COREFERENCE_LAYER)) {
+                continue;
+            }
+            precomputed.add(submit(aProject, feature,
+                    ConcreteAgreementMeasure.KRIPPENDORFF_ALPHA_NOMINAL_AGREEMENT,
+                    LinkCompareBehavior.LINK_TARGET_AS_LABEL, false));
+        }
+        return precomputed;
+    }
+
+    /**
+     * @return the latest job with the given key or {@code null} if there is none.
+     */
+    public Job getJob(String aKey)
+    {
+        synchronized (jobs) {
+            return jobs.get(aKey);
+        }
+    }
+
+    /**
+     * @return the jobs which are queued or running.
+     */
+    public List<Job> listJobs()
+    {
+        synchronized (jobs) {
+            return jobs.values().stream().filter(job -> !job.isDone())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    Job submit(String aKey, Computation aComputation)
+    {
+        synchronized (jobs) {
+            // A finished job is computed again to pick up changed documents. A cancelled job may
+            // still be waiting for a worker - it is replaced as well.
+            Job job = jobs.get(aKey);
+            if (job != null && !job.isDone() && !job.isCancelled()) {
+                return job;
+            }
+
+            Job newJob = new Job(aKey);
+            jobs.put(aKey, newJob);
+            executor.execute(() -> run(newJob, aComputation));
+            return newJob;
+        }
+    }
+
+    private void run(Job aJob, Computation aComputation)
+    {
+        try {
+            aJob.checkCancelled();
+            aJob.result = aComputation.compute(aJob);
+        }
+        catch (CancellationException e) {
+            aJob.cancelled = true;
+        }
+        catch (Throwable e) {
+            log.error("Unable to compute agreement [" + aJob.key + "]", e);
+            aJob.error = e;
+        }
+        finally {
+            aJob.done = true;
+        }
+    }
+
+    private PairwiseAnnotationResult computeAgreement(Job aJob, Project aProject,
+            AnnotationFeature aFeature, ConcreteAgreementMeasure aMeasure,
+            LinkCompareBehavior aLinkCompareBehavior, boolean aExcludeIncomplete)
+    {
+        String layer = aFeature.getLayer().getName();
+        List<DiffAdapter> adapters = CasDiff2.getAdapters(annotationService, aProject);
+        List<User> users = repository.listProjectUsersWithPermissions(aProject,
+                PermissionLevel.USER);
+        List<String> usernames = users.stream().map(User::getUsername)
+                .collect(Collectors.toList());
+        List<SourceDocument> documents = listAgreementDocuments(aProject);
+
+        int pairs = usernames.size() * (usernames.size() - 1) / 2;
+        aJob.total = (documents.size() + 1) * pairs;
+
+        AgreementCache cache = new AgreementCache(new File(repository.getDir(), PROJECT
+                + aProject.getId() + AGREEMENT_CACHE));
+        String key = AgreementCache.key(layer, aFeature.getName(), aLinkCompareBehavior,
+                aExcludeIncomplete, usernames, adapters);
+
+        // The studies of documents which did not change since the last time are taken from the
+        // cache. The others are created by loading the CASes document by document, so that only
+        // the CASes of a single document are kept in memory at any time.
+        List<DocumentStudy> studies = new ArrayList<>();
+        for (SourceDocument document : documents) {
+            aJob.checkCancelled();
+            String stamp = getAgreementStamp(document, users);
+            DocumentStudy study = cache.get(key, document.getId(), stamp);
+            if (study == null) {
+                List<String> failedUsers = new ArrayList<>();
+                study = AgreementUtils.makeDocumentStudy(adapters, aLinkCompareBehavior, layer,
+                        aFeature.getName(), aExcludeIncomplete, usernames,
+                        getJCases(aJob, document, users, failedUsers));
+                // The stamp does not change when a CAS can be loaded again, so a study missing
+                // some of the CASes must not be cached
+                if (failedUsers.isEmpty()) {
+                    cache.put(key, document.getId(), stamp, study);
+                }
+            }
+            studies.add(study);
+            aJob.step(pairs);
+        }
+        log.debug("Agreement cache: " + cache);
+
+        aJob.checkCancelled();
+        PairwiseAnnotationResult result = AgreementUtils.getPairwiseAgreement(aMeasure,
+                aExcludeIncomplete, layer, aFeature.getName(), usernames, studies.iterator());
+        aJob.step(pairs);
+        return result;
+    }
+
+    /**
+     * Get the documents used to compute agreement.
+     */
+    private List<SourceDocument> listAgreementDocuments(Project aProject)
+    {
+        List<SourceDocument> sourceDocuments = repository.listSourceDocuments(aProject);
+
+        // Filter training documents out from the source documents. Training documents are not
+        // being annotated
+        // FIXME actually, listSourceDocuments() shouldn return training documents in the first
+        // place. Cf. https://github.com/webanno/webanno/issues/23
+        List<SourceDocument> trainingDoc = new ArrayList<SourceDocument>();
+        for (SourceDocument sdc : sourceDocuments) {
+            if (sdc.isTrainingDocument()) {
+                trainingDoc.add(sdc);
+            }
+        }
+        sourceDocuments.removeAll(trainingDoc);
+
+        return sourceDocuments;
+    }
+
+    /**
+     * Describe the state of the finished annotations of the given document. The timestamp of an
+     * annotation document changes whenever it is saved, so the stamp changes if any of the
+     * finished annotations has been edited, or if a user finished or re-opened the document.
+     */
+    private String getAgreementStamp(SourceDocument aDocument, List<User> aUsers)
+    {
+        StringBuilder stamp = new StringBuilder();
+        for (User user : aUsers) {
+            stamp.append(user.getUsername()).append('=');
+            if (repository.existsAnnotationDocument(aDocument, user)) {
+                AnnotationDocument annotationDocument = repository.getAnnotationDocument(
+                        aDocument, user);
+                if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
+                    Date timestamp = annotationDocument.getTimestamp();
+                    stamp.append(timestamp != null ? timestamp.getTime() : "finished");
+                }
+            }
+            stamp.append(';');
+        }
+        return stamp.toString();
+    }
+
+    /**
+     * Get the finished CASes of the given document used to compute agreement. The map contains
+     * a single-element list for every user. The element is {@code null} if the user has not
+     * finished the document or if the CAS could not be loaded.
+     *
+     * @param aFailedUsers
+     *            receives the names of the users whose finished CAS could not be loaded.
+     */
+    private Map<String, List<JCas>> getJCases(Job aJob, SourceDocument aDocument,
+            List<User> aUsers, List<String> aFailedUsers)
+    {
+        Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+        for (User user : aUsers) {
+            JCas jCas = null;
+
+            // Load the CAS if there is a finished one.
+            if (repository.existsAnnotationDocument(aDocument, user)) {
+                AnnotationDocument annotationDocument = repository.getAnnotationDocument(
+                        aDocument, user);
+                if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
+                    try {
+                        jCas = repository.readAnnotationCas(annotationDocument);
+                        repository.upgradeCas(jCas.getCas(), annotationDocument);
+                        // REC: I think there is no need to write the CASes here. We would not
+                        // want to interfere with currently active annotator users
+
+                        // Set the CAS name in the DocumentMetaData so that we can pick it
+                        // up in the Diff position for the purpose of debugging / transparency.
+                        DocumentMetaData documentMetadata = DocumentMetaData.get(jCas);
+                        documentMetadata.setDocumentId(annotationDocument.getDocument().getName());
+                        documentMetadata.setCollectionId(annotationDocument.getProject().getName());
+                    }
+                    catch (Exception e) {
+                        log.error("Unable to load CAS of [" + user.getUsername()
+                                + "] for document [" + aDocument.getName() + "]", e);
+                        aJob.messages.add(ExceptionUtils.getRootCauseMessage(e));
+                        aFailedUsers.add(user.getUsername());
+                    }
+                }
+            }
+
+            // The next line can enter null values into the map if a user didn't work on this
+            // source document yet.
+            casMap.put(user.getUsername(), Collections.singletonList(jCas));
+        }
+
+        return casMap;
+    }
+
+    /**
+     * The work done by a job.
+     */
+    interface Computation
+    {
+        PairwiseAnnotationResult compute(Job aJob)
+            throws Exception;
+    }
+
+    /**
+     * A running or finished agreement computation.
+     */
+    public static class Job
+    {
+        private final String key;
+        private final AtomicInteger progress = new AtomicInteger();
+        private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+        private volatile int total;
+        private volatile boolean done;
+        private volatile boolean cancelled;
+        private volatile PairwiseAnnotationResult result;
+        private volatile Throwable error;
+
+        private Job(String aKey)
+        {
+            key = aKey;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return the progress in percent. It is only 100 once the job is done.
+         */
+        public int getProgress()
+        {
+            if (done) {
+                return 100;
+            }
+            int t = total;
+            return t > 0 ? Math.min(99, progress.get() * 100 / t) : 0;
+        }
+
+        public int getSteps()
+        {
+            return progress.get();
+        }
+
+        public int getTotalSteps()
+        {
+            return total;
+        }
+
+        public boolean isDone()
+        {
+            return done;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        /**
+         * @return the result or {@code null} if the job is not done, was cancelled or failed.
+         */
+        public PairwiseAnnotationResult getResult()
+        {
+            return result;
+        }
+
+        public Throwable getError()
+        {
+            return error;
+        }
+
+        /**
+         * @return messages about problems which did not cause the job to fail, e.g. CASes which
+         *         could not be loaded.
+         */
+        public Queue<String> getMessages()
+        {
+            return messages;
+        }
+
+        /**
+         * Cancel the job. A queued job does not start and a running job stops before the next
+         * document.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        /**
+         * Set the number of steps the job needs to complete.
+         */
+        public void setTotalSteps(int aTotal)
+        {
+            total = aTotal;
+        }
+
+        /**
+         * Record that steps of the job have been completed.
+         */
+        public void step(int aSteps)
+        {
+            progress.addAndGet(aSteps);
+        }
+
+        /**
+         * @throws CancellationException
+         *             if the job has been cancelled.
+         */
+        public void checkCancelled()
+        {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "[" + key + ": " + progress + "/" + total + (done ? ", done" : "")
+                    + (cancelled ? ", cancelled" : "") + "]";
+        }
+    }
+}
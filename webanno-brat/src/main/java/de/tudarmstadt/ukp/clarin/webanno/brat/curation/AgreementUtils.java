@@ -18,20 +18,28 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
 
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFeature;
+import static java.util.Arrays.asList;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.uima.cas.ArrayFS;
 import org.apache.uima.cas.FeatureStructure;
 import org.apache.uima.cas.TypeSystem;
@@ -40,7 +48,9 @@ import org.apache.uima.jcas.JCas;
 
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.Configuration;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ConfigurationSet;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.Position;
 import de.tudarmstadt.ukp.dkpro.statistics.agreement.IAgreementMeasure;
 import de.tudarmstadt.ukp.dkpro.statistics.agreement.IAnnotationUnit;
@@ -54,6 +64,8 @@ import de.tudarmstadt.ukp.dkpro.statistics.agreement.distance.NominalDistanceFun
 
 public class AgreementUtils
 {
+    private static final Log LOG = LogFactory.getLog(AgreementUtils.class);
+
     public static enum AgreementReportExportFormat {
         CSV(".csv"),
         DEBUG(".txt");
@@ -114,23 +126,138 @@ public class AgreementUtils
             ConcreteAgreementMeasure aMeasure, boolean aExcludeIncomplete,
             DiffResult aDiff, String aType, String aFeature, Map<String, List<JCas>> aCasMap)
     {
+        List<String> users = new ArrayList<>(aCasMap.keySet());
+        List<StudyBuilder> builders = createPairwiseBuilders(users);
+        addToStudies(builders, users, aDiff, aType, aFeature, aExcludeIncomplete, aCasMap);
+        return calculatePairwiseAgreement(aMeasure, aExcludeIncomplete, aType, aFeature, users,
+                builders, aDiff);
+    }
+
+    /**
+     * Calculate the pairwise agreement document by document. The CASes of each document are
+     * diffed, their items are added to the studies of all pairs of users and then they are
+     * released before the next document is requested. Thus, only the CASes of a single document
+     * need to be in memory at any time. The agreement is the same as when diffing all documents
+     * at once, but the results do not provide access to the {@link AgreementResult#getDiff()
+     * diff}.
+     * 
+     * @param aUsers
+     *            the users to calculate the agreement for.
+     * @param aDocuments
+     *            supplies the CASes of one document after the other. Each map must contain a
+     *            single-element list for every user holding the CAS of the document or
+     *            {@code null} if the user has not annotated the document.
+     */
+    public static PairwiseAnnotationResult getPairwiseAgreement(
+            ConcreteAgreementMeasure aMeasure, boolean aExcludeIncomplete,
+            Collection<? extends DiffAdapter> aAdapters, LinkCompareBehavior aLinkCompareBehavior,
+            String aType, String aFeature, List<String> aUsers,
+            Iterator<Map<String, List<JCas>>> aDocuments)
+    {
+        List<DocumentStudy> studies = new ArrayList<>();
+        while (aDocuments.hasNext()) {
+            studies.add(makeDocumentStudy(aAdapters, aLinkCompareBehavior, aType, aFeature,
+                    aExcludeIncomplete, aUsers, aDocuments.next()));
+        }
+        return getPairwiseAgreement(aMeasure, aExcludeIncomplete, aType, aFeature, aUsers,
+                studies.iterator());
+    }
+
+    /**
+     * Calculate the pairwise agreement from the studies of the individual documents.
+     * 
+     * @param aUsers
+     *            the users to calculate the agreement for.
+     * @param aDocuments
+     *            the studies of the documents. They must have been created for the same users,
+     *            type, feature and settings.
+     * @see #makeDocumentStudy
+     */
+    public static PairwiseAnnotationResult getPairwiseAgreement(
+            ConcreteAgreementMeasure aMeasure, boolean aExcludeIncomplete, String aType,
+            String aFeature, List<String> aUsers, Iterator<DocumentStudy> aDocuments)
+    {
+        List<StudyBuilder> builders = createPairwiseBuilders(aUsers);
+        while (aDocuments.hasNext()) {
+            DocumentStudy document = aDocuments.next();
+            if (!document.users.equals(aUsers)) {
+                throw new IllegalArgumentException("Document study was created for users "
+                        + document.users + " but expected " + aUsers);
+            }
+            for (int i = 0; i < builders.size(); i++) {
+                builders.get(i).addAll(document.builders.get(i));
+            }
+        }
+        
+        return calculatePairwiseAgreement(aMeasure, aExcludeIncomplete, aType, aFeature, aUsers,
+                builders, null);
+    }
+    
+    /**
+     * Calculate the agreement of each pair of users. The studies of the pairs are independent of
+     * each other, so they are calculated in parallel.
+     * 
+     * @param aBuilders
+     *            the builders in the order created by {@link #createPairwiseBuilders(List)}.
+     */
+    private static PairwiseAnnotationResult calculatePairwiseAgreement(
+            ConcreteAgreementMeasure aMeasure, boolean aExcludeIncomplete, String aType,
+            String aFeature, List<String> aUsers, List<StudyBuilder> aBuilders, DiffResult aDiff)
+    {
+        List<AgreementResult> results = aBuilders.parallelStream().map(builder -> {
+            AgreementResult res = builder.build(aType, aFeature, aDiff, aExcludeIncomplete);
+            calculateAgreement(aMeasure, res);
+            return res;
+        }).collect(Collectors.toList());
+        
         PairwiseAnnotationResult result = new PairwiseAnnotationResult();
-        List<Entry<String, List<JCas>>> entryList = new ArrayList<>(aCasMap.entrySet());
-        for (int m = 0; m < entryList.size(); m++) {
-            for (int n = 0; n < entryList.size(); n++) {
-                // Triangle matrix mirrored
-                if (n < m) {
-                    Map<String, List<JCas>> pairwiseCasMap = new LinkedHashMap<>();
-                    pairwiseCasMap.put(entryList.get(m).getKey(), entryList.get(m).getValue());
-                    pairwiseCasMap.put(entryList.get(n).getKey(), entryList.get(n).getValue());
-                    AgreementResult res = getAgreement(aMeasure, aExcludeIncomplete, aDiff, aType,
-                            aFeature, pairwiseCasMap);
-                    result.add(entryList.get(m).getKey(), entryList.get(n).getKey(), res);
-                }
+        int i = 0;
+        for (int m = 0; m < aUsers.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                result.add(aUsers.get(m), aUsers.get(n), results.get(i));
+                i++;
             }
         }
         return result;
     }
+    
+    /**
+     * Diff the CASes of a single document and collect the items it contributes to the
+     * agreement studies of all pairs of users. The CASes are released afterwards.
+     * 
+     * @param aUsers
+     *            the users to calculate the agreement for.
+     * @param aCasMap
+     *            a single-element list for every user holding the CAS of the document or
+     *            {@code null} if the user has not annotated the document.
+     */
+    public static DocumentStudy makeDocumentStudy(Collection<? extends DiffAdapter> aAdapters,
+            LinkCompareBehavior aLinkCompareBehavior, String aType, String aFeature,
+            boolean aExcludeIncomplete, List<String> aUsers, Map<String, List<JCas>> aCasMap)
+    {
+        DiffResult diff = CasDiff2.doDiff(asList(aType), aAdapters, aLinkCompareBehavior,
+                aCasMap);
+        
+        List<StudyBuilder> builders = createPairwiseBuilders(aUsers);
+        addToStudies(builders, aUsers, diff, aType, aFeature, aExcludeIncomplete, aCasMap);
+        
+        // The configuration sets collected by the builders must not keep the CASes alive
+        diff.releaseCases();
+        
+        return new DocumentStudy(aUsers, builders);
+    }
+    
+    private static List<StudyBuilder> createPairwiseBuilders(List<String> aUsers)
+    {
+        // Triangle matrix mirrored
+        List<StudyBuilder> builders = new ArrayList<>();
+        for (int m = 0; m < aUsers.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                builders.add(new StudyBuilder(asList(aUsers.get(m), aUsers.get(n))));
+            }
+        }
+        return builders;
+    }
 
     public static AgreementResult getCohenKappaAgreement(DiffResult aDiff, String aType,
             String aFeature, Map<String, List<JCas>> aCasMap)
@@ -149,6 +276,13 @@ public class AgreementUtils
         
         AgreementResult agreementResult = AgreementUtils.makeStudy(aDiff, aType, aFeature,
                 aExcludeIncomplete, aCasMap);
+        calculateAgreement(aMeasure, agreementResult);
+        return agreementResult;
+    }
+    
+    private static void calculateAgreement(ConcreteAgreementMeasure aMeasure,
+            AgreementResult agreementResult)
+    {
         try {
             IAgreementMeasure agreement = aMeasure.make(agreementResult.study);
             
@@ -158,12 +292,21 @@ public class AgreementUtils
             else {
                 agreementResult.setAgreement(Double.NaN);
             }
-            return agreementResult;
-            
         }
         catch (RuntimeException e) {
-            // FIXME
-            AgreementUtils.dumpAgreementStudy(System.out, agreementResult);
+            // The studies of several pairs may be calculated at the same time, so dump the study
+            // as a single log message instead of writing it to stdout
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (PrintStream out = new PrintStream(buf, false, "UTF-8")) {
+                AgreementUtils.dumpAgreementStudy(out, agreementResult);
+                out.flush();
+                LOG.error("Unable to calculate agreement for study:\n" + buf.toString("UTF-8"),
+                        e);
+            }
+            catch (UnsupportedEncodingException e1) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(e1);
+            }
             throw e;
         }
     }
@@ -174,9 +317,10 @@ public class AgreementUtils
         return makeStudy(aDiff, aCasMap.keySet(), aType, aFeature, aExcludeIncomplete, aCasMap);
     }
     
-    private static JCas findSomeCas(Map<String, List<JCas>> aCasMap)
+    private static JCas findSomeCas(Collection<String> aUsers, Map<String, List<JCas>> aCasMap)
     {
-        for (List<JCas> l : aCasMap.values()) {
+        for (String user : aUsers) {
+            List<JCas> l = aCasMap.get(user);
             if (l != null) {
                 for (JCas jcas : l) {
                     if (jcas != null) {
@@ -193,43 +337,210 @@ public class AgreementUtils
             String aType, String aFeature, boolean aExcludeIncomplete,
             Map<String, List<JCas>> aCasMap)
     {
-        List<String> users = new ArrayList<>(aUsers);
-        Collections.sort(users);
-        
-        List<ConfigurationSet> completeSets = new ArrayList<>();
-        List<ConfigurationSet> setsWithDifferences = new ArrayList<>();
-        List<ConfigurationSet> incompleteSetsByPosition = new ArrayList<>();
-        List<ConfigurationSet> incompleteSetsByLabel = new ArrayList<>();
-        List<ConfigurationSet> pluralitySets = new ArrayList<>();
-        List<ConfigurationSet> irrelevantSets = new ArrayList<>();
-        CodingAnnotationStudy study = new CodingAnnotationStudy(users.size());
-        
-        // Check if the feature we are looking at is a primitive feature or a link feature
-        // We do this by looking it up in the first available CAS. Mind that at this point all
-        // CASes should have exactly the same typesystem.
-        JCas someCas = findSomeCas(aCasMap);
-        if (someCas == null) {
-            // Well... there is NOTHING here!
-            // All positions are irrelevant
-            aDiff.getPositions().forEach(p -> irrelevantSets.add(aDiff.getConfigurtionSet(p)));
-            
-            return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                    irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
+        StudyBuilder builder = new StudyBuilder(aUsers);
+        builder.add(aDiff, aType, aFeature, aExcludeIncomplete, aCasMap);
+        return builder.build(aType, aFeature, aDiff, aExcludeIncomplete);
+    }
+    
+    /**
+     * The items which a single document contributes to the agreement studies of all pairs of
+     * users. It does not retain the CASes and it can be serialized, e.g. to cache it.
+     */
+    public static class DocumentStudy
+        implements Serializable
+    {
+        private static final long serialVersionUID = -2617323624546187386L;
+
+        private final List<String> users;
+        private final List<StudyBuilder> builders;
+        
+        private DocumentStudy(List<String> aUsers, List<StudyBuilder> aBuilders)
+        {
+            users = new ArrayList<>(aUsers);
+            builders = aBuilders;
+        }
+        
+        public List<String> getUsers()
+        {
+            return Collections.unmodifiableList(users);
+        }
+    }
+    
+    /**
+     * Collects the items of the agreement study of a group of users from one or more diffs.
+     */
+    private static class StudyBuilder
+        implements Serializable
+    {
+        private static final long serialVersionUID = 5436302307024734826L;
+
+        private final List<String> users;
+        private final List<ConfigurationSet> completeSets = new ArrayList<>();
+        private final List<ConfigurationSet> setsWithDifferences = new ArrayList<>();
+        private final List<ConfigurationSet> incompleteSetsByPosition = new ArrayList<>();
+        private final List<ConfigurationSet> incompleteSetsByLabel = new ArrayList<>();
+        private final List<ConfigurationSet> pluralitySets = new ArrayList<>();
+        private final List<ConfigurationSet> irrelevantSets = new ArrayList<>();
+        private final List<Object[]> items = new ArrayList<>();
+        private int totalSetCount;
+        
+        public StudyBuilder(Collection<String> aUsers)
+        {
+            users = new ArrayList<>(aUsers);
+            Collections.sort(users);
+        }
+        
+        public AgreementResult build(String aType, String aFeature, DiffResult aDiff,
+                boolean aExcludeIncomplete)
+        {
+            CodingAnnotationStudy study = new CodingAnnotationStudy(users.size());
+            for (Object[] values : items) {
+                study.addItemAsArray(values);
+            }
+            return new AgreementResult(aType, aFeature, aDiff, totalSetCount, study, users,
+                    completeSets, irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
                     incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
         }
-        TypeSystem ts = someCas.getTypeSystem();
         
+        public void addAll(StudyBuilder aOther)
+        {
+            completeSets.addAll(aOther.completeSets);
+            setsWithDifferences.addAll(aOther.setsWithDifferences);
+            incompleteSetsByPosition.addAll(aOther.incompleteSetsByPosition);
+            incompleteSetsByLabel.addAll(aOther.incompleteSetsByLabel);
+            pluralitySets.addAll(aOther.pluralitySets);
+            irrelevantSets.addAll(aOther.irrelevantSets);
+            items.addAll(aOther.items);
+            totalSetCount += aOther.totalSetCount;
+        }
+        
+        public void add(DiffResult aDiff, String aType, String aFeature,
+                boolean aExcludeIncomplete, Map<String, List<JCas>> aCasMap)
+        {
+            addToStudies(asList(this), users, aDiff, aType, aFeature, aExcludeIncomplete,
+                    aCasMap);
+        }
+        
+        /**
+         * Add the item of a relevant configuration set to the study.
+         * 
+         * @param aUserIndexes
+         *            the index of each user of this builder in the list of users the values are
+         *            resolved for.
+         * @param aValues
+         *            resolves the value of a user at the position of the configuration set.
+         */
+        private void addItem(ConfigurationSet aCfgSet, int[] aUserIndexes,
+                IntFunction<Object> aValues, boolean aExcludeIncomplete)
+        {
+            // If non of the current users has made any annotation at this position, then skip it
+            if (Collections.disjoint(users, aCfgSet.getCasGroupIds())) {
+                irrelevantSets.add(aCfgSet);
+                return;
+            }
+            
+            Object[] values = new Object[users.size()];
+            for (int i = 0; i < users.size(); i++) {
+                // Set has to include all users, otherwise we cannot calculate the agreement for
+                // this configuration set.
+                if (!aCfgSet.getCasGroupIds().contains(users.get(i))) {
+                    if (aExcludeIncomplete) {
+                        // Record as incomplete
+                        incompleteSetsByPosition.add(aCfgSet);
+                        return;
+                    }
+                    else {
+                        // Record as missing value
+                        values[i] = null;
+                        continue;
+                    }
+                }
+                
+                Object value = aValues.apply(aUserIndexes[i]);
+                
+                // Make sure a single user didn't do multiple alternative annotations at a single
+                // position. So there is currently no support for calculating agreement on
+                // stacking annotations.
+                if (value == PLURALITY) {
+                    pluralitySets.add(aCfgSet);
+                    return;
+                }
+                
+                // "null" cannot be used in agreement calculations. We treat these as incomplete
+                if (aExcludeIncomplete && value == null) {
+                    incompleteSetsByLabel.add(aCfgSet);
+                    return;
+                }
+                
+                values[i] = value;
+            }
+            
+            if (ObjectUtils.notEqual(values[0], values[1])) {
+                setsWithDifferences.add(aCfgSet);
+            }
+            
+            completeSets.add(aCfgSet);
+            items.add(values);
+        }
+    }
+    
+    /**
+     * Marks a user who made multiple alternative annotations at a position.
+     */
+    private static final Object PLURALITY = new Object();
+
+    /**
+     * Marks a value which has not been looked up yet.
+     */
+    private static final Object UNRESOLVED = new Object();
+    
+    /**
+     * Add the items of a diff to the studies of several groups of users in a single pass over the
+     * configuration sets. Whether a position is relevant at all and the value each user assigned
+     * at a position are determined once and shared by all studies.
+     * 
+     * @param aUsers
+     *            all users of the studies.
+     */
+    private static void addToStudies(List<StudyBuilder> aBuilders, List<String> aUsers,
+            DiffResult aDiff, String aType, String aFeature, boolean aExcludeIncomplete,
+            Map<String, List<JCas>> aCasMap)
+    {
+        List<StudyBuilder> builders = new ArrayList<>();
+        for (StudyBuilder builder : aBuilders) {
+            builder.totalSetCount += aDiff.getPositions().size();
+
+            // Check if the feature we are looking at is a primitive feature or a link feature
+            // We do this by looking it up in the first available CAS. Mind that at this point all
+            // CASes should have exactly the same typesystem.
+            if (findSomeCas(builder.users, aCasMap) == null) {
+                // Well... there is NOTHING here!
+                // All positions are irrelevant
+                aDiff.getPositions().forEach(
+                        p -> builder.irrelevantSets.add(aDiff.getConfigurtionSet(p)));
+            }
+            else {
+                builders.add(builder);
+            }
+        }
+        
+        if (builders.isEmpty()) {
+            return;
+        }
+        
+        TypeSystem ts = findSomeCas(aUsers, aCasMap).getTypeSystem();
+
         // This happens in our testcases when we feed the process with uninitialized CASes.
         // We should just do the right thing here which is: do nothing
         if (ts.getType(aType) == null) {
             // All positions are irrelevant
-            aDiff.getPositions().forEach(p -> irrelevantSets.add(aDiff.getConfigurtionSet(p)));
-            
-            return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                    irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
-                    incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
+            for (StudyBuilder builder : builders) {
+                aDiff.getPositions().forEach(
+                        p -> builder.irrelevantSets.add(aDiff.getConfigurtionSet(p)));
+            }
+            return;
         }
-        
+
         // Check that the feature really exists instead of just getting a NPE later
         if (ts.getType(aType).getFeatureByBaseName(aFeature) == null) {
             throw new IllegalArgumentException("Type [" + aType + "] has no feature called ["
@@ -239,7 +550,13 @@ public class AgreementUtils
         boolean isPrimitiveFeature = ts.getType(aType).getFeatureByBaseName(aFeature).getRange()
                 .isPrimitive();
         
-        nextPosition: for (Position p : aDiff.getPositions()) {
+        int[][] userIndexes = new int[builders.size()][];
+        for (int b = 0; b < builders.size(); b++) {
+            userIndexes[b] = builders.get(b).users.stream().mapToInt(aUsers::indexOf).toArray();
+        }
+        
+        Object[] values = new Object[aUsers.size()];
+        for (Position p : aDiff.getPositions()) {
             ConfigurationSet cfgSet = aDiff.getConfigurtionSet(p);
 
             // Only calculate agreement for the given layer
@@ -255,127 +572,95 @@ public class AgreementUtils
             // - if we are looking for a primitive type and encounter a subposition
             // - if we are looking for a non-primitive type and encounter a primary position
             // this is an inverted XOR!
-            if (!(isPrimitiveFeature ^ isSubPosition)) {
-                irrelevantSets.add(cfgSet);
-                continue;
-            }
-            
-            // Check if subposition is for the feature we are looking for or for a different 
+            // Also check if subposition is for the feature we are looking for or for a different
             // feature
-            if (isSubPosition && !aFeature.equals(cfgSet.getPosition().getFeature())) {
-                irrelevantSets.add(cfgSet);
-                continue nextPosition;
-            }
-            
-            // If non of the current users has made any annotation at this position, then skip it
-            if (users.stream().filter(u -> cfgSet.getCasGroupIds().contains(u)).count() == 0) {
-                irrelevantSets.add(cfgSet);
-                continue nextPosition;
+            if (!(isPrimitiveFeature ^ isSubPosition)
+                    || (isSubPosition && !aFeature.equals(cfgSet.getPosition().getFeature()))) {
+                for (StudyBuilder builder : builders) {
+                    builder.irrelevantSets.add(cfgSet);
+                }
+                continue;
             }
             
-            Object[] values = new Object[users.size()];
-            int i = 0;
-            for (String user : users) {
-                // Set has to include all users, otherwise we cannot calculate the agreement for
-                // this configuration set.
-                if (!cfgSet.getCasGroupIds().contains(user)) {
-                    if (aExcludeIncomplete) {
-                        // Record as incomplete
-                        incompleteSetsByPosition.add(cfgSet);
-                        continue nextPosition;
-                    }
-                    else {
-                        // Record as missing value
-                        values[i] = null;
-                        i++;
-                        continue;
-                    }
-                }
-                
-                // Make sure a single user didn't do multiple alternative annotations at a single
-                // position. So there is currently no support for calculating agreement on stacking
-                // annotations.
-                List<Configuration> cfgs = cfgSet.getConfigurations(user);
-                if (cfgs.size() > 1) {
-                    pluralitySets.add(cfgSet);
-                    continue nextPosition;
-                }
-
-                Configuration cfg = cfgs.get(0);
-                
-                // Only calculate agreement for the given feature
-                FeatureStructure fs = cfg.getFs(user, cfg.getPosition().getCasId(), aCasMap);
-
-                // BEGIN PARANOIA
-                assert fs.getType().getFeatureByBaseName(aFeature).getRange()
-                        .isPrimitive() == isPrimitiveFeature;
-                // primitive implies not subposition - if this is primitive and subposition, we
-                // should never have gotten here in the first place.
-                assert !isPrimitiveFeature || !isSubPosition; 
-                // END PARANOIA
-                
-                if (isPrimitiveFeature && !isSubPosition) {
-                    // Primitive feature / primary position
-                    values[i] = getFeature(fs, aFeature);
-                }
-                else if (!isPrimitiveFeature && isSubPosition) {
-                    // Link feature / sub-position
-                    ArrayFS links = (ArrayFS) fs.getFeatureValue(fs.getType().getFeatureByBaseName(
-                            aFeature));
-                    FeatureStructure link = links.get(cfg.getAID(user).index);
-                    
-                    switch (cfg.getPosition().getLinkCompareBehavior()) {
-                    case LINK_TARGET_AS_LABEL:
-                        // FIXME The target feature name should be obtained from the feature definition!
-                        AnnotationFS target = (AnnotationFS) link.getFeatureValue(link.getType()
-                                .getFeatureByBaseName("target"));
-                        
-                        values[i] = target.getBegin() + "-" + target.getEnd() + " ["
-                                + target.getCoveredText() + "]";
-                        break;
-                    case LINK_ROLE_AS_LABEL:
-                        // FIXME The role feature name should be obtained from the feature definition!
-                        String role = link.getStringValue(link.getType().getFeatureByBaseName(
-                                "role"));
-                        
-                        values[i] = role;
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown link target comparison mode ["
-                                + cfg.getPosition().getLinkCompareBehavior() + "]");
-                    }
-                }
-                else {
-                    throw new IllegalStateException("Should never get here: primitive: "
-                            + fs.getType().getFeatureByBaseName(aFeature).getRange()
-                                    .isPrimitive() + "; subpos: " + isSubPosition);
+            // The value of a user is only looked up once it is needed by a study and then shared
+            // with the studies of the other groups the user is part of.
+            Arrays.fill(values, UNRESOLVED);
+            IntFunction<Object> resolver = u -> {
+                if (values[u] == UNRESOLVED) {
+                    values[u] = getValue(cfgSet, aUsers.get(u), aFeature, isPrimitiveFeature,
+                            isSubPosition, aCasMap);
                 }
-
-                // "null" cannot be used in agreement calculations. We treat these as incomplete
-                if (aExcludeIncomplete && values[i] == null) {
-                    incompleteSetsByLabel.add(cfgSet);
-                    continue nextPosition;
-                }
-
-                i++;
+                return values[u];
+            };
+            
+            for (int b = 0; b < builders.size(); b++) {
+                builders.get(b).addItem(cfgSet, userIndexes[b], resolver, aExcludeIncomplete);
             }
 
-            if (ObjectUtils.notEqual(values[0], values[1])) {
-                setsWithDifferences.add(cfgSet);
-            }
-            
             // If the position feature is set (subposition), then it must match the feature we
             // are calculating agreement over
             assert !(cfgSet.getPosition().getFeature() != null)
                     || cfgSet.getPosition().getFeature().equals(aFeature);
-            
-            completeSets.add(cfgSet);
-            study.addItemAsArray(values);
         }
+    }
+    
+    /**
+     * Get the value a user assigned at the position of a configuration set.
+     * 
+     * @return the value or {@link #PLURALITY} if the user made multiple annotations there.
+     */
+    private static Object getValue(ConfigurationSet aCfgSet, String aUser, String aFeature,
+            boolean aIsPrimitiveFeature, boolean aIsSubPosition, Map<String, List<JCas>> aCasMap)
+    {
+        List<Configuration> cfgs = aCfgSet.getConfigurations(aUser);
+        if (cfgs.size() > 1) {
+            return PLURALITY;
+        }
+
+        Configuration cfg = cfgs.get(0);
         
-        return new AgreementResult(aType, aFeature, aDiff, study, users, completeSets,
-                irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
-                incompleteSetsByLabel, pluralitySets, aExcludeIncomplete);
+        // Only calculate agreement for the given feature
+        FeatureStructure fs = cfg.getFs(aUser, cfg.getPosition().getCasId(), aCasMap);
+
+        // BEGIN PARANOIA
+        assert fs.getType().getFeatureByBaseName(aFeature).getRange()
+                .isPrimitive() == aIsPrimitiveFeature;
+        // primitive implies not subposition - if this is primitive and subposition, we
+        // should never have gotten here in the first place.
+        assert !aIsPrimitiveFeature || !aIsSubPosition; 
+        // END PARANOIA
+        
+        if (aIsPrimitiveFeature && !aIsSubPosition) {
+            // Primitive feature / primary position
+            return getFeature(fs, aFeature);
+        }
+        else if (!aIsPrimitiveFeature && aIsSubPosition) {
+            // Link feature / sub-position
+            ArrayFS links = (ArrayFS) fs.getFeatureValue(fs.getType().getFeatureByBaseName(
+                    aFeature));
+            FeatureStructure link = links.get(cfg.getAID(aUser).index);
+            
+            switch (cfg.getPosition().getLinkCompareBehavior()) {
+            case LINK_TARGET_AS_LABEL:
+                // FIXME The target feature name should be obtained from the feature definition!
+                AnnotationFS target = (AnnotationFS) link.getFeatureValue(link.getType()
+                        .getFeatureByBaseName("target"));
+                
+                return target.getBegin() + "-" + target.getEnd() + " ["
+                        + target.getCoveredText() + "]";
+            case LINK_ROLE_AS_LABEL:
+                // FIXME The role feature name should be obtained from the feature definition!
+                return link.getStringValue(link.getType().getFeatureByBaseName("role"));
+            default:
+                throw new IllegalStateException("Unknown link target comparison mode ["
+                        + cfg.getPosition().getLinkCompareBehavior() + "]");
+            }
+        }
+        else {
+            throw new IllegalStateException("Should never get here: primitive: "
+                    + fs.getType().getFeatureByBaseName(aFeature).getRange()
+                            .isPrimitive() + "; subpos: " + aIsSubPosition);
+        }
     }
     
     public static void toCSV(CSVPrinter aOut, AgreementResult aAgreement) throws IOException
@@ -534,6 +819,7 @@ public class AgreementUtils
         private final String type;
         private final String feature;
         private final DiffResult diff;
+        private final int totalSetCount;
         private final ICodingAnnotationStudy study;
         private final List<ConfigurationSet> setsWithDifferences;
         private final List<ConfigurationSet> completeSets;
@@ -550,6 +836,7 @@ public class AgreementUtils
             type = aType;
             feature = aFeature;
             diff = null;
+            totalSetCount = 0;
             study = null;
             setsWithDifferences = null;
             completeSets = null;
@@ -569,10 +856,26 @@ public class AgreementUtils
                 List<ConfigurationSet> aIncompleteByLabel,
                 List<ConfigurationSet> aPluralitySets,
                 boolean aExcludeIncomplete)
+        {
+            this(aType, aFeature, aDiff, aDiff.getPositions().size(), aStudy, aCasGroupIds,
+                    aComplete, aIrrelevantSets, aSetsWithDifferences, aIncompleteByPosition,
+                    aIncompleteByLabel, aPluralitySets, aExcludeIncomplete);
+        }
+
+        private AgreementResult(String aType, String aFeature, DiffResult aDiff,
+                int aTotalSetCount, ICodingAnnotationStudy aStudy, List<String> aCasGroupIds,
+                List<ConfigurationSet> aComplete,
+                List<ConfigurationSet> aIrrelevantSets,
+                List<ConfigurationSet> aSetsWithDifferences,
+                List<ConfigurationSet> aIncompleteByPosition,
+                List<ConfigurationSet> aIncompleteByLabel,
+                List<ConfigurationSet> aPluralitySets,
+                boolean aExcludeIncomplete)
         {
             type = aType;
             feature = aFeature;
             diff = aDiff;
+            totalSetCount = aTotalSetCount;
             study = aStudy;
             setsWithDifferences = aSetsWithDifferences;
             completeSets = Collections.unmodifiableList(new ArrayList<>(aComplete));
@@ -675,12 +978,12 @@ public class AgreementUtils
 
         public int getTotalSetCount()
         {
-            return diff.getPositions().size();
+            return totalSetCount;
         }
         
         public int getRelevantSetCount()
         {
-            return diff.getPositions().size() - irrelevantSets.size();
+            return totalSetCount - irrelevantSets.size();
         }
         
         public double getAgreement()
@@ -693,6 +996,9 @@ public class AgreementUtils
             return study;
         }
         
+        /**
+         * @return the diff or {@code null} if the agreement was calculated document by document.
+         */
         public DiffResult getDiff()
         {
             return diff;
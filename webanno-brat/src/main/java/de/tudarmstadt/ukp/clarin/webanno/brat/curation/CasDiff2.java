@@ -28,6 +28,7 @@ import static org.apache.uima.fit.util.CasUtil.select;
 import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
 import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -41,6 +42,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
@@ -70,26 +75,37 @@ import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
 import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
 
+/**
+ * Calculates the differences between CASes. The configuration sets and configurations of a diff
+ * can be serialized once the diff has been calculated. They retain the positions and the addresses
+ * of the feature structures, but not the CASes or the state required to calculate the diff.
+ */
 public class CasDiff2
+    implements Serializable
 {
-    private final Log log = LogFactory.getLog(getClass());
+    private static final long serialVersionUID = 2460458328426380925L;
+
+    private final transient Log log = LogFactory.getLog(getClass());
     
-    private Map<String, List<CAS>> cases = new LinkedHashMap<>();
+    private transient Map<String, List<CAS>> cases = new LinkedHashMap<>();
     
-    private final Map<Position, ConfigurationSet> configSets = new TreeMap<>();
+    private final transient Map<Position, ConfigurationSet> configSets = new TreeMap<>();
 
-    private final Map<String, String[]> sortedFeaturesCache = new HashMap<>();
+    private final transient Map<String, String[]> labelFeaturesCache = new ConcurrentHashMap<>();
 
     private int begin;
     
     private int end;
     
-    private final Map<String, DiffAdapter> typeAdapters = new HashMap<>();
+    private final transient Map<String, DiffAdapter> typeAdapters = new ConcurrentHashMap<>();
     
     private final LinkCompareBehavior linkCompareBehavior;
 
     private boolean recurseIntoLinkFeatures = false;
     
+    // IDs of the type, feature and role names of the positions created in this diff
+    private final transient NameTable names = new NameTable();
+    
     private CasDiff2(int aBegin, int aEnd, Collection<? extends DiffAdapter> aAdapters,
             LinkCompareBehavior aLinkCompareBehavior)
     {
@@ -211,6 +227,11 @@ public class CasDiff2
     /**
      * Calculate the differences between CASes. This method scopes the calculation of differences to
      * a span instead of calculating them on the whole text.
+     * <p>
+     * Positions never span across documents, i.e. across different CAS IDs. Thus, the differences
+     * are calculated for each document independently and in parallel if there are multiple
+     * documents. The results are then merged into a single diff result which is the same as if
+     * the documents had been processed one after another.
      * 
      * @param aEntryTypes
      *            the types for which differences are to be calculated.
@@ -233,20 +254,53 @@ public class CasDiff2
         
         CasDiff2 diff = new CasDiff2(aBegin, aEnd, aAdapters, aLinkCompareBehavior);
         
+        // Register all CASes up front - the per-document diffs below only read this
+        int casCount = 0;
         for (Entry<String, List<JCas>> e : aCasMap.entrySet()) {
-            int casId = 0;
+            List<CAS> casList = new ArrayList<>();
             for (JCas jcas : e.getValue()) {
-                for (String type : aEntryTypes) {
-                    // null elements in the list can occur if a user has never worked on a CAS
-                    diff.addCas(e.getKey(), casId, jcas != null ? jcas.getCas() : null, type);
-                }
-                casId++;
+                // null elements in the list can occur if a user has never worked on a CAS
+                casList.add(jcas != null ? jcas.getCas() : null);
             }
+            diff.cases.put(e.getKey(), casList);
+            casCount = Math.max(casCount, casList.size());
+        }
+        
+        // Resolve the adapters for the entry types before going parallel
+        for (String type : aEntryTypes) {
+            diff.getAdapter(type);
+        }
+        
+        IntStream casIds = IntStream.range(0, casCount);
+        if (casCount > 1) {
+            casIds = casIds.parallel();
+        }
+        List<Map<Position, ConfigurationSet>> documentConfigSets = casIds
+                .mapToObj(casId -> diff.diffDocument(casId, aEntryTypes))
+                .collect(Collectors.toList());
+        for (Map<Position, ConfigurationSet> sets : documentConfigSets) {
+            diff.configSets.putAll(sets);
         }
         
         return new DiffResult(diff);
     }
     
+    /**
+     * Calculate the configuration sets for the CASes of all CAS groups at the given CAS ID, i.e.
+     * for a single document.
+     */
+    private Map<Position, ConfigurationSet> diffDocument(int aCasId, List<String> aEntryTypes)
+    {
+        Map<Position, ConfigurationSet> sets = new TreeMap<>();
+        for (Entry<String, List<CAS>> e : cases.entrySet()) {
+            CAS cas = aCasId < e.getValue().size() ? e.getValue().get(aCasId) : null;
+            for (String type : aEntryTypes) {
+                addCas(sets, e.getKey(), aCasId, cas, type);
+            }
+        }
+        return sets;
+    }
+    
     /**
      * Sanity check - all CASes should have the same text.
      */
@@ -281,20 +335,19 @@ public class CasDiff2
     
     private DiffAdapter getAdapter(String aType)
     {
-        DiffAdapter adapter = typeAdapters.get(aType);
-        if (adapter == null) {
-            log.warn("No diff adapter for type [" + aType + "] -- treating as without features");
-            adapter = new SpanDiffAdapter(aType, Collections.EMPTY_SET);
-            typeAdapters.put(aType, adapter);
-        }
-        return adapter;
+        return typeAdapters.computeIfAbsent(aType, t -> {
+            log.warn("No diff adapter for type [" + t + "] -- treating as without features");
+            return new SpanDiffAdapter(t, Collections.emptySet());
+        });
     }
     
     /**
-     * CASes are added to the diff one after another, building the diff iteratively. A CAS can be
-     * added multiple times for different types. Make sure a CAS is not added twice with the same
-     * type!
+     * CASes of a document are added to the diff one after another, building the diff iteratively.
+     * A CAS can be added multiple times for different types. Make sure a CAS is not added twice
+     * with the same type!
      * 
+     * @param aConfigSets
+     *            the configuration sets of the document.
      * @param aCasGroupId
      *            the ID of the CAS group to add.
      * @param aCas
@@ -302,25 +355,9 @@ public class CasDiff2
      * @param aType
      *            the type on which to calculate the diff.
      */
-    private void addCas(String aCasGroupId, int aCasId, CAS aCas, String aType)
+    private void addCas(Map<Position, ConfigurationSet> aConfigSets, String aCasGroupId,
+            int aCasId, CAS aCas, String aType)
     {
-        // Remember that we have already seen this CAS.
-        List<CAS> casList = cases.get(aCasGroupId);
-        if (casList == null) {
-            casList = new ArrayList<>();
-            cases.put(aCasGroupId, casList);
-        }
-        
-        // Avoid adding same CAS twice in cases where we add multiple types from a CAS. If the
-        // current CAS ID is greater than the size of the current CAS list, then we did not add
-        // it yet. Before, we checked whether the casList already contained the current CAS, but
-        // that failed when we had multiple "null" CASes.
-        if ((casList.size() - 1) < aCasId) {
-            casList.add(aCas);
-        }
-        assert (casList.size() - 1) == aCasId : "Expected CAS ID [" + (casList.size() - 1)
-                + "] but was [" + aCasId + "]";
-        
         // null elements in the list can occur if a user has never worked on a CAS
         // We add these to the internal list above, but then we bail out here.
         if (aCas == null) {
@@ -366,7 +403,7 @@ public class CasDiff2
                     + annotations.size() + "] annotations of type [" + aType + "]");
         }
 
-        int posBefore = configSets.keySet().size();
+        int posBefore = aConfigSets.keySet().size();
         log.debug("Positions before: [" + posBefore + "]");
 
         for (AnnotationFS fs : annotations) {
@@ -379,10 +416,14 @@ public class CasDiff2
             positions.addAll(getAdapter(aType).generateSubPositions(aCasId, fs, linkCompareBehavior));
 
             for (Position pos : positions) {
-                ConfigurationSet configSet = configSets.get(pos);
+                if (pos instanceof Position_ImplBase) {
+                    ((Position_ImplBase) pos).internNames(names);
+                }
+                
+                ConfigurationSet configSet = aConfigSets.get(pos);
                 if (configSet == null) {
                     configSet = new ConfigurationSet(pos);
-                    configSets.put(pos, configSet);
+                    aConfigSets.put(pos, configSet);
                 }
                 
     //          REC: appears to be left-over debug code that can be removed...  
@@ -398,8 +439,8 @@ public class CasDiff2
             }
         }
 
-        log.debug("Positions after: [" + configSets.keySet().size() + "] (delta: "
-                + (configSets.keySet().size() - posBefore) + ")");
+        log.debug("Positions after: [" + aConfigSets.keySet().size() + "] (delta: "
+                + (aConfigSets.keySet().size() - posBefore) + ")");
 
 //        
 //        // Remember that we have processed the type
@@ -432,7 +473,7 @@ public class CasDiff2
      * position in the document are collected under this. Within the position, there are groups
      * that represent the different configurations of the annotation made by different users.
      */
-    public static interface Position extends Comparable<Position>
+    public static interface Position extends Comparable<Position>, Serializable
     {
         /**
          * @return the CAS id.
@@ -466,16 +507,50 @@ public class CasDiff2
         String toMinimalString();
     }
     
+    /**
+     * IDs of the names used in the positions of a single diff. The table lives only as long as the
+     * positions of the diff, so user-defined names such as role labels are not retained after the
+     * diff has been discarded.
+     */
+    private static final class NameTable
+    {
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private final AtomicInteger nextId = new AtomicInteger();
+        
+        int id(String aName)
+        {
+            if (aName == null) {
+                return -1;
+            }
+            return ids.computeIfAbsent(aName, n -> nextId.getAndIncrement());
+        }
+    }
+    
+    /**
+     * Positions store type, feature and role names. Positions created by the same diff also store
+     * an ID of each name from the {@link NameTable} of the diff. The IDs allow to check names for
+     * equality without comparing the strings. Offsets are stored in
+     * pairs packed into a single {@code long} such that comparing the packed values orders them
+     * the same way as comparing the offsets one after another.
+     */
     public static abstract class Position_ImplBase implements Position
     {
+        private static final long serialVersionUID = -3591393465497349380L;
+
+        // The name IDs are only valid within the table of a single diff, so they are not
+        // serialized
+        private transient NameTable names;
+        
         private final String type;
+        private transient int typeId;
         private final int casId;
         private final String feature;
+        private transient int featureId;
 
         private final String role;
+        private transient int roleId;
         
-        private final int linkTargetBegin;
-        private final int linkTargetEnd;
+        private final long linkTarget;
         private final String linkTargetText;
 
         private final LinkCompareBehavior linkCompareBehavior;
@@ -494,8 +569,7 @@ public class CasDiff2
             linkCompareBehavior = aBehavior;
 
             role = aRole;
-            linkTargetBegin = aLinkTargetBegin;
-            linkTargetEnd = aLinkTargetEnd;
+            linkTarget = pack(aLinkTargetBegin, aLinkTargetEnd);
             linkTargetText = aLinkTargetText;
 
             collectionId = aCollectionId;
@@ -529,13 +603,13 @@ public class CasDiff2
         @Override
         public int getLinkTargetBegin()
         {
-            return linkTargetBegin;
+            return high(linkTarget);
         }
         
         @Override
         public int getLinkTargetEnd()
         {
-            return linkTargetEnd;
+            return low(linkTarget);
         }
         
         @Override
@@ -562,14 +636,23 @@ public class CasDiff2
                 return casId - aOther.getCasId();
             }
             
-            int typeCmp = type.compareTo(aOther.getType());
-            if (typeCmp != 0) {
-                return typeCmp;
+            // The name IDs can only be compared if both positions come from the same diff
+            Position_ImplBase other = aOther instanceof Position_ImplBase
+                    && names != null && ((Position_ImplBase) aOther).names == names
+                            ? (Position_ImplBase) aOther : null;
+            
+            if (other == null || typeId != other.typeId) {
+                int typeCmp = type.compareTo(aOther.getType());
+                if (typeCmp != 0) {
+                    return typeCmp;
+                }
             }
 
-            int featureCmp = ObjectUtils.compare(feature, aOther.getFeature());
-            if (featureCmp != 0) {
-                return featureCmp;
+            if (other == null || featureId != other.featureId) {
+                int featureCmp = ObjectUtils.compare(feature, aOther.getFeature());
+                if (featureCmp != 0) {
+                    return featureCmp;
+                }
             }
 
             int linkCmpCmp = ObjectUtils.compare(linkCompareBehavior, aOther.getLinkCompareBehavior());
@@ -587,14 +670,14 @@ public class CasDiff2
                 switch (linkCompareBehavior) {
                 case LINK_TARGET_AS_LABEL:
                     // Include role into position
+                    if (other != null && roleId == other.roleId) {
+                        return 0;
+                    }
                     return ObjectUtils.compare(role, aOther.getRole());
                 case LINK_ROLE_AS_LABEL:
                     // Include target into position
-                    if (linkTargetBegin != aOther.getLinkTargetBegin()) {
-                        return linkTargetBegin - aOther.getLinkTargetBegin();
-                    }
-                    
-                    return linkTargetEnd - aOther.getLinkTargetEnd();
+                    return Long.compare(linkTarget, pack(aOther.getLinkTargetBegin(),
+                            aOther.getLinkTargetEnd()));
                 default:
                     throw new IllegalStateException("Unknown link target comparison mode ["
                             + linkCompareBehavior + "]");
@@ -605,6 +688,33 @@ public class CasDiff2
             }
         }
         
+        /**
+         * Pack two offsets into a {@code long}. Comparing packed values yields the same order as
+         * comparing the first offsets and then the second offsets.
+         */
+        protected static long pack(int aHigh, int aLow)
+        {
+            return ((long) aHigh << 32) | ((aLow ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+
+        protected static int high(long aPacked)
+        {
+            return (int) (aPacked >> 32);
+        }
+
+        protected static int low(long aPacked)
+        {
+            return ((int) aPacked) ^ Integer.MIN_VALUE;
+        }
+
+        private void internNames(NameTable aNames)
+        {
+            typeId = aNames.id(type);
+            featureId = aNames.id(feature);
+            roleId = aNames.id(role);
+            names = aNames;
+        }
+        
         protected void toStringFragment(StringBuilder builder)
         {
             builder.append("cas=");
@@ -650,8 +760,10 @@ public class CasDiff2
      */
     public static class SpanPosition extends Position_ImplBase
     {
-        private final int begin;
-        private final int end;
+        private static final long serialVersionUID = -1838640898914442766L;
+
+        // begin ascending, end descending
+        private final long span;
         private final String text;
 
         public SpanPosition(String aCollectionId, String aDocumentId, int aCasId, String aType,
@@ -660,8 +772,7 @@ public class CasDiff2
         {
             super(aCollectionId, aDocumentId, aCasId, aType, aFeature, aRole, aLinkTargetBegin,
                     aLinkTargetEnd, aLinkTargetText, aLinkCompareBehavior);
-            begin = aBegin;
-            end = aEnd;
+            span = pack(aBegin, ~aEnd);
             text = aText;
         }
         
@@ -670,7 +781,7 @@ public class CasDiff2
          */
         public int getBegin()
         {
-            return begin;
+            return high(span);
         }
 
         /**
@@ -678,7 +789,7 @@ public class CasDiff2
          */
         public int getEnd()
         {
-            return end;
+            return ~low(span);
         }
 
         @Override
@@ -692,13 +803,7 @@ public class CasDiff2
             // begin ascending
             // end descending
             else {
-                SpanPosition otherSpan = (SpanPosition) aOther;
-                if (begin == otherSpan.begin) {
-                    return otherSpan.end - end;
-                }
-                else {
-                    return begin - otherSpan.begin;
-                }
+                return Long.compare(span, ((SpanPosition) aOther).span);
             }
         }
 
@@ -708,7 +813,7 @@ public class CasDiff2
             StringBuilder builder = new StringBuilder();
             builder.append("Span [");
             toStringFragment(builder);
-            builder.append(", span=(").append(begin).append('-').append(end).append(')');
+            builder.append(", span=(").append(getBegin()).append('-').append(getEnd()).append(')');
             builder.append('[').append(text).append(']');
             builder.append(']');
             return builder.toString();
@@ -718,7 +823,8 @@ public class CasDiff2
         public String toMinimalString()
         {
             StringBuilder builder = new StringBuilder();
-            builder.append(begin).append('-').append(end).append(" [").append(text).append(']');
+            builder.append(getBegin()).append('-').append(getEnd()).append(" [").append(text)
+                    .append(']');
             return builder.toString();
         }
     }
@@ -728,11 +834,12 @@ public class CasDiff2
      */
     public static class ArcPosition extends Position_ImplBase
     {
-        private final int sourceBegin;
-        private final int sourceEnd;
+        private static final long serialVersionUID = 6981498287049734498L;
+
+        // begin ascending, end descending
+        private final long source;
         private final String sourceText;
-        private final int targetBegin;
-        private final int targetEnd;
+        private final long target;
         private final String targetText;
 
         public ArcPosition(String aCollectionId, String aDocumentId, int aCasId, String aType,
@@ -743,11 +850,9 @@ public class CasDiff2
         {
             super(aCollectionId, aDocumentId, aCasId, aType, aFeature, aRole, aLinkTargetBegin,
                     aLinkTargetEnd, aLinkTargetText, aLinkCompareBehavior);
-            sourceBegin = aSourceBegin;
-            sourceEnd = aSourceEnd;
+            source = pack(aSourceBegin, ~aSourceEnd);
             sourceText = aSourceText;
-            targetBegin = aTargetBegin;
-            targetEnd = aTargetEnd;
+            target = pack(aTargetBegin, ~aTargetEnd);
             targetText = aTargetText;
         }
         
@@ -756,7 +861,7 @@ public class CasDiff2
          */
         public int getSourceBegin()
         {
-            return sourceBegin;
+            return high(source);
         }
 
         /**
@@ -764,7 +869,7 @@ public class CasDiff2
          */
         public int getSourceEnd()
         {
-            return sourceEnd;
+            return ~low(source);
         }
 
         /**
@@ -772,7 +877,7 @@ public class CasDiff2
          */
         public int getTargetBegin()
         {
-            return targetBegin;
+            return high(target);
         }
 
         /**
@@ -780,7 +885,7 @@ public class CasDiff2
          */
         public int getTargetEnd()
         {
-            return targetEnd;
+            return ~low(target);
         }
 
         @Override
@@ -794,18 +899,12 @@ public class CasDiff2
             // begin ascending
             // end descending
             else {
-                ArcPosition otherSpan = (ArcPosition) aOther;
-                if (sourceBegin != otherSpan.sourceBegin) {
-                    return sourceBegin - otherSpan.sourceBegin;
-                }
-                else if (sourceEnd != otherSpan.sourceEnd) {
-                    return otherSpan.sourceEnd - sourceEnd;
-                }
-                else if (targetBegin != otherSpan.targetBegin) {
-                    return targetBegin - otherSpan.targetBegin;
+                ArcPosition otherArc = (ArcPosition) aOther;
+                if (source != otherArc.source) {
+                    return Long.compare(source, otherArc.source);
                 }
                 else {
-                    return otherSpan.targetEnd - targetEnd;
+                    return Long.compare(target, otherArc.target);
                 }
             }
         }
@@ -816,9 +915,9 @@ public class CasDiff2
             StringBuilder builder = new StringBuilder();
             builder.append("Arc [");
             toStringFragment(builder);
-            builder.append(", source=(").append(sourceBegin).append('-').append(sourceEnd).append(')');
+            builder.append(", source=(").append(getSourceBegin()).append('-').append(getSourceEnd()).append(')');
             builder.append('[').append(sourceText).append(']');
-            builder.append(", target=(").append(targetBegin).append('-').append(targetEnd).append(')');
+            builder.append(", target=(").append(getTargetBegin()).append('-').append(getTargetEnd()).append(')');
             builder.append('[').append(targetText).append(']');
             builder.append("]");
             return builder.toString();
@@ -828,9 +927,9 @@ public class CasDiff2
         public String toMinimalString()
         {
             StringBuilder builder = new StringBuilder();
-            builder.append("(").append(sourceBegin).append('-').append(sourceEnd).append(')');
+            builder.append("(").append(getSourceBegin()).append('-').append(getSourceEnd()).append(')');
             builder.append('[').append(sourceText).append(']');
-            builder.append(" -> (").append(targetBegin).append('-').append(targetEnd).append(')');
+            builder.append(" -> (").append(getTargetBegin()).append('-').append(getTargetEnd()).append(')');
             builder.append(" [").append(targetText).append(']');
             return builder.toString();
         }
@@ -840,10 +939,15 @@ public class CasDiff2
      * The set of configurations seen at a particular position.
      */
     public class ConfigurationSet
+        implements Serializable
     {
+        private static final long serialVersionUID = 4571309440466323046L;
+
         private final Position position;
         private List<Configuration> configurations = new ArrayList<>();
         private Set<String> casGroupIds = new LinkedHashSet<>();
+        private int begin = Integer.MAX_VALUE;
+        private int end = -1;
         
         public ConfigurationSet(Position aPosition)
         {
@@ -856,6 +960,11 @@ public class CasDiff2
                 return;
             }
             
+            if (aFS instanceof AnnotationFS) {
+                begin = Math.min(begin, ((AnnotationFS) aFS).getBegin());
+                end = Math.max(end, ((AnnotationFS) aFS).getEnd());
+            }
+            
             if (position.getFeature() == null) {
                 // Check if this configuration is already present
                 Configuration configuration = null;
@@ -971,6 +1080,24 @@ public class CasDiff2
             return i;
         }
         
+        /**
+         * @return the smallest begin offset of the annotations in this set or
+         *         {@link Integer#MAX_VALUE} if it contains no annotations.
+         */
+        public int getBegin()
+        {
+            return begin;
+        }
+        
+        /**
+         * @return the largest end offset of the annotations in this set or {@code -1} if it
+         *         contains no annotations.
+         */
+        public int getEnd()
+        {
+            return end;
+        }
+        
         /**
          * @return the IDs of the CASes in which this configuration set has been observed.
          */
@@ -1051,19 +1178,6 @@ public class CasDiff2
 
         assert type1.getNumberOfFeatures() == type2.getNumberOfFeatures();
 
-        // Sort features by name to be independent over implementation details that may change the
-        // order of the features as returned from Type.getFeatures().
-        String[] cachedSortedFeatures = sortedFeaturesCache.get(type1.getName());
-        if (cachedSortedFeatures == null) {
-            cachedSortedFeatures = new String[type1.getNumberOfFeatures()];
-            int i = 0;
-            for (Feature f : aFS1.getType().getFeatures()) {
-                cachedSortedFeatures[i] = f.getShortName();
-                i++;
-            }
-            sortedFeaturesCache.put(type1.getName(), cachedSortedFeatures);
-        }
-        
         DiffAdapter adapter = typeAdapters.get(type1.getName());
 
         if (adapter == null) {
@@ -1071,21 +1185,13 @@ public class CasDiff2
             return true;
         }
 
-        // Only consider label features. In particular these must not include position features
-        // such as begin, end, etc.
-        List<String> sortedFeatures = new ArrayList<>(asList(cachedSortedFeatures));
-        Set<String> labelFeatures = adapter.getLabelFeatures();
-        sortedFeatures.removeIf(f -> !labelFeatures.contains(f));
-
-        if (!recurseIntoLinkFeatures ) {
-            // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse into
-            // link features (or rather into any features that are covered by their own
-            // sub-positions). So when when comparing two spans that differ only in their slots
-            // (sub-positions) the main position could still exhibit agreement.
-            sortedFeatures.removeIf(f -> adapter.getLinkFeature(f) != null);
+        String[] labelFeatures = labelFeaturesCache.get(type1.getName());
+        if (labelFeatures == null) {
+            labelFeatures = getLabelFeatures(adapter, type1);
+            labelFeaturesCache.put(type1.getName(), labelFeatures);
         }
         
-        for (String feature : sortedFeatures) {
+        for (String feature : labelFeatures) {
             Feature f1 = type1.getFeatureByBaseName(feature);
             Feature f2 = type2.getFeatureByBaseName(feature);
             
@@ -1169,6 +1275,35 @@ public class CasDiff2
         return true;
     }
     
+    /**
+     * Determine the features of the given type which are compared by {@link #equalsFS}. The
+     * features are sorted by name to be independent over implementation details that may change
+     * the order of the features as returned from {@link Type#getFeatures()}.
+     */
+    private String[] getLabelFeatures(DiffAdapter aAdapter, Type aType)
+    {
+        List<String> features = new ArrayList<>();
+        for (Feature f : aType.getFeatures()) {
+            // Only consider label features. In particular these must not include position
+            // features such as begin, end, etc.
+            if (!aAdapter.getLabelFeatures().contains(f.getShortName())) {
+                continue;
+            }
+            
+            // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse into
+            // link features (or rather into any features that are covered by their own
+            // sub-positions). So when when comparing two spans that differ only in their slots
+            // (sub-positions) the main position could still exhibit agreement.
+            if (!recurseIntoLinkFeatures && aAdapter.getLinkFeature(f.getShortName()) != null) {
+                continue;
+            }
+            
+            features.add(f.getShortName());
+        }
+        Collections.sort(features);
+        return features.toArray(new String[features.size()]);
+    }
+    
     private boolean equalsAnnotationFS(AnnotationFS aFS1, AnnotationFS aFS2)
     {
         // Null check
@@ -1189,7 +1324,10 @@ public class CasDiff2
      * observed in multiple CASes. 
      */
     public class Configuration
+        implements Serializable
     {
+        private static final long serialVersionUID = -3716651713637329442L;
+
         private final Position position;
         private final Map<String, AID> fsAddresses = new TreeMap<>();
 
@@ -1288,8 +1426,12 @@ public class CasDiff2
                 sb.append(':');
                 sb.append(e.getValue());
             }
-            sb.append("] -> ");
-            sb.append(getRepresentative());
+            sb.append(']');
+            // The CASes are no longer available if they have been released or serialized
+            if (cases != null && cases.containsKey(fsAddresses.keySet().iterator().next())) {
+                sb.append(" -> ");
+                sb.append(getRepresentative());
+            }
             return sb.toString();
         }
     }
@@ -1301,6 +1443,7 @@ public class CasDiff2
     {
         private final Map<Position, ConfigurationSet> data;
         private final Set<String> casGroupIds;
+        private final Map<String, List<CAS>> cases;
         private final Map<ConfigurationSet, Boolean> completenessCache = new HashMap<>();
         private final boolean cachedHasDifferences;
         
@@ -1308,9 +1451,21 @@ public class CasDiff2
         {
             data = Collections.unmodifiableMap(aDiff.configSets);
             casGroupIds = new LinkedHashSet<>(aDiff.cases.keySet());
+            cases = aDiff.cases;
             cachedHasDifferences = !getDifferingConfigurationSets().isEmpty();
         }
         
+        /**
+         * Drop the references to the CASes that were diffed, so they can be garbage collected
+         * while the configuration sets are still in use. Afterwards, feature structures can only
+         * be accessed via the {@code getFs} methods of the configurations which take the CASes as
+         * a parameter.
+         */
+        void releaseCases()
+        {
+            cases.clear();
+        }
+        
         public boolean hasDifferences()
         {
             return cachedHasDifferences;
@@ -1346,13 +1501,7 @@ public class CasDiff2
          */
         public boolean isAgreement(ConfigurationSet aConfigurationSet)
         {
-            if (!data.containsValue(aConfigurationSet)) {
-                throw new IllegalArgumentException("Configuration set does not belong to this diff");
-            }
-
-            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
-                throw new IllegalArgumentException("Configuration set position mismatch");
-            }
+            checkMember(aConfigurationSet);
             
             // If there is only a single configuration in the set, we call it an agreement
             if (aConfigurationSet.configurations.size() == 1) {
@@ -1382,13 +1531,7 @@ public class CasDiff2
          */
         public boolean isComplete(ConfigurationSet aConfigurationSet)
         {
-            if (!data.containsValue(aConfigurationSet)) {
-                throw new IllegalArgumentException("Configuration set does not belong to this diff");
-            }
-
-            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
-                throw new IllegalArgumentException("Configuration set position mismatch");
-            }
+            checkMember(aConfigurationSet);
 
             Boolean complete = completenessCache.get(aConfigurationSet);
             if (complete == null) {
@@ -1403,6 +1546,17 @@ public class CasDiff2
             return complete;
         }
         
+        /**
+         * Every configuration set is stored under its own position, so looking it up by position
+         * tells whether it belongs to this diff.
+         */
+        private void checkMember(ConfigurationSet aConfigurationSet)
+        {
+            if (data.get(aConfigurationSet.position) != aConfigurationSet) {
+                throw new IllegalArgumentException("Configuration set does not belong to this diff");
+            }
+        }
+        
         public Map<Position, ConfigurationSet> getDifferingConfigurationSets()
         {
             Map<Position, ConfigurationSet> diffs = new LinkedHashMap<>();
@@ -1461,7 +1615,11 @@ public class CasDiff2
         }
     }
     
-    public static class AID {
+    public static class AID
+        implements Serializable
+    {
+        private static final long serialVersionUID = 4960284839464318052L;
+
         public final int addr;
         public final String feature;
         public final int index;
@@ -30,20 +30,22 @@ import static org.apache.uima.fit.util.JCasUtil.selectCovered;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.FeatureStructure;
 import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.text.AnnotationFS;
-import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.jcas.JCas;
 import org.springframework.security.core.context.SecurityContextHolder;
 
@@ -55,6 +57,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDetailEditorPanel.LinkWithRoleModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RelationIndex;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.Configuration;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ConfigurationSet;
@@ -171,17 +174,9 @@ public class SuggestionBuilder
         for (Integer begin : segmentBeginEnd.keySet()) {
             Integer end = segmentBeginEnd.get(begin);
 
-            DiffResult diff = CasDiff2.doDiffSingle(annotationService, aBModel.getProject(),
-                    entryTypes, LinkCompareBehavior.LINK_ROLE_AS_LABEL, jCases, begin, end);
             SourceListView curationSegment = new SourceListView();
             curationSegment.setBegin(begin);
             curationSegment.setEnd(end);
-            if (diff.hasDifferences() || !diff.getIncompleteConfigurationSets().isEmpty()) {
-                curationSegment.setSentenceState(SentenceState.DISAGREE);
-            }
-            else {
-                curationSegment.setSentenceState(SentenceState.AGREE);
-            }
             curationSegment.setSentenceNumber(segmentNumber.get(begin));
 
             for (String username : segmentAdress.keySet()) {
@@ -190,9 +185,105 @@ public class SuggestionBuilder
             }
             curationContainer.getCurationViewByBegin().put(begin, curationSegment);
         }
+        
+        updateSegmentStates(curationContainer.getCurationViewByBegin().values(), aBModel,
+                entryTypes, jCases);
+        
         return curationContainer;
     }
 
+    /**
+     * Update the agreement states of the segments of a container which overlap the given span,
+     * e.g. after an annotation in this span has been edited. Only these segments are diffed again.
+     * If the container does not cover the current display window, a new one is built.
+     */
+    public CurationContainer updateCurationContainer(CurationContainer aContainer,
+            BratAnnotatorModel aBModel, int aBegin, int aEnd)
+        throws UIMAException, ClassNotFoundException, IOException, BratAnnotationException
+    {
+        if (aContainer == null || !aContainer.getCurationViewByBegin().containsKey(
+                aBModel.getSentenceBeginOffset())) {
+            return buildCurationContainer(aBModel);
+        }
+        
+        List<SourceListView> segments = new ArrayList<>();
+        for (SourceListView segment : aContainer.getCurationViewByBegin().values()) {
+            if (segment.getBegin() <= aEnd && segment.getEnd() >= aBegin) {
+                segments.add(segment);
+            }
+        }
+        
+        if (!segments.isEmpty()) {
+            Map<String, JCas> jCases;
+            if (aBModel.getMode().equals(Mode.AUTOMATION)
+                    || aBModel.getMode().equals(Mode.CORRECTION)) {
+                jCases = listJcasesforCorrection(null, aBModel.getDocument(), aBModel.getMode());
+            }
+            else {
+                jCases = listJcasesforCuration(
+                        repository.listAnnotationDocuments(aBModel.getDocument()), null,
+                        aBModel.getMode());
+            }
+            
+            if (!jCases.isEmpty()) {
+                List<Type> entryTypes = getEntryTypes(jCases.values().iterator().next(),
+                        aBModel.getAnnotationLayers(), annotationService);
+                updateSegmentStates(segments, aBModel, entryTypes, jCases);
+            }
+        }
+        
+        return aContainer;
+    }
+    
+    /**
+     * Diff the range covered by the given segments once and derive the agreement state of each
+     * segment from that diff.
+     */
+    private void updateSegmentStates(Collection<SourceListView> aSegments,
+            BratAnnotatorModel aBModel, List<Type> aEntryTypes, Map<String, JCas> aJCases)
+    {
+        if (aSegments.isEmpty()) {
+            return;
+        }
+        
+        int diffBegin = Integer.MAX_VALUE;
+        int diffEnd = -1;
+        for (SourceListView segment : aSegments) {
+            diffBegin = Math.min(diffBegin, segment.getBegin());
+            diffEnd = Math.max(diffEnd, segment.getEnd());
+        }
+        
+        DiffResult diff = CasDiff2.doDiffSingle(annotationService, aBModel.getProject(),
+                aEntryTypes, LinkCompareBehavior.LINK_ROLE_AS_LABEL, aJCases, diffBegin,
+                diffEnd);
+        updateSegmentStates(aSegments, diff);
+    }
+    
+    /**
+     * Set the agreement states of the given segments from a diff covering all of them. A segment
+     * disagrees if it covers a configuration set which has differences or is incomplete. This is
+     * the same as diffing each segment on its own, because a diff scoped to a segment only
+     * includes the annotations covered by the segment.
+     */
+    static void updateSegmentStates(Collection<SourceListView> aSegments, DiffResult aDiff)
+    {
+        // Index the sets causing disagreement by their begin offset
+        TreeMap<Integer, List<ConfigurationSet>> disagreeing = new TreeMap<>();
+        List<ConfigurationSet> sets = new ArrayList<>();
+        sets.addAll(aDiff.getDifferingConfigurationSets().values());
+        sets.addAll(aDiff.getIncompleteConfigurationSets().values());
+        for (ConfigurationSet set : sets) {
+            disagreeing.computeIfAbsent(set.getBegin(), k -> new ArrayList<>()).add(set);
+        }
+        
+        for (SourceListView segment : aSegments) {
+            boolean disagree = disagreeing
+                    .subMap(segment.getBegin(), true, segment.getEnd(), true).values().stream()
+                    .flatMap(List::stream).anyMatch(set -> set.getEnd() <= segment.getEnd());
+            segment.setSentenceState(disagree ? SentenceState.DISAGREE : SentenceState.AGREE);
+        }
+    }
+
     private void updateCrossSentAnnoList(Map<Integer, Integer> segmentBeginEnd,
             Map<String, JCas> jCases, List<Type> entryTypes)
     {
@@ -659,29 +750,25 @@ public class SuggestionBuilder
 
     private void setDanglingRelToDel(JCas aMergeJCas, FeatureStructure aFs, List<Type> aEntryTypes,  Set<FeatureStructure> aRelsToDel)
     {
-        checkPerType: for (Type type : aEntryTypes) {
-            for (FeatureStructure fs : CasUtil.selectFS(aMergeJCas.getCas(), type)) {
-                Type t = fs.getType();
-                Feature sourceFeat = t.getFeatureByBaseName(WebAnnoConst.FEAT_REL_SOURCE);
-                Feature targetFeat = t.getFeatureByBaseName(WebAnnoConst.FEAT_REL_TARGET);
-
-                // Is this a relation?
-                if (!(sourceFeat != null && targetFeat != null)) {
-                    continue checkPerType;
-                }
-                else {
-                    FeatureStructure source = fs.getFeatureValue(sourceFeat);
-                    FeatureStructure target = fs.getFeatureValue(targetFeat);
-                    if (source.equals(aFs)) {
-                        aRelsToDel.add(fs);
-                    }
-                    if (target.equals(aFs)) {
-                        aRelsToDel.add(fs);
-                    }
-                }
+        TypeSystem ts = aMergeJCas.getTypeSystem();
+        for (int address : RelationIndex.get(aMergeJCas).getAttached(aFs)) {
+            FeatureStructure fs = selectByAddr(aMergeJCas, address);
+            Type t = fs.getType();
+            Feature sourceFeat = t.getFeatureByBaseName(WebAnnoConst.FEAT_REL_SOURCE);
+            Feature targetFeat = t.getFeatureByBaseName(WebAnnoConst.FEAT_REL_TARGET);
+
+            if (!aEntryTypes.stream().anyMatch(type -> ts.subsumes(type, t))) {
+                continue;
+            }
+
+            FeatureStructure source = fs.getFeatureValue(sourceFeat);
+            FeatureStructure target = fs.getFeatureValue(targetFeat);
+            if (aFs.equals(source) || aFs.equals(target)) {
+                aRelsToDel.add(fs);
             }
         }
     }
+
     private JCas createCorrectionCas(JCas mergeJCas, BratAnnotatorModel aBratAnnotatorModel,
             AnnotationDocument randomAnnotationDocument)
         throws UIMAException, ClassNotFoundException, IOException
@@ -20,6 +20,9 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.message;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.springframework.util.ReflectionUtils;
 
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
@@ -41,6 +44,8 @@ import com.fasterxml.jackson.databind.ser.std.AsArraySerializerBase;
 public class BeanAsArraySerializer
     extends AsArraySerializerBase<Object>
 {
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<>();
+
     public BeanAsArraySerializer()
     {
         this(null, false, null, null, null);
@@ -93,23 +98,12 @@ public class BeanAsArraySerializer
     public void serializeContents(Object value, JsonGenerator jgen, SerializerProvider provider)
         throws IOException, JsonGenerationException
     {
-        JsonPropertyOrder order = value.getClass().getAnnotation(JsonPropertyOrder.class);
-        String[] propOrder = (order == null) ? null : order.value();
-
-        if (propOrder == null) {
-            throw new IllegalStateException("Bean must declare JsonPropertyOrder!");
-        }
-
-        if (propOrder.length == 0) {
-            return;
-        }
+        Field[] fields = getFields(value.getClass());
 
         int i = 0;
         try {
-            do {
-                Field field = value.getClass().getDeclaredField(propOrder[i]);
-                ReflectionUtils.makeAccessible(field);
-                Object elem = field.get(value);
+            for (; i < fields.length; i++) {
+                Object elem = fields[i].get(value);
                 if (elem == null) {
                     provider.defaultSerializeNull(jgen);
                 }
@@ -118,13 +112,41 @@ public class BeanAsArraySerializer
                     JsonSerializer<Object> serializer = provider.findValueSerializer(cc, null);
                     serializer.serialize(elem, jgen, provider);
                 }
-                ++i;
             }
-            while (i < propOrder.length);
         }
         catch (Exception e) {
             // [JACKSON-55] Need to add reference information
             wrapAndThrow(provider, e, value, i);
         }
     }
+
+    /**
+     * Get the fields in the declared property order. These are looked up once per class because
+     * reflective field lookups are expensive when serializing many beans.
+     */
+    private static Field[] getFields(Class<?> aClass)
+    {
+        Field[] fields = FIELDS.get(aClass);
+        if (fields == null) {
+            JsonPropertyOrder order = aClass.getAnnotation(JsonPropertyOrder.class);
+            String[] propOrder = (order == null) ? null : order.value();
+
+            if (propOrder == null) {
+                throw new IllegalStateException("Bean must declare JsonPropertyOrder!");
+            }
+
+            fields = new Field[propOrder.length];
+            for (int i = 0; i < propOrder.length; i++) {
+                try {
+                    fields[i] = aClass.getDeclaredField(propOrder[i]);
+                }
+                catch (NoSuchFieldException e) {
+                    throw new IllegalStateException(e);
+                }
+                ReflectionUtils.makeAccessible(fields[i]);
+            }
+            FIELDS.put(aClass, fields);
+        }
+        return fields;
+    }
 }
@@ -3376,6 +3376,54 @@ Util.profileReport();
         }
       };
 
+// WEBANNO EXTENSION BEGIN - Incremental rendering
+      // Replace, remove and add entities/relations by their ID while keeping the order of the
+      // remaining ones
+      var patchItems = function(items, changed, removed) {
+        var updates = {};
+        $.each(changed, function(itemNo, item) {
+          updates[item[0]] = item;
+        });
+        $.each(removed, function(idNo, id) {
+          updates[id] = null;
+        });
+        var result = [];
+        $.each(items || [], function(itemNo, item) {
+          var id = item[0];
+          if (updates.hasOwnProperty(id)) {
+            if (updates[id]) {
+              result.push(updates[id]);
+            }
+            delete updates[id];
+          } else {
+            result.push(item);
+          }
+        });
+        $.each(updates, function(id, item) {
+          if (item) {
+            result.push(item);
+          }
+        });
+        return result;
+      };
+
+      // Apply the changes since the last rendered document sent by the server
+      var renderDataPatch = function(patch) {
+        if (!sourceData) {
+          // Nothing to patch - fetch the complete document instead
+          renderDocument();
+          return;
+        }
+        var patched = $.extend({}, sourceData);
+        patched.entities = patchItems(sourceData.entities, patch.entities,
+            patch.removed_entities);
+        patched.relations = patchItems(sourceData.relations, patch.relations,
+            patch.removed_relations);
+        patched.comments = patch.comments;
+        renderData(patched);
+      };
+// WEBANNO EXTENSION END
+
       var renderDocument = function() {
         Util.profileStart('invoke getDocument');
         dispatcher.post('ajax', [{
@@ -3815,6 +3863,9 @@ Util.profileStart('before render');
           on('collectionChanged', collectionChanged).
           on('collectionLoaded', collectionLoaded).
           on('renderData', renderData).
+// WEBANNO EXTENSION BEGIN - Incremental rendering
+          on('renderDataPatch', renderDataPatch).
+// WEBANNO EXTENSION END
           on('triggerRender', triggerRender).
           on('requestRenderData', requestRenderData).
           on('isReloadOkay', isReloadOkay).
@@ -20,7 +20,6 @@ package de.tudarmstadt.ukp.clarin.webanno.brat.util;
 import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeUtil.getAdapter;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -40,8 +39,6 @@ import org.apache.uima.jcas.JCas;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.springframework.security.core.context.SecurityContextHolder;
 
-import com.fasterxml.jackson.core.JsonGenerator;
-
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
 import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
@@ -51,6 +48,7 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasController;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.ColoringStrategy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RenderContext;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.TypeAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AnnotationOption;
@@ -200,8 +198,11 @@ public class CuratorUtil
     {
         GetDocumentResponse response = new GetDocumentResponse();
 
+        // The display window is the same for all layers
+        RenderContext context = new RenderContext(aJcas, aBratAnnotatorModel);
+
         // Render invisible baseline annotations (sentence, tokens)
-        SpanAdapter.renderTokenAndSentence(aJcas, response, aBratAnnotatorModel);
+        SpanAdapter.renderTokenAndSentence(context, response);
 
         // Render visible (custom) layers
         for (AnnotationLayer layer : aBratAnnotatorModel.getAnnotationLayers()) {
@@ -220,15 +221,10 @@ public class CuratorUtil
             }
             features.removeAll(invisibleFeatures);
             TypeAdapter adapter = getAdapter(aAnnotationService, layer);
-            adapter.render(aJcas, features, response, aBratAnnotatorModel,
-                    aCurationColoringStrategy);
+            adapter.render(context, features, response, aCurationColoringStrategy);
         }
 
-        StringWriter out = new StringWriter();
-        JsonGenerator jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper()
-                .getJsonFactory().createJsonGenerator(out);
-        jsonGenerator.writeObject(response);
-        return out.toString();
+        return JSONUtil.toJsonString(response);
     }
 
     private static String getCollectionInformation(AnnotationService aAnnotationService,
@@ -239,11 +235,7 @@ public class CuratorUtil
         info.setEntityTypes(BratAjaxCasController.buildEntityTypes(aCurationContainer
                 .getBratAnnotatorModel().getAnnotationLayers(), aAnnotationService));
 
-        StringWriter out = new StringWriter();
-        JsonGenerator jsonGenerator = JSONUtil.getJsonConverter().getObjectMapper()
-                .getJsonFactory().createJsonGenerator(out);
-        jsonGenerator.writeObject(info);
-        return out.toString();
+        return JSONUtil.toJsonString(info);
     }
 
     /**
@@ -43,6 +43,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
+import de.tudarmstadt.ukp.clarin.webanno.brat.controller.RenderContext;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.SpanAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetCollectionInformationResponse;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
@@ -201,7 +202,8 @@ public class CasToBratJsonTest
         GetDocumentResponse response = new GetDocumentResponse();
         response.setText(jCas.getDocumentText());
 
-        SpanAdapter.renderTokenAndSentence(jCas, response, bratannotatorModel);
+        SpanAdapter.renderTokenAndSentence(new RenderContext(jCas, bratannotatorModel),
+                response);
 
   /*      for (AnnotationLayer layer : bratannotatorModel.getAnnotationLayers()) {
             getAdapter(layer, annotationService).render(jCas,
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.annotation;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Argument;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Comment;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Relation;
+import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
+import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
+
+public class RenderedDocumentTest
+{
+    private static final String PREFIX = "Wicket.$('vis').dispatcher.post('renderData', [";
+    private static final String SUFFIX = "]);";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testPatch()
+        throws Exception
+    {
+        RenderedDocument rendered = new RenderedDocument();
+
+        GetDocumentResponse response = createResponse();
+        response.getEntities().add(new Entity(1, "POS", new Offsets(0, 3), "NN", null));
+        response.getEntities().add(new Entity(2, "POS", new Offsets(4, 7), "VB", null));
+        response.getEntities().add(new Entity(3, "POS", new Offsets(8, 11), "NN", null));
+        response.getRelations().add(new Relation(4, "Dependency", asList(new Argument("Arg1", 2),
+                new Argument("Arg2", 1)), "SUBJ", null));
+        assertNull(rendered.diff(mapper, response));
+
+        // Change one entity, remove one and add another one
+        response = createResponse();
+        response.getEntities().add(new Entity(1, "POS", new Offsets(0, 3), "NN", null));
+        response.getEntities().add(new Entity(2, "POS", new Offsets(4, 7), "VBZ", null));
+        response.getEntities().add(new Entity(5, "NER", new Offsets(0, 3), "PER", null));
+        response.getRelations().add(new Relation(4, "Dependency", asList(new Argument("Arg1", 2),
+                new Argument("Arg2", 1)), "SUBJ", null));
+        response.addComments(new Comment(5, "AnnotatorNotes", "note"));
+
+        Map<String, Object> patch = rendered.diff(mapper, response);
+        assertNotNull(patch);
+        assertEquals("[[\"2\",\"POS\",[[4,7]],\"VBZ\",null],[\"5\",\"NER\",[[0,3]],\"PER\",null]]",
+                toJson(patch.get("entities")));
+        assertEquals("[\"3\"]", toJson(patch.get("removed_entities")));
+        assertEquals("[]", toJson(patch.get("relations")));
+        assertEquals("[]", toJson(patch.get("removed_relations")));
+        assertEquals("[[\"5\",\"AnnotatorNotes\",\"note\"]]", toJson(patch.get("comments")));
+
+        // Nothing changed
+        patch = rendered.diff(mapper, response);
+        assertEquals("[]", toJson(patch.get("entities")));
+        assertEquals("[]", toJson(patch.get("removed_entities")));
+    }
+
+    @Test
+    public void testNoPatchWhenWindowChanged()
+        throws Exception
+    {
+        RenderedDocument rendered = new RenderedDocument();
+        GetDocumentResponse response = createResponse();
+        rendered.set(mapper, response);
+        assertNotNull(rendered.diff(mapper, response));
+
+        response.setSentenceNumberOffset(11);
+        assertNull(rendered.diff(mapper, response));
+        assertNotNull(rendered.diff(mapper, response));
+
+        rendered.clear();
+        assertNull(rendered.diff(mapper, response));
+    }
+
+    /**
+     * Compares the memory allocated by building the render script for a large document, first
+     * with the complete document and then with a patch, with the way it was done before, i.e. by
+     * converting the response to a JSON tree first.
+     */
+    @Test
+    public void testRenderCommandAllocation()
+        throws Exception
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        assumeTrue(bean.isThreadAllocatedMemorySupported()
+                && bean.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        GetDocumentResponse document = createResponse(20000, "NN");
+        GetDocumentResponse changed = createResponse(20000, "VB");
+
+        long[] treeBytes = new long[2];
+        long[] streamedBytes = new long[2];
+        // Measure the last of a few rounds to leave out one-time initializations
+        for (int i = 0; i < 5; i++) {
+            Map<String, Long> hashes = new HashMap<>();
+            long before = bean.getThreadAllocatedBytes(thread);
+            String expected = viaTree(hashes, document).toString();
+            treeBytes[0] = bean.getThreadAllocatedBytes(thread) - before;
+            before = bean.getThreadAllocatedBytes(thread);
+            viaTree(hashes, changed);
+            treeBytes[1] = bean.getThreadAllocatedBytes(thread) - before;
+
+            RenderedDocument rendered = new RenderedDocument();
+            before = bean.getThreadAllocatedBytes(thread);
+            CharSequence full = BratAnnotator.renderCommand("vis", rendered, mapper, document);
+            streamedBytes[0] = bean.getThreadAllocatedBytes(thread) - before;
+            before = bean.getThreadAllocatedBytes(thread);
+            CharSequence patch = BratAnnotator.renderCommand("vis", rendered, mapper, changed);
+            streamedBytes[1] = bean.getThreadAllocatedBytes(thread) - before;
+
+            assertEquals(expected, full.toString());
+            assertTrue(patch.toString().startsWith(
+                    "Wicket.$('vis').dispatcher.post('renderDataPatch', [{\"entities\":[[\"7\""));
+        }
+
+        assertTrue("complete document - tree: " + treeBytes[0] + " streamed: " + streamedBytes[0],
+                streamedBytes[0] < treeBytes[0]);
+        assertTrue("patch - tree: " + treeBytes[1] + " streamed: " + streamedBytes[1],
+                streamedBytes[1] < treeBytes[1] / 2);
+    }
+
+    /**
+     * The way the render script was built before: the response was converted to a JSON tree, the
+     * base and each annotation were hashed via their string representation and then either the
+     * tree or a patch tree was written to the script.
+     */
+    private CharSequence viaTree(Map<String, Long> aHashes, GetDocumentResponse aResponse)
+        throws IOException
+    {
+        ObjectNode json = mapper.valueToTree(aResponse);
+        boolean patchable = !aHashes.isEmpty();
+        long base = 0;
+        Iterator<Entry<String, JsonNode>> i = json.fields();
+        while (i.hasNext()) {
+            Entry<String, JsonNode> field = i.next();
+            if (!field.getKey().equals("entities") && !field.getKey().equals("relations")
+                    && !field.getKey().equals("comments")) {
+                base = 31 * base + field.getValue().toString().hashCode();
+            }
+        }
+        ObjectNode patch = json.objectNode();
+        ArrayNode entities = patch.putArray("entities");
+        for (JsonNode item : json.get("entities")) {
+            long hash = item.toString().hashCode();
+            Long old = aHashes.put(item.get(0).asText(), hash);
+            if (old == null || old != hash) {
+                entities.add(item);
+            }
+        }
+        patch.set("comments", json.get("comments"));
+
+        StringBuilderWriter out = new StringBuilderWriter();
+        out.append(patchable ? "Wicket.$('vis').dispatcher.post('renderDataPatch', [" : PREFIX);
+        JSONUtil.writeJson(mapper, patchable ? patch : json, out);
+        out.append(SUFFIX);
+        return out.getBuilder();
+    }
+
+    private static GetDocumentResponse createResponse(int aTokens, String aTag)
+    {
+        GetDocumentResponse response = new GetDocumentResponse();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < aTokens; i++) {
+            int begin = text.length();
+            text.append("token").append(i).append(' ');
+            response.addToken(begin, text.length() - 1);
+            response.getEntities().add(new Entity(i, "1_POS",
+                    new Offsets(begin, text.length() - 1), i == 7 ? aTag : "NN", null));
+        }
+        response.setText(text.toString());
+        response.addSentence(0, text.length());
+        return response;
+    }
+
+    private GetDocumentResponse createResponse()
+    {
+        GetDocumentResponse response = new GetDocumentResponse();
+        response.setText("The cat sat");
+        response.addSentence(0, 11);
+        response.addToken(0, 3);
+        response.addToken(4, 7);
+        response.addToken(8, 11);
+        return response;
+    }
+
+    private String toJson(Object aValue)
+        throws IOException
+    {
+        return mapper.writeValueAsString(aValue);
+    }
+}
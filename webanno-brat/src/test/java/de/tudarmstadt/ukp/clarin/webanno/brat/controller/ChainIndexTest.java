@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.CasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
+import de.tudarmstadt.ukp.dkpro.core.api.coref.type.CoreferenceChain;
+import de.tudarmstadt.ukp.dkpro.core.api.coref.type.CoreferenceLink;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class ChainIndexTest
+{
+    @Test
+    public void testSelectMatchesChainWalk()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(new String(new char[100]).replace('\0', ' '));
+
+        // Interleaved chains, one of them with a link spanning several windows
+        CoreferenceChain chain1 = createChain(jcas, 0, 2, 10, 12, 20, 22, 50, 52);
+        createChain(jcas, 5, 7, 30, 32);
+        createChain(jcas, 8, 60, 70, 72);
+        createChain(jcas, 90, 95);
+
+        ChainIndex index = getIndex(jcas);
+        assertEquals(select(jcas, CoreferenceLink.class).size(), index.size());
+
+        for (int begin = 0; begin < 100; begin += 5) {
+            for (int end = begin + 5; end <= 100; end += 15) {
+                assertEquals(begin + "-" + end, walk(jcas, begin, end), toAddresses(index,
+                        index.select(begin, end)));
+            }
+        }
+
+        // Chain ordinals follow the chain index, link ordinals the chain
+        CoreferenceLink link = chain1.getFirst();
+        for (int i = 0; i < 4; i++) {
+            int position = findPosition(index, link);
+            assertEquals(0, index.getChain(position));
+            assertEquals(i, index.getOrdinal(position));
+            link = link.getNext();
+            if (link != null) {
+                assertEquals(getAddr(link), index.getAddress(index.getNext(position)));
+            }
+            else {
+                assertEquals(-1, index.getNext(position));
+            }
+        }
+        assertEquals(3, index.getChain(index.select(90, 91)[0]));
+    }
+
+    @Test
+    public void testRebuiltOnChange()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(new String(new char[100]).replace('\0', ' '));
+        CoreferenceChain chain = createChain(jcas, 0, 2, 10, 12);
+
+        ChainIndex index = getIndex(jcas);
+        assertSame(index, getIndex(jcas));
+
+        createChain(jcas, 20, 22);
+        assertNotSame(index, getIndex(jcas));
+
+        // Other annotations do not matter
+        index = getIndex(jcas);
+        new Token(jcas, 0, 2).addToIndexes();
+        assertSame(index, getIndex(jcas));
+
+        // Reconnecting links must be announced
+        index = getIndex(jcas);
+        chain.getFirst().setNext(null);
+        assertSame(index, getIndex(jcas));
+        ChainIndex.invalidate(jcas);
+        assertEquals(-1, getIndex(jcas).getNext(getIndex(jcas).select(0, 1)[0]));
+    }
+
+    /**
+     * Every request works on its own CAS. The index is built only once for all requests on the
+     * same version of the CAS, so selecting the links of a window does not walk all chains again
+     * on every request.
+     */
+    @Test
+    public void testSharedBetweenVersions()
+        throws Exception
+    {
+        int chains = 1000;
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(new String(new char[chains * 10]).replace('\0', ' '));
+        // Chains with links spread over the whole document
+        for (int i = 0; i < chains; i++) {
+            int[] offsets = new int[10];
+            for (int k = 0; k < 5; k++) {
+                offsets[k * 2] = (i + k * chains) * 2;
+                offsets[k * 2 + 1] = (i + k * chains) * 2 + 1;
+            }
+            createChain(jcas, offsets);
+        }
+        // CASes are only linked to their version once derived data is kept at all
+        getIndex(jcas);
+        CASCompleteSerializer version = serializeCASComplete(jcas.getCasImpl());
+
+        ChainIndex index = getIndex(read(version));
+        for (int windowBegin : new int[] { 0, chains * 10 - 500 }) {
+            Set<Integer> expected = walk(jcas, windowBegin, windowBegin + 500);
+            for (int i = 0; i < 3; i++) {
+                ChainIndex shared = getIndex(read(version));
+                assertTrue(shared.isSharedWith(index));
+                assertEquals(expected,
+                        toAddresses(shared, shared.select(windowBegin, windowBegin + 500)));
+            }
+        }
+
+        // Requests which have changed the chains build their own index
+        JCas changed = read(version);
+        ChainIndex.invalidate(changed);
+        assertFalse(getIndex(changed).isSharedWith(index));
+        changed = read(version);
+        changed.getCas().addFsToIndexes(changed.getCas().createAnnotation(
+                CasUtil.getType(changed.getCas(), CoreferenceLink.class), 0, 1));
+        assertFalse(getIndex(changed).isSharedWith(index));
+        assertTrue(getIndex(read(version)).isSharedWith(index));
+    }
+
+    /**
+     * Creates a CAS from a stored version like the repository does.
+     */
+    private static JCas read(CASCompleteSerializer aVersion)
+        throws Exception
+    {
+        JCas jcas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null)
+                .getJCas();
+        deserializeCASComplete(aVersion, jcas.getCasImpl());
+        CasDerivedData.link(jcas.getCas(), aVersion);
+        return jcas;
+    }
+
+    private static int findPosition(ChainIndex aIndex, CoreferenceLink aLink)
+    {
+        for (int position : aIndex.select(aLink.getBegin(), aLink.getEnd())) {
+            if (aIndex.getAddress(position) == getAddr(aLink)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static ChainIndex getIndex(JCas aJCas)
+    {
+        Type chainType = CasUtil.getType(aJCas.getCas(), CoreferenceChain.class);
+        Feature first = chainType.getFeatureByBaseName("first");
+        return ChainIndex.get(aJCas, chainType, first, "next");
+    }
+
+    private static CoreferenceChain createChain(JCas aJCas, int... aOffsets)
+    {
+        CoreferenceLink prev = null;
+        CoreferenceChain chain = new CoreferenceChain(aJCas);
+        for (int i = 0; i < aOffsets.length; i += 2) {
+            CoreferenceLink link = new CoreferenceLink(aJCas, aOffsets[i], aOffsets[i + 1]);
+            link.addToIndexes();
+            if (prev == null) {
+                chain.setFirst(link);
+            }
+            else {
+                prev.setNext(link);
+            }
+            prev = link;
+        }
+        chain.addToIndexes();
+        return chain;
+    }
+
+    /**
+     * The links which were rendered by walking every chain from its head until it passes the
+     * window.
+     */
+    private static Set<Integer> walk(JCas aJCas, int aWindowBegin, int aWindowEnd)
+    {
+        Set<Integer> addresses = new TreeSet<>();
+        for (CoreferenceChain chain : select(aJCas, CoreferenceChain.class)) {
+            CoreferenceLink link = chain.getFirst();
+            while (link != null) {
+                if (link.getBegin() >= aWindowEnd) {
+                    break;
+                }
+                if (!(link.getBegin() >= aWindowBegin) && (link.getEnd() <= aWindowEnd)) {
+                    link = link.getNext();
+                    continue;
+                }
+                addresses.add(getAddr(link));
+                link = link.getNext();
+            }
+        }
+        return addresses;
+    }
+
+    private static Set<Integer> toAddresses(ChainIndex aIndex, int[] aPositions)
+    {
+        List<Integer> addresses = new ArrayList<>();
+        for (int position : aPositions) {
+            addresses.add(aIndex.getAddress(position));
+        }
+        return new TreeSet<>(addresses);
+    }
+}
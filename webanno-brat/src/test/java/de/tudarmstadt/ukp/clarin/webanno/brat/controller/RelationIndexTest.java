@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.selectByAddr;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.apache.uima.cas.impl.Serialization.deserializeCASComplete;
+import static org.apache.uima.cas.impl.Serialization.serializeCASComplete;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.uima.cas.impl.CASCompleteSerializer;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.util.CasUtil;
+import org.apache.uima.jcas.JCas;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.CasDerivedData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
+
+public class RelationIndexTest
+{
+    @Test
+    public void testLookupsMatchLinearScan()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("This is a test .");
+        List<Token> tokens = createTokens(jcas);
+
+        createDependency(jcas, tokens.get(1), tokens.get(0));
+        createDependency(jcas, tokens.get(1), tokens.get(3));
+        createDependency(jcas, tokens.get(3), tokens.get(2));
+        // A loop as created for ROOT
+        createDependency(jcas, tokens.get(1), tokens.get(1));
+
+        RelationIndex index = RelationIndex.get(jcas);
+        for (Token token : tokens) {
+            assertEquals(scanAttached(jcas, token), toSet(index.getAttached(token)));
+        }
+        assertSame(index, RelationIndex.get(jcas));
+    }
+
+    @Test
+    public void testMaintained()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("This is a test .");
+        List<Token> tokens = createTokens(jcas);
+        createDependency(jcas, tokens.get(1), tokens.get(0));
+
+        RelationIndex index = RelationIndex.get(jcas);
+
+        // Relations added and removed through the index keep it
+        Dependency dep = createDependency(jcas, tokens.get(1), tokens.get(3));
+        RelationIndex.added(jcas, dep);
+        assertSame(index, RelationIndex.get(jcas));
+        assertEquals(scanAttached(jcas, tokens.get(3)), toSet(index.getAttached(tokens.get(3))));
+        assertEquals(2, index.getAttached(tokens.get(1)).length);
+
+        dep.removeFromIndexes();
+        RelationIndex.removed(jcas, dep);
+        assertSame(index, RelationIndex.get(jcas));
+        assertEquals(0, index.getAttached(tokens.get(3)).length);
+        assertEquals(1, index.getAttached(tokens.get(1)).length);
+
+        // Other changes cause the index to be rebuilt
+        Dependency other = createDependency(jcas, tokens.get(2), tokens.get(3));
+        RelationIndex rebuilt = RelationIndex.get(jcas);
+        assertNotSame(index, rebuilt);
+        assertEquals(scanAttached(jcas, tokens.get(2)), toSet(rebuilt.getAttached(tokens.get(2))));
+
+        other.removeFromIndexes();
+        assertNotSame(rebuilt, RelationIndex.get(jcas));
+        assertEquals(0, RelationIndex.get(jcas).getAttached(tokens.get(2)).length);
+
+        // Recording a relation after other changes drops the index as well
+        index = RelationIndex.get(jcas);
+        new Token(jcas, 0, 4).addToIndexes();
+        dep = createDependency(jcas, tokens.get(0), tokens.get(2));
+        RelationIndex.added(jcas, dep);
+        assertNotSame(index, RelationIndex.get(jcas));
+        assertEquals(scanAttached(jcas, tokens.get(2)),
+                toSet(RelationIndex.get(jcas).getAttached(tokens.get(2))));
+    }
+
+    @Test
+    public void testSharedBetweenVersions()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("This is a test .");
+        List<Token> tokens = createTokens(jcas);
+        createDependency(jcas, tokens.get(1), tokens.get(0));
+        Dependency dep = createDependency(jcas, tokens.get(1), tokens.get(3));
+        // CASes are only linked to their version once derived data is kept at all
+        RelationIndex.get(jcas);
+        CASCompleteSerializer version1 = serializeCASComplete(jcas.getCasImpl());
+
+        // The first request builds the index for the version
+        JCas first = read(version1);
+        RelationIndex index = RelationIndex.get(first);
+
+        // Another request on the same version uses it as well
+        JCas second = read(version1);
+        RelationIndex shared = RelationIndex.get(second);
+        assertTrue(shared.isSharedWith(index));
+
+        // Removing a relation only affects the index of the request doing it
+        AnnotationFS removed = selectByAddr(second, getAddr(dep));
+        second.getCas().removeFsFromIndexes(removed);
+        RelationIndex.removed(second, removed);
+        assertFalse(shared.isSharedWith(index));
+        assertEquals(0, shared.getAttached(selectToken(second, 3)).length);
+        assertEquals(1, index.getAttached(selectToken(first, 3)).length);
+        assertTrue(RelationIndex.get(read(version1)).isSharedWith(index));
+
+        // After saving, the maintained index is used for the new version
+        CASCompleteSerializer version2 = serializeCASComplete((CASImpl) second.getCas());
+        CasDerivedData.link(second.getCas(), version2);
+        JCas third = read(version2);
+        assertTrue(RelationIndex.get(third).isSharedWith(shared));
+        assertEquals(1, RelationIndex.get(third).getAttached(selectToken(third, 1)).length);
+
+        // A request which has changed the CAS does not use it
+        JCas changed = read(version2);
+        changed.getCas().addFsToIndexes(changed.getCas().createAnnotation(
+                CasUtil.getType(changed.getCas(), Token.class), 0, 4));
+        assertFalse(RelationIndex.get(changed).isSharedWith(shared));
+    }
+
+    /**
+     * Creates a CAS from a stored version like the repository does.
+     */
+    private static JCas read(CASCompleteSerializer aVersion)
+        throws Exception
+    {
+        JCas jcas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null)
+                .getJCas();
+        deserializeCASComplete(aVersion, jcas.getCasImpl());
+        CasDerivedData.link(jcas.getCas(), aVersion);
+        return jcas;
+    }
+
+    private static AnnotationFS selectToken(JCas aJCas, int aIndex)
+    {
+        return new ArrayList<>(CasUtil.select(aJCas.getCas(),
+                CasUtil.getType(aJCas.getCas(), Token.class))).get(aIndex);
+    }
+
+    private static List<Token> createTokens(JCas aJCas)
+    {
+        List<Token> tokens = new ArrayList<>();
+        int begin = 0;
+        for (String text : aJCas.getDocumentText().split(" ")) {
+            Token token = new Token(aJCas, begin, begin + text.length());
+            token.addToIndexes();
+            tokens.add(token);
+            begin += text.length() + 1;
+        }
+        return tokens;
+    }
+
+    private static Dependency createDependency(JCas aJCas, Token aGovernor, Token aDependent)
+    {
+        Dependency dep = new Dependency(aJCas, Math.min(aGovernor.getBegin(),
+                aDependent.getBegin()), Math.max(aGovernor.getEnd(), aDependent.getEnd()));
+        dep.setGovernor(aGovernor);
+        dep.setDependent(aDependent);
+        dep.addToIndexes();
+        return dep;
+    }
+
+    private static Set<Integer> scanAttached(JCas aJCas, Token aToken)
+    {
+        Set<Integer> attached = new TreeSet<>();
+        for (Dependency dep : select(aJCas, Dependency.class)) {
+            if (dep.getGovernor() == aToken || dep.getDependent() == aToken) {
+                attached.add(getAddr(dep));
+            }
+        }
+        return attached;
+    }
+
+    private static Set<Integer> toSet(int[] aAddresses)
+    {
+        Set<Integer> set = new TreeSet<>();
+        for (int address : aAddresses) {
+            set.add(address);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class RelationYieldTest
+{
+    @Test
+    public void testYield()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("He saw the old man, yesterday .");
+        List<Token> tokens = createTokens(jcas, 0, 2, 3, 6, 7, 10, 11, 14, 15, 18, 18, 19, 20,
+                29, 30, 31);
+
+        RelationYield yield = new RelationYield(jcas.getDocumentText());
+        // saw -> He, saw -> man, man -> the, man -> old, saw -> yesterday
+        yield.addLink(tokens.get(1), tokens.get(0));
+        yield.addLink(tokens.get(1), tokens.get(4));
+        yield.addLink(tokens.get(4), tokens.get(2));
+        yield.addLink(tokens.get(4), tokens.get(3));
+        yield.addLink(tokens.get(1), tokens.get(6));
+        // man -> , without a space before it
+        yield.addLink(tokens.get(4), tokens.get(5));
+
+        assertEquals("He saw the old man, yesterday", yield.getYield(getAddr(tokens.get(1))));
+        assertEquals("the old man,", yield.getYield(getAddr(tokens.get(4))));
+        // A dependent which is no governor only yields itself
+        assertEquals("He", yield.getYield(getAddr(tokens.get(0))));
+        // Gaps are marked
+        yield.addLink(tokens.get(2), tokens.get(7));
+        assertEquals("the old man, ... .", yield.getYield(getAddr(tokens.get(4))));
+        assertNull(yield.getYield(-1));
+    }
+
+    @Test
+    public void testCycle()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("a b c");
+        List<Token> tokens = createTokens(jcas, 0, 1, 2, 3, 4, 5);
+
+        RelationYield yield = new RelationYield(jcas.getDocumentText());
+        yield.addLink(tokens.get(0), tokens.get(1));
+        yield.addLink(tokens.get(1), tokens.get(2));
+        yield.addLink(tokens.get(2), tokens.get(0));
+        // A loop as created for ROOT
+        yield.addLink(tokens.get(1), tokens.get(1));
+
+        assertEquals("a b c", yield.getYield(getAddr(tokens.get(1))));
+        assertEquals("a b c", yield.getYield(getAddr(tokens.get(2))));
+    }
+
+    private static List<Token> createTokens(JCas aJCas, int... aOffsets)
+    {
+        List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < aOffsets.length; i += 2) {
+            Token token = new Token(aJCas, aOffsets[i], aOffsets[i + 1]);
+            token.addToIndexes();
+            tokens.add(token);
+        }
+        return tokens;
+    }
+}
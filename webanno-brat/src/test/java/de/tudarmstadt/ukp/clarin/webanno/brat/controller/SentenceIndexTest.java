@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getAddr;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getFirstSentenceNumber;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getNextPageFirstSentenceAddress;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getNumberOfPages;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getSentenceAddress;
+import static de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil.getSentenceNumber;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class SentenceIndexTest
+{
+    @Test
+    public void testLookupsMatchLinearScan()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("Sentence one.Sentence two. Sentence three.");
+        // Touching sentences, a gap and an overlapping sentence
+        new Sentence(jcas, 0, 13).addToIndexes();
+        new Sentence(jcas, 13, 26).addToIndexes();
+        new Sentence(jcas, 27, 42).addToIndexes();
+        new Sentence(jcas, 30, 35).addToIndexes();
+        List<Sentence> sentences = new ArrayList<>(select(jcas, Sentence.class));
+
+        for (int offset = -1; offset <= 45; offset++) {
+            assertEquals("offset " + offset, scanSentenceNumber(sentences, offset),
+                    getSentenceNumber(jcas, offset));
+        }
+
+        for (int number = -1; number <= sentences.size() + 2; number++) {
+            assertEquals("number " + number, scanSentenceAddress(sentences, number),
+                    getSentenceAddress(jcas, number));
+        }
+
+        for (Sentence s : sentences) {
+            assertEquals(sentences.indexOf(s), getFirstSentenceNumber(jcas, getAddr(s)));
+        }
+        assertEquals(sentences.size(), getFirstSentenceNumber(jcas, -5));
+
+        assertEquals(getAddr(sentences.get(2)),
+                getNextPageFirstSentenceAddress(jcas, getAddr(sentences.get(0)), 2));
+        assertEquals(getAddr(sentences.get(2)),
+                getNextPageFirstSentenceAddress(jcas, getAddr(sentences.get(3)), 2));
+    }
+
+    @Test
+    public void testRebuiltOnChange()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("Sentence one. Sentence two.");
+        Sentence first = new Sentence(jcas, 0, 13);
+        first.addToIndexes();
+
+        SentenceIndex index = SentenceIndex.get(jcas);
+        assertSame(index, SentenceIndex.get(jcas));
+        assertEquals(1, getNumberOfPages(jcas));
+
+        new Sentence(jcas, 14, 27).addToIndexes();
+        assertNotSame(index, SentenceIndex.get(jcas));
+        assertEquals(2, getNumberOfPages(jcas));
+
+        // Annotations other than sentences also cause a rebuild, but yield the same result
+        index = SentenceIndex.get(jcas);
+        new Token(jcas, 0, 8).addToIndexes();
+        assertNotSame(index, SentenceIndex.get(jcas));
+        assertEquals(2, getNumberOfPages(jcas));
+
+        // Changing the offsets of a sentence keeps the number of sentences and feature structures
+        index = SentenceIndex.get(jcas);
+        first.removeFromIndexes();
+        first.setEnd(12);
+        first.addToIndexes();
+        assertNotSame(index, SentenceIndex.get(jcas));
+        assertEquals(12, SentenceIndex.get(jcas).getEnd(0));
+    }
+
+    /**
+     * Compares the paging lookups on a larger document with the linear scans previously used.
+     */
+    @Test
+    public void testMatchesLinearScan()
+        throws Exception
+    {
+        int sentenceCount = 5000;
+        JCas jcas = JCasFactory.createJCas();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sentenceCount; i++) {
+            text.append("This is a sentence. ");
+        }
+        jcas.setDocumentText(text.toString());
+        for (int i = 0; i < sentenceCount; i++) {
+            new Sentence(jcas, i * 20, i * 20 + 19).addToIndexes();
+        }
+        List<Sentence> sentences = new ArrayList<>(select(jcas, Sentence.class));
+
+        for (int i = 0; i < 200; i++) {
+            int offset = (i * 7919 % sentenceCount) * 20;
+            assertEquals(scanSentenceNumber(sentences, offset), getSentenceNumber(jcas, offset));
+        }
+    }
+
+    private static int scanSentenceNumber(List<Sentence> aSentences, int aOffset)
+    {
+        int sentenceNumber = 0;
+        for (Sentence sentence : aSentences) {
+            sentenceNumber++;
+            if (sentence.getBegin() <= aOffset && aOffset <= sentence.getEnd()) {
+                break;
+            }
+        }
+        return sentenceNumber;
+    }
+
+    private static int scanSentenceAddress(List<Sentence> aSentences, int aSentenceNumber)
+    {
+        int i = 1;
+        int address = 0;
+        if (aSentenceNumber < 1) {
+            return 0;
+        }
+        for (Sentence sentence : aSentences) {
+            if (i == aSentenceNumber) {
+                address = getAddr(sentence);
+                break;
+            }
+            address = getAddr(sentence);
+            i++;
+        }
+        if (aSentenceNumber > i) {
+            return 0;
+        }
+        return address;
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.controller;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
+import de.tudarmstadt.ukp.clarin.webanno.brat.message.GetDocumentResponse;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+
+public class SpanAdapterTest
+{
+    private AnnotationLayer layer;
+    private List<AnnotationFeature> features;
+    private SpanAdapter adapter;
+
+    @Before
+    public void setup()
+    {
+        layer = new AnnotationLayer();
+        layer.setId(1);
+        layer.setName(NamedEntity.class.getName());
+        layer.setUiName("Named entity");
+
+        AnnotationFeature value = new AnnotationFeature();
+        value.setName("value");
+        value.setType(CAS.TYPE_NAME_STRING);
+        features = asList(value);
+
+        adapter = new SpanAdapter(layer, features);
+    }
+
+    @Test
+    public void testRenderAcrossSentences()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("One two. Three four. Five six.");
+        new Sentence(jcas, 0, 8).addToIndexes();
+        new Sentence(jcas, 9, 20).addToIndexes();
+        new Sentence(jcas, 21, 30).addToIndexes();
+
+        NamedEntity single = new NamedEntity(jcas, 9, 14);
+        single.setValue("PER");
+        single.addToIndexes();
+        NamedEntity multi = new NamedEntity(jcas, 4, 26);
+        multi.addToIndexes();
+
+        GetDocumentResponse response = render(jcas, 0, 8, 3);
+
+        assertEquals(2, response.getEntities().size());
+        Entity multiEntity = response.getEntities().get(0);
+        assertEquals("1_" + NamedEntity.class.getName(), multiEntity.getType());
+        assertEquals(asList("4-8", "9-20", "21-26"), toString(multiEntity.getOffsets()));
+        // Without a feature value, the layer name is shown
+        assertEquals("(Named entity)", multiEntity.getLabelText());
+
+        Entity singleEntity = response.getEntities().get(1);
+        assertEquals(asList("9-14"), toString(singleEntity.getOffsets()));
+        assertEquals("PER", singleEntity.getLabelText());
+    }
+
+    @Test
+    public void testRenderSecondPage()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("One two. Three four. Five six.");
+        new Sentence(jcas, 0, 8).addToIndexes();
+        new Sentence(jcas, 9, 20).addToIndexes();
+        new Sentence(jcas, 21, 30).addToIndexes();
+        new NamedEntity(jcas, 0, 3).addToIndexes();
+        new NamedEntity(jcas, 15, 25).addToIndexes();
+
+        // Offsets are relative to the first sentence in the window
+        GetDocumentResponse response = render(jcas, 9, 20, 2);
+        assertEquals(1, response.getEntities().size());
+        assertEquals(asList("6-11", "12-16"), toString(response.getEntities().get(0)
+                .getOffsets()));
+    }
+
+    /**
+     * Renders windows of different sizes on a larger document. Only the annotations within the
+     * window are rendered.
+     */
+    @Test
+    public void testRenderWindowSizes()
+        throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        int sentenceCount = 1000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sentenceCount; i++) {
+            text.append("John met Mary in Berlin on Monday. ");
+        }
+        jcas.setDocumentText(text.toString());
+        for (int i = 0; i < sentenceCount; i++) {
+            int offset = i * 35;
+            new Sentence(jcas, offset, offset + 34).addToIndexes();
+            for (int[] ne : new int[][] { { 0, 4 }, { 9, 13 }, { 17, 23 } }) {
+                NamedEntity entity = new NamedEntity(jcas, offset + ne[0], offset + ne[1]);
+                entity.setValue("ENT");
+                entity.addToIndexes();
+            }
+        }
+
+        for (int windowSize : new int[] { 100, 1000 }) {
+            GetDocumentResponse response = render(jcas, 0, 34, windowSize);
+            assertEquals(windowSize * 3, response.getEntities().size());
+        }
+    }
+
+    private GetDocumentResponse render(JCas aJCas, int aSentenceBegin, int aSentenceEnd,
+            int aWindowSize)
+    {
+        BratAnnotatorModel model = new BratAnnotatorModel();
+        model.setSentenceBeginOffset(aSentenceBegin);
+        model.setSentenceEndOffset(aSentenceEnd);
+        model.getPreferences().setWindowSize(aWindowSize);
+
+        GetDocumentResponse response = new GetDocumentResponse();
+        adapter.render(new RenderContext(aJCas, model), features, response,
+                ColoringStrategy.staticColor(ColoringStrategy.DISABLED));
+        return response;
+    }
+
+    private static List<String> toString(List<Offsets> aOffsets)
+    {
+        List<String> result = new ArrayList<String>();
+        for (Offsets o : aOffsets) {
+            result.add(o.getBegin() + "-" + o.getEnd());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.uima.jcas.JCas;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.DocumentStudy;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class AgreementCacheTest
+{
+    private static final List<String> USERS = asList("user1", "user2");
+
+    @Test
+    public void testCachedStudy()
+        throws Exception
+    {
+        AgreementCache cache = new AgreementCache(folder.getRoot());
+        String key = AgreementCache.key(POS.class.getName(), "PosValue",
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, true, USERS,
+                asList(SpanDiffAdapter.POS));
+        AtomicInteger diffs = new AtomicInteger();
+
+        DocumentStudy study = get(cache, key, 1, "stamp1", diffs);
+        assertEquals(1, diffs.get());
+
+        // A cached study is read back from disk and yields the same agreement
+        DocumentStudy cached = get(cache, key, 1, "stamp1", diffs);
+        assertEquals(1, diffs.get());
+        assertNotSame(study, cached);
+        AgreementResult expected = getAgreement(study);
+        AgreementResult actual = getAgreement(cached);
+        assertEquals(0.836477987d, expected.getAgreement(), 0.000001d);
+        assertEquals(expected.getAgreement(), actual.getAgreement(), 0.000001d);
+        assertEquals(expected.getTotalSetCount(), actual.getTotalSetCount());
+        assertEquals(expected.getDiffSetCount(), actual.getDiffSetCount());
+        assertEquals(expected.getCompleteSets().get(0).getPosition().toString(),
+                actual.getCompleteSets().get(0).getPosition().toString());
+        assertEquals(0, expected.getCompleteSets().get(0).getPosition()
+                .compareTo(actual.getCompleteSets().get(0).getPosition()));
+
+        // A different stamp means that the annotations have changed
+        get(cache, key, 1, "stamp2", diffs);
+        assertEquals(2, diffs.get());
+        get(cache, key, 1, "stamp2", diffs);
+        assertEquals(2, diffs.get());
+
+        // Other documents and settings have their own entries
+        get(cache, key, 2, "stamp2", diffs);
+        assertEquals(3, diffs.get());
+        String otherKey = AgreementCache.key(POS.class.getName(), "PosValue",
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, false, USERS,
+                asList(SpanDiffAdapter.POS));
+        assertFalse(key.equals(otherKey));
+        get(cache, otherKey, 1, "stamp2", diffs);
+        assertEquals(4, diffs.get());
+
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testUnreadableStudy()
+        throws Exception
+    {
+        AgreementCache cache = new AgreementCache(folder.getRoot());
+        AtomicInteger diffs = new AtomicInteger();
+
+        get(cache, "key", 1, "stamp", diffs);
+        FileUtils.writeStringToFile(new File(folder.getRoot(), "key/1.ser"), "garbage");
+
+        // A broken file is replaced
+        get(cache, "key", 1, "stamp", diffs);
+        assertEquals(2, diffs.get());
+        get(cache, "key", 1, "stamp", diffs);
+        assertEquals(2, diffs.get());
+    }
+
+    @Test
+    public void testStudyNotStored()
+        throws Exception
+    {
+        AgreementCache cache = new AgreementCache(folder.getRoot());
+        AtomicInteger diffs = new AtomicInteger();
+
+        // A study which is not stored, e.g. because it is incomplete, is created again
+        assertNull(cache.get("key", 1, "stamp"));
+        makeStudy(diffs);
+        assertNull(cache.get("key", 1, "stamp"));
+        get(cache, "key", 1, "stamp", diffs);
+        assertEquals(2, diffs.get());
+        assertNotNull(cache.get("key", 1, "stamp"));
+    }
+
+    private static DocumentStudy get(AgreementCache aCache, String aKey, long aDocumentId,
+            String aStamp, AtomicInteger aDiffs)
+    {
+        DocumentStudy study = aCache.get(aKey, aDocumentId, aStamp);
+        if (study == null) {
+            study = makeStudy(aDiffs);
+            aCache.put(aKey, aDocumentId, aStamp, study);
+        }
+        return study;
+    }
+
+    private static DocumentStudy makeStudy(AtomicInteger aDiffs)
+    {
+        aDiffs.incrementAndGet();
+        try {
+            Map<String, List<JCas>> casByUser = DiffUtils.load(
+                    "casdiff/someDifferences/user1.conll",
+                    "casdiff/someDifferences/user2.conll");
+            Map<String, List<JCas>> casMap = new LinkedHashMap<>();
+            for (int i = 0; i < USERS.size(); i++) {
+                casMap.put(USERS.get(i), new ArrayList<>(casByUser.values()).get(i));
+            }
+            return AgreementUtils.makeDocumentStudy(asList(SpanDiffAdapter.POS),
+                    LinkCompareBehavior.LINK_TARGET_AS_LABEL, POS.class.getName(), "PosValue",
+                    true, USERS, casMap);
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static AgreementResult getAgreement(DocumentStudy aStudy)
+    {
+        return AgreementUtils.getPairwiseAgreement(ConcreteAgreementMeasure.COHEN_KAPPA_AGREEMENT,
+                true, POS.class.getName(), "PosValue", USERS, asList(aStudy).iterator())
+                .getStudy("user2", "user1");
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
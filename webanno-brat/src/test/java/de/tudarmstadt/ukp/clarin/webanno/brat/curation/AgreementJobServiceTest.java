@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementJobService.Job;
+
+public class AgreementJobServiceTest
+{
+    private AgreementJobService service;
+
+    @After
+    public void tearDown()
+    {
+        service.destroy();
+    }
+
+    @Test
+    public void testProgress()
+        throws Exception
+    {
+        service = new AgreementJobService(1);
+        CountDownLatch halfway = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        PairwiseAnnotationResult result = new PairwiseAnnotationResult();
+
+        Job job = service.submit("job", j -> {
+            j.setTotalSteps(4);
+            j.step(2);
+            halfway.countDown();
+            proceed.await();
+            j.step(2);
+            return result;
+        });
+
+        assertTrue(halfway.await(10, TimeUnit.SECONDS));
+        assertEquals(50, job.getProgress());
+        assertFalse(job.isDone());
+        assertNull(job.getResult());
+
+        // Submitting the same job again while it is running yields the running job
+        assertSame(job, service.submit("job", j -> null));
+
+        proceed.countDown();
+        await(job);
+        assertEquals(100, job.getProgress());
+        assertSame(result, job.getResult());
+        assertNull(job.getError());
+        assertTrue(service.listJobs().isEmpty());
+
+        // The finished job remains available, but submitting it again computes it again
+        assertSame(job, service.getJob("job"));
+        Job again = service.submit("job", j -> result);
+        assertFalse(job == again);
+        assertSame(again, service.getJob("job"));
+        await(again);
+    }
+
+    @Test
+    public void testBoundedWorkers()
+        throws Exception
+    {
+        service = new AgreementJobService(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        CountDownLatch thirdRunning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Job[] jobs = new Job[2];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = service.submit("job" + i, j -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                bothRunning.countDown();
+                release.await();
+                running.decrementAndGet();
+                return null;
+            });
+        }
+        Job third = service.submit("job2", j -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            thirdRunning.countDown();
+            running.decrementAndGet();
+            return null;
+        });
+
+        // Both workers are busy, so the third job has to wait
+        assertTrue(bothRunning.await(10, TimeUnit.SECONDS));
+        assertFalse(thirdRunning.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(third.isDone());
+
+        release.countDown();
+        for (Job job : jobs) {
+            await(job);
+        }
+        await(third);
+        assertTrue(thirdRunning.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void testCancel()
+        throws Exception
+    {
+        service = new AgreementJobService(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        AtomicInteger steps = new AtomicInteger();
+
+        Job job = service.submit("job", j -> {
+            started.countDown();
+            cancelled.await();
+            for (int i = 0; i < 10; i++) {
+                j.checkCancelled();
+                steps.incrementAndGet();
+            }
+            return new PairwiseAnnotationResult();
+        });
+
+        // A job which is still queued never starts
+        Job queued = service.submit("queued", j -> {
+            steps.incrementAndGet();
+            return null;
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        job.cancel();
+        queued.cancel();
+        cancelled.countDown();
+
+        await(job);
+        await(queued);
+        assertTrue(job.isCancelled());
+        assertTrue(queued.isCancelled());
+        assertNull(job.getResult());
+        assertEquals(0, steps.get());
+
+        // A cancelled job can be submitted again
+        assertFalse(job == service.submit("job", j -> null));
+    }
+
+    @Test
+    public void testError()
+        throws Exception
+    {
+        service = new AgreementJobService(1);
+
+        Job job = service.submit("job", j -> {
+            throw new IllegalStateException("broken");
+        });
+
+        await(job);
+        assertNull(job.getResult());
+        assertNotNull(job.getError());
+        assertEquals("broken", job.getError().getMessage());
+    }
+
+    private static void await(Job aJob)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!aJob.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(aJob.isDone());
+    }
+}
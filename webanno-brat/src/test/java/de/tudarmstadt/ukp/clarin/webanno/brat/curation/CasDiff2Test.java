@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.uima.fit.factory.JCasFactory;
 import org.apache.uima.jcas.JCas;
@@ -33,11 +34,14 @@ import org.junit.Test;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ArcDiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.Configuration;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ConfigurationSet;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
@@ -504,6 +508,202 @@ public class CasDiff2Test
         assertEquals(0, agreement.getIncompleteSetsByPosition().size());
     }
 
+    @Test
+    public void multipleDocumentsTest()
+        throws Exception
+    {
+        String[] documents = { "someDifferences", "relationDistance", "spanLabel",
+                "relationLabel", "singleSpanDifference" };
+
+        List<String> entryTypes = asList(POS.class.getName(), Dependency.class.getName());
+
+        List<? extends DiffAdapter> diffAdapters = asList(SpanDiffAdapter.POS,
+                new ArcDiffAdapter(Dependency.class.getName(), "Dependent", "Governor",
+                        "DependencyType"));
+
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", new ArrayList<>());
+        casByUser.put("user2", new ArrayList<>());
+        for (String document : documents) {
+            casByUser.get("user1").add(DiffUtils.read("casdiff/" + document + "/user1.conll"));
+            casByUser.get("user2").add(DiffUtils.read("casdiff/" + document + "/user2.conll"));
+        }
+
+        DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        // Each document must yield the same configuration sets as when diffed on its own
+        int size = 0;
+        for (int i = 0; i < documents.length; i++) {
+            Map<String, List<JCas>> documentByUser = new LinkedHashMap<>();
+            documentByUser.put("user1", asList(casByUser.get("user1").get(i)));
+            documentByUser.put("user2", asList(casByUser.get("user2").get(i)));
+
+            DiffResult documentResult = CasDiff2.doDiff(entryTypes, diffAdapters,
+                    LinkCompareBehavior.LINK_TARGET_AS_LABEL, documentByUser);
+
+            assertEquals(documents[i], describe(documentResult, 0), describe(result, i));
+            size += documentResult.size();
+        }
+        assertEquals(size, result.size());
+    }
+
+    @Test
+    public void pairwiseAgreementByDocumentTest()
+        throws Exception
+    {
+        String[] documents = { "someDifferences", "spanLabel", "singleSpanDifference" };
+        List<String> users = asList("user1", "user2", "user3");
+
+        List<String> entryTypes = asList(POS.class.getName());
+
+        List<? extends DiffAdapter> diffAdapters = asList(SpanDiffAdapter.POS);
+
+        // user3 has annotated like user1, but not the last document
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        for (String user : users) {
+            casByUser.put(user, new ArrayList<>());
+        }
+        List<Map<String, List<JCas>>> casByDocument = new ArrayList<>();
+        for (int i = 0; i < documents.length; i++) {
+            JCas user3 = i < documents.length - 1
+                    ? DiffUtils.read("casdiff/" + documents[i] + "/user1.conll") : null;
+            Map<String, List<JCas>> documentByUser = new LinkedHashMap<>();
+            documentByUser.put("user1",
+                    asList(DiffUtils.read("casdiff/" + documents[i] + "/user1.conll")));
+            documentByUser.put("user2",
+                    asList(DiffUtils.read("casdiff/" + documents[i] + "/user2.conll")));
+            documentByUser.put("user3", asList(user3));
+            casByDocument.add(documentByUser);
+            for (String user : users) {
+                casByUser.get(user).add(documentByUser.get(user).get(0));
+            }
+        }
+
+        DiffResult diff = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+        PairwiseAnnotationResult expected = AgreementUtils.getPairwiseAgreement(
+                ConcreteAgreementMeasure.KRIPPENDORFF_ALPHA_NOMINAL_AGREEMENT, false, diff,
+                entryTypes.get(0), "PosValue", casByUser);
+
+        PairwiseAnnotationResult actual = AgreementUtils.getPairwiseAgreement(
+                ConcreteAgreementMeasure.KRIPPENDORFF_ALPHA_NOMINAL_AGREEMENT, false,
+                diffAdapters, LinkCompareBehavior.LINK_TARGET_AS_LABEL, entryTypes.get(0),
+                "PosValue", users, casByDocument.iterator());
+
+        assertEquals(expected.getRaters(), actual.getRaters());
+        for (String user1 : users) {
+            for (String user2 : users) {
+                if (user1.equals(user2)) {
+                    continue;
+                }
+                AgreementResult e = expected.getStudy(user1, user2);
+                AgreementResult a = actual.getStudy(user1, user2);
+                String pair = user1 + "/" + user2;
+                assertEquals(pair, e.getAgreement(), a.getAgreement(), 0.000001d);
+                assertEquals(pair, e.getStudy().getItemCount(), a.getStudy().getItemCount());
+                assertEquals(pair, e.getTotalSetCount(), a.getTotalSetCount());
+                assertEquals(pair, e.getRelevantSetCount(), a.getRelevantSetCount());
+                assertEquals(pair, e.getDiffSetCount(), a.getDiffSetCount());
+                assertEquals(pair, e.getIncompleteSetsByPosition().size(),
+                        a.getIncompleteSetsByPosition().size());
+                
+                // The configurations can still be printed although the CASes have been released
+                for (ConfigurationSet set : a.getCompleteSets()) {
+                    set.getConfigurations().forEach(Configuration::toString);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pairwiseAgreementSinglePassTest()
+        throws Exception
+    {
+        String[] documents = { "someDifferences", "spanLabel", "singleSpanDifference" };
+        List<String> users = asList("user1", "user2", "user3", "user4");
+
+        List<String> entryTypes = asList(POS.class.getName());
+
+        List<? extends DiffAdapter> diffAdapters = asList(SpanDiffAdapter.POS);
+
+        // user3 has annotated like user2 and user4 like user1, but user4 skipped the second
+        // document
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        for (String user : users) {
+            casByUser.put(user, new ArrayList<>());
+        }
+        for (int i = 0; i < documents.length; i++) {
+            String dir = "casdiff/" + documents[i];
+            casByUser.get("user1").add(DiffUtils.read(dir + "/user1.conll"));
+            casByUser.get("user2").add(DiffUtils.read(dir + "/user2.conll"));
+            casByUser.get("user3").add(DiffUtils.read(dir + "/user2.conll"));
+            casByUser.get("user4").add(i != 1 ? DiffUtils.read(dir + "/user1.conll") : null);
+        }
+
+        DiffResult diff = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        // The single pass over all pairs must yield the same studies as looking at every pair
+        // on its own
+        for (ConcreteAgreementMeasure measure : ConcreteAgreementMeasure.values()) {
+            for (boolean excludeIncomplete : asList(true, false)) {
+                if (!excludeIncomplete && !measure.isNullValueSupported()) {
+                    continue;
+                }
+                
+                PairwiseAnnotationResult actual = AgreementUtils.getPairwiseAgreement(measure,
+                        excludeIncomplete, diff, entryTypes.get(0), "PosValue", casByUser);
+                
+                for (int m = 0; m < users.size(); m++) {
+                    for (int n = 0; n < m; n++) {
+                        Map<String, List<JCas>> pairwiseCasMap = new LinkedHashMap<>();
+                        pairwiseCasMap.put(users.get(m), casByUser.get(users.get(m)));
+                        pairwiseCasMap.put(users.get(n), casByUser.get(users.get(n)));
+                        AgreementResult e = AgreementUtils.getAgreement(measure,
+                                excludeIncomplete, diff, entryTypes.get(0), "PosValue",
+                                pairwiseCasMap);
+                        AgreementResult a = actual.getStudy(users.get(m), users.get(n));
+                        String pair = measure + " " + excludeIncomplete + " " + users.get(m)
+                                + "/" + users.get(n);
+                        assertEquals(pair, e.getAgreement(), a.getAgreement(), 0.000001d);
+                        assertEquals(pair, e.getStudy().getItemCount(),
+                                a.getStudy().getItemCount());
+                        assertEquals(pair, e.getTotalSetCount(), a.getTotalSetCount());
+                        assertEquals(pair, e.getRelevantSetCount(), a.getRelevantSetCount());
+                        assertEquals(pair, e.getDiffSetCount(), a.getDiffSetCount());
+                        assertEquals(pair, e.getIncompleteSetsByPosition().size(),
+                                a.getIncompleteSetsByPosition().size());
+                        assertEquals(pair, e.getIncompleteSetsByLabel().size(),
+                                a.getIncompleteSetsByLabel().size());
+                        assertEquals(pair, e.getPluralitySets().size(),
+                                a.getPluralitySets().size());
+                    }
+                }
+                
+                // Identical annotations agree perfectly
+                assertEquals(1.0d, actual.getStudy("user3", "user2").getAgreement(), 0.000001d);
+            }
+        }
+    }
+
+    private static List<String> describe(DiffResult aResult, int aCasId)
+    {
+        List<String> sets = new ArrayList<>();
+        for (ConfigurationSet set : aResult.getConfigurationSets()) {
+            if (set.getPosition().getCasId() != aCasId) {
+                continue;
+            }
+            List<Set<String>> configurations = new ArrayList<>();
+            for (Configuration cfg : set.getConfigurations()) {
+                configurations.add(cfg.getCasGroupIds());
+            }
+            sets.add(set.getPosition().getType() + " " + set.getPosition().toMinimalString()
+                    + " " + configurations + " " + aResult.isAgreement(set));
+        }
+        return sets;
+    }
+
     @Test
     public void multiLinkWithRoleNoDifferenceTest()
         throws Exception
@@ -752,6 +952,45 @@ public class CasDiff2Test
 //        assertEquals(0.0, agreement.getAgreement(), 0.00001d);
     }
     
+    /**
+     * Diffs the POS annotations of 10 annotators on a larger document.
+     */
+    @Test
+    public void manyAnnotatorsTest()
+        throws Exception
+    {
+        int annotators = 10;
+        int tokens = 5000;
+
+        Map<String, List<JCas>> casByUser = new LinkedHashMap<>();
+        for (int a = 0; a < annotators; a++) {
+            JCas jcas = JCasFactory.createJCas();
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < tokens; i++) {
+                int begin = text.length();
+                text.append("token").append(i).append(' ');
+                POS pos = new POS(jcas, begin, text.length() - 1);
+                // Every annotator disagrees with the others on some tokens
+                pos.setPosValue(i % annotators == a ? "NN" : "VB");
+                pos.addToIndexes();
+            }
+            jcas.setDocumentText(text.toString());
+            DocumentMetaData dmd = DocumentMetaData.create(jcas);
+            dmd.setCollectionId("user" + a);
+            dmd.setDocumentId("doc");
+            casByUser.put("user" + a, asList(jcas));
+        }
+
+        List<String> entryTypes = asList(POS.class.getName());
+        List<SpanDiffAdapter> diffAdapters = asList(SpanDiffAdapter.POS);
+
+        DiffResult result = CasDiff2.doDiff(entryTypes, diffAdapters,
+                LinkCompareBehavior.LINK_TARGET_AS_LABEL, casByUser);
+
+        assertEquals(tokens, result.size());
+        assertEquals(tokens, result.getDifferingConfigurationSets().size());
+    }
+
     @Rule
     public DkproTestContext testContext = new DkproTestContext();
 }
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.model;
+
+import static java.util.Arrays.asList;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.jcas.JCas;
+import org.junit.Rule;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.ArcDiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.SpanDiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.DiffUtils;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+import de.tudarmstadt.ukp.dkpro.core.api.syntax.type.dependency.Dependency;
+import de.tudarmstadt.ukp.dkpro.core.testing.DkproTestContext;
+
+public class SuggestionBuilderTest
+{
+    @Test
+    public void testSegmentStatesFromSingleDiff()
+        throws Exception
+    {
+        Map<String, List<JCas>> casByUser = DiffUtils.load(
+                "casdiff/someDifferences/user1.conll",
+                "casdiff/someDifferences/user2.conll");
+        List<String> entryTypes = asList(POS.class.getName(), Dependency.class.getName());
+        List<? extends DiffAdapter> diffAdapters = asList(SpanDiffAdapter.POS,
+                ArcDiffAdapter.DEPENDENCY);
+
+        // Use every token and every window of three tokens as a segment
+        List<Token> tokens = new ArrayList<>(select(casByUser.get("user1").get(0), Token.class));
+        List<SourceListView> segments = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            segments.add(segment(tokens.get(i).getBegin(), tokens.get(i).getEnd()));
+            if (i + 2 < tokens.size()) {
+                segments.add(segment(tokens.get(i).getBegin(), tokens.get(i + 2).getEnd()));
+            }
+        }
+
+        DiffResult diff = CasDiff2.doDiff(entryTypes, diffAdapters, casByUser,
+                tokens.get(0).getBegin(), tokens.get(tokens.size() - 1).getEnd(),
+                LinkCompareBehavior.LINK_ROLE_AS_LABEL);
+        SuggestionBuilder.updateSegmentStates(segments, diff);
+
+        // The states must be the same as when diffing each segment on its own
+        int disagreeing = 0;
+        for (SourceListView segment : segments) {
+            DiffResult segmentDiff = CasDiff2.doDiff(entryTypes, diffAdapters, casByUser,
+                    segment.getBegin(), segment.getEnd(), LinkCompareBehavior.LINK_ROLE_AS_LABEL);
+            SentenceState expected = segmentDiff.hasDifferences()
+                    || !segmentDiff.getIncompleteConfigurationSets().isEmpty()
+                    ? SentenceState.DISAGREE : SentenceState.AGREE;
+            assertEquals(segment.getBegin() + "-" + segment.getEnd(), expected,
+                    segment.getSentenceState());
+            if (expected == SentenceState.DISAGREE) {
+                disagreeing++;
+            }
+        }
+        assertTrue(disagreeing > 0);
+        assertTrue(disagreeing < segments.size());
+    }
+
+    private static SourceListView segment(int aBegin, int aEnd)
+    {
+        SourceListView segment = new SourceListView();
+        segment.setBegin(aBegin);
+        segment.setEnd(aEnd);
+        return segment;
+    }
+
+    @Rule
+    public DkproTestContext testContext = new DkproTestContext();
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.brat.message;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Entity;
+import de.tudarmstadt.ukp.clarin.webanno.brat.display.model.Offsets;
+import de.tudarmstadt.ukp.clarin.webanno.support.JSONUtil;
+
+public class GetDocumentResponseJsonTest
+{
+    private static final String PREFIX = "Wicket.$('vis').dispatcher.post('renderData', [";
+    private static final String SUFFIX = "]);";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Writing the JSON directly into the script must produce the same script as building the JSON
+     * string first. The memory needed on the actual render path is compared in
+     * {@code RenderedDocumentTest}.
+     */
+    @Test
+    public void testStreamedMatchesString()
+        throws Exception
+    {
+        GetDocumentResponse response = createResponse(1000);
+        assertEquals(viaString(response), streamed(response).toString());
+    }
+
+    /**
+     * The way the script was built before.
+     */
+    private String viaString(GetDocumentResponse aResponse)
+        throws IOException
+    {
+        StringWriter out = new StringWriter();
+        JsonGenerator jsonGenerator = mapper.getFactory().createGenerator(out);
+        jsonGenerator.writeObject(aResponse);
+        String json = out.toString();
+        return PREFIX + json + SUFFIX;
+    }
+
+    private CharSequence streamed(GetDocumentResponse aResponse)
+        throws IOException
+    {
+        StringBuilderWriter out = new StringBuilderWriter();
+        out.append(PREFIX);
+        JSONUtil.writeJson(mapper, aResponse, out);
+        out.append(SUFFIX);
+        return out.getBuilder();
+    }
+
+    private static GetDocumentResponse createResponse(int aTokens)
+    {
+        GetDocumentResponse response = new GetDocumentResponse();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < aTokens; i++) {
+            int begin = text.length();
+            text.append("token").append(i).append(' ');
+            response.addToken(begin, text.length() - 1);
+            response.getEntities().add(new Entity(i, "1_POS",
+                    new Offsets(begin, text.length() - 1), "NN", null));
+        }
+        response.setText(text.toString());
+        response.addSentence(0, text.length());
+        return response;
+    }
+}
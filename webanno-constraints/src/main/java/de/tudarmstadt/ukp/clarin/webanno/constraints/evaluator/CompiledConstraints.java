@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.uima.cas.FSIterator;
+import org.apache.uima.cas.Feature;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.text.AnnotationFS;
+
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Condition;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Restriction;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Rule;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Scope;
+
+/**
+ * Evaluation plan compiled from {@link ParsedConstraints} for a type system.
+ * <p>
+ * For each type and target feature, only the rules restricting the feature are considered. Their
+ * conditions are grouped by path, and for each path the rules are indexed by the condition value.
+ * Thus, evaluating the rules for a feature structure reads each distinct path once and looks up
+ * the values found. The paths are split into steps once.
+ * <p>
+ * The plans only refer to types and features by name, so they do not depend on a particular type
+ * system. This matters because every CAS read from the repository comes with its own type system
+ * instance. The types and features of each step are looked up when the plan is applied to a CAS
+ * and are remembered until the plan is applied to a CAS with a different type system.
+ * <p>
+ * The plans are kept as long as the constraints are alive.
+ */
+public final class CompiledConstraints
+{
+    private static final Map<ParsedConstraints, CompiledConstraints> PLANS = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    // The plans are only weakly referenced by their constraints, so the plan must not keep the
+    // constraints alive
+    private final WeakReference<ParsedConstraints> constraintsRef;
+
+    // Plans by type name and feature - types and features without rules map to NO_RULES
+    private final Map<String, Map<String, FeaturePlan>> plans = new ConcurrentHashMap<>();
+
+    private static final FeaturePlan NO_RULES = new FeaturePlan();
+
+    private CompiledConstraints(ParsedConstraints aConstraints)
+    {
+        constraintsRef = new WeakReference<>(aConstraints);
+    }
+
+    /**
+     * Get the plan for the given constraints, compiling it if necessary. The plan can be applied
+     * to feature structures of any type system.
+     *
+     * @param aConstraints
+     *            the constraints.
+     * @return the plan.
+     */
+    public static CompiledConstraints get(ParsedConstraints aConstraints)
+    {
+        synchronized (PLANS) {
+            return PLANS.computeIfAbsent(aConstraints, CompiledConstraints::new);
+        }
+    }
+
+    /**
+     * @return whether there are any rules restricting the given feature of the given type.
+     */
+    public boolean hasRules(String aTypeName, String aFeature)
+    {
+        return getPlan(aTypeName, aFeature) != NO_RULES;
+    }
+
+    /**
+     * Get the values proposed by the rules triggered by the given feature structure. The values
+     * are returned in the order of the rules.
+     *
+     * @param aContext
+     *            the feature structure.
+     * @param aFeature
+     *            the target feature.
+     * @return the values.
+     */
+    public List<PossibleValue> generatePossibleValues(FeatureStructure aContext, String aFeature)
+    {
+        FeaturePlan plan = getPlan(aContext.getType().getName(), aFeature);
+        List<PossibleValue> possibleValues = new ArrayList<PossibleValue>();
+        if (plan == NO_RULES) {
+            return possibleValues;
+        }
+
+        // A rule triggers if any of its conditions matches
+        BitSet triggered = new BitSet(plan.restrictions.size());
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < plan.paths.length; i++) {
+            values.clear();
+            plan.paths[i].evaluate(aContext, 0, values);
+            if (log.isTraceEnabled()) {
+                log.trace("values of [" + plan.paths[i].path + "] are " + values);
+            }
+            for (String value : values) {
+                BitSet rules = plan.rulesByValue[i].get(value);
+                if (rules != null) {
+                    triggered.or(rules);
+                }
+            }
+        }
+
+        for (int r = triggered.nextSetBit(0); r >= 0; r = triggered.nextSetBit(r + 1)) {
+            for (Restriction res : plan.restrictions.get(r)) {
+                possibleValues.add(new PossibleValue(res.getValue(), res.isFlagImportant()));
+            }
+        }
+        return possibleValues;
+    }
+
+    private FeaturePlan getPlan(String aTypeName, String aFeature)
+    {
+        Map<String, FeaturePlan> typePlans = plans.computeIfAbsent(aTypeName,
+                k -> new ConcurrentHashMap<>());
+        return typePlans.computeIfAbsent(aFeature, k -> compile(aTypeName, aFeature));
+    }
+
+    private FeaturePlan compile(String aTypeName, String aFeature)
+    {
+        ParsedConstraints constraints = constraintsRef.get();
+        if (constraints == null) {
+            throw new IllegalStateException("Constraints are no longer available");
+        }
+
+        if (!constraints.areThereRules(aTypeName, aFeature)) {
+            return NO_RULES;
+        }
+        Scope scope = constraints.getScopeByName(constraints.getShortName(aTypeName));
+
+        FeaturePlan plan = new FeaturePlan();
+        Map<String, Map<String, BitSet>> rulesByPath = new LinkedHashMap<>();
+        for (Rule rule : scope.getRules()) {
+            List<Restriction> restrictions = new ArrayList<>();
+            for (Restriction res : rule.getRestrictions()) {
+                if (aFeature.equals(res.getPath())) {
+                    restrictions.add(res);
+                }
+            }
+            if (restrictions.isEmpty()) {
+                continue;
+            }
+
+            int ruleIndex = plan.restrictions.size();
+            plan.restrictions.add(restrictions);
+            for (Condition condition : rule.getConditions()) {
+                rulesByPath.computeIfAbsent(condition.getPath(), k -> new HashMap<>())
+                        .computeIfAbsent(condition.getValue(), k -> new BitSet())
+                        .set(ruleIndex);
+            }
+        }
+
+        plan.paths = new Path[rulesByPath.size()];
+        @SuppressWarnings("unchecked")
+        Map<String, BitSet>[] rulesByValue = new Map[rulesByPath.size()];
+        int i = 0;
+        for (Map.Entry<String, Map<String, BitSet>> e : rulesByPath.entrySet()) {
+            plan.paths[i] = new Path(e.getKey(), constraints.getImports());
+            rulesByValue[i] = e.getValue();
+            i++;
+        }
+        plan.rulesByValue = rulesByValue;
+        return plan;
+    }
+
+    private static class FeaturePlan
+    {
+        // Restrictions on the target feature of each rule, in rule order
+        private final List<List<Restriction>> restrictions = new ArrayList<>();
+        // Distinct condition paths and for each the rules triggered by a value
+        private Path[] paths = new Path[0];
+        private Map<String, BitSet>[] rulesByValue;
+    }
+
+    /**
+     * A condition path split into steps. A step is either a feature, a type prefixed with
+     * {@code @} selecting the annotations of that type at the same offsets, or a function such as
+     * {@code text()}.
+     */
+    private static class Path
+    {
+        private final String path;
+        private final String[] steps;
+        // Full names of the types selected by type steps, null for other steps
+        private final String[] typeNames;
+        // The type or feature last resolved for each step
+        private final Resolved[] resolved;
+
+        Path(String aPath, Map<String, String> aImports)
+        {
+            path = aPath;
+            steps = aPath.split("\\.", -1);
+            typeNames = new String[steps.length];
+            resolved = new Resolved[steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                String step = steps[i];
+                if (step.startsWith("@")) {
+                    typeNames[i] = aImports.get(step.substring(1));
+                    if (typeNames[i] == null) {
+                        throw new IllegalStateException("Unknown type [" + step.substring(1)
+                                + "] in path [" + aPath + "]");
+                    }
+                }
+                else if (step.endsWith("()")) {
+                    if (i < steps.length - 1) {
+                        throw new IllegalStateException(
+                                "No additional steps possible after function");
+                    }
+                    if (!"text()".equals(step)) {
+                        throw new IllegalStateException("Unknown path function [" + aPath + "]");
+                    }
+                }
+            }
+        }
+
+        void evaluate(FeatureStructure aContext, int aStep, List<String> aValues)
+        {
+            if (aStep == steps.length) {
+                throw new IllegalStateException("Path [" + path + "] must end with a feature");
+            }
+
+            if (typeNames[aStep] != null) {
+                if (!(aContext instanceof AnnotationFS)) {
+                    throw new IllegalStateException("Cannot use [" + steps[aStep]
+                            + "] on non-annotations");
+                }
+                Type type = getType(aContext.getCAS().getTypeSystem(), aStep);
+                for (AnnotationFS fs : selectAt((AnnotationFS) aContext, type)) {
+                    evaluate(fs, aStep + 1, aValues);
+                }
+            }
+            else if (steps[aStep].endsWith("()")) {
+                // text()
+                if (!(aContext instanceof AnnotationFS)) {
+                    throw new IllegalStateException("Cannot use [text()] on non-annotations");
+                }
+                aValues.add(((AnnotationFS) aContext).getCoveredText());
+            }
+            else {
+                Feature feature = getFeature(aContext.getType(), aStep);
+                if (aStep < steps.length - 1) {
+                    FeatureStructure value = aContext.getFeatureValue(feature);
+                    if (value != null) {
+                        evaluate(value, aStep + 1, aValues);
+                    }
+                }
+                else {
+                    aValues.add(aContext.getFeatureValueAsString(feature));
+                }
+            }
+        }
+
+        private Type getType(TypeSystem aTypeSystem, int aStep)
+        {
+            Resolved r = resolved[aStep];
+            if (r == null || r.key != aTypeSystem) {
+                Type type = aTypeSystem.getType(typeNames[aStep]);
+                if (type == null) {
+                    throw new IllegalStateException("Unknown type [" + steps[aStep].substring(1)
+                            + "] in path [" + path + "]");
+                }
+                r = new Resolved(aTypeSystem, type);
+                resolved[aStep] = r;
+            }
+            return (Type) r.value;
+        }
+
+        private Feature getFeature(Type aType, int aStep)
+        {
+            Resolved r = resolved[aStep];
+            if (r == null || r.key != aType) {
+                Feature feature = aType.getFeatureByBaseName(steps[aStep]);
+                if (feature == null) {
+                    throw new IllegalStateException("Feature [" + steps[aStep]
+                            + "] does not exist on type [" + aType.getName() + "]");
+                }
+                r = new Resolved(aType, feature);
+                resolved[aStep] = r;
+            }
+            return (Feature) r.value;
+        }
+    }
+
+    /**
+     * A type or feature looked up in the given type system or type. The plans are shared between
+     * threads, so the key and the value are replaced together.
+     */
+    private static final class Resolved
+    {
+        private final Object key;
+        private final Object value;
+
+        Resolved(Object aKey, Object aValue)
+        {
+            key = aKey;
+            value = aValue;
+        }
+    }
+
+    /**
+     * Get the annotations of the given type with the same offsets as the given annotation. Unlike
+     * {@link ValuesGenerator#selectAt}, only the annotations starting at the same offset are
+     * visited and no feature structure is created.
+     */
+    static List<AnnotationFS> selectAt(AnnotationFS aAnchor, Type aType)
+    {
+        List<AnnotationFS> result = new ArrayList<>();
+        FSIterator<AnnotationFS> it = aAnchor.getCAS().getAnnotationIndex(aType).iterator();
+        it.moveTo(aAnchor);
+
+        // Depending on the type priorities, annotations with the same offsets may be sorted
+        // before the position found
+        if (!it.isValid()) {
+            it.moveToLast();
+        }
+        while (it.isValid() && it.get().getBegin() >= aAnchor.getBegin()) {
+            it.moveToPrevious();
+        }
+        if (it.isValid()) {
+            it.moveToNext();
+        }
+        else {
+            it.moveToFirst();
+        }
+
+        while (it.isValid() && it.get().getBegin() == aAnchor.getBegin()) {
+            AnnotationFS fs = it.get();
+            if (fs.getEnd() == aAnchor.getEnd()) {
+                result.add(fs);
+            }
+            it.moveToNext();
+        }
+        return result;
+    }
+}
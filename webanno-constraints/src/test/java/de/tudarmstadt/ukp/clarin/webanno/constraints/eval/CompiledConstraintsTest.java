@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2015
+ * Ubiquitous Knowledge Processing (UKP) Lab and FG Language Technology
+ * Technische Universität Darmstadt
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package de.tudarmstadt.ukp.clarin.webanno.constraints.eval;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.uima.cas.Feature;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.CompiledConstraints;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.PossibleValue;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.evaluator.ValuesGenerator;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.grammar.ConstraintsGrammar;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Condition;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.ParsedConstraints;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Restriction;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.model.Rule;
+import de.tudarmstadt.ukp.clarin.webanno.constraints.visitor.ParserVisitor;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma;
+
+public class CompiledConstraintsTest
+{
+    private static final String IMPORTS =
+            "import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma as Lemma;\n"
+            + "import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS as POS;\n";
+
+    @Test
+    public void testRuleOrderAndPaths()
+        throws Exception
+    {
+        ParsedConstraints constraints = parse(IMPORTS + "Lemma {\n"
+                + "  @POS.PosValue = \"VERB\" -> value = \"a\";\n"
+                + "  text() = \"is\" -> value = \"b\" (!);\n"
+                + "  text() = \"was\" -> value = \"c\";\n"
+                + "  @POS.PosValue = \"NOUN\" & text() = \"is\" -> value = \"d\" | value = \"e\";\n"
+                + "  text() = \"is\" -> other = \"x\";\n"
+                + "}\n");
+
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("is");
+        Lemma lemma = new Lemma(jcas, 0, 2);
+        lemma.addToIndexes();
+        POS pos = new POS(jcas, 0, 2);
+        pos.setPosValue("VERB");
+        pos.addToIndexes();
+        // Only annotations with the same offsets are considered
+        POS other = new POS(jcas, 0, 1);
+        other.setPosValue("NOUN");
+        other.addToIndexes();
+
+        List<PossibleValue> values = new ValuesGenerator().generatePossibleValues(lemma,
+                "value", constraints);
+        assertEquals(asList(new PossibleValue("a", false), new PossibleValue("b", true),
+                new PossibleValue("d", false), new PossibleValue("e", false)), values);
+
+        CompiledConstraints plan = CompiledConstraints.get(constraints);
+        assertSame(plan, CompiledConstraints.get(constraints));
+        assertTrue(plan.hasRules(Lemma.class.getName(), "value"));
+        assertTrue(plan.hasRules(Lemma.class.getName(), "other"));
+        assertFalse(plan.hasRules(Lemma.class.getName(), "unknown"));
+        assertFalse(plan.hasRules(POS.class.getName(), "value"));
+    }
+
+    @Test
+    public void testPlanIsIndependentOfTypeSystem()
+        throws Exception
+    {
+        ParsedConstraints constraints = parse(IMPORTS + "Lemma {\n"
+                + "  @POS.PosValue = \"VERB\" -> value = \"a\";\n"
+                + "}\n");
+
+        // Every CAS read from the repository comes with its own type system instance
+        for (int i = 0; i < 3; i++) {
+            JCas jcas = JCasFactory.createJCas();
+            jcas.setDocumentText("is");
+            Lemma lemma = new Lemma(jcas, 0, 2);
+            lemma.addToIndexes();
+            POS pos = new POS(jcas, 0, 2);
+            pos.setPosValue("VERB");
+            pos.addToIndexes();
+
+            CompiledConstraints plan = CompiledConstraints.get(constraints);
+            assertEquals(asList(new PossibleValue("a", false)),
+                    plan.generatePossibleValues(lemma, "value"));
+            assertSame(plan, CompiledConstraints.get(constraints));
+        }
+    }
+
+    /**
+     * Compares evaluating a larger constraints file using the compiled plan with checking every
+     * rule in turn as it was done before. As in the application, the feature structures come from
+     * different CASes, each with its own type system.
+     */
+    @Test
+    public void testMatchesRuleScan()
+        throws Exception
+    {
+        int ruleCount = 1000;
+        StringBuilder rules = new StringBuilder(IMPORTS);
+        rules.append("Lemma {\n");
+        for (int i = 0; i < ruleCount; i++) {
+            rules.append("  value = \"w" + i + "\" -> value = \"l" + i + "\";\n");
+        }
+        rules.append("}\n");
+        ParsedConstraints constraints = parse(rules.toString());
+
+        List<Lemma> lemmas = new ArrayList<>();
+        for (int c = 0; c < 10; c++) {
+            JCas jcas = JCasFactory.createJCas();
+            jcas.setDocumentText("word");
+            for (int i = 0; i < 10; i++) {
+                Lemma lemma = new Lemma(jcas, 0, 4);
+                lemma.setValue("w" + ((c * 10 + i) * 97 % ruleCount));
+                lemmas.add(lemma);
+            }
+        }
+
+        ValuesGenerator generator = new ValuesGenerator();
+        for (Lemma lemma : lemmas) {
+            List<PossibleValue> expected = asList(new PossibleValue("l"
+                    + lemma.getValue().substring(1), false));
+            assertEquals(expected, scan(lemma, "value", constraints));
+            assertEquals(expected, generator.generatePossibleValues(lemma, "value", constraints));
+        }
+    }
+
+    /**
+     * Checks every rule in turn - only supports paths consisting of a single feature.
+     */
+    private static List<PossibleValue> scan(Lemma aContext, String aFeature,
+            ParsedConstraints aConstraints)
+    {
+        List<PossibleValue> values = new ArrayList<>();
+        String scope = aConstraints.getShortName(aContext.getType().getName());
+        for (Rule rule : aConstraints.getScopeByName(scope).getRules()) {
+            boolean triggers = false;
+            for (Condition condition : rule.getConditions()) {
+                Feature feature = aContext.getType().getFeatureByBaseName(condition.getPath());
+                triggers |= condition.matches(new ArrayList<>(asList(aContext
+                        .getFeatureValueAsString(feature))));
+            }
+            if (triggers) {
+                for (Restriction res : rule.getRestrictions()) {
+                    if (aFeature.equals(res.getPath())) {
+                        values.add(new PossibleValue(res.getValue(), res.isFlagImportant()));
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    private static ParsedConstraints parse(String aRules)
+        throws Exception
+    {
+        ConstraintsGrammar parser = new ConstraintsGrammar(new ByteArrayInputStream(
+                aRules.getBytes(StandardCharsets.UTF_8)));
+        return parser.Parse().accept(new ParserVisitor());
+    }
+}
@@ -43,12 +43,12 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.uima.UIMAException;
-import org.apache.uima.jcas.JCas;
 import org.apache.wicket.AttributeModifier;
 import org.apache.wicket.Component;
 import org.apache.wicket.ajax.AjaxEventBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.ajax.form.OnChangeAjaxBehavior;
+import org.apache.wicket.ajax.markup.html.AjaxLink;
 import org.apache.wicket.behavior.AttributeAppender;
 import org.apache.wicket.extensions.markup.html.repeater.data.grid.DataGridView;
 import org.apache.wicket.extensions.markup.html.repeater.data.grid.ICellPopulator;
@@ -86,9 +86,11 @@ import org.jfree.chart.renderer.category.StandardBarPainter;
 import org.jfree.data.category.DefaultCategoryDataset;
 import org.jfree.ui.RectangleInsets;
 import org.jfree.util.UnitType;
-import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.wicketstuff.annotation.mount.MountPath;
+import org.wicketstuff.progressbar.ProgressBar;
+import org.wicketstuff.progressbar.Progression;
+import org.wicketstuff.progressbar.ProgressionModel;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationService;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
@@ -96,12 +98,10 @@ import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.SecurityUtil;
 import de.tudarmstadt.ukp.clarin.webanno.automation.AutomationService;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementJobService;
+import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementJobService.Job;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.AgreementReportExportFormat;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.AgreementUtils.ConcreteAgreementMeasure;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffAdapter;
-import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.DiffResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.CasDiff2.LinkCompareBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.PairwiseAnnotationResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.curation.component.CurationPanel;
@@ -123,7 +123,6 @@ import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.EmbeddableImage;
 import de.tudarmstadt.ukp.clarin.webanno.monitoring.support.TableDataProvider;
 import de.tudarmstadt.ukp.clarin.webanno.support.EntityModel;
 import de.tudarmstadt.ukp.clarin.webanno.webapp.home.page.ApplicationPageBase;
-import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 
 /**
@@ -167,6 +166,9 @@ public class MonitoringPage
 
     @SpringBean(name = "userRepository")
     private UserDao userRepository;
+
+    @SpringBean(name = "agreementJobService")
+    private AgreementJobService agreementJobService;
     
     private final ProjectSelectionForm projectSelectionForm;
     private final MonitoringDetailForm monitoringDetailForm;
@@ -182,6 +184,11 @@ public class MonitoringPage
 
     private String result;
 
+    /**
+     * Key of the background job computing the agreement shown in the agreement table.
+     */
+    private String agreementJob;
+
     private static final ResourceReference ICON_FINISHED = new PackageResourceReference(
             MonitoringPage.class, "accept.png");
     private static final ResourceReference ICON_IGNORE = new PackageResourceReference(
@@ -365,9 +372,7 @@ public class MonitoringPage
                     projectSelectionModel.totalDocuments = sourceDocuments.size();
                     ProjectSelectionForm.this.setVisible(true);
 
-                    // Clear the cached CASes. When we switch to another project, we'll have to
-                    // reload them.
-                    updateAgreementTable(null, true);
+                    updateAgreementTable(null);
 
                     // Annotator's Progress
                     if (projectSelectionModel.project != null) {
@@ -607,6 +612,8 @@ public class MonitoringPage
         private DropDownChoice<AgreementReportExportFormat> exportFormat;
 
         private CheckBox excludeIncomplete;
+
+        private ProgressBar agreementProgress;
         
         public AgreementForm(String id)
         {
@@ -725,29 +732,60 @@ public class MonitoringPage
                 @Override
                 protected PairwiseAnnotationResult load()
                 {
-                    AnnotationFeature feature = featureList.getModelObject();
-                    
-                    // Do not do any agreement if no feature has been selected yet.
-                    if (feature == null) {
-                        return null;
+                    // The agreement is computed in the background. Until the job is done, the
+                    // table remains empty.
+                    Job job = getAgreementJob();
+                    return job != null ? job.getResult() : null;
+                }
+            }));
+            
+            add(agreementProgress = new ProgressBar("agreementProgress", new ProgressionModel()
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected Progression getProgression()
+                {
+                    Job job = getAgreementJob();
+                    return new Progression(job != null ? job.getProgress() : 100);
+                }
+            })
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void onFinished(AjaxRequestTarget aTarget)
+                {
+                    Job job = getAgreementJob();
+                    if (job != null) {
+                        while (!job.getMessages().isEmpty()) {
+                            error(job.getMessages().poll());
+                        }
+                        if (job.getError() != null) {
+                            error(ExceptionUtils.getRootCauseMessage(job.getError()));
+                        }
                     }
-                    
-                    Map<String, List<JCas>> casMap = getJCases();
-                    
-                    Project project = projectSelectionForm.getModelObject().project;
-                    List<DiffAdapter> adapters = CasDiff2.getAdapters(annotationService,
-                            project);
+                    agreementTable2.getDefaultModel().detach();
+                    aTarget.add(agreementTable2);
+                    aTarget.addChildren(getPage(), FeedbackPanel.class);
+                }
+            });
+            
+            add(new AjaxLink<Void>("cancelAgreement")
+            {
+                private static final long serialVersionUID = 1L;
 
-                    AgreementFormModel pref = AgreementForm.this.getModelObject();
-                    
-                    DiffResult diff = CasDiff2.doDiff(asList(feature.getLayer().getName()),
-                            adapters, pref.linkCompareBehavior, casMap);
-                    return AgreementUtils.getPairwiseAgreement(
-                            AgreementForm.this.getModelObject().measure,
-                            pref.excludeIncomplete, diff, feature.getLayer().getName(),
-                            feature.getName(), casMap);
+                @Override
+                public void onClick(AjaxRequestTarget aTarget)
+                {
+                    Job job = getAgreementJob();
+                    if (job != null && !job.isDone()) {
+                        job.cancel();
+                        info("Agreement computation cancelled");
+                        aTarget.addChildren(getPage(), FeedbackPanel.class);
+                    }
                 }
-            }));
+            });
         }
         
         @Override
@@ -767,7 +805,7 @@ public class MonitoringPage
                 @Override
                 protected void onUpdate(AjaxRequestTarget aTarget)
                 {
-                    updateAgreementTable(aTarget, false);
+                    updateAgreementTable(aTarget);
 //                    // Adding this as well because when choosing a different measure, it may affect
 //                    // the ability to exclude incomplete configurations.
 //                    aTarget.add(excludeIncomplete);
@@ -1042,103 +1080,42 @@ public class MonitoringPage
 
     }
 
-    // The CASes cannot be serialized, so we make them transient here. However, it does not matter
-    // as we do not access the field directly but via getJCases() which will re-load them if
-    // necessary, e.g. if the transient field is empty after a session is restored from a 
-    // persisted state.
-    private transient Map<String, List<JCas>> cachedCASes;
+    private Job getAgreementJob()
+    {
+        return agreementJob != null ? agreementJobService.getJob(agreementJob) : null;
+    }
 
     /**
-     * Get the finished CASes used to compute agreement.
+     * Start computing the agreement for the current settings in the background. The progress bar
+     * refreshes the agreement table once the computation is done. A computation still running for
+     * the previous settings is cancelled.
      */
-    private Map<String, List<JCas>> getJCases()
+    private void updateAgreementTable(AjaxRequestTarget aTarget)
     {
-        // Avoid reloading the CASes when switching features. 
-        if (cachedCASes != null) {
-            return cachedCASes;
-        }
-        
         Project project = projectSelectionForm.getModelObject().project;
-        
-        List<User> users = repository
-                .listProjectUsersWithPermissions(project, PermissionLevel.USER);
-        
-        List<SourceDocument> sourceDocuments = repository.listSourceDocuments(project);
-        
-        // Filter training documents out from the source documents. Training documents are not
-        // being annotated
-        // FIXME actually, listSourceDocuments() shouldn return training documents in the first 
-        // place. Cf. https://github.com/webanno/webanno/issues/23
-        List<SourceDocument> trainingDoc = new ArrayList<SourceDocument>();
-        for (SourceDocument sdc : sourceDocuments) {
-            if (sdc.isTrainingDocument()) {
-                trainingDoc.add(sdc);
-            }
-        }
-        sourceDocuments.removeAll(trainingDoc);
-        
-        cachedCASes = new LinkedHashMap<>();
-        for (User user : users) {
-            List<JCas> cases = new ArrayList<>();
-            
-            for (SourceDocument document : sourceDocuments) {
-                JCas jCas = null;
-                
-                // Load the CAS if there is a finished one.
-                if (repository.existsAnnotationDocument(document, user)) {
-                    AnnotationDocument annotationDocument = repository.getAnnotationDocument(
-                            document, user);
-                    if (annotationDocument.getState().equals(AnnotationDocumentState.FINISHED)) {
-                        try {
-                            jCas = repository.readAnnotationCas(annotationDocument);
-                            repository.upgradeCas(jCas.getCas(), annotationDocument);
-                            // REC: I think there is no need to write the CASes here. We would not
-                            // want to interfere with currently active annotator users
-                            
-                            // Set the CAS name in the DocumentMetaData so that we can pick it
-                            // up in the Diff position for the purpose of debugging / transparency.
-                            DocumentMetaData documentMetadata = DocumentMetaData.get(jCas);
-                            documentMetadata.setDocumentId(annotationDocument.getDocument().getName());
-                            documentMetadata.setCollectionId(annotationDocument.getProject().getName());
-                        }
-                        catch (DataRetrievalFailureException e) {
-                            error(e.getCause().getMessage());
-                        }
-                        catch (UIMAException e) {
-                            error(ExceptionUtils.getRootCause(e));
-                        }
-                        catch (IOException e) {
-                            error(ExceptionUtils.getRootCause(e));
-                        }
-                    }
-                }
-                
-                // The next line can enter null values into the list if a user didn't work on this
-                // source document yet.
-                cases.add(jCas);
-            }
+        AgreementFormModel pref = agreementForm.getModelObject();
+        Job previousJob = getAgreementJob();
 
-            cachedCASes.put(user.getUsername(), cases);
+        // Do not do any agreement if no feature has been selected yet.
+        if (project == null || pref.feature == null) {
+            agreementJob = null;
+        }
+        else {
+            agreementJob = agreementJobService.submit(project, pref.feature, pref.measure,
+                    pref.linkCompareBehavior, pref.excludeIncomplete).getKey();
         }
-        
-        return cachedCASes;
-    }
 
-    private void updateAgreementTable(AjaxRequestTarget aTarget, boolean aClearCache)
-    {
-        try {
-            if (aClearCache) {
-                cachedCASes = null;
-            }
-            agreementForm.agreementTable2.getDefaultModel().detach();
-            if (aTarget != null) {
-                aTarget.add(agreementForm.agreementTable2);
-            }
+        // The previous settings are no longer shown, so do not keep a worker busy with them
+        if (previousJob != null && !previousJob.getKey().equals(agreementJob)
+                && !previousJob.isDone()) {
+            previousJob.cancel();
         }
-        catch (Throwable e) {
-            error(ExceptionUtils.getRootCauseMessage(e));
-            if (aTarget != null) {
-                aTarget.addChildren(getPage(), FeedbackPanel.class);
+
+        agreementForm.agreementTable2.getDefaultModel().detach();
+        if (aTarget != null) {
+            aTarget.add(agreementForm.agreementTable2);
+            if (agreementJob != null) {
+                agreementForm.agreementProgress.start(aTarget);
             }
         }
     }
@@ -1299,7 +1276,7 @@ public class MonitoringPage
                             aTarget.appendJavaScript("alert('the state can only be changed explicitly by the curator')");
                         }
 
-                        updateAgreementTable(aTarget, true);
+                        updateAgreementTable(aTarget);
                         
                         aTarget.add(aCellItem);
                         updateStats(aTarget, projectSelectionForm.getModelObject());
@@ -1412,7 +1389,7 @@ public class MonitoringPage
 
                         }
                         
-                        updateAgreementTable(aTarget, true);
+                        updateAgreementTable(aTarget);
                         
                         aTarget.add(aCellItem);
                         updateStats(aTarget, projectSelectionForm.getModelObject());
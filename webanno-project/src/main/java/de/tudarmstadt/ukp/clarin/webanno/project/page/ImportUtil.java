@@ -66,6 +66,7 @@ public class ImportUtil
 {
 
     public static final String META_INF = "META-INF";
+    public static final String TYPESYSTEM = "typesystem";
     public static final String SOURCE = "source";
     public static final String ANNOTATION_AS_SERIALISED_CAS = "annotation_ser";
     public static final String CURATION_AS_SERIALISED_CAS = "curation_ser";
@@ -788,6 +789,40 @@ public class ImportUtil
         }
     }
 
+    /**
+     * copy the type systems of the stored CASes from the exported project
+     * @param zip the ZIP file.
+     * @param aProject the project.
+     * @param aRepository the repository service.
+     * @throws IOException if an I/O error occurs.
+     */
+    @SuppressWarnings("rawtypes")
+    public static void createProjectTypeSystems(ZipFile zip, Project aProject,
+            RepositoryService aRepository)
+        throws IOException
+    {
+        for (Enumeration zipEnumerate = zip.entries(); zipEnumerate.hasMoreElements();) {
+            ZipEntry entry = (ZipEntry) zipEnumerate.nextElement();
+
+            // Strip leading "/" that we had in ZIP files prior to 2.0.8 (bug #985)
+            String entryName = normalizeEntryName(entry);
+
+            if (entryName.startsWith(TYPESYSTEM + "/")) {
+                String fileName = FilenameUtils.getName(entryName);
+                if (fileName.isEmpty()) {
+                    continue;
+                }
+                File typeSystemDir = aRepository.getTypeSystemFolder(aProject);
+                FileUtils.forceMkdir(typeSystemDir);
+                FileUtils.copyInputStreamToFile(zip.getInputStream(entry), new File(
+                        typeSystemDir, fileName));
+
+                LOG.info("Imported type system [" + fileName + "] for project ["
+                        + aProject.getName() + "] with id [" + aProject.getId() + "]");
+            }
+        }
+    }
+
     /**
      * copy project log files from the exported project
      * @param zip the ZIP file.
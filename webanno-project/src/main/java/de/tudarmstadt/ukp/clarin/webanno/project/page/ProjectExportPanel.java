@@ -93,6 +93,7 @@ public class ProjectExportPanel extends Panel {
     private static final String FORMAT_AUTO = "AUTO";
 
 	private static final String META_INF = "/" + ImportUtil.META_INF;
+	private static final String TYPESYSTEM = "/" + ImportUtil.TYPESYSTEM;
 	public static final String EXPORTED_PROJECT = ImportUtil.EXPORTED_PROJECT;
 	private static final String SOURCE_FOLDER = "/"+ImportUtil.SOURCE;
 	private static final String CURATION_AS_SERIALISED_CAS = "/"+ImportUtil.CURATION_AS_SERIALISED_CAS+"/";
@@ -205,6 +206,7 @@ public class ProjectExportPanel extends Panel {
                 File curationCasFile = repository.getCasFile(sourceDocument,
                         CURATION_USER);
                 if (curationCasFile.exists()) {
+                    repository.flushCas(sourceDocument, CURATION_USER);
                     // Copy CAS - this is used when importing the project again
                     FileUtils.copyFileToDirectory(curationCasFile, curationCasDir);
                     
@@ -504,6 +506,7 @@ public class ProjectExportPanel extends Panel {
             exportProjectLog(aModel.project, exportTempDir);
             exportGuideLine(aModel.project, exportTempDir);
             exportProjectMetaInf(aModel.project, exportTempDir);
+            exportProjectTypeSystems(aModel.project, exportTempDir);
             exportProjectConstraints(aModel.project, exportTempDir);
             progress = 90;
             exportCuratedDocuments(aModel, exportTempDir);
@@ -783,6 +786,7 @@ public class ProjectExportPanel extends Panel {
                                     annotationDocument.getUser(), Mode.ANNOTATION, false);
                         }
                         if (annotationFileAsSerialisedCas.exists()) {
+                            repository.flushCas(sourceDocument, annotationDocument.getUser());
                             FileUtils.copyFileToDirectory(annotationFileAsSerialisedCas,
                                     annotationDocumentAsSerialisedCasDir);
                             if (writer != null) {
@@ -802,6 +806,7 @@ public class ProjectExportPanel extends Panel {
                     File correctionCasFile = repository.getCasFile(sourceDocument,
                             CORRECTION_USER);
                     if (correctionCasFile.exists()) {
+                        repository.flushCas(sourceDocument, CORRECTION_USER);
                         // Copy CAS - this is used when importing the project again
                         File curationCasDir = new File(aCopyDir + CURATION_AS_SERIALISED_CAS
                                 + sourceDocument.getName());
@@ -866,6 +871,22 @@ public class ProjectExportPanel extends Panel {
                 FileUtils.copyDirectory(metaInf, metaInfDir);
             }
         }
+
+
+        /**
+         * Copy the type systems referenced by the stored CASes of this project to the export
+         * folder
+         */
+        private void exportProjectTypeSystems(Project aProject, File aCopyDir)
+            throws IOException
+        {
+            File typeSystemDir = new File(aCopyDir + TYPESYSTEM);
+            FileUtils.forceMkdir(typeSystemDir);
+            File typeSystems = repository.getTypeSystemFolder(aProject);
+            if (typeSystems.exists()) {
+                FileUtils.copyDirectory(typeSystems, typeSystemDir);
+            }
+        }
         
         /**
          * Copy Project Constraints from file system of this project to export folder
@@ -732,6 +732,8 @@ public class ProjectPage
                 ImportUtil.createProjectGuideline(zip, importedProject, repository);
                 // create project META-INF
                 ImportUtil.createProjectMetaInf(zip, importedProject, repository);
+                // create project type systems
+                ImportUtil.createProjectTypeSystems(zip, importedProject, repository);
                 // create project constraint
                 ImportUtil.createProjectConstraint(zip, importedProject, repository);
             }
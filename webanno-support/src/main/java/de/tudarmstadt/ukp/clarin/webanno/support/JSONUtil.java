@@ -19,12 +19,14 @@ package de.tudarmstadt.ukp.clarin.webanno.support;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.Writer;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import de.tudarmstadt.ukp.clarin.webanno.model.support.spring.ApplicationContextProvider;
 
@@ -57,12 +59,8 @@ public class JSONUtil
             Object aObject)
         throws IOException
     {
-        StringWriter out = new StringWriter();
-
-        JsonGenerator jsonGenerator = jsonConverter.getObjectMapper().getJsonFactory()
-                .createJsonGenerator(out);
-
-        jsonGenerator.writeObject(aObject);
+        StringBuilderWriter out = new StringBuilderWriter();
+        writeJson(jsonConverter.getObjectMapper(), aObject, out);
         return out.toString();
     }
 
@@ -71,7 +69,33 @@ public class JSONUtil
     {
         return toJsonString(getJsonConverter(), aObject);
     }
-    
+
+    /**
+     * Write the JSON representation of the given object directly to the given writer without
+     * building an intermediate string. The writer is flushed, but not closed.
+     *
+     * @param aObject
+     *            the object.
+     * @param aWriter
+     *            the writer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public static void writeJson(Object aObject, Writer aWriter)
+        throws IOException
+    {
+        writeJson(getJsonConverter().getObjectMapper(), aObject, aWriter);
+    }
+
+    public static void writeJson(ObjectMapper aMapper, Object aObject, Writer aWriter)
+        throws IOException
+    {
+        JsonGenerator jsonGenerator = aMapper.getFactory().createGenerator(aWriter);
+        jsonGenerator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        jsonGenerator.writeObject(aObject);
+        jsonGenerator.close();
+    }
+
     public static MappingJackson2HttpMessageConverter getJsonConverter()
     {
         return ApplicationContextProvider.getApplicationContext().getBean("jsonConverter",
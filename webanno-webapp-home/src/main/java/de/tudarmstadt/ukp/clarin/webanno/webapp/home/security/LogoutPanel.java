@@ -23,7 +23,11 @@ import org.apache.wicket.markup.html.link.Link;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
+import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.springframework.security.core.context.SecurityContextHolder;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
+
 /**
  * A wicket panel for logout.
  *
@@ -31,6 +35,9 @@ import org.springframework.security.core.context.SecurityContextHolder;
 public class LogoutPanel
     extends Panel
 {
+    @SpringBean(name = "documentRepository")
+    private RepositoryService repository;
+
     public LogoutPanel(String id)
     {
         super(id);
@@ -53,6 +60,9 @@ public class LogoutPanel
             @Override
             public void onClick()
             {
+                // Make sure nothing the user saved is left only in the write-behind queue
+                repository.flushPendingCasWrites(SecurityContextHolder.getContext()
+                        .getAuthentication().getName());
                 AuthenticatedWebSession.get().signOut();
                 setResponsePage(getApplication().getHomePage());
             }
@@ -803,12 +803,12 @@ public class AnnotationPage
             // Read the CAS
             JCas jcas = repository.readAnnotationCas(annotationDocument);
 
-            // Update the annotation document CAS
-            repository.upgradeCas(jcas.getCas(), annotationDocument);
-
-            // After creating an new CAS or upgrading the CAS, we need to save it
-            repository.writeAnnotationCas(jcas.getCas().getJCas(),
-                    annotationDocument.getDocument(), user);
+            // Update the annotation document CAS. A new CAS has already been saved when it was
+            // created, so we only need to save the CAS if it was actually upgraded.
+            if (repository.upgradeCas(jcas.getCas(), annotationDocument)) {
+                repository.writeAnnotationCas(jcas.getCas().getJCas(),
+                        annotationDocument.getDocument(), user);
+            }
 
             // (Re)initialize brat model after potential creating / upgrading CAS
             bModel.initForDocument(jcas, repository);
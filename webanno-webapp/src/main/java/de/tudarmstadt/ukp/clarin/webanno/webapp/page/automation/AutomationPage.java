@@ -76,6 +76,7 @@ import de.tudarmstadt.ukp.clarin.webanno.automation.AutomationService;
 import de.tudarmstadt.ukp.clarin.webanno.automation.util.AutomationUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotator;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.command.Selection;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDetailEditorPanel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
@@ -389,7 +390,16 @@ public class AutomationPage
                     bModel = aBratAnnotatorModel;
                     SuggestionBuilder builder = new SuggestionBuilder(repository,
                             annotationService, userRepository);
-                    curationContainer = builder.buildCurationContainer(bModel);
+                    // Only the segments touched by the edited span annotation need to be
+                    // diffed again
+                    Selection selection = bModel.getSelection();
+                    if (selection.getAnnotation().isSet() && !selection.isRelationAnno()) {
+                        curationContainer = builder.updateCurationContainer(curationContainer,
+                                bModel, selection.getBegin(), selection.getEnd());
+                    }
+                    else {
+                        curationContainer = builder.buildCurationContainer(bModel);
+                    }
                     setCurationSegmentBeginEnd();
                     curationContainer.setBratAnnotatorModel(bModel);
 
@@ -67,6 +67,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryService;
 import de.tudarmstadt.ukp.clarin.webanno.api.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotator;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.BratAnnotatorModel;
+import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.command.Selection;
 import de.tudarmstadt.ukp.clarin.webanno.brat.annotation.component.AnnotationDetailEditorPanel;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAjaxCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.brat.controller.BratAnnotationException;
@@ -264,7 +265,16 @@ public class CorrectionPage
                     bModel = aBratAnnotatorModel;
                     SuggestionBuilder builder = new SuggestionBuilder(repository,
                             annotationService, userRepository);
-                    curationContainer = builder.buildCurationContainer(bModel);
+                    // Only the segments touched by the edited span annotation need to be
+                    // diffed again
+                    Selection selection = bModel.getSelection();
+                    if (selection.getAnnotation().isSet() && !selection.isRelationAnno()) {
+                        curationContainer = builder.updateCurationContainer(curationContainer,
+                                bModel, selection.getBegin(), selection.getEnd());
+                    }
+                    else {
+                        curationContainer = builder.buildCurationContainer(bModel);
+                    }
                     setCurationSegmentBeginEnd();
                     curationContainer.setBratAnnotatorModel(bModel);
 